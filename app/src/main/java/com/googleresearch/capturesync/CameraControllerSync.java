@@ -205,6 +205,7 @@ public class CameraControllerSync {
 
   public void close() {
     imageMetadataSynchronizer.close();
+    resultProcessor.close();
 
     imageThread.quitSafely();
     try {
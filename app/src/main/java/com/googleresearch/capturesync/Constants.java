@@ -28,6 +28,29 @@ public final class Constants {
    */
   public static final long FUTURE_TRIGGER_DELAY_NS = TimeUtils.millisToNanos(500);
 
+  /** Time the phase alignment request is retransmitted to clients that have not acknowledged it. */
+  public static final long PHASE_ALIGN_RPC_TIMEOUT_NS = TimeUtils.secondsToNanos(2);
+
+  /* Frames of phase error fitted for the drift while the phase is locked, and needed at least. */
+  public static final int PHASE_DRIFT_WINDOW_FRAMES = 300;
+  public static final int PHASE_DRIFT_MIN_FRAMES = 60;
+  /* Fraction of the align threshold the predicted phase error may reach before realigning. */
+  public static final double PHASE_LOCK_CORRECT_FRACTION = 0.5;
+  /* How far ahead the phase error is predicted, about the time a realignment takes. */
+  public static final long PHASE_LOCK_LEAD_NS = TimeUtils.millisToNanos(500);
+  /* Exposures swept from half a period to one and a half when calibrating the phase config. */
+  public static final int PHASE_CALIBRATION_STEPS = 16;
+
+  /*
+   * ImageMetadataSynchronizer: results kept waiting for their images, and newer results to wait
+   * for before an image whose result never arrived is closed. Raise the window if results arrive
+   * out of order.
+   */
+  public static final int SYNC_PENDING_RESULT_CAPACITY = 16;
+  public static final int SYNC_REORDER_WINDOW = 1;
+  /* Span of the rolling latency histograms of the synchronizer metrics. */
+  public static final long SYNC_METRICS_WINDOW_NS = TimeUtils.secondsToNanos(10);
+
   /* Set at least one of {SAVE_YUV, SAVE_RAW} to true to save any data. */
   public static final boolean SAVE_YUV = true;
 
@@ -38,6 +61,27 @@ public final class Constants {
   // TODO(samansari): Turn SAVE_JPG_FROM_YUV into a checkbox instead.
   /* Set true to save a JPG to the gallery for preview. This is slow but gives you a "postview". */
   public static final boolean SAVE_JPG_FROM_YUV = true;
+
+  /*
+   * Set true to record every saved frame losslessly, as NV21 or RAW10, into one sequence file
+   * with a binary sidecar of leader and local timestamps. Works alongside JPG saving.
+   */
+  public static final boolean SAVE_RAW_SEQUENCE = false;
+
+  /* Number of NV21 frame buffers kept for reuse while JPEGs are pending. */
+  public static final int NV21_BUFFER_POOL_SIZE = 4;
+
+  /* ResultProcessor pipeline: worker threads per stage, queue capacities and pooled buffers. */
+  public static final int RESULT_COPY_WORKERS = 2;
+  public static final int RESULT_CONVERT_WORKERS = 2;
+  public static final int RESULT_ENCODE_WORKERS = 2;
+  public static final int RESULT_QUEUE_CAPACITY = 2;
+  public static final int RESULT_WRITE_QUEUE_CAPACITY = 4;
+  public static final int RESULT_BUFFER_POOL_SIZE = 4;
+
+  /* Downsampling factor from saved frames to the gallery thumbnail, must be even. */
+  public static final int THUMBNAIL_FACTOR = 8;
+
   public static final int JPG_QUALITY = 97;
 
   public static final boolean USE_FULL_SCREEN_IMMERSIVE = false;
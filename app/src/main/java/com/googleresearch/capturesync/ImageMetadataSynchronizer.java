@@ -27,8 +27,10 @@ import android.os.Handler;
 import android.util.Log;
 import android.util.Pair;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * ImageMetadataSynchronizer synchronizes {@link Image} instances (from an {@link ImageReader}) with
@@ -97,28 +99,22 @@ import java.util.List;
  * Image instances (e.g., to give user feedback), simply use an external CaptureCallback then
  * forward the calls to {@code sync.getCaptureCallback()}.
  *
- * <p>The data structure works by maintaining a queue of TotalCaptureResult instances and N queues
- * of Image instances. It enforces the invariant that at least one of the queues should be empty
- * when a piece of data arrives. When a TotalCaptureResult or any Image arrives, it is put into its
- * corresponding queue. The queues are "swept" until at least one of them is empty.
- *
- * <p>Queues are swept by considering the TotalCaptureResult as the master. Peek at the head of the
- * TotalCaptureResult queue. If it's null, there is no match. Otherwise, look in the
- * TotalCaptureResult's CaptureRequestTag to determine which queue it's expecting an image from.
+ * <p>Matching is done by a {@link TimestampMatcher} keyed by sensor timestamp: images and results
+ * are handed to it without taking a lock, pending items are looked up by timestamp rather than by
+ * sweeping queues, and results may arrive out of order.
  *
  * <pre>
- *   Peek at the head from each queue. If any of them are null, then they have yet to arrive:
- *     Return no match.
- *   Otherwise, look at their timestamps.
- *   If result.timestamp is *equal to* all firstItems:
- *     Then it is a *match*, dequeue the result and each image. Return the match.
- *   Else if result.timestamp is *less than* any timestamp:
- *     Then an Image was dropped, report this on all registered callbacks.
- *   Else result.timestamp is *greater than* any timestamp:
- *     Then some TotalCaptureResult instances were dropped and the Image is orphaned.
- *     Drop (close()) the Image on the corresponding queue.
- *     *Replace* the Image with the next Image on that queue and try again.
+ *   When a result and an image from each of its target readers with the same timestamp have
+ *     arrived, it is a *match*, and is delivered.
+ *   If a newer image arrives on a target reader first, that reader's Image was dropped: the result
+ *     is delivered with a null image and the reader index in droppedImageReaderIndices.
+ *   If {@link Constants#SYNC_REORDER_WINDOW} newer results arrive before an Image's own, that
+ *     TotalCaptureResult was dropped and the Image is orphaned: it is closed.
  * </pre>
+ *
+ * <p>Output instances are pooled: once closed, an Output is reused for a later match and must not
+ * be accessed anymore. An Output delivered to several registered callbacks is shared by them, so it
+ * is not pooled: the first close() closes its images and later ones only log a warning.
  */
 public class ImageMetadataSynchronizer {
   // TODO(jiawen): Change the constructor interface to a builder so that this class instantiates
@@ -137,10 +133,18 @@ public class ImageMetadataSynchronizer {
     final ArrayList<Integer> targets;
     final Object userTag;
 
+    /** The targets as a bit mask of reader indices. */
+    final int targetMask;
+
     /** Construct an empty CaptureRequestTag with targets and an explicit user tag. */
     public CaptureRequestTag(List<Integer> targetIndices, Object userTag) {
       targets = new ArrayList<>(targetIndices);
       this.userTag = userTag;
+      int mask = 0;
+      for (int index : targets) {
+        mask |= 1 << index;
+      }
+      targetMask = mask;
     }
 
     /**
@@ -177,6 +181,9 @@ public class ImageMetadataSynchronizer {
   /**
    * Simple container for a synchronized collection of a TotalCaptureResult and a set of Image's. It
    * is explicitly <b>not</b> AutoCloseable. close() is provided to conveniently close() everything.
+   *
+   * <p>Instances are pooled by the synchronizer: close() returns it for reuse, so it must not be
+   * accessed afterwards. Instances shared by several callbacks are not reused.
    */
   public static class Output {
 
@@ -198,10 +205,16 @@ public class ImageMetadataSynchronizer {
      * Indices of ImageReader's that were dropped by the HAL because they were not acquired() fast
      * enough.
      */
-    ArrayList<Integer> droppedImageReaderIndices;
+    final ArrayList<Integer> droppedImageReaderIndices;
 
     private final ImageMetadataSynchronizer metadataSynchronizer;
 
+    /** Whether close() was called since this instance was last handed out. */
+    private boolean closed = false;
+
+    /** Whether this instance was handed out to more than one callback, so can't be reused. */
+    private boolean shared = false;
+
     /** Create an empty SynchronizedOutput with no result and all Image's to null. */
     Output(int nImages, ImageMetadataSynchronizer synchronizer) {
       images = new ArrayList<>();
@@ -212,18 +225,40 @@ public class ImageMetadataSynchronizer {
       metadataSynchronizer = synchronizer;
     }
 
+    /** Fills this instance from a match of the TimestampMatcher. */
+    void set(TimestampMatcher.Match<TotalCaptureResult, Image> match) {
+      closed = false;
+      result = match.result();
+      int dropped = match.droppedMask();
+      for (int i = 0; i < images.size(); ++i) {
+        images.set(i, match.image(i));
+        if ((dropped & (1 << i)) != 0) {
+          droppedImageReaderIndices.add(i);
+        }
+      }
+    }
+
     /** Convenience method to {@code close()} all underyling {@code Image} instances. */
     public void close() {
-      droppedImageReaderIndices = null;
+      if (closed) {
+        Log.w(TAG, "Output already closed!");
+        return;
+      }
+      closed = true;
+      droppedImageReaderIndices.clear();
       for (int i = 0; i < images.size(); ++i) {
         Image img = images.get(i);
         if (img != null) {
           img.close();
           metadataSynchronizer.notifyImageClosed(i);
+          images.set(i, null);
         }
       }
-      images.clear();
       result = null;
+      metadataSynchronizer.metrics.onOutputClosed();
+      if (!shared) {
+        metadataSynchronizer.recycleOutput(this);
+      }
     }
   }
 
@@ -235,44 +270,37 @@ public class ImageMetadataSynchronizer {
   }
 
   /** Whether this synchronizer is closed. Initially false. */
-  private boolean closed;
+  private volatile boolean closed;
 
   /** Input CaptureCallback: camera2 calls this to deliver metadata. */
   private CaptureCallback captureCallback;
 
-  /**
-   * Queue of pending TotalCaptureResult instances to be delivered once the corresponding Image
-   * instances arrive.
-   */
-  @SuppressWarnings("JdkObsolete")
-  private final LinkedList<TotalCaptureResult> pendingCaptureResultQueue = new LinkedList<>();
-
   /** A copy of the {@code List<ImageReader>} that was passed in. */
   private final List<ImageReader> imageReaders = new ArrayList<>();
 
-  /**
-   * ArrayList of queues. One per image reader. Each queue contains pending Image instances to be
-   * delivered once everything arrives. This list corresponds 1-to-1 with imageReaders: there is one
-   * queue per ImageReader.
-   */
-  private final List<LinkedList<Image>> pendingImageQueues = new ArrayList<>();
+  private final SyncMetrics metrics;
+
+  /** Matches results with images by timestamp, delivering matches to the registered callbacks. */
+  private final TimestampMatcher<TotalCaptureResult, Image> matcher;
 
   /** The number of images acquired for each ImageReader. */
-  private final List<Integer> imagesAcquired = new ArrayList<>();
+  private final AtomicIntegerArray imagesAcquired;
+
+  /** Closed Output instances, reused for later matches. */
+  private final AtomicReferenceArray<Output> freeOutputs;
 
   /**
    * If registered, then when we finally synchronize a result, Post a call to mOutputCallback on
    * mOutputHandler. If mOutputHandler is null, calls it on the current thread.
    */
-  private final List<Pair<Callback, Handler>> callbacks = new ArrayList<>();
+  private final List<Pair<Callback, Handler>> callbacks = new CopyOnWriteArrayList<>();
 
-  private synchronized void notifyImageClosed(int readerIndex) {
-    int nCurrentlyAcquired = imagesAcquired.get(readerIndex);
-    if (nCurrentlyAcquired < 1) {
+  private void notifyImageClosed(int readerIndex) {
+    if (imagesAcquired.getAndDecrement(readerIndex) < 1) {
+      imagesAcquired.incrementAndGet(readerIndex);
       throw new IllegalStateException(
           "Output.close() called when synchronizer thinks there are none acquired.");
     }
-    imagesAcquired.set(readerIndex, nCurrentlyAcquired - 1);
   }
 
   /**
@@ -287,40 +315,73 @@ public class ImageMetadataSynchronizer {
    *
    * <p>Callback.onDataAvailable() is called with Image's in the same order as imageReaders.
    */
-  @SuppressWarnings("JdkObsolete")
   public ImageMetadataSynchronizer(List<ImageReader> imageReaders, Handler imageHandler) {
     closed = false;
 
     createCaptureCallback();
 
     this.imageReaders.addAll(imageReaders);
-    // Create a queue and a listener per ImageReader.
     int nReaders = imageReaders.size();
+    imagesAcquired = new AtomicIntegerArray(nReaders);
+    int maxImages = 0;
+    for (ImageReader reader : imageReaders) {
+      maxImages = Math.max(maxImages, reader.getMaxImages());
+    }
+    freeOutputs = new AtomicReferenceArray<>(Constants.SYNC_PENDING_RESULT_CAPACITY + maxImages);
+    metrics = new SyncMetrics(nReaders, Constants.SYNC_METRICS_WINDOW_NS);
+    matcher =
+        new TimestampMatcher<>(
+            nReaders,
+            maxImages,
+            Constants.SYNC_PENDING_RESULT_CAPACITY,
+            Constants.SYNC_REORDER_WINDOW,
+            new TimestampMatcher.Listener<TotalCaptureResult, Image>() {
+              @Override
+              public void onMatch(TimestampMatcher.Match<TotalCaptureResult, Image> match) {
+                Output output = acquireOutput();
+                output.set(match);
+                metrics.onOutputDelivered();
+                postCallbackWithSynchronizedOutput(output);
+              }
+
+              @Override
+              public void onImageDiscarded(int reader, Image image) {
+                Log.v(TAG, "Dropping Image due to dropped TotalCaptureResult.");
+                image.close();
+                notifyImageClosed(reader);
+              }
+            },
+            metrics);
+
+    // Create a listener per ImageReader.
     for (int i = 0; i < nReaders; ++i) {
       final int readerIndex = i;
       ImageReader reader = imageReaders.get(readerIndex);
-      pendingImageQueues.add(new LinkedList<>());
-      imagesAcquired.add(0);
 
       ImageReader.OnImageAvailableListener listener =
           reader1 -> {
-            synchronized (ImageMetadataSynchronizer.this) {
-              if (closed) {
+            if (closed) {
+              return;
+            }
+            if (imagesAcquired.get(readerIndex) < reader1.getMaxImages()) {
+              Image image = reader1.acquireNextImage();
+              if (image == null) {
                 return;
               }
-              int nImagesAcquired = imagesAcquired.get(readerIndex);
-              if (nImagesAcquired < reader1.getMaxImages()) {
-                Image image = reader1.acquireNextImage();
-                imagesAcquired.set(readerIndex, nImagesAcquired + 1);
-                handleImageLocked(readerIndex, image);
+              imagesAcquired.incrementAndGet(readerIndex);
+              if (!matcher.offerImage(readerIndex, image.getTimestamp(), image)) {
+                image.close();
+                notifyImageClosed(readerIndex);
               }
+            } else {
+              metrics.onImageDeferred(readerIndex);
             }
           };
       reader.setOnImageAvailableListener(listener, imageHandler);
     }
   }
 
-  /** Clear all pending queues and clear all queued Image's. */
+  /** Clear all pending results and close all pending Image's. */
   public synchronized void close() {
     if (closed) {
       Log.w(TAG, "Already closed!");
@@ -328,18 +389,9 @@ public class ImageMetadataSynchronizer {
     }
     closed = true;
 
-    // Close every image in every queue, then clear the queue.
-    for (LinkedList<Image> q : pendingImageQueues) {
-      for (Image img : q) {
-        img.close();
-      }
-      q.clear();
-    }
-    // Clear the collection of queues.
-    pendingImageQueues.clear();
-
-    // Clear the TotalCaptureResult queue.
-    pendingCaptureResultQueue.clear();
+    // Closes every pending image and forgets pending results.
+    matcher.close();
+    Log.i(TAG, "Closing, " + metrics);
 
     for (ImageReader ir : imageReaders) {
       ir.close();
@@ -363,12 +415,20 @@ public class ImageMetadataSynchronizer {
    * <p>Duplicates are <b>not</b> checked: if the same callback is registered N times, it will be
    * called N times.
    */
-  public synchronized void registerCallback(Callback callback, Handler handler) {
+  public void registerCallback(Callback callback, Handler handler) {
     // TODO(jiawen): Consider making only a single callback available, since an Output can only be
     // closed once.
     callbacks.add(Pair.create(callback, handler));
   }
 
+  /**
+   * Counters and latency histograms of the matching, per reader: matched, dropped by the HAL,
+   * orphaned by a dropped result, and deferred because the consumer held on to its images.
+   */
+  public SyncMetrics getMetrics() {
+    return metrics;
+  }
+
   /** Initialize captureCallback with a function that just calls handleCaptureCompleted(). */
   private void createCaptureCallback() {
     captureCallback =
@@ -379,170 +439,59 @@ public class ImageMetadataSynchronizer {
             if (closed) {
               return;
             }
-            synchronized (ImageMetadataSynchronizer.this) {
-              handleCaptureResultLocked(result);
-            }
+            handleCaptureResult(result);
           }
         };
   }
 
-  /**
-   * Enforces the invariant by sweeping all internal queues when a TotalCaptureResult arrives.
-   * result cannot be null.
-   */
-  private void handleCaptureResultLocked(TotalCaptureResult result) {
+  /** Hands a TotalCaptureResult to the matcher. result cannot be null. */
+  private void handleCaptureResult(TotalCaptureResult result) {
     // TODO(jiawen): Add annotations.
     CaptureRequestTag crt = CaptureRequestTag.getCaptureRequestTag(result);
     if (crt == null) {
       throw new IllegalArgumentException("CaptureResult is missing a CaptureRequestTag.");
     }
 
-    // It has no targets, doesn't affect the queue.
-    if (crt.targets.isEmpty()) {
+    // It has no targets, doesn't affect the matching.
+    if (crt.targetMask == 0) {
       return;
     }
 
-    pendingCaptureResultQueue.addLast(result);
-    sweepQueuesLocked();
-  }
-
-  /**
-   * Enforces the invariant by sweeping all internal queues when an Image arrives. image cannot be
-   * null.
-   */
-  private void handleImageLocked(int readerIndex, Image image) {
-    pendingImageQueues.get(readerIndex).addLast(image);
-    sweepQueuesLocked();
-  }
-
-  /**
-   * Sweeps over all queues. The outer (master) loop sweeps over the pending TotalCaptureResult's
-   * until it runs out of matches. The inner loop sweeps over all pending Image queues corresponding
-   * to the declared output indices in the TotalCaptureResult.getRequest().getTag(). If there is a
-   * match, notifies all callbacks. Otherwise, exits the outer loop.
-   */
-  private void sweepQueuesLocked() {
-    int nImageQueues = pendingImageQueues.size();
-
-    // Outer loop: iterate over the TotalCaptureResult queue.
-    while (!pendingCaptureResultQueue.isEmpty()) {
-      TotalCaptureResult result = pendingCaptureResultQueue.peekFirst();
-
-      // Create a potential SynchronizedOutput.
-      Output potentialOutput = new Output(nImageQueues, this);
-      potentialOutput.result = result;
-
-      boolean matchFound = sweepImageQueues(potentialOutput);
-      if (matchFound) {
-        pendingCaptureResultQueue.removeFirst();
-        postCallbackWithSynchronizedOutputLocked(potentialOutput);
-      } else {
-        return;
-      }
+    if (!matcher.offerResult(result.get(CaptureResult.SENSOR_TIMESTAMP), crt.targetMask, result)) {
+      Log.w(TAG, "Dropping TotalCaptureResult, synchronizer closed or overloaded.");
     }
   }
 
-  /**
-   * Sweeps over all Image queues for a given potential output with its TotalCaptureResult
-   * populated. The loop iterates over each of the Image queues corresponding to
-   * potentialOutput.result.getRequest().getTag().targets.
-   *
-   * <p>If the head of each queue matches the TotalCaptureResult's timestamp, it is pulled off the
-   * queue and returned as an Output. If {@code TotalCaptureResult.timestamp < an image.timestamp},
-   * then an Image was dropped on that queue, return it. If {@codeTotalCaptureResult.timestamp > any
-   * image.timestamp}, then a TotalCaptureResult was dropped and we drop the corresponding Image's.
-   *
-   * @return Whether a match was found. If a match is found, the corresponding Image's are dequeued.
-   */
-  private boolean sweepImageQueues(Output potentialOutput) {
-    TotalCaptureResult result = potentialOutput.result;
-    CaptureRequestTag crt = (CaptureRequestTag) result.getRequest().getTag();
-    long resultTimestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
-
-    // Before entering the loop, populate potentialOutput's images array
-    // with the heads of the corresponding ImageQueues.
-    for (int readerIndex : crt.targets) {
-      Image img = pendingImageQueues.get(readerIndex).peekFirst();
-      potentialOutput.images.set(readerIndex, img);
-    }
-    potentialOutput.droppedImageReaderIndices.clear();
-
-    // If all corresponding image queues heads are null: no match is found:
-    // fall through and return null.
-    while (allIndexedImagesNotNull(potentialOutput, crt.targets)) {
-      // Check if resultTimestamp > any image timestamps. If so, a TotalCaptureResult was skipped.
-      // Drop the corresponding Images by:
-      //   close()-ing the Image, taking it off its relevant queue, and replacing it in
-      //   potentialOutput with the next Image at the head of the corresponding queue.
-      // This loop drops one item per queue and returns to the outer loop.
-      // The next time in the outer loop, the invariant is again enforced:
-      //   If any queue is empty, then items were dropped but the corresponding
-      //     item in one of the image queues has yet to arrive.
-      //   Else, if we get here again (resultTimestamp > imageTimestamp):
-      //     then drop the image again and repeat.
-      //   Else (resultTimestamp <= imageTimestamp)
-      //     we'll break out of this loop and it will be handled below.
-      boolean captureResultSkipped = false;
-      for (int readerIndex : crt.targets) {
-        if (resultTimestamp > potentialOutput.images.get(readerIndex).getTimestamp()) {
-          // Close the image corresponding to the dropped TotalCaptureResult.
-          Log.v(TAG, "Dropping Image due to dropped TotalCaptureResult.");
-          captureResultSkipped = true;
-          potentialOutput.images.get(readerIndex).close();
-          // Take it off its queue.
-          pendingImageQueues.get(readerIndex).removeFirst();
-          // Replace it with the new head of the corresponding pending Image queue.
-          potentialOutput.images.set(readerIndex, pendingImageQueues.get(readerIndex).peekFirst());
-        }
+  /** Returns a pooled Output, or a new one if none is free. */
+  private Output acquireOutput() {
+    for (int i = 0; i < freeOutputs.length(); ++i) {
+      Output output = freeOutputs.getAndSet(i, null);
+      if (output != null) {
+        return output;
       }
-      // TODO(jiawen): Can potentially report this in the Callback.
-      // If any images were dropped, skip the rest of the loop and go again.
-      if (captureResultSkipped) {
-        continue;
-      }
-
-      // At this point, all Image's are non-null, and resultTimestamp <= imageTimestamp.
-      // Check if resultTimestamp < imageTimestamp, then an image was dropped.
-      // Otherwise, it's a match.
-      for (int readerIndex : crt.targets) {
-        if (resultTimestamp < potentialOutput.images.get(readerIndex).getTimestamp()) {
-          // Add the index to the dropped list.
-          potentialOutput.droppedImageReaderIndices.add(readerIndex);
-          // Set its corresponding mImage to null. The image is still on the queue.
-          potentialOutput.images.set(readerIndex, null);
-        } else {
-          // We have timestamps are equal and we have a match.
-          // Pull the Image off its queue.
-          pendingImageQueues.get(readerIndex).removeFirst();
-        }
-      }
-      return true;
     }
-    return false;
+    return new Output(imageReaders.size(), this);
   }
 
-  /**
-   * Returns true if for every index idx in targetIndices, potentialOutput.images.get(idx) is not
-   * null.
-   */
-  private static boolean allIndexedImagesNotNull(
-      Output potentialOutput, ArrayList<Integer> targetIndices) {
-    for (int idx : targetIndices) {
-      if (potentialOutput.images.get(idx) == null) {
-        return false;
+  /** Returns a closed Output to the pool, dropping it if the pool is full. */
+  private void recycleOutput(Output output) {
+    for (int i = 0; i < freeOutputs.length(); ++i) {
+      if (freeOutputs.compareAndSet(i, null, output)) {
+        return;
       }
     }
-    return true;
   }
 
   /** Calls every registered callback with output, on their corresponding threads. */
-  private void postCallbackWithSynchronizedOutputLocked(final Output output) {
+  private void postCallbackWithSynchronizedOutput(final Output output) {
     if (callbacks.isEmpty()) {
       // Nothing registered, close() it.
       output.close();
       return;
     }
 
+    // Every callback gets the same instance, and may close() it while the others still use it.
+    output.shared = callbacks.size() > 1;
     for (Pair<Callback, Handler> p : callbacks) {
       final Callback callback = p.first;
       if (callback != null) {
@@ -0,0 +1,225 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Converts YUV_420_888 planes to a tightly packed NV21 frame rotated 90 degrees clockwise, in a
+ * single pass straight from the plane buffers into a pooled output array.
+ *
+ * <p>The rotation is done in square tiles: each tile is read from the source with one bulk get
+ * per row, then written transposed into the output with sequential stores. This keeps both the
+ * reads and writes of a tile in cache, unlike a column-wise walk over the whole frame.
+ *
+ * <p>Any row and pixel strides are supported, so both semi-planar (NV21, NV12) and planar (I420)
+ * layouts of YUV_420_888 are handled, reading V and U from their own planes.
+ *
+ * <p>Thread safe, each converting thread uses its own tile scratch buffers and the output buffer
+ * pool is shared.
+ */
+public class Nv21Converter {
+  /** Tile edge in pixels, a 64x64 luma tile and its scratch rows fit comfortably in L1. */
+  static final int TILE_SIZE = 64;
+
+  /** Scratch for one tile of Y, V and U samples, per converting thread. */
+  private static final class Tiles {
+    // Each tile row may span pixelStride bytes per pixel, at most 2 in practice, allow for 4.
+    final byte[] y = new byte[TILE_SIZE * TILE_SIZE * 4];
+    final byte[] v = new byte[TILE_SIZE * TILE_SIZE * 4];
+    final byte[] u = new byte[TILE_SIZE * TILE_SIZE * 4];
+  }
+
+  private final BlockingQueue<byte[]> freeBuffers;
+  private final ThreadLocal<Tiles> tiles =
+      new ThreadLocal<Tiles>() {
+        @Override
+        protected Tiles initialValue() {
+          return new Tiles();
+        }
+      };
+
+  /** @param poolSize maximum number of released output buffers kept for reuse. */
+  public Nv21Converter(int poolSize) {
+    freeBuffers = new ArrayBlockingQueue<>(poolSize);
+  }
+
+  /** Size in bytes of an NV21 frame with the given dimensions. */
+  public static int nv21Size(int width, int height) {
+    return width * height * 3 / 2;
+  }
+
+  /**
+   * Returns an output buffer of at least the given size from the pool, allocating one if none is
+   * free. Buffers of a different size are dropped, so the pool settles on the current frame size.
+   */
+  public byte[] acquire(int size) {
+    byte[] buffer;
+    while ((buffer = freeBuffers.poll()) != null) {
+      if (buffer.length == size) {
+        return buffer;
+      }
+    }
+    return new byte[size];
+  }
+
+  /** Returns a buffer to the pool once its frame has been consumed, dropping it if full. */
+  public void release(byte[] buffer) {
+    freeBuffers.offer(buffer);
+  }
+
+  /**
+   * Converts the planes of a width x height YUV_420_888 frame into a height x width NV21 frame,
+   * rotated 90 degrees clockwise, acquired from the pool. Release the result when done.
+   */
+  public byte[] convertRotated90(
+      ByteBuffer y,
+      int yRowStride,
+      int yPixelStride,
+      ByteBuffer u,
+      ByteBuffer v,
+      int uvRowStride,
+      int uvPixelStride,
+      int width,
+      int height) {
+    byte[] out = acquire(nv21Size(width, height));
+    convertRotated90(
+        y, yRowStride, yPixelStride, u, v, uvRowStride, uvPixelStride, width, height, out);
+    return out;
+  }
+
+  /**
+   * Converts the planes of a width x height YUV_420_888 frame into a height x width NV21 frame,
+   * rotated 90 degrees clockwise, written into out. Width and height must be even.
+   */
+  public void convertRotated90(
+      ByteBuffer y,
+      int yRowStride,
+      int yPixelStride,
+      ByteBuffer u,
+      ByteBuffer v,
+      int uvRowStride,
+      int uvPixelStride,
+      int width,
+      int height,
+      byte[] out) {
+    if (width % 2 != 0 || height % 2 != 0) {
+      throw new IllegalArgumentException(
+          String.format("YUV 4:2:0 frame must have even dimensions, got %dx%d", width, height));
+    }
+    if (out.length < nv21Size(width, height)) {
+      throw new IllegalArgumentException(
+          String.format("Output buffer too small %d v %d", out.length, nv21Size(width, height)));
+    }
+    if (yPixelStride > 4 || uvPixelStride > 4) {
+      throw new IllegalArgumentException("Unsupported pixel stride.");
+    }
+    Tiles tiles = this.tiles.get();
+    // Duplicate (shallow copy) each buffer so as to not disturb the underlying position/limit/etc.
+    rotateLuma(tiles.y, y.duplicate(), yRowStride, yPixelStride, width, height, out);
+    rotateChroma(
+        tiles.v,
+        tiles.u,
+        u.duplicate(),
+        v.duplicate(),
+        uvRowStride,
+        uvPixelStride,
+        width / 2,
+        height / 2,
+        out,
+        width * height);
+  }
+
+  /** Source pixel (r, c) goes to output row c, column height - 1 - r. */
+  private static void rotateLuma(
+      byte[] tileY,
+      ByteBuffer src,
+      int rowStride,
+      int pixelStride,
+      int width,
+      int height,
+      byte[] out) {
+    final int tileRowBytes = TILE_SIZE * pixelStride;
+    for (int r0 = 0; r0 < height; r0 += TILE_SIZE) {
+      final int rows = Math.min(TILE_SIZE, height - r0);
+      for (int c0 = 0; c0 < width; c0 += TILE_SIZE) {
+        final int cols = Math.min(TILE_SIZE, width - c0);
+        final int spanBytes = (cols - 1) * pixelStride + 1;
+        // Read the tile, one bulk get per source row.
+        for (int r = 0; r < rows; r++) {
+          src.position((r0 + r) * rowStride + c0 * pixelStride);
+          src.get(tileY, r * tileRowBytes, spanBytes);
+        }
+        // Write it transposed, each output row run sequentially.
+        for (int c = 0; c < cols; c++) {
+          int o = (c0 + c) * height + (height - 1 - r0);
+          int t = c * pixelStride;
+          for (int r = 0; r < rows; r++) {
+            out[o--] = tileY[t];
+            t += tileRowBytes;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Chroma sample (r, c) of the chromaWidth x chromaHeight planes goes to output chroma row c,
+   * column chromaHeight - 1 - r, as an interleaved V, U pair.
+   */
+  private static void rotateChroma(
+      byte[] tileV,
+      byte[] tileU,
+      ByteBuffer u,
+      ByteBuffer v,
+      int rowStride,
+      int pixelStride,
+      int chromaWidth,
+      int chromaHeight,
+      byte[] out,
+      int outOffset) {
+    final int tileRowBytes = TILE_SIZE * pixelStride;
+    final int outRowBytes = 2 * chromaHeight;
+    for (int r0 = 0; r0 < chromaHeight; r0 += TILE_SIZE) {
+      final int rows = Math.min(TILE_SIZE, chromaHeight - r0);
+      for (int c0 = 0; c0 < chromaWidth; c0 += TILE_SIZE) {
+        final int cols = Math.min(TILE_SIZE, chromaWidth - c0);
+        // Only read up to the last sample, the planes of semi-planar layouts end one byte short.
+        final int spanBytes = (cols - 1) * pixelStride + 1;
+        for (int r = 0; r < rows; r++) {
+          int position = (r0 + r) * rowStride + c0 * pixelStride;
+          v.position(position);
+          v.get(tileV, r * tileRowBytes, spanBytes);
+          u.position(position);
+          u.get(tileU, r * tileRowBytes, spanBytes);
+        }
+        for (int c = 0; c < cols; c++) {
+          int o = outOffset + (c0 + c) * outRowBytes + 2 * (chromaHeight - 1 - r0);
+          int t = c * pixelStride;
+          for (int r = 0; r < rows; r++) {
+            out[o] = tileV[t];
+            out[o + 1] = tileU[t];
+            o -= 2;
+            t += tileRowBytes;
+          }
+        }
+      }
+    }
+  }
+}
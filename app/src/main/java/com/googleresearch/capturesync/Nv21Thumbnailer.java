@@ -0,0 +1,125 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import java.util.Arrays;
+
+/**
+ * Produces small ARGB thumbnails straight from a tightly packed NV21 frame, averaging each
+ * factor x factor block of luma and the matching chroma block (box filter), then converting to RGB
+ * with the full range BT.601 (JFIF) matrix.
+ *
+ * <p>The frame is read row by row and the output and accumulators are reused between calls, so a
+ * thumbnail costs no allocation beyond growing the buffers for a larger frame. Not thread safe.
+ */
+public class Nv21Thumbnailer {
+  private final int factor;
+  private int[] pixels = new int[0];
+  private int[] lumaSums = new int[0];
+  private int[] vSums = new int[0];
+  private int[] uSums = new int[0];
+
+  /** @param factor downsampling factor, must be even so blocks cover whole chroma samples. */
+  public Nv21Thumbnailer(int factor) {
+    if (factor < 2 || factor % 2 != 0) {
+      throw new IllegalArgumentException("Thumbnail factor must be even, got " + factor);
+    }
+    this.factor = factor;
+  }
+
+  public int thumbnailWidth(int width) {
+    return width / factor;
+  }
+
+  public int thumbnailHeight(int height) {
+    return height / factor;
+  }
+
+  /**
+   * Downsamples the width x height NV21 frame. Returns the ARGB pixels, row by row with a stride of
+   * {@link #thumbnailWidth}. The array is reused by the next call, and may be longer than needed.
+   */
+  public int[] thumbnail(byte[] nv21, int width, int height) {
+    final int outWidth = thumbnailWidth(width);
+    final int outHeight = thumbnailHeight(height);
+    if (pixels.length < outWidth * outHeight) {
+      pixels = new int[outWidth * outHeight];
+    }
+    if (lumaSums.length < outWidth) {
+      lumaSums = new int[outWidth];
+      vSums = new int[outWidth];
+      uSums = new int[outWidth];
+    }
+    final int chromaFactor = factor / 2;
+    final int lumaCount = factor * factor;
+    final int chromaCount = chromaFactor * chromaFactor;
+    final int chromaOffset = width * height;
+
+    for (int oy = 0; oy < outHeight; oy++) {
+      Arrays.fill(lumaSums, 0, outWidth, 0);
+      Arrays.fill(vSums, 0, outWidth, 0);
+      Arrays.fill(uSums, 0, outWidth, 0);
+
+      for (int y = oy * factor; y < (oy + 1) * factor; y++) {
+        int i = y * width;
+        for (int ox = 0; ox < outWidth; ox++) {
+          int sum = 0;
+          for (int x = 0; x < factor; x++) {
+            sum += nv21[i++] & 0xff;
+          }
+          lumaSums[ox] += sum;
+        }
+      }
+      for (int cy = oy * chromaFactor; cy < (oy + 1) * chromaFactor; cy++) {
+        // Chroma rows are width bytes of interleaved V, U pairs.
+        int i = chromaOffset + cy * width;
+        for (int ox = 0; ox < outWidth; ox++) {
+          int v = 0;
+          int u = 0;
+          for (int x = 0; x < chromaFactor; x++) {
+            v += nv21[i++] & 0xff;
+            u += nv21[i++] & 0xff;
+          }
+          vSums[ox] += v;
+          uSums[ox] += u;
+        }
+      }
+
+      int o = oy * outWidth;
+      for (int ox = 0; ox < outWidth; ox++) {
+        pixels[o++] =
+            toArgb(
+                lumaSums[ox] / lumaCount,
+                uSums[ox] / chromaCount - 128,
+                vSums[ox] / chromaCount - 128);
+      }
+    }
+    return pixels;
+  }
+
+  /** Full range BT.601 YUV to opaque ARGB, in 16.16 fixed point. */
+  static int toArgb(int y, int u, int v) {
+    int r = y + ((91881 * v + 32768) >> 16);
+    int g = y - ((22554 * u + 46802 * v + 32768) >> 16);
+    int b = y + ((116130 * u + 32768) >> 16);
+    return 0xff000000 | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+  }
+
+  private static int clamp(int value) {
+    return value < 0 ? 0 : (value > 255 ? 255 : value);
+  }
+}
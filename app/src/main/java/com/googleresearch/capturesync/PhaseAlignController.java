@@ -18,48 +18,93 @@ package com.googleresearch.capturesync;
 
 import android.os.Handler;
 import android.util.Log;
+import com.googleresearch.capturesync.softwaresync.phasealign.ClosedLoopPhaseAligner;
 import com.googleresearch.capturesync.softwaresync.phasealign.PhaseAligner;
+import com.googleresearch.capturesync.softwaresync.phasealign.PhaseCalibrator;
 import com.googleresearch.capturesync.softwaresync.phasealign.PhaseConfig;
+import com.googleresearch.capturesync.softwaresync.phasealign.PhaseDriftTracker;
+import com.googleresearch.capturesync.softwaresync.phasealign.PhaseLockMaintainer;
 import com.googleresearch.capturesync.softwaresync.phasealign.PhaseResponse;
 import net.sourceforge.opencamera.multisync.MainActivity;
 import android.util.Pair;
 import com.googleresearch.capturesync.softwaresync.TimeUtils;
+import java.util.Locale;
 
 /**
  * Calculates and adjusts camera phase by inserting frames of varying exposure lengths.
  *
- * <p>Phase alignment is an iterative process. Running for more iterations results in higher
- * accuracy up to the stability of the camera and the accuracy of the phase alignment configuration
- * values.
+ * <p>Phase alignment is an iterative process, driven by {@link ClosedLoopPhaseAligner}: each frame
+ * is inserted as soon as the phase has settled after the previous one, and the exposure needed for
+ * a given shift is learned from the shifts observed, starting from the phase alignment
+ * configuration values.
+ *
+ * <p>Once locked with {@link #setPhaseLock}, the phase is kept at the goal by {@link
+ * PhaseLockMaintainer}, which realigns before the drift takes the error past the threshold.
  */
 public class PhaseAlignController {
   public static final String INJECT_FRAME = "injection_frame";
   private static final String TAG = "PhaseAlignController";
 
-  // Maximum number of phase alignment iteration steps in the alignment process.
-  // TODO(samansari): Make this a parameter that you pass in to this class. Then make the class that
-  // constructs this pass the constant in.
-  private static final int MAX_ITERATIONS = 5;
-  // Delay after an alignment step to wait for phase to settle before starting the next iteration.
-  private static final int PHASE_SETTLE_DELAY_MS = 2000; //LUK: phase sync; very important was 400
+  // Maximum number of frames inserted in the alignment process before giving up.
+  private static final int MAX_CORRECTIONS = 10;
   private final MainActivity context;
 
   private final Handler handler;
-  private final Object lock = new Object();
-  private boolean inAlignState = false;
 
-  private final PhaseAligner phaseAligner;
-  private PhaseResponse latestResponse;
+  /** Receives the result of {@link #startCalibration}. */
+  public interface CalibrationListener {
+    /** Called from the camera thread with the calibrated config, or null if it failed. */
+    void onCalibrationFinished(PhaseConfig config);
+  }
+
+  // Replaced together when the config changes, e.g. after calibration.
+  private volatile PhaseAligner phaseAligner;
+  private volatile ClosedLoopPhaseAligner closedLoopAligner;
+  private volatile PhaseLockMaintainer phaseLockMaintainer;
+  private volatile PhaseResponse latestResponse;
+  private ClosedLoopPhaseAligner.State lastAlignerState = ClosedLoopPhaseAligner.State.IDLE;
+
+  private volatile PhaseCalibrator calibrator;
+  private volatile CalibrationListener calibrationListener;
 
   public PhaseAlignController(PhaseConfig config, MainActivity context) {
     handler = new Handler();
-    phaseAligner = new PhaseAligner(config);
+    applyConfig(config);
     Log.v(TAG, "Loaded phase align config.");
     this.context = context;
   }
 
+  /** Aligns with the given config from now on, keeping the phase lock settings. */
+  private void applyConfig(PhaseConfig config) {
+    PhaseLockMaintainer previousMaintainer = phaseLockMaintainer;
+    ClosedLoopPhaseAligner aligner =
+        new ClosedLoopPhaseAligner(config, this::doPhaseAlignStep, MAX_CORRECTIONS);
+    PhaseLockMaintainer maintainer =
+        new PhaseLockMaintainer(
+            config,
+            aligner,
+            new PhaseDriftTracker(
+                Constants.PHASE_DRIFT_WINDOW_FRAMES, Constants.PHASE_DRIFT_MIN_FRAMES),
+            Constants.PHASE_LOCK_CORRECT_FRACTION,
+            Constants.PHASE_LOCK_LEAD_NS);
+    if (previousMaintainer != null) {
+      maintainer.setGoalPhaseNs(previousMaintainer.getGoalPhaseNs());
+      maintainer.setEnabled(previousMaintainer.isEnabled());
+    }
+    phaseAligner = new PhaseAligner(config);
+    closedLoopAligner = aligner;
+    phaseLockMaintainer = maintainer;
+    lastAlignerState = ClosedLoopPhaseAligner.State.IDLE;
+  }
+
+  /** The config currently aligned with. */
+  public PhaseConfig getConfig() {
+    return phaseAligner.getConfig();
+  }
+
   /**
-   * Update the latest phase response from the latest frame timestamp to keep track of phase.
+   * Update the latest phase response from the latest frame timestamp to keep track of phase, and
+   * continue the alignment if running or maintain the phase lock.
    *
    * <p>The timestamp is nanoseconds in the synchronized leader clock domain.
    *
@@ -68,69 +113,153 @@ public class PhaseAlignController {
   public long updateCaptureTimestamp(long timestampNs) {
     // TODO(samansaari) : Rename passTimestamp -> updateCaptureTimestamp or similar in softwaresync.
     latestResponse = phaseAligner.passTimestamp(timestampNs);
+    PhaseCalibrator activeCalibrator = calibrator;
+    if (activeCalibrator != null) {
+      // Calibration injects frames of its own, no alignment meanwhile.
+      updateCalibration(activeCalibrator, timestampNs);
+      return latestResponse.phaseNs();
+    }
+    phaseLockMaintainer.onFrameTimestamp(timestampNs);
+    ClosedLoopPhaseAligner.State state = closedLoopAligner.getState();
+    if (state == ClosedLoopPhaseAligner.State.IDLE
+        && lastAlignerState != ClosedLoopPhaseAligner.State.IDLE) {
+      logFinished();
+    }
+    lastAlignerState = state;
     return latestResponse.phaseNs();
   }
 
   /** Submit an frame with a specific exposure to offset future frames and align phase. */
-  private void doPhaseAlignStep() {
+  private void doPhaseAlignStep(long exposureTimeNs) {
     Log.i(
         TAG,
         String.format(
             "Current Phase: %.3f ms, Diff: %.3f ms, inserting frame exposure %.6f ms, lower bound"
                 + " %.6f ms.",
             latestResponse.phaseNs() * 1e-6f,
-            latestResponse.diffFromGoalNs() * 1e-6f,
-            latestResponse.exposureTimeToShiftNs() * 1e-6f,
+            closedLoopAligner.getLastErrorNs() * 1e-6f,
+            exposureTimeNs * 1e-6f,
             phaseAligner.getConfig().minExposureNs() * 1e-6f));
 
-    // TODO(samansari): Make this an interface.
-    context.injectFrame(latestResponse.exposureTimeToShiftNs());
-  }
-
-  public void startAlign() {
-    synchronized (lock) {
-      if (inAlignState) {
-        Log.i(TAG, "startAlign() called while already aligning.");
-        return;
-      }
-      inAlignState = true;
-      // Start inserting frames every {@code PHASE_SETTLE_DELAY_MS} ms to try and push the phase to
-      // the goal phase. Stop after aligned to threshold or after {@code MAX_ITERATIONS}.
-      handler.post(() -> work(MAX_ITERATIONS));
-    }
+    // Called with the aligner locked from the camera thread, capture from the handler instead.
+    handler.post(() -> context.injectFrame(exposureTimeNs));
   }
 
-  private void work(int iterationsLeft) {
-    // Check if Aligned / Not Aligned but able to iterate / Ran out of iterations.
-    if (latestResponse.isAligned()) { // Aligned.
+  private void logFinished() {
+    if (closedLoopAligner.isAligned()) {
       Log.i(
           TAG,
           String.format(
-              "Reached: Current Phase: %.3f ms, Diff: %.3f ms",
-              latestResponse.phaseNs() * 1e-6f, latestResponse.diffFromGoalNs() * 1e-6f));
-      synchronized (lock) {
-        inAlignState = false;
-      }
-
+              "Reached: Diff: %.3f ms after %d frames, %d inserted",
+              closedLoopAligner.getLastErrorNs() * 1e-6f,
+              closedLoopAligner.getFramesToAlign(),
+              closedLoopAligner.getCorrections()));
       Log.d(TAG, "Aligned.");
-    } else if (!latestResponse.isAligned() && iterationsLeft > 0) {
-      // Not aligned but able to run another alignment iteration.
-      doPhaseAlignStep();
-      Log.v(TAG, "Queued another phase align step.");
-      // TODO (samansari) : Replace this brittle delay-based solution to a response-based one.
-      handler.postDelayed(
-          () -> work(iterationsLeft - 1), PHASE_SETTLE_DELAY_MS); // Try again after it settles.
-    } else { // Reached max iterations before aligned.
+    } else {
       Log.i(
           TAG,
           String.format(
-              "Failed to Align, Stopping at: Current Phase: %.3f ms, Diff: %.3f ms",
-              latestResponse.phaseNs() * 1e-6f, latestResponse.diffFromGoalNs() * 1e-6f));
-      synchronized (lock) {
-        inAlignState = false;
+              "Failed to Align, Stopping at: Diff: %.3f ms",
+              closedLoopAligner.getLastErrorNs() * 1e-6f));
+      Log.d(TAG, "Finishing alignment, reached max corrections.");
+    }
+    Log.d(
+        TAG,
+        String.format(
+            "Learned gain %.3f, overhead %.3f ms.",
+            closedLoopAligner.getGain(), closedLoopAligner.getOverheadNs() * 1e-6f));
+  }
+
+  public void startAlign() {
+    // Starts from the next frames, inserting frames until aligned to threshold or after {@code
+    // MAX_CORRECTIONS}.
+    if (!phaseLockMaintainer.startAlign()) {
+      Log.i(TAG, "startAlign() called while already aligning.");
+    }
+  }
+
+  /**
+   * Calibrates the config of this device from its frames, taking about 10 s at 30 fps, then aligns
+   * with the calibrated config. Call with the exposure fixed and no alignment running.
+   *
+   * @return false if already calibrating.
+   */
+  public boolean startCalibration(CalibrationListener listener) {
+    synchronized (this) {
+      if (calibrator != null) {
+        Log.i(TAG, "startCalibration() called while already calibrating.");
+        return false;
       }
-      Log.d(TAG, "Finishing alignment, reached max iterations.");
+      closedLoopAligner.stop();
+      PhaseCalibrator newCalibrator =
+          new PhaseCalibrator(
+              getConfig(), this::doPhaseAlignStep, Constants.PHASE_CALIBRATION_STEPS);
+      newCalibrator.start();
+      calibrationListener = listener;
+      calibrator = newCalibrator;
+    }
+    Log.i(TAG, "Starting phase config calibration.");
+    return true;
+  }
+
+  public boolean isCalibrating() {
+    return calibrator != null;
+  }
+
+  private void updateCalibration(PhaseCalibrator activeCalibrator, long timestampNs) {
+    activeCalibrator.onFrameTimestamp(timestampNs);
+    PhaseCalibrator.State state = activeCalibrator.getState();
+    if (state != PhaseCalibrator.State.DONE && state != PhaseCalibrator.State.FAILED) {
+      return;
+    }
+    PhaseConfig config = activeCalibrator.getResult();
+    if (config != null) {
+      Log.i(TAG, "Calibrated " + activeCalibrator.getFit() + ": " + config);
+      applyConfig(config);
+    } else {
+      Log.w(
+          TAG,
+          "Phase config calibration failed after "
+              + activeCalibrator.getSteps()
+              + " steps, keeping "
+              + getConfig());
     }
+    CalibrationListener listener = calibrationListener;
+    synchronized (this) {
+      calibrator = null;
+      calibrationListener = null;
+    }
+    if (listener != null) {
+      listener.onCalibrationFinished(config);
+    }
+  }
+
+  /**
+   * Turns keeping the phase at the goal phase on or off, with the goal phase in the synchronized
+   * leader clock domain so that all devices lock to the same one.
+   */
+  public void setPhaseLock(boolean enabled, long goalPhaseNs) {
+    Log.i(
+        TAG,
+        String.format(
+            "Phase lock %s, goal phase %.3f ms.", enabled ? "on" : "off", goalPhaseNs * 1e-6f));
+    phaseLockMaintainer.setGoalPhaseNs(goalPhaseNs);
+    phaseLockMaintainer.setEnabled(enabled);
+  }
+
+  /** Whether the phase is kept at the goal phase, as set by {@link #setPhaseLock}. */
+  public boolean isPhaseLockEnabled() {
+    return phaseLockMaintainer.isEnabled();
+  }
+
+  /** Goal phase of the alignments, as set by {@link #setPhaseLock} or from the config. */
+  public long getGoalPhaseNs() {
+    return phaseLockMaintainer.getGoalPhaseNs();
+  }
+
+  /** Drift of the phase error of this device, in ns per second, or 0 until known. */
+  public double getDriftRateNsPerSecond() {
+    return phaseLockMaintainer.getDriftRateNsPerSecond();
   }
 
     /**
@@ -141,13 +270,28 @@ public class PhaseAlignController {
      */
     public Pair<String, Boolean> getPhaseError() {
         if (latestResponse != null) {
-            final String phaseError = "Phase Error: " +
-                    TimeUtils.nanosToMillis((double) latestResponse.diffFromGoalNs());
-            return new Pair<>(phaseError, latestResponse.isAligned());
+            final long diffFromGoalNs = wrapPhase(getGoalPhaseNs() - latestResponse.phaseNs());
+            String phaseError = "Phase Error: " + TimeUtils.nanosToMillis((double) diffFromGoalNs);
+            if (phaseLockMaintainer.isEnabled()) {
+                phaseError += String.format(
+                        Locale.US,
+                        ", drift %.1f us/s, %d relocks",
+                        getDriftRateNsPerSecond() * 1e-3,
+                        phaseLockMaintainer.getMaintenanceCorrections());
+            }
+            return new Pair<>(
+                    phaseError,
+                    Math.abs(diffFromGoalNs) < phaseAligner.getConfig().alignThresholdNs());
         } else {
             return null;
         }
     }
 
+  /** Wraps a phase difference into [-period / 2, period / 2). */
+  private long wrapPhase(long differenceNs) {
+    final long periodNs = phaseAligner.getConfig().periodNs();
+    return Math.floorMod(differenceNs + periodNs / 2, periodNs) - periodNs / 2;
+  }
+
 
 }
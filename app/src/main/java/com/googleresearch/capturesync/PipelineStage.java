@@ -0,0 +1,254 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import android.os.Process;
+import android.util.Log;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of a processing pipeline: a fixed pool of workers fed by a bounded queue, with an
+ * explicit policy for when the queue is full.
+ *
+ * <p>Stages are chained by having the handler of one stage submit its result to the next. With
+ * {@link Backpressure#BLOCK} a full downstream stage stalls the upstream workers, so pressure
+ * propagates back to the first stage, whose policy then decides what happens to new items.
+ *
+ * <p>Keeps counters of queue depth, processed and dropped items, and the latency of each item from
+ * submission until its handler returned.
+ *
+ * <p>Workers run at background priority, so they don't compete with the camera threads.
+ */
+public class PipelineStage<T> {
+  private static final String TAG = "PipelineStage";
+
+  /** What {@link #submit} does when all workers are busy and the queue is full. */
+  public enum Backpressure {
+    /** Wait for space in the queue, stalling the submitting thread. */
+    BLOCK,
+    /** Process the item on the submitting thread. */
+    CALLER_RUNS,
+    /** Drop the item, handing it to the {@link DropHandler}. */
+    DROP,
+  }
+
+  /** Processes one item on a worker thread. */
+  public interface Handler<T> {
+    void process(T item);
+  }
+
+  /** Receives items dropped by the {@link Backpressure#DROP} policy, to release their resources. */
+  public interface DropHandler<T> {
+    void onDropped(T item);
+  }
+
+  private final String name;
+  private final Handler<T> handler;
+  private final DropHandler<T> dropHandler;
+  private final ThreadPoolExecutor executor;
+
+  private final AtomicLong processedCount = new AtomicLong();
+  private final AtomicLong droppedCount = new AtomicLong();
+  private final AtomicLong totalLatencyNs = new AtomicLong();
+  private final AtomicLong maxLatencyNs = new AtomicLong();
+
+  /** An item with the time it was submitted. */
+  private final class Task implements Runnable {
+    final T item;
+    final long submitTimeNs = System.nanoTime();
+
+    Task(T item) {
+      this.item = item;
+    }
+
+    @Override
+    public void run() {
+      try {
+        handler.process(item);
+      } catch (RuntimeException e) {
+        Log.e(TAG, name + ": failed to process item: " + e);
+      } finally {
+        recordLatency(System.nanoTime() - submitTimeNs);
+      }
+    }
+  }
+
+  /**
+   * @param name used for the worker thread names and in logs.
+   * @param workers number of worker threads.
+   * @param capacity number of items that may wait for a worker. With 0 an item is only handed to
+   *     an idle worker, and the backpressure policy applies whenever all workers are busy.
+   * @param backpressure policy when all workers are busy and the queue is full.
+   * @param dropHandler called with dropped items, may be null unless the policy is DROP.
+   */
+  public PipelineStage(
+      String name,
+      int workers,
+      int capacity,
+      Backpressure backpressure,
+      Handler<T> handler,
+      DropHandler<T> dropHandler) {
+    if (backpressure == Backpressure.DROP && dropHandler == null) {
+      throw new IllegalArgumentException("The DROP policy needs a drop handler.");
+    }
+    this.name = name;
+    this.handler = handler;
+    this.dropHandler = dropHandler;
+    AtomicInteger threadCount = new AtomicInteger();
+    executor =
+        new ThreadPoolExecutor(
+            workers,
+            workers,
+            /*keepAliveTime=*/ 0,
+            TimeUnit.MILLISECONDS,
+            capacity > 0 ? new ArrayBlockingQueue<>(capacity) : new SynchronousQueue<>(),
+            runnable ->
+                new Thread(
+                    () -> {
+                      Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                      runnable.run();
+                    },
+                    name + "-" + threadCount.getAndIncrement()),
+            rejectionHandler(backpressure));
+  }
+
+  private RejectedExecutionHandler rejectionHandler(Backpressure backpressure) {
+    switch (backpressure) {
+      case BLOCK:
+        return (runnable, executor) -> {
+          if (executor.isShutdown()) {
+            drop(runnable);
+            return;
+          }
+          try {
+            executor.getQueue().put(runnable);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Restore the interrupted status.
+            drop(runnable);
+          }
+        };
+      case CALLER_RUNS:
+        return (runnable, executor) -> {
+          if (executor.isShutdown()) {
+            drop(runnable);
+            return;
+          }
+          runnable.run();
+        };
+      case DROP:
+        return (runnable, executor) -> drop(runnable);
+    }
+    throw new IllegalArgumentException("Unknown backpressure policy " + backpressure);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void drop(Runnable runnable) {
+    droppedCount.incrementAndGet();
+    Log.w(TAG, name + ": queue full or shut down, dropping item.");
+    if (dropHandler != null) {
+      dropHandler.onDropped(((Task) runnable).item);
+    }
+  }
+
+  /** Queues the item for processing, applying the backpressure policy if the queue is full. */
+  public void submit(T item) {
+    try {
+      executor.execute(new Task(item));
+    } catch (RejectedExecutionException e) {
+      // Only thrown for policies that do not handle rejection themselves.
+      droppedCount.incrementAndGet();
+    }
+  }
+
+  private void recordLatency(long latencyNs) {
+    processedCount.incrementAndGet();
+    totalLatencyNs.addAndGet(latencyNs);
+    long max;
+    do {
+      max = maxLatencyNs.get();
+    } while (latencyNs > max && !maxLatencyNs.compareAndSet(max, latencyNs));
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** Number of items waiting for a worker. */
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  /** Number of items being processed by workers. */
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  public long getProcessedCount() {
+    return processedCount.get();
+  }
+
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  /** Mean time from submission until processed, in nanoseconds. */
+  public long getMeanLatencyNs() {
+    long count = processedCount.get();
+    return count == 0 ? 0 : totalLatencyNs.get() / count;
+  }
+
+  public long getMaxLatencyNs() {
+    return maxLatencyNs.get();
+  }
+
+  /**
+   * Stops accepting items and lets queued ones finish, waiting up to the given time.
+   *
+   * @return true if all items finished.
+   */
+  public boolean close(long timeoutMs) {
+    executor.shutdown();
+    try {
+      return executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // Restore the interrupted status.
+      return false;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.US,
+        "%s: queued %d, active %d, processed %d, dropped %d, latency mean %.1f ms max %.1f ms",
+        name,
+        getQueueDepth(),
+        getActiveCount(),
+        getProcessedCount(),
+        getDroppedCount(),
+        getMeanLatencyNs() * 1e-6,
+        getMaxLatencyNs() * 1e-6);
+  }
+}
@@ -0,0 +1,305 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records a sequence of lossless frames, tightly packed NV21 or RAW10, back to back into one data
+ * file, with a binary sidecar index holding the position and timestamps of each frame.
+ *
+ * <p>Frames are first packed into a reusable {@link PackedFrame}, copying the rows straight from
+ * the image plane buffers and dropping any row padding, so the images can be released at once.
+ * The packed frame is then appended to the data file with a single channel write, typically from
+ * another thread, and the file grows with each frame.
+ *
+ * <p>Sidecar layout, little-endian: a header of [int magic "RSEQ"][int version], followed by one
+ * {@link #RECORD_SIZE} byte record per frame of [int format][int width][int height][int row
+ * bytes][long data offset][long data length][long leader timestamp ns][long local timestamp ns].
+ * The format is the android.graphics.ImageFormat constant of the frame data.
+ */
+public class RawSequenceWriter implements Closeable {
+  public static final int MAGIC = 0x51455352; // "RSEQ" in little-endian.
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 8;
+  public static final int RECORD_SIZE = 48;
+
+  /** android.graphics.ImageFormat.NV21 and RAW10, repeated here to keep this class JVM-only. */
+  public static final int FORMAT_NV21 = 0x11;
+
+  public static final int FORMAT_RAW10 = 0x25;
+
+  private final FileOutputStream dataStream;
+  private final FileChannel dataChannel;
+  private final FileOutputStream sidecarStream;
+  private final FileChannel sidecarChannel;
+  private final ByteBuffer record =
+      ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+  /** Frame packed by {@link #writeNv21} and {@link #writeRaw10}. */
+  private final PackedFrame scratch = new PackedFrame();
+
+  private long length = 0;
+  private int frameCount = 0;
+  private boolean closed = false;
+
+  /**
+   * A frame packed for recording, with its format and timestamps. The buffer is kept and grown as
+   * needed, so a few frames can be pooled between the thread packing them and the writer. Not
+   * thread safe.
+   */
+  public static final class PackedFrame {
+    private ByteBuffer data = ByteBuffer.allocateDirect(0);
+
+    /** Scratch rows for interleaving the chroma planes. */
+    private byte[] chromaRow = new byte[0];
+
+    private byte[] vRow = new byte[0];
+    private byte[] uRow = new byte[0];
+
+    private int format;
+    private int width;
+    private int height;
+    private int rowBytes;
+    private long leaderTimestampNs;
+    private long localTimestampNs;
+
+    /**
+     * Packs a YUV_420_888 frame as tightly packed NV21.
+     *
+     * <p>The V and U samples are read from their own planes with the given pixel stride and
+     * interleaved here, so semi-planar layouts in either order (NV21 or NV12) and planar I420 are
+     * all recorded with the right chroma.
+     */
+    public void packNv21(
+        ByteBuffer y,
+        int yRowStride,
+        ByteBuffer u,
+        ByteBuffer v,
+        int uvRowStride,
+        int uvPixelStride,
+        int width,
+        int height,
+        long leaderTimestampNs,
+        long localTimestampNs) {
+      if (uvPixelStride < 1 || uvPixelStride > 2) {
+        throw new IllegalArgumentException("Unsupported chroma pixel stride " + uvPixelStride);
+      }
+      ByteBuffer out = prepare(FORMAT_NV21, width, height, width, width * height * 3 / 2);
+      copyRows(y.duplicate(), yRowStride, width, height, out);
+
+      final int chromaHeight = height / 2;
+      final int chromaWidth = width / 2;
+      // Bytes spanned by the samples of one chroma row, the last plane can end right after them.
+      final int spanBytes = (chromaWidth - 1) * uvPixelStride + 1;
+      if (chromaRow.length < width) {
+        chromaRow = new byte[width];
+        vRow = new byte[2 * width];
+        uRow = new byte[2 * width];
+      }
+      ByteBuffer vSrc = v.duplicate();
+      ByteBuffer uSrc = u.duplicate();
+      for (int r = 0; r < chromaHeight; r++) {
+        int rowStart = r * uvRowStride;
+        vSrc.limit(rowStart + spanBytes);
+        vSrc.position(rowStart);
+        vSrc.get(vRow, 0, spanBytes);
+        uSrc.limit(rowStart + spanBytes);
+        uSrc.position(rowStart);
+        uSrc.get(uRow, 0, spanBytes);
+        for (int c = 0; c < chromaWidth; c++) {
+          chromaRow[2 * c] = vRow[c * uvPixelStride];
+          chromaRow[2 * c + 1] = uRow[c * uvPixelStride];
+        }
+        out.put(chromaRow, 0, width);
+      }
+      finish(leaderTimestampNs, localTimestampNs);
+    }
+
+    /** Packs a RAW10 frame, dropping any row padding. */
+    public void packRaw10(
+        ByteBuffer data,
+        int rowStride,
+        int width,
+        int height,
+        long leaderTimestampNs,
+        long localTimestampNs) {
+      final int rowBytes = raw10RowBytes(width);
+      ByteBuffer out = prepare(FORMAT_RAW10, width, height, rowBytes, rowBytes * height);
+      copyRows(data.duplicate(), rowStride, rowBytes, height, out);
+      finish(leaderTimestampNs, localTimestampNs);
+    }
+
+    /** Returns the buffer cleared for a frame of the given length, growing it if needed. */
+    private ByteBuffer prepare(int format, int width, int height, int rowBytes, int frameLength) {
+      if (data.capacity() < frameLength) {
+        data = ByteBuffer.allocateDirect(frameLength);
+      }
+      data.clear();
+      this.format = format;
+      this.width = width;
+      this.height = height;
+      this.rowBytes = rowBytes;
+      return data;
+    }
+
+    private void finish(long leaderTimestampNs, long localTimestampNs) {
+      data.flip();
+      this.leaderTimestampNs = leaderTimestampNs;
+      this.localTimestampNs = localTimestampNs;
+    }
+
+    /** Bytes of the packed frame. */
+    public int getLength() {
+      return data.limit();
+    }
+  }
+
+  /** Creates the data and sidecar files, replacing any existing ones. */
+  public RawSequenceWriter(File data, File sidecar) throws IOException {
+    dataStream = new FileOutputStream(data);
+    dataChannel = dataStream.getChannel();
+
+    sidecarStream = new FileOutputStream(sidecar);
+    sidecarChannel = sidecarStream.getChannel();
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC).putInt(VERSION).flip();
+    writeFully(sidecarChannel, header);
+  }
+
+  /** Size in bytes of a tightly packed RAW10 row, 4 pixels in 5 bytes. */
+  public static int raw10RowBytes(int width) {
+    return width * 10 / 8;
+  }
+
+  /** Packs and records a YUV_420_888 frame as NV21, see {@link PackedFrame#packNv21}. */
+  public synchronized void writeNv21(
+      ByteBuffer y,
+      int yRowStride,
+      ByteBuffer u,
+      ByteBuffer v,
+      int uvRowStride,
+      int uvPixelStride,
+      int width,
+      int height,
+      long leaderTimestampNs,
+      long localTimestampNs)
+      throws IOException {
+    scratch.packNv21(
+        y,
+        yRowStride,
+        u,
+        v,
+        uvRowStride,
+        uvPixelStride,
+        width,
+        height,
+        leaderTimestampNs,
+        localTimestampNs);
+    write(scratch);
+  }
+
+  /** Packs and records a RAW10 frame, dropping any row padding. */
+  public synchronized void writeRaw10(
+      ByteBuffer data,
+      int rowStride,
+      int width,
+      int height,
+      long leaderTimestampNs,
+      long localTimestampNs)
+      throws IOException {
+    scratch.packRaw10(data, rowStride, width, height, leaderTimestampNs, localTimestampNs);
+    write(scratch);
+  }
+
+  /** Appends a packed frame to the data file and its record to the sidecar. */
+  public synchronized void write(PackedFrame frame) throws IOException {
+    if (closed) {
+      throw new IOException("Sequence already closed.");
+    }
+    final int frameLength = frame.getLength();
+    writeFully(dataChannel, frame.data.duplicate());
+    record.clear();
+    record
+        .putInt(frame.format)
+        .putInt(frame.width)
+        .putInt(frame.height)
+        .putInt(frame.rowBytes)
+        .putLong(length)
+        .putLong(frameLength)
+        .putLong(frame.leaderTimestampNs)
+        .putLong(frame.localTimestampNs)
+        .flip();
+    writeFully(sidecarChannel, record);
+    length += frameLength;
+    frameCount++;
+  }
+
+  /** Copies rowBytes of each of the rows from src into out, one bulk put per row. */
+  private static void copyRows(
+      ByteBuffer src, int rowStride, int rowBytes, int rows, ByteBuffer out) {
+    if (rowStride == rowBytes) {
+      // Tightly packed, copy all rows at once.
+      src.limit(rows * rowBytes);
+      src.position(0);
+      out.put(src);
+      return;
+    }
+    for (int r = 0; r < rows; r++) {
+      int start = r * rowStride;
+      src.limit(start + rowBytes);
+      src.position(start);
+      out.put(src);
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  public synchronized int getFrameCount() {
+    return frameCount;
+  }
+
+  /** Bytes of frame data recorded so far. */
+  public synchronized long getLength() {
+    return length;
+  }
+
+  /** Flushes the recorded frames and closes the files. Idempotent. */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      dataChannel.force(false);
+    } finally {
+      dataStream.close();
+      sidecarStream.close();
+    }
+  }
+}
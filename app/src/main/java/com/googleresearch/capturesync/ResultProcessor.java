@@ -24,12 +24,11 @@ import android.graphics.YuvImage;
 import android.hardware.camera2.CaptureResult;
 import android.media.Image;
 import android.os.Environment;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.provider.MediaStore;
 import android.util.Log;
 import com.googleresearch.capturesync.softwaresync.TimeDomainConverter;
 import com.googleresearch.capturesync.softwaresync.TimeUtils;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -38,17 +37,45 @@ import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import net.sourceforge.opencamera.multisync.MainActivity;
-import java.io.ByteArrayOutputStream;
+import net.sourceforge.opencamera.multisync.MyDebug;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 
-/** A class that processes frames on its own thread. */
+/**
+ * A class that processes frames in a pipeline of stages, each with its own worker threads and
+ * bounded queue:
+ *
+ * <p>copy: copies the planes of each YUV image out of the frame and closes it, returning the
+ * images to their ImageReaders right away. Frames are only handed to idle copy workers, and
+ * dropped when all are busy, so the camera buffers are never held waiting in a queue and the
+ * camera thread never waits on the pipeline.
+ *
+ * <p>convert: converts the copied planes to a rotated NV21 frame.
+ *
+ * <p>encode: compresses the NV21 frame to JPEG in memory and downsamples the thumbnail.
+ *
+ * <p>write: writes the JPEG to disk and notifies the UI.
+ *
+ * <p>raw write: when recording a raw sequence, appends the frames the copy stage packed
+ * losslessly, dropping them if the disk falls behind.
+ *
+ * <p>The convert, encode and write stages block their upstream stage when full, so a burst backs
+ * up to the copy stage instead of growing without bound, where new frames are then dropped and
+ * counted. Buffers are pooled between stages.
+ */
 public class ResultProcessor {
   private static final String TAG = "ResultProcessor";
 
-  private final Handler handler;
+  /** Time to let queued frames finish on close. */
+  private static final long CLOSE_TIMEOUT_MS = 5_000;
+
   private final MainActivity context;
   private final TimeDomainConverter timeDomainConverter;
 
@@ -56,6 +83,91 @@ public class ResultProcessor {
   private final boolean saveJpgFromNv21;
   private final int jpgQuality;
 
+  /** Converts YUV frames to rotated NV21 into pooled buffers. */
+  private final Nv21Converter nv21Converter = new Nv21Converter(Constants.NV21_BUFFER_POOL_SIZE);
+
+  /** Downsamples saved frames for the gallery thumbnail, one per encode worker. */
+  private final ThreadLocal<Nv21Thumbnailer> thumbnailers =
+      new ThreadLocal<Nv21Thumbnailer>() {
+        @Override
+        protected Nv21Thumbnailer initialValue() {
+          return new Nv21Thumbnailer(Constants.THUMBNAIL_FACTOR);
+        }
+      };
+
+  /** Pooled copies of YUV planes, and in-memory JPEGs, passed between stages. */
+  private final BlockingQueue<CapturedYuv> freeCaptures =
+      new ArrayBlockingQueue<>(Constants.RESULT_BUFFER_POOL_SIZE);
+  private final BlockingQueue<ByteArrayOutputStream> freeJpegBuffers =
+      new ArrayBlockingQueue<>(Constants.RESULT_BUFFER_POOL_SIZE);
+
+  private final PipelineStage<CopyRequest> copyStage;
+  private final PipelineStage<CapturedYuv> convertStage;
+  private final PipelineStage<EncodeRequest> encodeStage;
+  private final PipelineStage<WriteRequest> writeStage;
+  private final PipelineStage<RawSequenceWriter.PackedFrame> rawWriteStage;
+
+  /** Lossless recording of every processed frame, opened on the first frame when enabled. */
+  private final boolean saveRawSequence;
+  private RawSequenceWriter rawSequenceWriter;
+  private boolean rawSequenceFailed = false;
+
+  /** Frames packed for the raw sequence, reused between the copy and raw write stages. */
+  private final BlockingQueue<RawSequenceWriter.PackedFrame> freeRawFrames =
+      new ArrayBlockingQueue<>(Constants.RESULT_BUFFER_POOL_SIZE);
+
+  /** A frame to process, saved with the given base name. */
+  private static final class CopyRequest {
+    final Frame frame;
+    final String basename;
+
+    CopyRequest(Frame frame, String basename) {
+      this.frame = frame;
+      this.basename = basename;
+    }
+  }
+
+  /** The planes of a YUV_420_888 image copied out of its Image, reused through a pool. */
+  private static final class CapturedYuv {
+    byte[] y;
+    byte[] u;
+    byte[] v;
+    int yLength;
+    int uLength;
+    int vLength;
+    int yRowStride;
+    int yPixelStride;
+    int uvRowStride;
+    int uvPixelStride;
+    int width;
+    int height;
+    File jpgFile;
+  }
+
+  /** An NV21 frame to encode, its buffer is returned to the converter pool once encoded. */
+  private static final class EncodeRequest {
+    final YuvImage yuvImage;
+    final File jpgFile;
+
+    EncodeRequest(YuvImage yuvImage, File jpgFile) {
+      this.yuvImage = yuvImage;
+      this.jpgFile = jpgFile;
+    }
+  }
+
+  /** An encoded JPEG and its thumbnail to write. */
+  private static final class WriteRequest {
+    final ByteArrayOutputStream jpeg;
+    final Bitmap thumbnail;
+    final File jpgFile;
+
+    WriteRequest(ByteArrayOutputStream jpeg, Bitmap thumbnail, File jpgFile) {
+      this.jpeg = jpeg;
+      this.thumbnail = thumbnail;
+      this.jpgFile = jpgFile;
+    }
+  }
+
   public ResultProcessor(
       TimeDomainConverter timeDomainConverter,
       MainActivity context,
@@ -65,107 +177,284 @@ public class ResultProcessor {
     this.context = context;
     this.saveJpgFromNv21 = saveJpgFromYuv;
     this.jpgQuality = jpgQuality;
+    this.saveRawSequence = Constants.SAVE_RAW_SEQUENCE;
+
+    rawWriteStage =
+        new PipelineStage<>(
+            "ResultRawWrite",
+            /*workers=*/ 1,
+            Constants.RESULT_WRITE_QUEUE_CAPACITY,
+            PipelineStage.Backpressure.DROP,
+            this::writeRaw,
+            /*dropHandler=*/ freeRawFrames::offer);
+    writeStage =
+        new PipelineStage<>(
+            "ResultWrite",
+            /*workers=*/ 1,
+            Constants.RESULT_WRITE_QUEUE_CAPACITY,
+            PipelineStage.Backpressure.BLOCK,
+            this::writeJpg,
+            /*dropHandler=*/ request -> freeJpegBuffers.offer(request.jpeg));
+    encodeStage =
+        new PipelineStage<>(
+            "ResultEncode",
+            Constants.RESULT_ENCODE_WORKERS,
+            Constants.RESULT_QUEUE_CAPACITY,
+            PipelineStage.Backpressure.BLOCK,
+            this::encodeJpg,
+            /*dropHandler=*/ request -> nv21Converter.release(request.yuvImage.getYuvData()));
+    convertStage =
+        new PipelineStage<>(
+            "ResultConvert",
+            Constants.RESULT_CONVERT_WORKERS,
+            Constants.RESULT_QUEUE_CAPACITY,
+            PipelineStage.Backpressure.BLOCK,
+            this::convertToNv21,
+            /*dropHandler=*/ freeCaptures::offer);
+    copyStage =
+        new PipelineStage<>(
+            "ResultCopy",
+            Constants.RESULT_COPY_WORKERS,
+            // Hand frames to the workers only when one is idle: a queued frame would hold its
+            // Images, starving the ImageReader, and copying on the caller would stall the camera.
+            /*capacity=*/ 0,
+            PipelineStage.Backpressure.DROP,
+            request -> processStill(request.frame, request.basename),
+            /*dropHandler=*/ request -> request.frame.close());
+  }
 
-    HandlerThread thread = new HandlerThread(TAG);
-    thread.start();
-    // getLooper() blocks until the thread started and its Looper is prepared.
-    handler = new Handler(thread.getLooper());
+  /**
+   * Submit a request to process a Frame, without blocking. The frame is closed as soon as its
+   * images are copied, or at once if it is dropped because the pipeline is backed up; dropped
+   * frames are counted by the copy stage.
+   */
+  public void submitProcessRequest(Frame capture, String filename) {
+    copyStage.submit(new CopyRequest(capture, filename));
   }
 
-  /** Submit a request to process a Frame on the processor's thread. */
-    public void submitProcessRequest(Frame capture, String filename) {
-    handler.post(() -> processStill(capture, filename));
+  /** Returns the number of frames dropped because the pipeline was backed up. */
+  public long getDroppedFrameCount() {
+    return copyStage.getDroppedCount();
   }
 
-  private void processStill(final Frame frame, String basename) {
-    //File captureDir = new File(context.getExternalFilesDir(null), basename);
-    //LUK: capture dir
-    File captureDir = new File("/sdcard/DCIM/OpenCamera");
-    if (!captureDir.exists() && !captureDir.mkdirs()) {
-      throw new IllegalStateException("Could not create dir " + captureDir);
+  /** Returns the pipeline stages in order, for their queue depth and latency counters. */
+  public List<PipelineStage<?>> getStages() {
+    return Arrays.<PipelineStage<?>>asList(
+        copyStage, convertStage, encodeStage, writeStage, rawWriteStage);
+  }
+
+  /** Returns a summary of the counters of every stage, one line per stage. */
+  public String getPipelineStats() {
+    StringBuilder stats = new StringBuilder();
+    for (PipelineStage<?> stage : getStages()) {
+      stats.append(stage).append('\n');
     }
-    // Timestamp in local domain ie. time since boot in nanoseconds.
-    long localSensorTimestampNs = frame.result.get(CaptureResult.SENSOR_TIMESTAMP);
-    // Timestamp in leader domain ie. synchronized time on leader device in nanoseconds.
-    long syncedSensorTimestampNs =
-        timeDomainConverter.leaderTimeForLocalTimeNs(localSensorTimestampNs);
-    // Use syncedSensorTimestamp in milliseconds for filenames.
-    long syncedSensorTimestampMs = (long) TimeUtils.nanosToMillis(syncedSensorTimestampNs);
-    String filenameTimeString = getTimeStr(syncedSensorTimestampMs);
+    return stats.toString();
+  }
 
-    /*
-    //LUK: take out
-    // Save timing metadata.
-    {
-      String metaFilename = "sync_metadata_" + filenameTimeString + ".txt";
-      File metaFile = new File(captureDir, metaFilename);
-      saveTimingMetadata(syncedSensorTimestampNs, localSensorTimestampNs, metaFile);
+  /** Lets frames already submitted finish, then stops the worker threads. */
+  public void close() {
+    // Close in pipeline order so each stage drains into the next before that one is closed.
+    for (PipelineStage<?> stage : getStages()) {
+      if (!stage.close(CLOSE_TIMEOUT_MS)) {
+        Log.w(TAG, "Timed out waiting for " + stage.getName() + " to finish.");
+      }
     }
-    */
-
-    for (int i = 0; i < frame.output.images.size(); ++i) {
-      Image image = frame.output.images.get(i);
-      //Log.e(TAG, "w=" + image.getHeight() + " h=" + image.getWidth());
-      int format = image.getFormat();
-      if (format == ImageFormat.RAW_SENSOR) {
-        // Note: while using DngCreator works, streaming RAW_SENSOR is too slow.
-        Log.e(TAG, "RAW_SENSOR saving not implemented!");
-      } else if (format == ImageFormat.JPEG) {
-        //context.savePicture(image);
-        Log.e(TAG, "JPEG saving not implemented!");
-      } else if (format == ImageFormat.RAW10) {
-        Log.e(TAG, "RAW10 saving not implemented!");
-      } else if (format == ImageFormat.YUV_420_888) {
-        // TODO(jiawen): We know that on Pixel devices, the YUV format is NV21, consisting of a luma
-        // plane and separate interleaved chroma planes.
-        //     <--w-->
-        // ^   YYYYYYYZZZ
-        // |   YYYYYYYZZZ
-        // h   ...
-        // |   ...
-        // v   YYYYYYYZZZ
-        //
-        //     <--w-->
-        // ^   VUVUVUVZZZZZ
-        // |   VUVUVUVZZZZZ
-        // h/2 ...
-        // |   ...
-        // v   VUVUVUVZZZZZ
-        //
-        // where Z is padding bytes.
-        //
-        // TODO(jiawen): To determine if it's NV12 vs NV21, we need JNI to compare the buffer start
-        // addresses.
-
-        /*
-        //LUK: take out
-
-        context.notifyCapturing("img_" + filenameTimeString);
-
-        // Save NV21 raw + metadata.
-        {
-          File nv21File = new File(captureDir, "img_" + filenameTimeString + ".nv21");
-          File nv21MetadataFile =
-              new File(captureDir, "nv21_metadata_" + filenameTimeString + ".txt");
-          saveNv21(image, nv21File, nv21MetadataFile);
-          context.notifyCaptured(nv21File.getName());
+    synchronized (this) {
+      if (rawSequenceWriter != null) {
+        try {
+          rawSequenceWriter.close();
+          Log.i(TAG, "Recorded " + rawSequenceWriter.getFrameCount() + " raw frames.");
+        } catch (IOException e) {
+          Log.e(TAG, "Error closing raw sequence: " + e);
         }
-         */
+        rawSequenceWriter = null;
+      }
+    }
+  }
+
+  /**
+   * Returns the raw sequence writer, creating the sequence files in the capture directory on first
+   * use, or null if recording is disabled or the files could not be created.
+   */
+  private synchronized RawSequenceWriter getRawSequenceWriter(File captureDir, String timeString) {
+    if (!saveRawSequence || rawSequenceFailed) {
+      return null;
+    }
+    if (rawSequenceWriter == null) {
+      File data = new File(captureDir, "seq_" + timeString + ".raw");
+      File sidecar = new File(captureDir, "seq_" + timeString + ".idx");
+      try {
+        rawSequenceWriter = new RawSequenceWriter(data, sidecar);
+      } catch (IOException e) {
+        Log.e(TAG, "Unable to create raw sequence " + data.getAbsolutePath() + ": " + e);
+        rawSequenceFailed = true;
+        return null;
+      }
+    }
+    return rawSequenceWriter;
+  }
+
+  /**
+   * Packs the image losslessly for the raw sequence, straight from its plane buffers, and queues it
+   * for writing, so the image can be released without waiting for the disk.
+   */
+  private void packRaw(Image image, long leaderTimestampNs, long localTimestampNs) {
+    long t0 = System.nanoTime();
+    RawSequenceWriter.PackedFrame packed = freeRawFrames.poll();
+    if (packed == null) {
+      packed = new RawSequenceWriter.PackedFrame();
+    }
+    Image.Plane[] planes = image.getPlanes();
+    if (image.getFormat() == ImageFormat.RAW10) {
+      packed.packRaw10(
+          planes[0].getBuffer(),
+          planes[0].getRowStride(),
+          image.getWidth(),
+          image.getHeight(),
+          leaderTimestampNs,
+          localTimestampNs);
+    } else {
+      // Luma is tightly packed in pixels, U and V share row and pixel strides in YUV_420_888.
+      packed.packNv21(
+          planes[0].getBuffer(),
+          planes[0].getRowStride(),
+          planes[1].getBuffer(),
+          planes[2].getBuffer(),
+          planes[2].getRowStride(),
+          planes[2].getPixelStride(),
+          image.getWidth(),
+          image.getHeight(),
+          leaderTimestampNs,
+          localTimestampNs);
+    }
+    logTiming("raw_pack", null, t0);
+    rawWriteStage.submit(packed);
+  }
+
+  /** Appends a packed frame to the raw sequence and returns it to the pool. */
+  private void writeRaw(RawSequenceWriter.PackedFrame packed) {
+    long t0 = System.nanoTime();
+    try {
+      RawSequenceWriter writer;
+      synchronized (this) {
+        writer = rawSequenceWriter;
+      }
+      if (writer != null) {
+        writer.write(packed);
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Error recording raw frame: " + e);
+      return;
+    } finally {
+      freeRawFrames.offer(packed);
+    }
+    logTiming("raw_write", null, t0);
+  }
+
+  private void processStill(final Frame frame, String basename) {
+    List<CapturedYuv> captures = new ArrayList<>();
+    try {
+      //File captureDir = new File(context.getExternalFilesDir(null), basename);
+      //LUK: capture dir
+      File captureDir = new File("/sdcard/DCIM/OpenCamera");
+      if (!captureDir.exists() && !captureDir.mkdirs()) {
+        throw new IllegalStateException("Could not create dir " + captureDir);
+      }
+      // Timestamp in local domain ie. time since boot in nanoseconds.
+      long localSensorTimestampNs = frame.result.get(CaptureResult.SENSOR_TIMESTAMP);
+      // Timestamp in leader domain ie. synchronized time on leader device in nanoseconds.
+      long syncedSensorTimestampNs =
+          timeDomainConverter.leaderTimeForLocalTimeNs(localSensorTimestampNs);
+      // Use syncedSensorTimestamp in milliseconds for filenames.
+      long syncedSensorTimestampMs = (long) TimeUtils.nanosToMillis(syncedSensorTimestampNs);
+      String filenameTimeString = getTimeStr(syncedSensorTimestampMs);
+      RawSequenceWriter rawWriter = getRawSequenceWriter(captureDir, filenameTimeString);
+
+      /*
+      //LUK: take out
+      // Save timing metadata.
+      {
+        String metaFilename = "sync_metadata_" + filenameTimeString + ".txt";
+        File metaFile = new File(captureDir, metaFilename);
+        saveTimingMetadata(syncedSensorTimestampNs, localSensorTimestampNs, metaFile);
+      }
+      */
+
+      for (int i = 0; i < frame.output.images.size(); ++i) {
+        Image image = frame.output.images.get(i);
+        //Log.e(TAG, "w=" + image.getHeight() + " h=" + image.getWidth());
+        int format = image.getFormat();
+        if (format == ImageFormat.RAW_SENSOR) {
+          // Note: while using DngCreator works, streaming RAW_SENSOR is too slow.
+          Log.e(TAG, "RAW_SENSOR saving not implemented!");
+        } else if (format == ImageFormat.JPEG) {
+          //context.savePicture(image);
+          Log.e(TAG, "JPEG saving not implemented!");
+        } else if (format == ImageFormat.RAW10) {
+          if (rawWriter != null) {
+            packRaw(image, syncedSensorTimestampNs, localSensorTimestampNs);
+          } else {
+            Log.e(TAG, "RAW10 saving not implemented!");
+          }
+        } else if (format == ImageFormat.YUV_420_888) {
+          // TODO(jiawen): We know that on Pixel devices, the YUV format is NV21, consisting of a
+          // luma plane and separate interleaved chroma planes.
+          //     <--w-->
+          // ^   YYYYYYYZZZ
+          // |   YYYYYYYZZZ
+          // h   ...
+          // |   ...
+          // v   YYYYYYYZZZ
+          //
+          //     <--w-->
+          // ^   VUVUVUVZZZZZ
+          // |   VUVUVUVZZZZZ
+          // h/2 ...
+          // |   ...
+          // v   VUVUVUVZZZZZ
+          //
+          // where Z is padding bytes.
+          //
+          // The converter reads V and U from their own planes with the reported strides, so it
+          // does not need to know whether the layout is NV12 or NV21.
+
+          /*
+          //LUK: take out
+
+          context.notifyCapturing("img_" + filenameTimeString);
+
+          // Save NV21 raw + metadata.
+          {
+            File nv21File = new File(captureDir, "img_" + filenameTimeString + ".nv21");
+            File nv21MetadataFile =
+                new File(captureDir, "nv21_metadata_" + filenameTimeString + ".txt");
+            saveNv21(image, nv21File, nv21MetadataFile);
+            context.notifyCaptured(nv21File.getName());
+          }
+           */
 
-        // TODO(samansari): Make save JPEG a checkbox in the UI.
-        if (saveJpgFromNv21) {
-          YuvImage yuvImage = yuvImageFromNv21Image(image);
-          File jpgFile = new File(captureDir, "img_" + filenameTimeString + ".jpg");
+          if (rawWriter != null) {
+            packRaw(image, syncedSensorTimestampNs, localSensorTimestampNs);
+          }
 
-          // Push saving JPEG onto queue to let the frame close faster, necessary for some devices.
-          handler.post(() -> saveJpg(yuvImage, jpgFile));
+          // TODO(samansari): Make save JPEG a checkbox in the UI.
+          if (saveJpgFromNv21) {
+            File jpgFile = new File(captureDir, "img_" + filenameTimeString + ".jpg");
+            captures.add(copyYuv(image, jpgFile));
+          }
+        } else {
+          Log.e(TAG, String.format("Cannot save unsupported image format: %d", image.getFormat()));
         }
-      } else {
-        Log.e(TAG, String.format("Cannot save unsupported image format: %d", image.getFormat()));
       }
+    } finally {
+      // Return the images to their readers before waiting on the downstream stages.
+      frame.close();
     }
 
-    frame.close();
+    for (CapturedYuv capture : captures) {
+      convertStage.submit(capture);
+    }
   }
 
   private static boolean saveNv21(Image yuvImage, File nv21File, File nv21metadataFile) {
@@ -236,158 +525,180 @@ public class ResultProcessor {
       }
     }
 
-    long t1 = System.nanoTime();
-    Log.i(TAG, String.format("saveNv21 took %f ms.", (t1 - t0) * 1e-6f));
+    logTiming("save_nv21", nv21File, t0);
 
     return true;
   }
 
-  private boolean saveJpg(YuvImage yuvImage, File jpgFile) {
-    // Save JPEG and also add to the photos gallery by inserting into MediaStore.
+  /** Copies the planes of a YUV_420_888 image into a pooled capture. */
+  private CapturedYuv copyYuv(Image image, File jpgFile) {
     long t0 = System.nanoTime();
-    if (saveJpg(yuvImage, jpgQuality, jpgFile)) {
-      /*
-      //LUK: taken out
-      try {
-        MediaStore.Images.Media.insertImage(
-            context.getContentResolver(),
-            jpgFile.getAbsolutePath(),
-            jpgFile.getName(),
-            "Full path: " + jpgFile.getAbsolutePath());
-      } catch (FileNotFoundException e) {
-        Log.e(TAG, "Unable to find file to link in media store.");
-      }
 
-       */
+    Image.Plane[] planes = image.getPlanes();
+    Image.Plane luma = planes[0];
+    Image.Plane chromaU = planes[1];
+    Image.Plane chromaV = planes[2];
 
-      //LUK: get thumbnail
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      yuvImage.compressToJpeg(new Rect(0, 0, yuvImage.getWidth(), yuvImage.getHeight()), 50, out);
-      byte[] imageBytes = out.toByteArray();
-      Bitmap image = BitmapFactory.decodeByteArray(imageBytes, 0, imageBytes.length);
-      Bitmap resized = Bitmap.createScaledBitmap(image, yuvImage.getWidth()/8, yuvImage.getHeight()/8, true);
-      context.broadcastFile(jpgFile, resized);
-      //
-
-      long t1 = System.nanoTime();
-      Log.i(TAG, String.format("Saving JPG to disk took %f ms.", (t1 - t0) * 1e-6f));
-      context.notifyCaptured(jpgFile.getName());
-      return true;
+    CapturedYuv capture = freeCaptures.poll();
+    if (capture == null) {
+      capture = new CapturedYuv();
+    }
+    capture.y = copyPlane(luma.getBuffer(), capture.y);
+    capture.yLength = luma.getBuffer().remaining();
+    capture.u = copyPlane(chromaU.getBuffer(), capture.u);
+    capture.uLength = chromaU.getBuffer().remaining();
+    capture.v = copyPlane(chromaV.getBuffer(), capture.v);
+    capture.vLength = chromaV.getBuffer().remaining();
+    capture.yRowStride = luma.getRowStride();
+    capture.yPixelStride = luma.getPixelStride();
+    // U and V share row and pixel strides in YUV_420_888.
+    capture.uvRowStride = chromaV.getRowStride();
+    capture.uvPixelStride = chromaV.getPixelStride();
+    capture.width = image.getWidth();
+    capture.height = image.getHeight();
+    capture.jpgFile = jpgFile;
+
+    logTiming("copy", jpgFile, t0);
+    return capture;
+  }
+
+  /** Copies the remaining bytes of the plane into dst, growing it if needed, and returns it. */
+  private static byte[] copyPlane(ByteBuffer plane, byte[] dst) {
+    // Duplicate (shallow copy) the buffer so as to not disturb the underlying position/limit/etc.
+    ByteBuffer src = plane.duplicate();
+    int size = src.remaining();
+    if (dst == null || dst.length < size) {
+      dst = new byte[size];
     }
-    return false;
+    src.get(dst, 0, size);
+    return dst;
   }
 
-  private static boolean saveJpg(YuvImage src, int quality, File file) {
+  // Convert the copied YUV_420_888 planes to an android.graphics.YuvImage in NV21, rotated 90
+  // degrees clockwise. The latter is just a wrapper around a byte[] but can compress to JPEG. The
+  // byte[] comes from the converter's pool and is released once encoded.
+  private void convertToNv21(CapturedYuv capture) {
     long t0 = System.nanoTime();
-    try (FileOutputStream outputStream = new FileOutputStream(file)) {
-      Rect rect = new Rect(0, 0, src.getWidth(), src.getHeight());
-      boolean ok = src.compressToJpeg(rect, quality, outputStream);
+    File jpgFile = capture.jpgFile;
+    YuvImage yuvImage;
+    try {
+      byte[] nv21 =
+          nv21Converter.convertRotated90(
+              ByteBuffer.wrap(capture.y, 0, capture.yLength),
+              capture.yRowStride,
+              capture.yPixelStride,
+              ByteBuffer.wrap(capture.u, 0, capture.uLength),
+              ByteBuffer.wrap(capture.v, 0, capture.vLength),
+              capture.uvRowStride,
+              capture.uvPixelStride,
+              capture.width,
+              capture.height);
+      yuvImage = new YuvImage(nv21, ImageFormat.NV21, capture.height, capture.width, null);
+    } finally {
+      freeCaptures.offer(capture);
+    }
+    logTiming("nv21_convert", jpgFile, t0);
+
+    encodeStage.submit(new EncodeRequest(yuvImage, jpgFile));
+  }
 
-      if (!ok) {
+  /** Compresses the NV21 frame to an in-memory JPEG and downsamples its thumbnail. */
+  private void encodeJpg(EncodeRequest request) {
+    YuvImage yuvImage = request.yuvImage;
+    File jpgFile = request.jpgFile;
+    ByteArrayOutputStream jpeg = freeJpegBuffers.poll();
+    if (jpeg == null) {
+      jpeg = new ByteArrayOutputStream();
+    }
+    Bitmap thumbnail;
+    try {
+      long t0 = System.nanoTime();
+      Rect rect = new Rect(0, 0, yuvImage.getWidth(), yuvImage.getHeight());
+      if (!yuvImage.compressToJpeg(rect, jpgQuality, jpeg)) {
         // TODO(jiawen,samansari): Toast.
-        Log.w(TAG, "Error saving JPEG to: " + file.getAbsolutePath());
+        Log.w(TAG, "Error encoding JPEG for: " + jpgFile.getAbsolutePath());
+        jpeg.reset();
+        freeJpegBuffers.offer(jpeg);
+        return;
       }
-      long t1 = System.nanoTime();
-      Log.i(TAG, String.format("saveJpg took %f ms.", (t1 - t0) * 1e-6f));
-      return ok;
-    } catch (IOException e) {
-      // TODO(jiawen,samansari): Toast.
-      Log.w(TAG, "Error saving JPEG image to: " + file.getAbsolutePath());
-      return false;
+      logTiming("jpeg_encode", jpgFile, t0);
+
+      //LUK: get thumbnail
+      // Box filter the NV21 data the JPEG was encoded from, rather than encoding and decoding the
+      // full frame a second time.
+      long thumbnailT0 = System.nanoTime();
+      Nv21Thumbnailer thumbnailer = thumbnailers.get();
+      int width = yuvImage.getWidth();
+      int height = yuvImage.getHeight();
+      int[] pixels = thumbnailer.thumbnail(yuvImage.getYuvData(), width, height);
+      int thumbnailWidth = thumbnailer.thumbnailWidth(width);
+      thumbnail =
+          Bitmap.createBitmap(
+              pixels,
+              /*offset=*/ 0,
+              /*stride=*/ thumbnailWidth,
+              thumbnailWidth,
+              thumbnailer.thumbnailHeight(height),
+              Bitmap.Config.ARGB_8888);
+      logTiming("thumbnail", jpgFile, thumbnailT0);
+    } finally {
+      nv21Converter.release(yuvImage.getYuvData());
     }
-  }
 
-  public static byte[] rotateYUV420Degree90(byte[] data, int imageWidth, int imageHeight) {
-      byte[] yuv = new byte[imageWidth * imageHeight * 3 / 2];
-      // Rotate the Y luma
-      int i = 0;
-      for (int x = 0; x < imageWidth; x++) {
-          for (int y = imageHeight - 1; y >= 0; y--) {
-              yuv[i] = data[y * imageWidth + x];
-              i++;
-          }
-      }
-      // Rotate the U and V color components
-      i = imageWidth * imageHeight * 3 / 2 - 1;
-      for (int x = imageWidth - 1; x > 0; x = x - 2) {
-          for (int y = 0; y < imageHeight / 2; y++) {
-              yuv[i] = data[(imageWidth * imageHeight) + (y * imageWidth) + x];
-              i--;
-              yuv[i] = data[(imageWidth * imageHeight) + (y * imageWidth)
-                      + (x - 1)];
-              i--;
-          }
-      }
-      return yuv;
+    writeStage.submit(new WriteRequest(jpeg, thumbnail, jpgFile));
   }
 
-  // Utility method to convert an NV21 android.media.Image to an android.graphics.YuvImage. The
-  // latter is just a wrapper around a byte[] but can compress to JPEG.
-  private static YuvImage yuvImageFromNv21Image(Image src) {
+  /** Writes the JPEG to disk and shows it as the gallery thumbnail. */
+  private void writeJpg(WriteRequest request) {
     long t0 = System.nanoTime();
+    File jpgFile = request.jpgFile;
+    try (FileOutputStream outputStream = new FileOutputStream(jpgFile)) {
+      request.jpeg.writeTo(outputStream);
+    } catch (IOException e) {
+      // TODO(jiawen,samansari): Toast.
+      Log.w(TAG, "Error saving JPEG image to: " + jpgFile.getAbsolutePath());
+      return;
+    } finally {
+      request.jpeg.reset();
+      freeJpegBuffers.offer(request.jpeg);
+    }
+    logTiming("jpeg_write", jpgFile, t0);
 
-    Image.Plane[] planes = src.getPlanes();
-    Image.Plane luma = planes[0];
-    Image.Plane chromaU = planes[1];
-    Image.Plane chromaV = planes[2];
-
-    int width = src.getWidth();
-    int height = src.getHeight();
-
-    // Luma should be tightly packed and chroma should be tightly interleaved.
-    assert (luma.getPixelStride() == 1);
-    assert (chromaU.getPixelStride() == 2);
-    assert (chromaV.getPixelStride() == 2);
-
-    // Duplicate (shallow copy) each buffer so as to not disturb the underlying position/limit/etc.
-    ByteBuffer lumaBuffer = luma.getBuffer().duplicate();
-    ByteBuffer chromaUBuffer = chromaU.getBuffer().duplicate();
-    ByteBuffer chromaVBuffer = chromaV.getBuffer().duplicate();
-
-    // Yes, y, v, then u since it's NV21.
-    int[] yvuRowStrides =
-        new int[] {luma.getRowStride(), chromaV.getRowStride(), chromaU.getRowStride()};
-
-    // Compute bytes needed to concatenate all the (potentially padded) YUV data in one buffer.
-    int lumaBytes = height * luma.getRowStride();
-    int interleavedChromaBytes = (height / 2) * chromaV.getRowStride();
-    assert (lumaBuffer.capacity() == lumaBytes);
-    int packedYVUBytes = lumaBytes + interleavedChromaBytes;
-    byte[] packedYVU = new byte[packedYVUBytes];
-
-    int packedYVUOffset = 0;
-    lumaBuffer.get(
-        packedYVU,
-        packedYVUOffset,
-        lumaBuffer.capacity()); // packedYVU[0..lumaBytes) <-- lumaBuffer.
-    packedYVUOffset += lumaBuffer.capacity();
-
-    // Write the V buffer. Since the V buffer contains U data, write all of V and then check how
-    // much U data is left over. There be at most 1 byte plus padding.
-    chromaVBuffer.get(packedYVU, packedYVUOffset, /*length=*/ chromaVBuffer.capacity());
-    packedYVUOffset += chromaVBuffer.capacity();
-
-    // Write the remaining portion of the U buffer (if any).
-    int chromaUPosition = chromaVBuffer.capacity() - 1;
-    if (chromaUPosition < chromaUBuffer.capacity()) {
-      chromaUBuffer.position(chromaUPosition);
-
-      int remainingBytes = Math.min(chromaUBuffer.remaining(), lumaBytes - packedYVUOffset);
-
-      if (remainingBytes > 0) {
-        chromaUBuffer.get(packedYVU, packedYVUOffset, remainingBytes);
-      }
+    /*
+    //LUK: taken out
+    try {
+      MediaStore.Images.Media.insertImage(
+          context.getContentResolver(),
+          jpgFile.getAbsolutePath(),
+          jpgFile.getName(),
+          "Full path: " + jpgFile.getAbsolutePath());
+    } catch (FileNotFoundException e) {
+      Log.e(TAG, "Unable to find file to link in media store.");
     }
 
-    //LUK: rotate yuv image
-    packedYVU = rotateYUV420Degree90(packedYVU, width, height);
-    YuvImage yuvImage = new YuvImage(packedYVU, ImageFormat.NV21, height, width, null);
-    //YuvImage yuvImage = new YuvImage(packedYVU, ImageFormat.NV21, width, height, yvuRowStrides); //LUK: orig
+     */
 
-    long t1 = System.nanoTime();
-    Log.i(TAG, String.format("yuvImageFromNv212Image took %f ms.", (t1 - t0) * 1e-6f));
+    context.broadcastFile(jpgFile, request.thumbnail);
+    context.notifyCaptured(jpgFile.getName());
+    if (MyDebug.LOG) {
+      Log.d(TAG, getPipelineStats());
+    }
+  }
 
-    return yuvImage;
+  /**
+   * Logs the time since startNs spent in a processing stage, as a single line of key=value pairs
+   * so the stages of each capture can be collected with logcat and parsed.
+   */
+  private static void logTiming(String stage, File file, long startNs) {
+    long durationNs = System.nanoTime() - startNs;
+    Log.i(
+        TAG,
+        String.format(
+            Locale.US,
+            "timing stage=%s ms=%.3f file=%s",
+            stage,
+            durationNs * 1e-6,
+            file == null ? "-" : file.getName()));
   }
 
   private static String getTimeStr(long timestampMs) {
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations over roughly the last window, in power of two microsecond buckets.
+ *
+ * <p>Samples go into the current window, and percentiles are read over the current and previous
+ * window, which is cleared and reused when the current one expires. Recording is a bucket lookup
+ * and an increment, cheap enough to do for every frame.
+ *
+ * <p>Must be recorded to by a single thread, while any thread may read it.
+ */
+public class RollingHistogram {
+  /** Bucket 0 holds durations under 1 us, bucket b those in [2^(b-1), 2^b) us, the last the rest. */
+  public static final int BUCKET_COUNT = 32;
+
+  private final long windowNs;
+  private final AtomicLongArray[] windows = {
+    new AtomicLongArray(BUCKET_COUNT), new AtomicLongArray(BUCKET_COUNT)
+  };
+  private volatile int current = 0;
+  private long windowStartNs = Long.MIN_VALUE;
+
+  public RollingHistogram(long windowNs) {
+    this.windowNs = windowNs;
+  }
+
+  public static int bucketOf(long durationNs) {
+    long us = durationNs / 1000;
+    if (us <= 0) {
+      return 0;
+    }
+    return Math.min(BUCKET_COUNT - 1, Long.SIZE - Long.numberOfLeadingZeros(us));
+  }
+
+  /** Exclusive upper bound of the durations in the bucket, in nanoseconds. */
+  public static long bucketUpperBoundNs(int bucket) {
+    return (1L << bucket) * 1000;
+  }
+
+  /** Records a duration at the given time, from System.nanoTime(). */
+  public void record(long durationNs, long nowNs) {
+    if (windowStartNs == Long.MIN_VALUE) {
+      windowStartNs = nowNs;
+    } else if (nowNs - windowStartNs >= windowNs) {
+      int next = current ^ 1;
+      clear(windows[next]);
+      if (nowNs - windowStartNs >= 2 * windowNs) {
+        // Both windows expired.
+        clear(windows[current]);
+      }
+      current = next;
+      windowStartNs = nowNs;
+    }
+    windows[current].incrementAndGet(bucketOf(durationNs));
+  }
+
+  private static void clear(AtomicLongArray window) {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      window.set(i, 0);
+    }
+  }
+
+  private long bucketCount(int bucket) {
+    return windows[0].get(bucket) + windows[1].get(bucket);
+  }
+
+  /** Number of samples in the current and previous window. */
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      count += bucketCount(i);
+    }
+    return count;
+  }
+
+  /**
+   * Upper bound of the bucket holding the given fraction of samples, e.g. 0.95 for the 95th
+   * percentile, or 0 if there are none.
+   */
+  public long getPercentileNs(double fraction) {
+    long count = getCount();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(fraction * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += bucketCount(i);
+      if (seen >= rank) {
+        return bucketUpperBoundNs(i);
+      }
+    }
+    return bucketUpperBoundNs(BUCKET_COUNT - 1);
+  }
+}
@@ -22,6 +22,7 @@ import android.net.wifi.WifiManager;
 import android.provider.Settings.Secure;
 import android.util.Log;
 import android.widget.TextView;
+import com.googleresearch.capturesync.softwaresync.BinaryRpcCallback;
 import com.googleresearch.capturesync.softwaresync.ClientInfo;
 import com.googleresearch.capturesync.softwaresync.NetworkHelpers;
 import com.googleresearch.capturesync.softwaresync.RpcCallback;
@@ -61,6 +62,13 @@ public class SoftwareSyncController implements Closeable {
   public static final int METHOD_DO_PHASE_ALIGN = 200_001;
   /* Tell devices to set manual exposure and white balance to the requested values. */
   public static final int METHOD_SET_2A = 200_002;
+  /*
+   * Tell devices to align to the given goal phase and keep it, or to stop keeping it. Payload is
+   * whether to keep the phase (0 or 1) and the goal phase in ns.
+   */
+  public static final int METHOD_SET_PHASE_LOCK = 200_003;
+  /* Tell devices to calibrate their phase config. */
+  public static final int METHOD_CALIBRATE_PHASE = 200_004;
 
   private long upcomingTriggerTimeNs;
 
@@ -77,7 +85,6 @@ public class SoftwareSyncController implements Closeable {
     setupSoftwareSync();
   }
 
-  @SuppressWarnings("StringSplitter")
   private void setupSoftwareSync() {
     Log.w(TAG, "setup SoftwareSync");
     if (softwareSync != null) {
@@ -126,11 +133,12 @@ public class SoftwareSyncController implements Closeable {
 
     // Set up shared rpcs.
     Map<Integer, RpcCallback> sharedRpcs = new HashMap<>();
-    sharedRpcs.put(
+    Map<Integer, BinaryRpcCallback> sharedBinaryRpcs = new HashMap<>();
+    sharedBinaryRpcs.put(
         METHOD_SET_TRIGGER_TIME,
-        payload -> {
-          Log.v(TAG, "Setting next trigger to" + payload);
-          upcomingTriggerTimeNs = Long.valueOf(payload);
+        message -> {
+          upcomingTriggerTimeNs = message.getLong(0);
+          Log.v(TAG, "Setting next trigger to" + upcomingTriggerTimeNs);
           context.setUpcomingCaptureStill(upcomingTriggerTimeNs);
         });
 
@@ -145,17 +153,40 @@ public class SoftwareSyncController implements Closeable {
           phaseAlignController.startAlign();
         });
 
+    sharedBinaryRpcs.put(
+        METHOD_SET_PHASE_LOCK,
+        message -> {
+          if (message.longCount() != 2) {
+            throw new IllegalArgumentException(
+                "Wrong number of values in payload: " + message.payloadString());
+          }
+          boolean enabled = message.getLong(0) != 0;
+          long goalPhaseNs = message.getLong(1);
+          // All devices align to the goal phase of the leader in the leader clock domain.
+          phaseAlignController.setPhaseLock(enabled, goalPhaseNs);
+          if (enabled) {
+            Log.v(TAG, "Starting phase alignment.");
+            phaseAlignController.startAlign();
+          }
+        });
+
     sharedRpcs.put(
-        METHOD_SET_2A,
+        METHOD_CALIBRATE_PHASE,
         payload -> {
-          Log.v(TAG, "Received payload: " + payload);
+          Log.v(TAG, "Starting phase config calibration.");
+          context.calibratePhaseConfig();
+        });
 
-          String[] segments = payload.split(",");
-          if (segments.length != 2) {
-            throw new IllegalArgumentException("Wrong number of segments in payload: " + payload);
+    sharedBinaryRpcs.put(
+        METHOD_SET_2A,
+        message -> {
+          if (message.longCount() != 2) {
+            throw new IllegalArgumentException(
+                "Wrong number of values in payload: " + message.payloadString());
           }
-          long sensorExposureNs = Long.parseLong(segments[0]);
-          int sensorSensitivity = Integer.parseInt(segments[1]);
+          long sensorExposureNs = message.getLong(0);
+          int sensorSensitivity = (int) message.getLong(1);
+          Log.v(TAG, "Received 2A: " + sensorExposureNs + ", " + sensorSensitivity);
           context.set2aAndUpdatePreview(sensorExposureNs, sensorSensitivity);
         });
 
@@ -168,7 +199,8 @@ public class SoftwareSyncController implements Closeable {
       leaderRpcs.put(SyncConstants.METHOD_MSG_REMOVED_CLIENT, payload -> updateClientsUI());
       leaderRpcs.put(SyncConstants.METHOD_MSG_SYNCING, payload -> updateClientsUI());
       leaderRpcs.put(SyncConstants.METHOD_MSG_OFFSET_UPDATED, payload -> updateClientsUI());
-      softwareSync = new SoftwareSyncLeader(name, initTimeNs, localAddress, leaderRpcs);
+      softwareSync =
+          new SoftwareSyncLeader(name, initTimeNs, localAddress, leaderRpcs, sharedBinaryRpcs);
     } else {
       // Client.
       Map<Integer, RpcCallback> clientRpcs = new HashMap<>(sharedRpcs);
@@ -191,7 +223,9 @@ public class SoftwareSyncController implements Closeable {
                           String.format(
                               "Client %s\n-Synced to Leader %s",
                               softwareSync.getName(), softwareSync.getLeaderAddress())));
-      softwareSync = new SoftwareSyncClient(name, localAddress, leaderAddress, clientRpcs);
+      softwareSync =
+          new SoftwareSyncClient(
+              name, localAddress, leaderAddress, clientRpcs, sharedBinaryRpcs);
     }
 
     if (isLeader) {
@@ -251,6 +285,12 @@ public class SoftwareSyncController implements Closeable {
                   String.format(
                       "-Client %s: %.2f ms sync\n", client.name(), client.syncAccuracy() / 1e6));
             }
+            if (client.deliveredRpcs() + client.lostRpcs() > 0) {
+              msg.append(
+                  String.format(
+                      " RPCs %d delivered, %d lost, last %.2f ms\n",
+                      client.deliveredRpcs(), client.lostRpcs(), client.rpcLatency() / 1e6));
+            }
           }
           mSyncStatus = msg.toString();
         });
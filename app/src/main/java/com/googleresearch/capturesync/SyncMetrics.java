@@ -0,0 +1,233 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and rolling histograms of how images and results are matched, per image reader, telling
+ * apart images dropped by the HAL, results dropped by the HAL, and a consumer too slow to close its
+ * outputs.
+ *
+ * <p>Updated by {@link TimestampMatcher} and {@link ImageMetadataSynchronizer} with plain atomic
+ * increments, so it can stay on while shooting. Any thread may read it.
+ */
+public class SyncMetrics {
+  private final int numReaders;
+
+  private final AtomicLong matchedResults = new AtomicLong();
+  private final AtomicLong partialResults = new AtomicLong();
+  private final AtomicLong droppedResults = new AtomicLong();
+  private final AtomicInteger pendingResultsHighWater = new AtomicInteger();
+  private final AtomicInteger outputsInFlight = new AtomicInteger();
+  private final AtomicInteger outputsInFlightHighWater = new AtomicInteger();
+
+  /* Per reader. */
+  private final AtomicLongArray matchedImages;
+  private final AtomicLongArray droppedImages;
+  private final AtomicLongArray orphanedImages;
+  private final AtomicLongArray deferredImages;
+  private final AtomicIntegerArray pendingImagesHighWater;
+  private final RollingHistogram[] matchLatency;
+
+  /** @param windowNs span of the rolling latency histograms. */
+  public SyncMetrics(int numReaders, long windowNs) {
+    this.numReaders = numReaders;
+    matchedImages = new AtomicLongArray(numReaders);
+    droppedImages = new AtomicLongArray(numReaders);
+    orphanedImages = new AtomicLongArray(numReaders);
+    deferredImages = new AtomicLongArray(numReaders);
+    pendingImagesHighWater = new AtomicIntegerArray(numReaders);
+    matchLatency = new RollingHistogram[numReaders];
+    for (int i = 0; i < numReaders; i++) {
+      matchLatency[i] = new RollingHistogram(windowNs);
+    }
+  }
+
+  /* Updates, from the matcher's draining thread unless noted. */
+
+  void onResultMatched(boolean complete) {
+    (complete ? matchedResults : partialResults).incrementAndGet();
+  }
+
+  /** A result was a duplicate, or arrived while the matcher was closed or overloaded. */
+  void onResultDropped() {
+    droppedResults.incrementAndGet();
+  }
+
+  void onImageMatched(int reader, long latencyNs, long nowNs) {
+    matchedImages.incrementAndGet(reader);
+    matchLatency[reader].record(latencyNs, nowNs);
+  }
+
+  void onImageDropped(int reader) {
+    droppedImages.incrementAndGet(reader);
+  }
+
+  void onImageOrphaned(int reader) {
+    orphanedImages.incrementAndGet(reader);
+  }
+
+  /** An image was left in its reader since all it may acquire are held, from the image thread. */
+  void onImageDeferred(int reader) {
+    deferredImages.incrementAndGet(reader);
+  }
+
+  void onPendingImages(int reader, int pending) {
+    if (pending > pendingImagesHighWater.get(reader)) {
+      pendingImagesHighWater.set(reader, pending);
+    }
+  }
+
+  void onPendingResults(int pending) {
+    if (pending > pendingResultsHighWater.get()) {
+      pendingResultsHighWater.set(pending);
+    }
+  }
+
+  /** An output was handed to the consumer, from any thread. */
+  void onOutputDelivered() {
+    int inFlight = outputsInFlight.incrementAndGet();
+    int max;
+    do {
+      max = outputsInFlightHighWater.get();
+    } while (inFlight > max && !outputsInFlightHighWater.compareAndSet(max, inFlight));
+  }
+
+  /** The consumer closed an output, from any thread. */
+  void onOutputClosed() {
+    outputsInFlight.decrementAndGet();
+  }
+
+  /* Readers. */
+
+  public int getNumReaders() {
+    return numReaders;
+  }
+
+  /** Results delivered with all their images. */
+  public long getMatchedResults() {
+    return matchedResults.get();
+  }
+
+  /** Results delivered with at least one of their images dropped. */
+  public long getPartialResults() {
+    return partialResults.get();
+  }
+
+  public long getDroppedResults() {
+    return droppedResults.get();
+  }
+
+  public int getPendingResultsHighWater() {
+    return pendingResultsHighWater.get();
+  }
+
+  /** Outputs delivered and not closed yet by the consumer. */
+  public int getOutputsInFlight() {
+    return outputsInFlight.get();
+  }
+
+  public int getOutputsInFlightHighWater() {
+    return outputsInFlightHighWater.get();
+  }
+
+  public long getMatchedImages(int reader) {
+    return matchedImages.get(reader);
+  }
+
+  /** Images that never arrived for their result, dropped by the HAL. */
+  public long getDroppedImages(int reader) {
+    return droppedImages.get(reader);
+  }
+
+  /** Images closed because their result never arrived, or too many were pending. */
+  public long getOrphanedImages(int reader) {
+    return orphanedImages.get(reader);
+  }
+
+  /** Times an image could not be acquired because the consumer still held the maximum. */
+  public long getDeferredImages(int reader) {
+    return deferredImages.get(reader);
+  }
+
+  public int getPendingImagesHighWater(int reader) {
+    return pendingImagesHighWater.get(reader);
+  }
+
+  /** Time from the arrival of an image to its match with a result. */
+  public RollingHistogram getMatchLatency(int reader) {
+    return matchLatency[reader];
+  }
+
+  public long getTotalMatchedImages() {
+    return sum(matchedImages);
+  }
+
+  public long getTotalDroppedImages() {
+    return sum(droppedImages);
+  }
+
+  public long getTotalOrphanedImages() {
+    return sum(orphanedImages);
+  }
+
+  private static long sum(AtomicLongArray values) {
+    long total = 0;
+    for (int i = 0; i < values.length(); i++) {
+      total += values.get(i);
+    }
+    return total;
+  }
+
+  /** One line for the results, then one per reader, as shown on screen. */
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append(
+        String.format(
+            Locale.US,
+            "sync: %d ok, %d partial, %d results lost, pending max %d, held %d/%d",
+            getMatchedResults(),
+            getPartialResults(),
+            getDroppedResults(),
+            getPendingResultsHighWater(),
+            getOutputsInFlight(),
+            getOutputsInFlightHighWater()));
+    for (int i = 0; i < numReaders; i++) {
+      RollingHistogram latency = matchLatency[i];
+      builder.append(
+          String.format(
+              Locale.US,
+              "\nreader %d: %d ok, %d dropped, %d orphaned, %d deferred, wait p50 <%.1f p95 <%.1f"
+                  + " ms, pending max %d",
+              i,
+              getMatchedImages(i),
+              getDroppedImages(i),
+              getOrphanedImages(i),
+              getDeferredImages(i),
+              latency.getPercentileNs(0.5) * 1e-6,
+              latency.getPercentileNs(0.95) * 1e-6,
+              getPendingImagesHighWater(i)));
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,665 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Matches capture results with the images of one or more readers by sensor timestamp, without
+ * locks, the matching core of {@link ImageMetadataSynchronizer}.
+ *
+ * <p>Each reader, and the results, has a single-producer ring that its delivering thread offers
+ * into without blocking. Whichever producer finds the matcher idle drains all rings and does the
+ * matching, while producers arriving in the meantime only leave their item for it. The matching
+ * state is therefore only ever touched by one thread at a time and needs no synchronization:
+ * pending images live in a small open-addressed table per reader and pending results in a table
+ * keyed by timestamp, both with primitive long keys, and pending result holders are reused.
+ *
+ * <p>Images are expected in timestamp order per reader, while results may be reordered. A result
+ * is complete once every target reader has delivered its image, or has delivered a newer image,
+ * meaning the image for the result was dropped. An image is discarded as orphaned once {@code
+ * reorderWindow} newer results targeting its reader arrived without its own result.
+ *
+ * <p>Matches, drops and how long each image waited for its result are counted in a {@link
+ * SyncMetrics}.
+ *
+ * <p>{@link #offerImage} must be called from a single thread per reader and {@link #offerResult}
+ * from a single thread, as Android Handlers do. Listener calls happen on whichever producer thread
+ * is draining.
+ */
+public class TimestampMatcher<R, I> {
+
+  /** A complete result with its images, only valid for the duration of {@link Listener#onMatch}. */
+  public interface Match<R, I> {
+    R result();
+
+    long timestamp();
+
+    /** Bit mask of the readers the result expected images from. */
+    int targetMask();
+
+    /** The image from the reader, or null if it was not a target or was dropped. */
+    I image(int reader);
+
+    /** Bit mask of the target readers whose image was dropped. */
+    int droppedMask();
+  }
+
+  /** Receives matches and images that will never be matched. */
+  public interface Listener<R, I> {
+    void onMatch(Match<R, I> match);
+
+    /** The image is orphaned or the matcher closed, release it. */
+    void onImageDiscarded(int reader, I image);
+  }
+
+  private final int numReaders;
+  private final int reorderWindow;
+  private final Listener<R, I> listener;
+
+  /** Inputs, one single-producer ring per reader and one for results. */
+  private final EventRing[] imageRings;
+
+  private final EventRing resultRing;
+
+  /** Work-in-progress counter electing the draining thread. */
+  private final AtomicInteger wip = new AtomicInteger();
+
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  /* Matching state, only accessed by the draining thread. */
+  private final LongObjectTable[] pendingImages;
+  private final LongObjectTable pendingResults;
+  private final long[] latestImageTimestampNs;
+  private final ArrayDeque<PendingResult> freeHolders;
+
+  private final SyncMetrics metrics;
+
+  /**
+   * @param numReaders number of image readers, at most 32.
+   * @param imageCapacity pending images kept per reader before the oldest is discarded.
+   * @param resultCapacity pending results kept before the oldest is completed as is.
+   * @param reorderWindow newer results that must arrive before an unmatched image is discarded.
+   */
+  public TimestampMatcher(
+      int numReaders,
+      int imageCapacity,
+      int resultCapacity,
+      int reorderWindow,
+      Listener<R, I> listener) {
+    this(
+        numReaders,
+        imageCapacity,
+        resultCapacity,
+        reorderWindow,
+        listener,
+        new SyncMetrics(Math.max(1, numReaders), DEFAULT_METRICS_WINDOW_NS));
+  }
+
+  /** As above, updating the given metrics, which must be for numReaders readers. */
+  public TimestampMatcher(
+      int numReaders,
+      int imageCapacity,
+      int resultCapacity,
+      int reorderWindow,
+      Listener<R, I> listener,
+      SyncMetrics metrics) {
+    if (numReaders < 1 || numReaders > Integer.SIZE) {
+      throw new IllegalArgumentException("Unsupported number of readers " + numReaders);
+    }
+    this.numReaders = numReaders;
+    this.reorderWindow = Math.max(1, reorderWindow);
+    this.listener = listener;
+    this.metrics = metrics;
+    imageRings = new EventRing[numReaders];
+    pendingImages = new LongObjectTable[numReaders];
+    latestImageTimestampNs = new long[numReaders];
+    for (int i = 0; i < numReaders; i++) {
+      imageRings[i] = new EventRing(RING_SIZE);
+      pendingImages[i] = new LongObjectTable(imageCapacity);
+      latestImageTimestampNs[i] = Long.MIN_VALUE;
+    }
+    resultRing = new EventRing(RING_SIZE);
+    pendingResults = new LongObjectTable(resultCapacity);
+    freeHolders = new ArrayDeque<>(resultCapacity + 1);
+    for (int i = 0; i <= resultCapacity; i++) {
+      freeHolders.push(new PendingResult(numReaders));
+    }
+  }
+
+  /** Size of the input rings, bounding how far producers can run ahead of the drainer. */
+  private static final int RING_SIZE = 64;
+
+  private static final long DEFAULT_METRICS_WINDOW_NS = 10_000_000_000L;
+
+  /**
+   * Offers an image from the reader.
+   *
+   * @return false if the matcher is closed or overloaded, in which case the caller keeps
+   *     ownership of the image and should release it.
+   */
+  public boolean offerImage(int reader, long timestampNs, I image) {
+    if (closed.get() || !imageRings[reader].offer(timestampNs, 0, System.nanoTime(), image)) {
+      return false;
+    }
+    drain();
+    return true;
+  }
+
+  /**
+   * Offers a result expecting images from the readers in targetMask.
+   *
+   * @return false if the matcher is closed or overloaded, and the result was dropped.
+   */
+  public boolean offerResult(long timestampNs, int targetMask, R result) {
+    if (targetMask == 0) {
+      return true;
+    }
+    if (closed.get() || !resultRing.offer(timestampNs, targetMask, 0, result)) {
+      metrics.onResultDropped();
+      return false;
+    }
+    drain();
+    return true;
+  }
+
+  /** Discards all pending images and results. Images offered afterwards are rejected. */
+  public void close() {
+    closed.set(true);
+    drain();
+  }
+
+  public SyncMetrics getMetrics() {
+    return metrics;
+  }
+
+  public long getMatchedCount() {
+    return metrics.getMatchedResults();
+  }
+
+  /** Results delivered with at least one of their images dropped. */
+  public long getPartialCount() {
+    return metrics.getPartialResults();
+  }
+
+  /** Images that never arrived for a result, found by a newer image on their reader. */
+  public long getDroppedImageCount() {
+    return metrics.getTotalDroppedImages();
+  }
+
+  /** Images discarded because their result never arrived, or too many were pending. */
+  public long getOrphanedImageCount() {
+    return metrics.getTotalOrphanedImages();
+  }
+
+  /** Results rejected as duplicates, or because the matcher was closed or overloaded. */
+  public long getDroppedResultCount() {
+    return metrics.getDroppedResults();
+  }
+
+  /** Drains the rings unless another thread is already doing so, in which case it will. */
+  private void drain() {
+    if (wip.getAndIncrement() != 0) {
+      return;
+    }
+    int missed = 1;
+    do {
+      drainRings();
+      if (closed.get()) {
+        discardAll();
+      }
+      missed = wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void drainRings() {
+    boolean progress = true;
+    while (progress) {
+      progress = false;
+      for (int reader = 0; reader < numReaders; reader++) {
+        EventRing ring = imageRings[reader];
+        while (ring.poll()) {
+          onImage(reader, ring.polledTimestampNs, ring.polledArrivalNs, (I) ring.polledPayload);
+          progress = true;
+        }
+      }
+      while (resultRing.poll()) {
+        onResult(resultRing.polledTimestampNs, resultRing.polledMask, (R) resultRing.polledPayload);
+        progress = true;
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void onImage(int reader, long timestampNs, long arrivalNs, I image) {
+    final int bit = 1 << reader;
+    if (timestampNs > latestImageTimestampNs[reader]) {
+      latestImageTimestampNs[reader] = timestampNs;
+    }
+
+    int resultSlot = pendingResults.find(timestampNs);
+    PendingResult pending =
+        resultSlot < 0 ? null : (PendingResult) pendingResults.valueAt(resultSlot);
+    if (pending != null && (pending.targetMask & bit) != 0 && pending.images[reader] == null) {
+      pending.images[reader] = image;
+      pending.imageArrivalNs[reader] = arrivalNs;
+      pending.foundMask |= bit;
+      if (pending.isComplete()) {
+        pendingResults.removeSlot(resultSlot);
+        emit(pending);
+      }
+    } else {
+      LongObjectTable table = pendingImages[reader];
+      if (table.isFull()) {
+        int oldest = table.oldestSlot();
+        metrics.onImageOrphaned(reader);
+        discardImage(reader, table.valueAt(oldest));
+        table.removeSlot(oldest);
+      }
+      table.put(timestampNs, image, arrivalNs);
+      metrics.onPendingImages(reader, table.size());
+    }
+
+    // Images arrive in order per reader, so pending results older than this image that still
+    // miss an image from this reader will never get it.
+    if (pendingResults.isEmpty()) {
+      return;
+    }
+    for (int slot = 0; slot < pendingResults.capacity(); slot++) {
+      PendingResult other = (PendingResult) pendingResults.valueAt(slot);
+      if (other != null
+          && other.timestampNs < timestampNs
+          && (other.targetMask & bit) != 0
+          && (other.foundMask & bit) == 0) {
+        other.droppedMask |= bit;
+        if (other.isComplete()) {
+          pendingResults.removeSlot(slot);
+          slot--; // Backward shift deletion may have moved another entry into this slot.
+          emit(other);
+        }
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void onResult(long timestampNs, int targetMask, R result) {
+    if (pendingResults.find(timestampNs) >= 0) {
+      metrics.onResultDropped(); // Duplicate.
+      return;
+    }
+
+    PendingResult pending = freeHolders.pop();
+    pending.result = result;
+    pending.timestampNs = timestampNs;
+    pending.targetMask = targetMask;
+    for (int reader = 0; reader < numReaders; reader++) {
+      final int bit = 1 << reader;
+      if ((targetMask & bit) == 0) {
+        continue;
+      }
+      LongObjectTable table = pendingImages[reader];
+      int slot = table.find(timestampNs);
+      if (slot >= 0) {
+        pending.images[reader] = table.valueAt(slot);
+        pending.imageArrivalNs[reader] = table.stampAt(slot);
+        pending.foundMask |= bit;
+        table.removeSlot(slot);
+      } else if (latestImageTimestampNs[reader] > timestampNs) {
+        pending.droppedMask |= bit;
+      }
+      ageOrphans(reader, timestampNs);
+    }
+    if (pending.isComplete()) {
+      emit(pending);
+      return;
+    }
+
+    if (pendingResults.isFull()) {
+      // Complete the oldest as is, treating its missing images as dropped.
+      int oldest = pendingResults.oldestSlot();
+      PendingResult evicted = (PendingResult) pendingResults.valueAt(oldest);
+      pendingResults.removeSlot(oldest);
+      evicted.droppedMask |= evicted.targetMask & ~evicted.foundMask;
+      emit(evicted);
+    }
+    pendingResults.put(timestampNs, pending, 0);
+    metrics.onPendingResults(pendingResults.size());
+  }
+
+  /** Counts a newer result against each older pending image, discarding those out of window. */
+  private void ageOrphans(int reader, long resultTimestampNs) {
+    LongObjectTable table = pendingImages[reader];
+    if (table.isEmpty()) {
+      return;
+    }
+    boolean expired = false;
+    for (int slot = 0; slot < table.capacity(); slot++) {
+      if (table.valueAt(slot) != null
+          && table.keyAt(slot) < resultTimestampNs
+          && table.incrementAge(slot) >= reorderWindow) {
+        expired = true;
+      }
+    }
+    if (!expired) {
+      return;
+    }
+    // Removing moves entries, so only remove once all ages are counted.
+    for (int slot = 0; slot < table.capacity(); slot++) {
+      if (table.valueAt(slot) != null
+          && table.keyAt(slot) < resultTimestampNs
+          && table.ageAt(slot) >= reorderWindow) {
+        metrics.onImageOrphaned(reader);
+        discardImage(reader, table.valueAt(slot));
+        table.removeSlot(slot);
+        slot--; // Backward shift deletion may have moved another entry into this slot.
+      }
+    }
+  }
+
+  private void emit(PendingResult pending) {
+    final long nowNs = System.nanoTime();
+    for (int reader = 0; reader < numReaders; reader++) {
+      if (pending.images[reader] != null) {
+        metrics.onImageMatched(reader, nowNs - pending.imageArrivalNs[reader], nowNs);
+      } else if ((pending.droppedMask & (1 << reader)) != 0) {
+        metrics.onImageDropped(reader);
+      }
+    }
+    metrics.onResultMatched(pending.droppedMask == 0);
+    try {
+      listener.onMatch(pending);
+    } finally {
+      pending.clear();
+      freeHolders.push(pending);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void discardImage(int reader, Object image) {
+    listener.onImageDiscarded(reader, (I) image);
+  }
+
+  /** On close, releases every image still held and forgets pending results. */
+  @SuppressWarnings("unchecked")
+  private void discardAll() {
+    for (int reader = 0; reader < numReaders; reader++) {
+      LongObjectTable table = pendingImages[reader];
+      for (int slot = 0; slot < table.capacity(); slot++) {
+        if (table.valueAt(slot) != null) {
+          discardImage(reader, table.valueAt(slot));
+        }
+      }
+      table.clear();
+    }
+    for (int slot = 0; slot < pendingResults.capacity(); slot++) {
+      PendingResult pending = (PendingResult) pendingResults.valueAt(slot);
+      if (pending != null) {
+        for (int reader = 0; reader < numReaders; reader++) {
+          if (pending.images[reader] != null) {
+            discardImage(reader, pending.images[reader]);
+          }
+        }
+        pending.clear();
+        freeHolders.push(pending);
+      }
+    }
+    pendingResults.clear();
+  }
+
+  /** A result waiting for its images, reused through the free list. */
+  private final class PendingResult implements Match<R, I> {
+    final Object[] images;
+    final long[] imageArrivalNs;
+    R result;
+    long timestampNs;
+    int targetMask;
+    int foundMask;
+    int droppedMask;
+
+    PendingResult(int numReaders) {
+      images = new Object[numReaders];
+      imageArrivalNs = new long[numReaders];
+    }
+
+    boolean isComplete() {
+      return (foundMask | droppedMask) == targetMask;
+    }
+
+    void clear() {
+      result = null;
+      targetMask = 0;
+      foundMask = 0;
+      droppedMask = 0;
+      for (int i = 0; i < images.length; i++) {
+        images[i] = null;
+      }
+    }
+
+    @Override
+    public R result() {
+      return result;
+    }
+
+    @Override
+    public long timestamp() {
+      return timestampNs;
+    }
+
+    @Override
+    public int targetMask() {
+      return targetMask;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public I image(int reader) {
+      return (I) images[reader];
+    }
+
+    @Override
+    public int droppedMask() {
+      return droppedMask;
+    }
+  }
+
+  /**
+   * Bounded single-producer single-consumer ring of (timestamp, mask, arrival, payload) events. The
+   * producer publishes a slot by advancing the tail after writing it, the consumer frees it by
+   * advancing the head after reading it.
+   */
+  private static final class EventRing {
+    private final long[] timestamps;
+    private final int[] masks;
+    private final long[] arrivals;
+    private final Object[] payloads;
+    private final int indexMask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /* The event read by the last successful poll(). */
+    long polledTimestampNs;
+    int polledMask;
+    long polledArrivalNs;
+    Object polledPayload;
+
+    EventRing(int size) {
+      int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+      timestamps = new long[capacity];
+      masks = new int[capacity];
+      arrivals = new long[capacity];
+      payloads = new Object[capacity];
+      indexMask = capacity - 1;
+    }
+
+    boolean offer(long timestampNs, int mask, long arrivalNs, Object payload) {
+      long t = tail.get();
+      if (t - head.get() >= payloads.length) {
+        return false;
+      }
+      int index = (int) t & indexMask;
+      timestamps[index] = timestampNs;
+      masks[index] = mask;
+      arrivals[index] = arrivalNs;
+      payloads[index] = payload;
+      tail.lazySet(t + 1);
+      return true;
+    }
+
+    boolean poll() {
+      long h = head.get();
+      if (h == tail.get()) {
+        return false;
+      }
+      int index = (int) h & indexMask;
+      polledTimestampNs = timestamps[index];
+      polledMask = masks[index];
+      polledArrivalNs = arrivals[index];
+      polledPayload = payloads[index];
+      payloads[index] = null;
+      head.lazySet(h + 1);
+      return true;
+    }
+  }
+
+  /**
+   * Open-addressed hash table from long keys to objects, with linear probing and backward shift
+   * deletion, plus a counter and a time stamp per entry. Sized to at most half full.
+   */
+  private static final class LongObjectTable {
+    private final long[] keys;
+    private final Object[] values;
+    private final int[] ages;
+    private final long[] stamps;
+    private final int indexMask;
+    private final int maxSize;
+    private int size = 0;
+
+    LongObjectTable(int maxSize) {
+      this.maxSize = Math.max(1, maxSize);
+      int capacity = Integer.highestOneBit(this.maxSize) << 2;
+      keys = new long[capacity];
+      values = new Object[capacity];
+      ages = new int[capacity];
+      stamps = new long[capacity];
+      indexMask = capacity - 1;
+    }
+
+    private int home(long key) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32)) & indexMask;
+    }
+
+    int capacity() {
+      return values.length;
+    }
+
+    int size() {
+      return size;
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    boolean isFull() {
+      return size >= maxSize;
+    }
+
+    long keyAt(int slot) {
+      return keys[slot];
+    }
+
+    Object valueAt(int slot) {
+      return values[slot];
+    }
+
+    long stampAt(int slot) {
+      return stamps[slot];
+    }
+
+    int ageAt(int slot) {
+      return ages[slot];
+    }
+
+    int incrementAge(int slot) {
+      return ++ages[slot];
+    }
+
+    int find(long key) {
+      for (int slot = home(key); values[slot] != null; slot = (slot + 1) & indexMask) {
+        if (keys[slot] == key) {
+          return slot;
+        }
+      }
+      return -1;
+    }
+
+    void put(long key, Object value, long stamp) {
+      int slot = home(key);
+      while (values[slot] != null && keys[slot] != key) {
+        slot = (slot + 1) & indexMask;
+      }
+      if (values[slot] == null) {
+        size++;
+      }
+      keys[slot] = key;
+      values[slot] = value;
+      ages[slot] = 0;
+      stamps[slot] = stamp;
+    }
+
+    /** Slot of the entry with the smallest key. The table must not be empty. */
+    int oldestSlot() {
+      int oldest = -1;
+      for (int slot = 0; slot < values.length; slot++) {
+        if (values[slot] != null && (oldest < 0 || keys[slot] < keys[oldest])) {
+          oldest = slot;
+        }
+      }
+      return oldest;
+    }
+
+    void removeSlot(int slot) {
+      values[slot] = null;
+      size--;
+      // Shift back following entries of the probe run that can move closer to their home slot.
+      int hole = slot;
+      for (int next = (slot + 1) & indexMask; values[next] != null; next = (next + 1) & indexMask) {
+        int home = home(keys[next]);
+        if (((next - home) & indexMask) >= ((next - hole) & indexMask)) {
+          keys[hole] = keys[next];
+          values[hole] = values[next];
+          ages[hole] = ages[next];
+          stamps[hole] = stamps[next];
+          values[next] = null;
+          hole = next;
+        }
+      }
+    }
+
+    void clear() {
+      for (int slot = 0; slot < values.length; slot++) {
+        values[slot] = null;
+      }
+      size = 0;
+    }
+  }
+}
@@ -0,0 +1,31 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+/**
+ * Interface for RPC callbacks that read the received frame directly, avoiding string allocation
+ * and parsing for fixed-layout payloads.
+ */
+public interface BinaryRpcCallback {
+
+  /**
+   * The callback method called when an RPC is received.
+   *
+   * @param message The received frame. It is pooled and only valid for the duration of the call.
+   */
+  void call(RpcMessage message);
+}
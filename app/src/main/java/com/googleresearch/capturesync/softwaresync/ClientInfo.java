@@ -28,24 +28,69 @@ public final class ClientInfo {
   private final long offsetNs;
   private final long syncAccuracyNs;
   private final long lastHeartbeatNs;
+  private final long rpcLatencyNs;
+  private final int deliveredRpcs;
+  private final int lostRpcs;
 
   static ClientInfo create(
       String name, InetAddress address, long offset, long syncAccuracy, long lastHeartbeat) {
-    return new ClientInfo(name, address, offset, syncAccuracy, lastHeartbeat);
+    return new ClientInfo(
+        name, address, offset, syncAccuracy, lastHeartbeat, /*rpcLatencyNs=*/ 0, 0, 0);
   }
 
   static ClientInfo create(String name, InetAddress address) {
+    return create(name, address, /*offset=*/ 0, /*syncAccuracy=*/ 0, /*lastHeartbeat=*/ 0);
+  }
+
+  /** Returns a copy with the given sync state, keeping the reliable RPC delivery statistics. */
+  ClientInfo withSync(String name, long offset, long syncAccuracy, long lastHeartbeat) {
+    return new ClientInfo(
+        name, address, offset, syncAccuracy, lastHeartbeat, rpcLatencyNs, deliveredRpcs, lostRpcs);
+  }
+
+  /** Returns a copy recording the delivery of a reliable RPC with the given latency. */
+  ClientInfo withDeliveredRpc(long latencyNs) {
     return new ClientInfo(
-        name, address, /*offsetNs=*/ 0, /*syncAccuracyNs=*/ 0, /*lastHeartbeatNs=*/ 0);
+        name,
+        address,
+        offsetNs,
+        syncAccuracyNs,
+        lastHeartbeatNs,
+        latencyNs,
+        deliveredRpcs + 1,
+        lostRpcs);
+  }
+
+  /** Returns a copy recording the loss of a reliable RPC. */
+  ClientInfo withLostRpc() {
+    return new ClientInfo(
+        name,
+        address,
+        offsetNs,
+        syncAccuracyNs,
+        lastHeartbeatNs,
+        rpcLatencyNs,
+        deliveredRpcs,
+        lostRpcs + 1);
   }
 
   private ClientInfo(
-      String name, InetAddress address, long offsetNs, long syncAccuracyNs, long lastHeartbeatNs) {
+      String name,
+      InetAddress address,
+      long offsetNs,
+      long syncAccuracyNs,
+      long lastHeartbeatNs,
+      long rpcLatencyNs,
+      int deliveredRpcs,
+      int lostRpcs) {
     this.name = name;
     this.address = address;
     this.offsetNs = offsetNs;
     this.syncAccuracyNs = syncAccuracyNs;
     this.lastHeartbeatNs = lastHeartbeatNs;
+    this.rpcLatencyNs = rpcLatencyNs;
+    this.deliveredRpcs = deliveredRpcs;
+    this.lostRpcs = lostRpcs;
   }
 
   public String name() {
@@ -77,6 +122,21 @@ public final class ClientInfo {
     return lastHeartbeatNs;
   }
 
+  /** Time from sending until acknowledgement of the last delivered reliable RPC, in nanoseconds. */
+  public long rpcLatency() {
+    return rpcLatencyNs;
+  }
+
+  /** Number of reliable RPCs acknowledged by this client. */
+  public int deliveredRpcs() {
+    return deliveredRpcs;
+  }
+
+  /** Number of reliable RPCs this client never acknowledged before their deadline. */
+  public int lostRpcs() {
+    return lostRpcs;
+  }
+
   @Override
   public String toString() {
     return String.format("%s[%.2f ms]", name(), TimeUtils.nanosToMillis((double) syncAccuracy()));
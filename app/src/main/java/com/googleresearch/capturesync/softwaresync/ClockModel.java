@@ -0,0 +1,214 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+/**
+ * Linear model of the offset between the local clock and the leader clock, tracking both the
+ * offset and the frequency skew between the two clocks.
+ *
+ * <p>Each SNTP exchange gives one sample (local time, offset, round-trip latency). The model fits
+ * offset(t) = a + b * (t - t_ref) over a sliding window of samples with weighted least squares,
+ * weighting each sample by the inverse square of its half round-trip latency, which bounds the
+ * error of an SNTP offset. This lets conversions extrapolate between resyncs instead of holding the
+ * last offset constant while the clocks drift apart.
+ *
+ * <p>All fitting is done relative to the most recent sample, since the offsets themselves (for
+ * example when the leader time is shifted to UTC) are too large to be represented exactly as
+ * doubles.
+ *
+ * <p>Thread-safe.
+ */
+public final class ClockModel {
+  /** Lower bound on the per-sample error, avoiding infinite weights for zero latency samples. */
+  private static final double MIN_SAMPLE_ERROR_NS = 1_000;
+
+  private final int windowSize;
+  private final double maxSkew;
+  private final long resetThresholdNs;
+
+  /* Ring buffer of samples, oldest sample at index `start`. */
+  private final long[] sampleLocalNs;
+  private final long[] sampleOffsetNs;
+  private final long[] sampleRoundTripNs;
+  private int start = 0;
+  private int count = 0;
+
+  /* Current fit, valid when count > 0. */
+  private long refLocalNs;
+  private long refOffsetNs;
+  private double intercept; // Offset at refLocalNs, relative to refOffsetNs.
+  private double skew; // d(offset) / d(local time).
+  private double weightSum; // Sum of weights.
+  private double weightedMeanX; // Weighted mean of sample times relative to refLocalNs.
+  private double sxx; // Weighted sum of squared deviations of sample times.
+  private double varianceScale; // Scale of the a-priori variances from the fit residuals.
+
+  public ClockModel() {
+    this(
+        SyncConstants.CLOCK_MODEL_WINDOW_SIZE,
+        SyncConstants.CLOCK_MODEL_MAX_SKEW,
+        SyncConstants.CLOCK_MODEL_RESET_THRESHOLD_NS);
+  }
+
+  /**
+   * @param windowSize maximum number of samples used in the fit.
+   * @param maxSkew bound on the magnitude of the fitted skew, in ns per ns.
+   * @param resetThresholdNs a sample further than this from the prediction is treated as a clock
+   *     discontinuity (eg. a restarted leader) and replaces all previous samples.
+   */
+  public ClockModel(int windowSize, double maxSkew, long resetThresholdNs) {
+    if (windowSize < 1) {
+      throw new IllegalArgumentException("Window size must be positive: " + windowSize);
+    }
+    this.windowSize = windowSize;
+    this.maxSkew = maxSkew;
+    this.resetThresholdNs = resetThresholdNs;
+    sampleLocalNs = new long[windowSize];
+    sampleOffsetNs = new long[windowSize];
+    sampleRoundTripNs = new long[windowSize];
+  }
+
+  /**
+   * Adds an SNTP sample and refits the model.
+   *
+   * @param localTimeNs local time at which the offset was measured.
+   * @param offsetNs measured offset (local - leader) in nanoseconds.
+   * @param roundTripNs round-trip latency of the exchange that measured the offset.
+   */
+  public synchronized void addSample(long localTimeNs, long offsetNs, long roundTripNs) {
+    if (count > 0) {
+      long predictedNs = offsetAtLocked(localTimeNs);
+      if (Math.abs(offsetNs - predictedNs) > resetThresholdNs) {
+        count = 0;
+        start = 0;
+      }
+    }
+
+    int index = (start + count) % windowSize;
+    if (count == windowSize) {
+      start = (start + 1) % windowSize;
+    } else {
+      count++;
+    }
+    sampleLocalNs[index] = localTimeNs;
+    sampleOffsetNs[index] = offsetNs;
+    sampleRoundTripNs[index] = roundTripNs;
+    refLocalNs = localTimeNs;
+    refOffsetNs = offsetNs;
+    fit();
+  }
+
+  /** Removes all samples. */
+  public synchronized void reset() {
+    count = 0;
+    start = 0;
+  }
+
+  /** Number of samples currently in the window. */
+  public synchronized int sampleCount() {
+    return count;
+  }
+
+  /** Predicted offset (local - leader) in nanoseconds at the given local time. */
+  public synchronized long offsetAt(long localTimeNs) {
+    if (count == 0) {
+      throw new IllegalStateException("No samples in clock model.");
+    }
+    return offsetAtLocked(localTimeNs);
+  }
+
+  /**
+   * Predicted one standard deviation uncertainty in nanoseconds of {@link #offsetAt} at the given
+   * local time. This grows with the distance from the sampled times.
+   */
+  public synchronized long uncertaintyAt(long localTimeNs) {
+    if (count == 0) {
+      throw new IllegalStateException("No samples in clock model.");
+    }
+    double dx = localTimeNs - refLocalNs;
+    if (count == 1) {
+      // Skew is unknown, assume the worst case.
+      return (long) (Math.sqrt(1.0 / weightSum) + Math.abs(dx) * maxSkew);
+    }
+    double ddx = dx - weightedMeanX;
+    double variance = 1.0 / weightSum + (sxx > 0 ? ddx * ddx / sxx : 0);
+    return (long) Math.sqrt(varianceScale * variance);
+  }
+
+  /** Fitted frequency skew of the local clock relative to the leader clock, in ns per ns. */
+  public synchronized double skew() {
+    return skew;
+  }
+
+  private long offsetAtLocked(long localTimeNs) {
+    return refOffsetNs + Math.round(intercept + skew * (localTimeNs - refLocalNs));
+  }
+
+  private void fit() {
+    // Weighted means.
+    double sw = 0;
+    double swx = 0;
+    double swy = 0;
+    for (int i = 0; i < count; i++) {
+      int index = (start + i) % windowSize;
+      double w = weight(index);
+      sw += w;
+      swx += w * (sampleLocalNs[index] - refLocalNs);
+      swy += w * (sampleOffsetNs[index] - refOffsetNs);
+    }
+    double meanX = swx / sw;
+    double meanY = swy / sw;
+
+    // Weighted covariance.
+    double sxxSum = 0;
+    double sxySum = 0;
+    for (int i = 0; i < count; i++) {
+      int index = (start + i) % windowSize;
+      double w = weight(index);
+      double dx = (sampleLocalNs[index] - refLocalNs) - meanX;
+      double dy = (sampleOffsetNs[index] - refOffsetNs) - meanY;
+      sxxSum += w * dx * dx;
+      sxySum += w * dx * dy;
+    }
+
+    double fitSkew = sxxSum > 0 ? sxySum / sxxSum : 0;
+    skew = Math.max(-maxSkew, Math.min(maxSkew, fitSkew));
+    intercept = meanY - skew * meanX;
+    weightSum = sw;
+    weightedMeanX = meanX;
+    sxx = sxxSum;
+
+    // Inflate the a-priori variances if the samples scatter more than their latency suggests.
+    varianceScale = 1;
+    if (count > 2) {
+      double chiSquared = 0;
+      for (int i = 0; i < count; i++) {
+        int index = (start + i) % windowSize;
+        double residual =
+            (sampleOffsetNs[index] - refOffsetNs)
+                - (intercept + skew * (sampleLocalNs[index] - refLocalNs));
+        chiSquared += weight(index) * residual * residual;
+      }
+      varianceScale = Math.max(1, chiSquared / (count - 2));
+    }
+  }
+
+  private double weight(int index) {
+    double errorNs = Math.max(MIN_SAMPLE_ERROR_NS, sampleRoundTripNs[index] / 2.0);
+    return 1.0 / (errorNs * errorNs);
+  }
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.util.Arrays;
+
+/**
+ * Blocks the calling thread until a deadline in the clock domain of the given {@link Ticker}.
+ *
+ * <p>The wait is a hybrid: the thread sleeps until {@code sleepMarginNs} before the deadline, then
+ * busy-waits on the ticker only for the remaining window. This keeps a core free for almost the
+ * whole wait while preserving the sub-millisecond accuracy of a pure spin loop.
+ *
+ * <p>Every call records how far past the deadline it returned (the overshoot) in a fixed-width
+ * histogram, so the accuracy of the trigger can be compared across devices and settings. Since the
+ * clock is injectable, the same class can be benchmarked on a JVM with {@code System::nanoTime}.
+ *
+ * <p>Deadlines further ahead than {@code maxWaitNs} are not waited for, since they come from a
+ * bogus or stale time rather than a trigger, and would hang the calling thread.
+ */
+public class DeadlineTrigger {
+  /** Default time before the deadline at which to stop sleeping and start spinning. */
+  public static final long DEFAULT_SLEEP_MARGIN_NS = TimeUtils.millisToNanos(2);
+
+  /** Default longest wait, beyond which a deadline is skipped. */
+  public static final long DEFAULT_MAX_WAIT_NS = TimeUtils.secondsToNanos(2);
+
+  /** Returned by {@link #awaitDeadline} for a deadline further ahead than the longest wait. */
+  public static final long SKIPPED = -1;
+
+  /** Width of each overshoot histogram bucket. */
+  public static final long HISTOGRAM_BUCKET_NS = 10_000L; // 10 us.
+
+  /** Number of overshoot histogram buckets, the last one collects all larger overshoots. */
+  public static final int HISTOGRAM_NUM_BUCKETS = 100;
+
+  private final Ticker clock;
+  private final long sleepMarginNs;
+  private final long maxWaitNs;
+
+  private final Object statsLock = new Object();
+  private final long[] overshootHistogram = new long[HISTOGRAM_NUM_BUCKETS];
+  private long triggerCount;
+  private long missedCount;
+  private long skippedCount;
+  private long totalOvershootNs;
+  private long maxOvershootNs;
+
+  public DeadlineTrigger(Ticker clock) {
+    this(clock, DEFAULT_SLEEP_MARGIN_NS);
+  }
+
+  public DeadlineTrigger(Ticker clock, long sleepMarginNs) {
+    this(clock, sleepMarginNs, DEFAULT_MAX_WAIT_NS);
+  }
+
+  public DeadlineTrigger(Ticker clock, long sleepMarginNs, long maxWaitNs) {
+    if (sleepMarginNs < 0) {
+      throw new IllegalArgumentException("Sleep margin must be non-negative: " + sleepMarginNs);
+    }
+    if (maxWaitNs < 0) {
+      throw new IllegalArgumentException("Longest wait must be non-negative: " + maxWaitNs);
+    }
+    this.clock = clock;
+    this.sleepMarginNs = sleepMarginNs;
+    this.maxWaitNs = maxWaitNs;
+  }
+
+  /**
+   * Waits until the clock reaches {@code deadlineNs}. If the deadline has already passed, returns
+   * immediately and counts the call as missed. If it is more than {@code maxWaitNs} ahead, returns
+   * {@link #SKIPPED} immediately and counts the call as skipped rather than as a trigger.
+   *
+   * <p>An interrupt during the coarse sleep does not abort the wait, since a trigger that fires
+   * early is worse than one that fires on time: the sleep goes on until the margin, and the
+   * interrupted status is restored on return.
+   *
+   * @param deadlineNs deadline in the clock domain of the ticker.
+   * @return the overshoot, the time in nanoseconds between the deadline and the moment of return,
+   *     or {@link #SKIPPED}.
+   */
+  public long awaitDeadline(long deadlineNs) {
+    boolean interrupted = false;
+    long remainingNs = deadlineNs - clock.read();
+    final boolean missed = remainingNs < 0;
+    if (remainingNs > maxWaitNs) {
+      synchronized (statsLock) {
+        skippedCount++;
+      }
+      return SKIPPED;
+    }
+
+    // Coarse phase, give the core away until shortly before the deadline.
+    while (remainingNs > sleepMarginNs) {
+      long sleepNs = remainingNs - sleepMarginNs;
+      try {
+        Thread.sleep(sleepNs / 1_000_000L, (int) (sleepNs % 1_000_000L));
+      } catch (InterruptedException e) {
+        // Keep sleeping rather than spin for the rest of the wait.
+        interrupted = true;
+      }
+      remainingNs = deadlineNs - clock.read();
+    }
+
+    // Fine phase, spin for the final window.
+    long now = clock.read();
+    while (now < deadlineNs) {
+      now = clock.read();
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    final long overshootNs = now - deadlineNs;
+    record(overshootNs, missed);
+    return overshootNs;
+  }
+
+  /** Waits for {@code delayNs} from now, see {@link #awaitDeadline}. */
+  public long awaitDelay(long delayNs) {
+    return awaitDeadline(clock.read() + delayNs);
+  }
+
+  private void record(long overshootNs, boolean missed) {
+    int bucket = (int) Math.min(overshootNs / HISTOGRAM_BUCKET_NS, HISTOGRAM_NUM_BUCKETS - 1);
+    synchronized (statsLock) {
+      overshootHistogram[bucket]++;
+      triggerCount++;
+      if (missed) {
+        missedCount++;
+      }
+      totalOvershootNs += overshootNs;
+      maxOvershootNs = Math.max(maxOvershootNs, overshootNs);
+    }
+  }
+
+  /** Returns the clock used to measure deadlines. */
+  public Ticker getClock() {
+    return clock;
+  }
+
+  /** Total number of completed waits. */
+  public long getTriggerCount() {
+    synchronized (statsLock) {
+      return triggerCount;
+    }
+  }
+
+  /** Number of waits whose deadline had already passed when called. */
+  public long getMissedCount() {
+    synchronized (statsLock) {
+      return missedCount;
+    }
+  }
+
+  /** Number of deadlines skipped as too far ahead. */
+  public long getSkippedCount() {
+    synchronized (statsLock) {
+      return skippedCount;
+    }
+  }
+
+  /** Mean overshoot over all completed waits, in nanoseconds. */
+  public long getMeanOvershootNs() {
+    synchronized (statsLock) {
+      return triggerCount == 0 ? 0 : totalOvershootNs / triggerCount;
+    }
+  }
+
+  /** Largest overshoot seen so far, in nanoseconds. */
+  public long getMaxOvershootNs() {
+    synchronized (statsLock) {
+      return maxOvershootNs;
+    }
+  }
+
+  /**
+   * Returns a copy of the overshoot histogram. Bucket i counts the waits with an overshoot in [i *
+   * HISTOGRAM_BUCKET_NS, (i + 1) * HISTOGRAM_BUCKET_NS), the last bucket also counts all larger
+   * ones.
+   */
+  public long[] getOvershootHistogram() {
+    synchronized (statsLock) {
+      return overshootHistogram.clone();
+    }
+  }
+
+  /**
+   * Returns the overshoot in nanoseconds below which the given fraction of waits fall, at the
+   * resolution of the histogram (upper bucket edge).
+   */
+  public long getOvershootPercentileNs(double fraction) {
+    synchronized (statsLock) {
+      if (triggerCount == 0) {
+        return 0;
+      }
+      long target = (long) Math.ceil(fraction * triggerCount);
+      long seen = 0;
+      for (int i = 0; i < HISTOGRAM_NUM_BUCKETS; i++) {
+        seen += overshootHistogram[i];
+        if (seen >= target) {
+          return (i + 1) * HISTOGRAM_BUCKET_NS;
+        }
+      }
+      return HISTOGRAM_NUM_BUCKETS * HISTOGRAM_BUCKET_NS;
+    }
+  }
+
+  /** Clears all recorded statistics. */
+  public void resetStats() {
+    synchronized (statsLock) {
+      Arrays.fill(overshootHistogram, 0);
+      triggerCount = 0;
+      missedCount = 0;
+      skippedCount = 0;
+      totalOvershootNs = 0;
+      maxOvershootNs = 0;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "DeadlineTrigger{count=%d, missed=%d, skipped=%d, mean=%.3f ms, p99=%.3f ms, max=%.3f ms}",
+        getTriggerCount(),
+        getMissedCount(),
+        getSkippedCount(),
+        TimeUtils.nanosToMillis((double) getMeanOvershootNs()),
+        TimeUtils.nanosToMillis((double) getOvershootPercentileNs(0.99)),
+        TimeUtils.nanosToMillis((double) getMaxOvershootNs()));
+  }
+}
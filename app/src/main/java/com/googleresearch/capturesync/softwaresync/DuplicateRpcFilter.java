@@ -0,0 +1,78 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Receiver side duplicate suppression for retransmitted RPC frames, remembering the most recent
+ * sequence numbers seen from each sender. A sender that restarted, e.g. the leader app, numbers its
+ * RPCs from 0 again under a new epoch, which clears its history.
+ */
+public final class DuplicateRpcFilter {
+  private final int historySize;
+  private final Map<InetAddress, History> histories = new HashMap<>();
+
+  /** Ring of the last sequence numbers received from one sender. */
+  private static final class History {
+    final int[] sequences;
+    int epoch;
+    int next = 0;
+    int count = 0;
+
+    History(int size) {
+      sequences = new int[size];
+    }
+  }
+
+  public DuplicateRpcFilter() {
+    this(SyncConstants.RPC_DUPLICATE_HISTORY_SIZE);
+  }
+
+  public DuplicateRpcFilter(int historySize) {
+    this.historySize = historySize;
+  }
+
+  /**
+   * Records the frame and returns true if a frame with the same sequence number was already
+   * received from the same run of the same sender.
+   */
+  public synchronized boolean isDuplicate(InetAddress sender, int epoch, int sequence) {
+    History history = histories.get(sender);
+    if (history == null) {
+      history = new History(historySize);
+      history.epoch = epoch;
+      histories.put(sender, history);
+    } else if (history.epoch != epoch) {
+      // The sender restarted, its sequence numbers restarted too.
+      history.epoch = epoch;
+      history.next = 0;
+      history.count = 0;
+    }
+    for (int i = 0; i < history.count; i++) {
+      if (history.sequences[i] == sequence) {
+        return true;
+      }
+    }
+    history.sequences[history.next] = sequence;
+    history.next = (history.next + 1) % historySize;
+    history.count = Math.min(history.count + 1, historySize);
+    return false;
+  }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * At-least-once delivery of RPC frames over UDP.
+ *
+ * <p>Frames sent through {@link #send} must have {@link RpcMessage#FLAG_ACK_REQUESTED} set. The
+ * same encoded frame, with the same sequence number, is retransmitted every retransmit interval
+ * until the receiver acknowledges it via {@link #onAck} or its deadline passes, for example the
+ * trigger time it carries. Receivers drop the retransmitted duplicates with a {@link
+ * DuplicateRpcFilter}.
+ *
+ * <p>Every delivery, or loss once the deadline passed, is reported to a {@link DeliveryListener}
+ * with the time from the first send until the acknowledgement arrived.
+ */
+public class ReliableRpcSender implements AutoCloseable {
+  private static final String TAG = "ReliableRpcSender";
+
+  /** Sends a single frame, used for the first send and every retransmission. */
+  public interface Transport {
+    void send(RpcMessage message, InetAddress address);
+  }
+
+  /** Receives the outcome of each reliable RPC. */
+  public interface DeliveryListener {
+    /**
+     * Called when a frame was acknowledged.
+     *
+     * @param latencyNs time from the first send until the acknowledgement arrived.
+     * @param attempts number of times the frame was sent.
+     */
+    void onDelivered(InetAddress address, int method, long latencyNs, int attempts);
+
+    /** Called when the deadline of a frame passed without an acknowledgement. */
+    void onLost(InetAddress address, int method, int attempts);
+  }
+
+  private final Ticker clock;
+  private final Transport transport;
+  private final DeliveryListener listener;
+  private final long retransmitIntervalNs;
+  private final ScheduledExecutorService retransmitScheduler = Executors.newScheduledThreadPool(1);
+
+  /** Frames awaiting acknowledgement by destination and sequence number, guarded by itself. */
+  private final Map<InetAddress, Map<Integer, Pending>> pending = new HashMap<>();
+
+  private static final class Pending {
+    final RpcMessage message;
+    final long firstSendNs;
+    final long deadlineNs;
+    int attempts;
+
+    Pending(RpcMessage message, long firstSendNs, long deadlineNs) {
+      this.message = message;
+      this.firstSendNs = firstSendNs;
+      this.deadlineNs = deadlineNs;
+    }
+  }
+
+  public ReliableRpcSender(
+      Ticker clock, Transport transport, DeliveryListener listener, long retransmitIntervalNs) {
+    this.clock = clock;
+    this.transport = transport;
+    this.listener = listener;
+    this.retransmitIntervalNs = retransmitIntervalNs;
+  }
+
+  /**
+   * Sends the frame and keeps retransmitting it until acknowledged or until the deadline. The
+   * frame must not be modified afterwards, though it may be sent to several addresses.
+   *
+   * @param deadlineNs time in the clock domain of the ticker after which to give up.
+   */
+  public void send(RpcMessage message, InetAddress address, long deadlineNs) {
+    if (!message.isAckRequested()) {
+      throw new IllegalArgumentException("Reliable RPC frames must request an acknowledgement.");
+    }
+    final int sequence = message.sequence();
+    Pending entry = new Pending(message, clock.read(), deadlineNs);
+    synchronized (pending) {
+      Map<Integer, Pending> forAddress = pending.get(address);
+      if (forAddress == null) {
+        forAddress = new HashMap<>();
+        pending.put(address, forAddress);
+      }
+      forAddress.put(sequence, entry);
+    }
+    attempt(address, sequence);
+  }
+
+  /** Sends the pending frame again if still unacknowledged, scheduling the next attempt. */
+  private void attempt(InetAddress address, int sequence) {
+    Pending entry;
+    boolean lost = false;
+    synchronized (pending) {
+      entry = get(address, sequence);
+      if (entry == null) {
+        return; // Acknowledged in the meantime.
+      }
+      if (entry.attempts > 0 && clock.read() >= entry.deadlineNs) {
+        remove(address, sequence);
+        lost = true;
+      } else {
+        entry.attempts++;
+      }
+    }
+    if (lost) {
+      Log.w(TAG, "RPC " + entry.message.method() + " to " + address + " not acknowledged.");
+      listener.onLost(address, entry.message.method(), entry.attempts);
+      return;
+    }
+
+    try {
+      transport.send(entry.message, address);
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Failed sending RPC to " + address + ": " + e);
+    }
+
+    long delayNs = Math.min(retransmitIntervalNs, Math.max(0, entry.deadlineNs - clock.read()));
+    try {
+      retransmitScheduler.schedule(
+          () -> attempt(address, sequence), delayNs, TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      // Shutting down.
+    }
+  }
+
+  /** Handles an acknowledgement of the frame with the given sequence number. */
+  public void onAck(InetAddress address, int sequence) {
+    Pending entry;
+    synchronized (pending) {
+      entry = remove(address, sequence);
+    }
+    if (entry == null) {
+      return; // Duplicate acknowledgement of an already delivered frame.
+    }
+    listener.onDelivered(
+        address, entry.message.method(), clock.read() - entry.firstSendNs, entry.attempts);
+  }
+
+  /** Number of frames awaiting acknowledgement. */
+  public int pendingCount() {
+    synchronized (pending) {
+      int count = 0;
+      for (Map<Integer, Pending> forAddress : pending.values()) {
+        count += forAddress.size();
+      }
+      return count;
+    }
+  }
+
+  private Pending get(InetAddress address, int sequence) {
+    Map<Integer, Pending> forAddress = pending.get(address);
+    return forAddress == null ? null : forAddress.get(sequence);
+  }
+
+  private Pending remove(InetAddress address, int sequence) {
+    Map<Integer, Pending> forAddress = pending.get(address);
+    if (forAddress == null) {
+      return null;
+    }
+    Pending entry = forAddress.remove(sequence);
+    if (forAddress.isEmpty()) {
+      pending.remove(address);
+    }
+    return entry;
+  }
+
+  @Override
+  public void close() {
+    retransmitScheduler.shutdownNow();
+  }
+}
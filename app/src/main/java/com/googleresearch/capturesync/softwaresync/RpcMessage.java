@@ -0,0 +1,257 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A reusable, fixed-size RPC frame, used both to encode outgoing RPCs and as a zero-copy view of
+ * received ones. Instances own their buffer and datagram packet, so they are meant to be pooled
+ * rather than created per message.
+ *
+ * <p>Frame layout, big-endian:
+ *
+ * <p>[int method][int sequence][int epoch][long send time ns][byte type][byte flags][byte count]
+ * [payload]
+ *
+ * <p>For {@link #TYPE_LONGS} frames the payload is `count` longs at fixed offsets, which can be
+ * read in place with {@link #getLong}. For {@link #TYPE_STRING} frames the payload is a UTF-8
+ * string, the fallback used for user RPCs with free-form payloads. {@link #TYPE_LONGS_AND_STRING}
+ * frames hold `count` longs followed by a UTF-8 string, e.g. the name of a client in heartbeats.
+ *
+ * <p>Frames with {@link #FLAG_ACK_REQUESTED} set are acknowledged by the receiver and may be
+ * retransmitted by the sender with the same sequence number, see {@link ReliableRpcSender}. The
+ * epoch tells apart the sequence numbers of successive runs of the sender, which restart at 0.
+ */
+public final class RpcMessage {
+  public static final byte TYPE_STRING = 0;
+  public static final byte TYPE_LONGS = 1;
+  public static final byte TYPE_LONGS_AND_STRING = 2;
+
+  /** The receiver should acknowledge the frame with {@link SyncConstants#METHOD_RPC_ACK}. */
+  public static final byte FLAG_ACK_REQUESTED = 1;
+
+  private static final int METHOD_OFFSET = 0;
+  private static final int SEQUENCE_OFFSET = 4;
+  private static final int EPOCH_OFFSET = 8;
+  private static final int SEND_TIME_OFFSET = 12;
+  private static final int TYPE_OFFSET = 20;
+  private static final int FLAGS_OFFSET = 21;
+  private static final int COUNT_OFFSET = 22;
+  static final int HEADER_SIZE = 23;
+
+  private static final int LONG_SIZE = Long.SIZE / Byte.SIZE;
+
+  /** Maximum number of longs in a single frame. */
+  public static final int MAX_LONGS = (SyncConstants.RPC_BUFFER_SIZE - HEADER_SIZE) / LONG_SIZE;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final byte[] buffer = new byte[SyncConstants.RPC_BUFFER_SIZE];
+  private final ByteBuffer view = ByteBuffer.wrap(buffer);
+  private final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+  private int length;
+
+  /** Encodes a frame with a string payload, returning this. */
+  public RpcMessage setString(int method, int sequence, long sendTimeNs, String payload) {
+    byte[] payloadBytes = payload == null ? new byte[0] : payload.getBytes(UTF_8);
+    if (HEADER_SIZE + payloadBytes.length > buffer.length) {
+      throw new IllegalArgumentException(
+          String.format(
+              "RPC arguments too big %d v %d",
+              HEADER_SIZE + payloadBytes.length, SyncConstants.RPC_BUFFER_SIZE));
+    }
+    putHeader(method, sequence, sendTimeNs, TYPE_STRING, 0);
+    System.arraycopy(payloadBytes, 0, buffer, HEADER_SIZE, payloadBytes.length);
+    length = HEADER_SIZE + payloadBytes.length;
+    return this;
+  }
+
+  /** Encodes a frame with a fixed-layout payload of longs, returning this. */
+  public RpcMessage setLongs(int method, int sequence, long sendTimeNs, long... values) {
+    if (values.length > MAX_LONGS) {
+      throw new IllegalArgumentException(
+          String.format("Too many RPC values %d v %d", values.length, MAX_LONGS));
+    }
+    putHeader(method, sequence, sendTimeNs, TYPE_LONGS, values.length);
+    for (int i = 0; i < values.length; i++) {
+      view.putLong(HEADER_SIZE + i * LONG_SIZE, values[i]);
+    }
+    length = HEADER_SIZE + values.length * LONG_SIZE;
+    return this;
+  }
+
+  /**
+   * Encodes a frame with a fixed-layout payload of longs followed by a string already encoded as
+   * UTF-8, so frames sent repeatedly with the same string don't encode it each time. Returns this.
+   */
+  public RpcMessage setLongsAndString(
+      int method, int sequence, long sendTimeNs, byte[] utf8, long... values) {
+    final int payloadLength = values.length * LONG_SIZE + utf8.length;
+    if (values.length > MAX_LONGS || HEADER_SIZE + payloadLength > buffer.length) {
+      throw new IllegalArgumentException(
+          String.format(
+              "RPC arguments too big %d v %d",
+              HEADER_SIZE + payloadLength, SyncConstants.RPC_BUFFER_SIZE));
+    }
+    putHeader(method, sequence, sendTimeNs, TYPE_LONGS_AND_STRING, values.length);
+    for (int i = 0; i < values.length; i++) {
+      view.putLong(HEADER_SIZE + i * LONG_SIZE, values[i]);
+    }
+    System.arraycopy(utf8, 0, buffer, HEADER_SIZE + values.length * LONG_SIZE, utf8.length);
+    length = HEADER_SIZE + payloadLength;
+    return this;
+  }
+
+  private void putHeader(int method, int sequence, long sendTimeNs, byte type, int count) {
+    view.putInt(METHOD_OFFSET, method);
+    view.putInt(SEQUENCE_OFFSET, sequence);
+    view.putInt(EPOCH_OFFSET, 0);
+    view.putLong(SEND_TIME_OFFSET, sendTimeNs);
+    buffer[TYPE_OFFSET] = type;
+    buffer[FLAGS_OFFSET] = 0;
+    buffer[COUNT_OFFSET] = (byte) count;
+  }
+
+  /** Marks the encoded frame as requiring an acknowledgement, returning this. */
+  public RpcMessage setAckRequested() {
+    buffer[FLAGS_OFFSET] |= FLAG_ACK_REQUESTED;
+    return this;
+  }
+
+  /** Sets the epoch of the sender in the encoded frame, returning this. */
+  public RpcMessage setEpoch(int epoch) {
+    view.putInt(EPOCH_OFFSET, epoch);
+    return this;
+  }
+
+  /** Sends the encoded frame to the given address and port, without allocating. */
+  public void sendTo(DatagramSocket socket, InetAddress address, int port) throws IOException {
+    packet.setData(buffer, 0, length);
+    packet.setAddress(address);
+    packet.setPort(port);
+    socket.send(packet);
+  }
+
+  /**
+   * Receives a frame from the socket directly into this one, blocking until one arrives or the
+   * socket times out.
+   *
+   * @return true if the frame is well formed.
+   */
+  public boolean receiveFrom(DatagramSocket socket) throws IOException {
+    packet.setData(buffer, 0, buffer.length);
+    socket.receive(packet);
+    length = packet.getLength();
+    if (length < HEADER_SIZE) {
+      return false;
+    }
+    switch (type()) {
+      case TYPE_STRING:
+        return true;
+      case TYPE_LONGS:
+        return length == HEADER_SIZE + longCount() * LONG_SIZE;
+      case TYPE_LONGS_AND_STRING:
+        return length >= HEADER_SIZE + longCount() * LONG_SIZE;
+      default:
+        return false;
+    }
+  }
+
+  public int method() {
+    return view.getInt(METHOD_OFFSET);
+  }
+
+  /** Per-sender sequence number, increasing with every RPC sent. */
+  public int sequence() {
+    return view.getInt(SEQUENCE_OFFSET);
+  }
+
+  /** Run of the sender the sequence number belongs to, chosen at random when it started. */
+  public int epoch() {
+    return view.getInt(EPOCH_OFFSET);
+  }
+
+  /** Time the RPC was sent, in the sender's local clock domain. */
+  public long sendTimeNs() {
+    return view.getLong(SEND_TIME_OFFSET);
+  }
+
+  public byte type() {
+    return buffer[TYPE_OFFSET];
+  }
+
+  /** True if the sender requested an acknowledgement of this frame. */
+  public boolean isAckRequested() {
+    return (buffer[FLAGS_OFFSET] & FLAG_ACK_REQUESTED) != 0;
+  }
+
+  /** Address of the sender of a received frame. */
+  public InetAddress senderAddress() {
+    return packet.getAddress();
+  }
+
+  /** Number of longs in a {@link #TYPE_LONGS} or {@link #TYPE_LONGS_AND_STRING} frame. */
+  public int longCount() {
+    return type() == TYPE_STRING ? 0 : buffer[COUNT_OFFSET] & 0xff;
+  }
+
+  /** Reads the i-th long of a frame in place. */
+  public long getLong(int i) {
+    if (i < 0 || i >= longCount()) {
+      throw new IndexOutOfBoundsException("RPC value " + i + " of " + longCount());
+    }
+    return view.getLong(HEADER_SIZE + i * LONG_SIZE);
+  }
+
+  /**
+   * Returns the payload as a string. For frames with longs this is the comma-separated values,
+   * then the string if any, so string callbacks can still handle them.
+   */
+  public String payloadString() {
+    if (type() == TYPE_STRING) {
+      return getString();
+    }
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < longCount(); i++) {
+      if (i > 0) {
+        builder.append(',');
+      }
+      builder.append(getLong(i));
+    }
+    if (type() == TYPE_LONGS_AND_STRING) {
+      builder.append(',').append(getString());
+    }
+    return builder.toString();
+  }
+
+  /** Returns the string of a frame, following its longs if any, or "" if it has none. */
+  public String getString() {
+    final int offset = HEADER_SIZE + longCount() * LONG_SIZE;
+    return new String(buffer, offset, length - offset, UTF_8);
+  }
+
+  /** Total encoded length of the frame in bytes. */
+  public int length() {
+    return length;
+  }
+}
@@ -18,45 +18,59 @@ package com.googleresearch.capturesync.softwaresync;
 
 import android.util.Log;
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketTimeoutException;
-import java.nio.ByteBuffer;
-import java.nio.LongBuffer;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Simple Network Time Protocol (SNTP) for clock synchronization logic between leader and clients.
  * This implements the leader half of the protocol, with SntpListener implementing the client side.
  *
- * <p>Provides a doSNTP function allowing the leader to initiate synchronization with a client
- * address. The SntpListener class is used by the clients to handle responding to these messages.
+ * <p>Synchronization with a client runs the exchanges of an {@link SntpEngine}, which tags every
+ * message with a sequence id so that several clients can be synchronized concurrently over the one
+ * SNTP socket. The SntpListener class is used by the clients to handle responding to these
+ * messages.
+ *
+ * <p>Once a client has synced, the leader keeps probing it in the background with short SNTP
+ * exchanges so its offset stays fresh. The probe interval adapts per client: it shrinks when the
+ * round-trip latency jitter or the residual of the new offset against the client's clock model
+ * grows, and backs off while the client is stable. Probes are short and go through the same
+ * executor as full syncs, so they interleave with the syncs of other clients.
  */
 public class SimpleNetworkTimeProtocol implements AutoCloseable {
   private static final String TAG = "SimpleNetworkTimeProtocol";
 
-  private final DatagramSocket nptpSocket;
+  private final SntpEngine engine;
   private final int nptpPort;
 
-  /** Sequentially manages SNTP synchronization of clients. */
-  private final ExecutorService nptpExecutor = Executors.newSingleThreadExecutor();
+  /** Manages SNTP synchronization of clients, running up to SNTP_MAX_PARALLEL_CLIENTS at once. */
+  private final ExecutorService nptpExecutor =
+      Executors.newFixedThreadPool(SyncConstants.SNTP_MAX_PARALLEL_CLIENTS);
 
   /** Keeps track of SNTP client sync tasks already in the pipeline to avoid duplicate requests. */
   private final Set<InetAddress> clientSyncTasks = new HashSet<>();
 
   private final Object clientSyncTasksLock = new Object();
   private final SoftwareSyncLeader leader;
-  private final Ticker localClock;
+
+  /** Schedules background probes of synced clients. */
+  private final ScheduledExecutorService probeScheduler = Executors.newScheduledThreadPool(1);
+
+  /** Adaptive probing state of each synced client, guarded by clientSyncTasksLock. */
+  private final Map<InetAddress, ProbeState> probeStates = new HashMap<>();
 
   public SimpleNetworkTimeProtocol(
       Ticker localClock, DatagramSocket nptpSocket, int nptpPort, SoftwareSyncLeader leader) {
-    this.localClock = localClock;
-    this.nptpSocket = nptpSocket;
+    this.engine = new SntpEngine(localClock, nptpSocket);
     this.nptpPort = nptpPort;
     this.leader = leader;
   }
@@ -85,159 +99,224 @@ public class SimpleNetworkTimeProtocol implements AutoCloseable {
           // If the client no longer exists, no need to synchronize.
           if (!leader.getClients().containsKey(clientAddress)) {
             Log.w(TAG, "Client was removed, exiting SNTP routine.");
+            synchronized (clientSyncTasksLock) {
+              clientSyncTasks.remove(clientAddress);
+            }
             return true;
           }
 
           Log.d(TAG, "Starting sync with client" + clientAddress);
-          // Calculate clock offsetNs between client and leader using a naive
-          // version of the precision time protocol (SNTP).
-          SntpOffsetResponse response = doSNTP(clientAddress);
+          boolean status = syncClient(clientAddress, SyncConstants.NUM_SNTP_CYCLES, false);
+          if (status) {
+            startProbing(clientAddress);
+          }
+          return status;
+        });
+  }
 
-          if (response.status()) {
-            // Apply local offsetNs to bestOffset so everyone has the same offsetNs.
-            final long alignedOffset = response.offsetNs() + leader.getLeaderFromLocalNs();
+  /**
+   * Calculates the clock offsetNs between client and leader using a naive version of the precision
+   * time protocol (SNTP) and sends it to the client. Must be run on the nptpExecutor, and the client
+   * must have been added to clientSyncTasks, which it is removed from when done. Since a client is
+   * only ever in clientSyncTasks once, exchanges with the same client never overlap.
+   *
+   * <p>The offset of a full sync is always sent on success. The offset of a background probe is
+   * only sent if its {@link ProbeState} accepts it, so noisy probes don't reach the client.
+   */
+  private boolean syncClient(InetAddress clientAddress, int numCycles, boolean probe)
+      throws IOException {
+    SntpOffsetResponse response;
+    try {
+      response = engine.doSNTP(new InetSocketAddress(clientAddress, nptpPort), numCycles);
+    } catch (IOException e) {
+      synchronized (clientSyncTasksLock) {
+        clientSyncTasks.remove(clientAddress);
+      }
+      throw e;
+    }
 
-            // Update client sync accuracy locally.
-            leader.updateClientWithOffsetResponse(clientAddress, response);
+    // Pop client from the queue regardless of success state. Clients  will be added back in
+    // the queue as needed based on their state at the next heartbeat.
+    boolean accepted = response.status();
+    synchronized (clientSyncTasksLock) {
+      clientSyncTasks.remove(clientAddress);
+      ProbeState probeState = probeStates.get(clientAddress);
+      if (probeState != null) {
+        boolean probeAccepted = probeState.update(response);
+        if (probe) {
+          accepted = probeAccepted;
+        }
+      }
+    }
 
-            // Send an RPC to update the offsetNs on the client.
-            Log.d(TAG, "Sending offsetNs update to " + clientAddress + ": " + alignedOffset);
-            leader.sendRpc(
-                SyncConstants.METHOD_OFFSET_UPDATE, String.valueOf(alignedOffset), clientAddress);
-          }
+    if (accepted) {
+      // Apply local offsetNs to bestOffset so everyone has the same offsetNs.
+      final long alignedOffset = response.offsetNs() + leader.getLeaderFromLocalNs();
 
-          // Pop client from the queue regardless of success state. Clients  will be added back in
-          // the queue as needed based on their state at the next heartbeat.
-          synchronized (clientSyncTasksLock) {
-            clientSyncTasks.remove(clientAddress);
-          }
+      // Update client sync accuracy locally.
+      leader.updateClientWithOffsetResponse(clientAddress, response);
 
-          if (response.status()) {
-            leader.onRpc(SyncConstants.METHOD_MSG_OFFSET_UPDATED, clientAddress.toString());
-          }
+      // Send an RPC to update the offsetNs on the client, along with the client time the
+      // offset was measured at and its round trip latency for the client clock model.
+      Log.d(TAG, "Sending offsetNs update to " + clientAddress + ": " + alignedOffset);
+      leader.sendRpc(
+          SyncConstants.METHOD_OFFSET_UPDATE,
+          clientAddress,
+          alignedOffset,
+          response.clientTimeNs(),
+          response.syncAccuracyNs());
+      leader.onRpc(SyncConstants.METHOD_MSG_OFFSET_UPDATED, clientAddress.toString());
+    }
 
-          return response.status();
-        });
+    return response.status();
+  }
+
+  /** Starts background probing of a synced client, if not already running. */
+  private void startProbing(InetAddress clientAddress) {
+    synchronized (clientSyncTasksLock) {
+      if (probeStates.containsKey(clientAddress)) {
+        return;
+      }
+      probeStates.put(clientAddress, new ProbeState());
+    }
+    scheduleProbe(clientAddress, SyncConstants.SNTP_PROBE_MIN_INTERVAL_NS);
+  }
+
+  @SuppressWarnings("FutureReturnValueIgnored")
+  private void scheduleProbe(InetAddress clientAddress, long delayNs) {
+    try {
+      probeScheduler.schedule(() -> submitProbe(clientAddress), delayNs, TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      // Shutting down.
+    }
   }
 
   /**
-   * Performs Min filter SNTP synchronization with the client over the socket using UDP.
-   *
-   * <p>Naive PTP protocol is as follows:
-   *
-   * <p>[1]At time t0 in the leader clock domain, Leader sends the message (t0).
-   *
-   * <p>[2]At time t1 in the client clock domain, Client receives the message (t0).
-   *
-   * <p>[3]At time t2 in the client clock domain, Client sends the message (t0,t1,t2).
-   *
-   * <p>[4]At time t3 in the leader clock domain, Leader receives the message (t0,t1,t2).
-   *
-   * <p>Clock offsetNs = ((t1 - t0) + (t2 - t3)) / 2. [Client] current_time_in_leader_domain = now()
-   * - offsetNs.
-   *
-   * <p>Round-trip latency = (t3 - t0) - (t2 - t1).
-   *
-   * <p>Final Clock offsetNs is calculated using the message with the smallest round-trip latency.
-   *
-   * @param clientAddress The client InetAddress to perform synchronization with.
-   * @return SntpOffsetResponse containing the offsetNs and sync accuracy with the client.
+   * Queues a short SNTP exchange with a synced client on the nptpExecutor, then schedules the next
+   * probe after the client's current adaptive interval.
    */
-  private SntpOffsetResponse doSNTP(InetAddress clientAddress) throws IOException {
-    final int longSize = Long.SIZE / Byte.SIZE;
-    byte[] buf = new byte[longSize * 3];
-    long bestLatency = Long.MAX_VALUE; // Start with initial high round trip
-    long bestOffset = 0;
-    // If there are several failed SNTP round trip sync messages, fail out.
-    int missingMessageCountdown = 10;
-    SntpOffsetResponse failureResponse =
-        SntpOffsetResponse.create(/*offset=*/ 0, /*syncAccuracy=*/ 0, false);
-
-    for (int i = 0; i < SyncConstants.NUM_SNTP_CYCLES; i++) {
-      // 1 - Send UDP SNTP message to the client with t0 at time t0.
-      long t0 = localClock.read();
-      ByteBuffer t0bytebuffer = ByteBuffer.allocate(longSize);
-      t0bytebuffer.putLong(t0);
-      nptpSocket.send(new DatagramPacket(t0bytebuffer.array(), longSize, clientAddress, nptpPort));
-
-      // Steps 2 and 3 happen on client side B.
-      // 4 - Recv UDP message with t0,t0',t1 at time t1'.
-      DatagramPacket packet = new DatagramPacket(buf, buf.length);
-      try {
-        nptpSocket.receive(packet);
-      } catch (SocketTimeoutException e) {
-        // If we didn't receive a message in time, then skip this PTP pair and continue.
-        Log.w(TAG, "UDP PTP message missing, skipping");
-        missingMessageCountdown--;
-        if (missingMessageCountdown <= 0) {
-          Log.w(
-              TAG, String.format("Missed too many messages, leaving doSNTP for %s", clientAddress));
-          return failureResponse;
-        }
-        continue;
+  @SuppressWarnings("FutureReturnValueIgnored")
+  private void submitProbe(InetAddress clientAddress) {
+    synchronized (clientSyncTasksLock) {
+      if (!leader.getClients().containsKey(clientAddress)) {
+        // Client was removed, stop probing it. It restarts after its next successful full sync.
+        probeStates.remove(clientAddress);
+        return;
       }
-      final long t3 = localClock.read();
+      if (clientSyncTasks.contains(clientAddress)) {
+        // A sync with this client is already queued, which refreshes its offset anyway.
+        scheduleProbe(clientAddress, probeStates.get(clientAddress).intervalNs);
+        return;
+      }
+      clientSyncTasks.add(clientAddress);
+    }
 
-      if (packet.getLength() != 3 * longSize) {
-        Log.w(TAG, "Corrupted UDP message, skipping");
-        continue;
+    try {
+      nptpExecutor.submit(
+          () -> {
+            try {
+              syncClient(clientAddress, SyncConstants.NUM_SNTP_PROBE_CYCLES, true);
+            } catch (IOException e) {
+              Log.w(TAG, "SNTP probe of " + clientAddress + " failed: " + e);
+            }
+            long intervalNs;
+            synchronized (clientSyncTasksLock) {
+              ProbeState probeState = probeStates.get(clientAddress);
+              if (probeState == null) {
+                return;
+              }
+              intervalNs = probeState.intervalNs;
+            }
+            scheduleProbe(clientAddress, intervalNs);
+          });
+    } catch (RejectedExecutionException e) {
+      synchronized (clientSyncTasksLock) {
+        clientSyncTasks.remove(clientAddress);
       }
-      ByteBuffer t3buffer = ByteBuffer.allocate(longSize * 3);
-      t3buffer.put(packet.getData(), 0, packet.getLength());
-      t3buffer.flip();
-      LongBuffer longbuffer = t3buffer.asLongBuffer();
-      final long t0Msg = longbuffer.get();
-      final long t1Msg = longbuffer.get();
-      final long t2Msg = longbuffer.get();
-
-      // Confirm that the received message contains the same t0  as the t0 from this cycle,
-      // otherwise skip.
-      if (t0Msg != t0) {
-        Log.w(
-            TAG,
-            String.format(
-                "Out of order PTP message received, skipping: Expected %d vs %d", t0, t0Msg));
-
-        // Note: Wait or catch and throw away the next message to get back in sync.
-        try {
-          nptpSocket.receive(packet);
-        } catch (SocketTimeoutException e) {
-          // If still waiting, continue.
-        }
-        // Since this was an incorrect cycle, move on to a new cycle.
-        continue;
+    }
+  }
+
+  /** Returns the current background probe interval of a client, or 0 if it isn't being probed. */
+  public long getProbeIntervalNs(InetAddress clientAddress) {
+    synchronized (clientSyncTasksLock) {
+      ProbeState probeState = probeStates.get(clientAddress);
+      return probeState == null ? 0 : probeState.intervalNs;
+    }
+  }
+
+  /**
+   * Adaptive background probe state of a single client. Tracks the round-trip latency mean and
+   * variance with exponential moving averages, and the client clock model to measure how far each
+   * new offset is from its prediction.
+   *
+   * <p>The interval halves on a failed exchange or when the jitter or residual grows, and grows by
+   * half while the client is stable, within [SNTP_PROBE_MIN_INTERVAL_NS,
+   * SNTP_PROBE_MAX_INTERVAL_NS]. Not thread safe, guarded by the clientSyncTasksLock.
+   */
+  static final class ProbeState {
+    private static final double RTT_SMOOTHING = 0.25;
+
+    private final ClockModel clientModel = new ClockModel();
+    private long intervalNs = SyncConstants.SNTP_PROBE_MIN_INTERVAL_NS;
+    private double rttMeanNs = -1;
+    private double rttVarianceNs2 = 0;
+
+    /** The current probe interval. */
+    long intervalNs() {
+      return intervalNs;
+    }
+
+    /**
+     * Updates the statistics with the result of an exchange and adapts the probe interval. Returns
+     * whether the offset is accepted, which is when the exchange succeeded and its round-trip
+     * latency is within the larger of SNTP_PROBE_RTT_JITTER_THRESHOLD_NS and twice the jitter$
+     * above the mean.
+     */
+    boolean update(SntpOffsetResponse response) {
+      if (!response.status()) {
+        intervalNs = Math.max(SyncConstants.SNTP_PROBE_MIN_INTERVAL_NS, intervalNs / 2);
+        return false;
       }
 
-      final long timeOffset = ((t1Msg - t0) + (t2Msg - t3)) / 2;
-      final long roundTripLatency = (t3 - t0) - (t2Msg - t1Msg);
-
-      Log.v(
-          TAG,
-          String.format(
-              "% 3d | PTP: %d,%d,%d,%d | Latency: %,.3f ms",
-              i, t0, t1Msg, t2Msg, t3, TimeUtils.nanosToMillis((double) roundTripLatency)));
-
-      if (roundTripLatency < bestLatency) {
-        bestOffset = timeOffset;
-        bestLatency = roundTripLatency;
-        // If round trip latency is under minimum round trip latency desired, stop here.
-        if (roundTripLatency < SyncConstants.MIN_ROUND_TRIP_LATENCY_NS) {
-          break;
-        }
+      double rttNs = response.syncAccuracyNs();
+      boolean accepted =
+          rttMeanNs < 0
+              || rttNs
+                  <= rttMeanNs
+                      + Math.max(
+                          SyncConstants.SNTP_PROBE_RTT_JITTER_THRESHOLD_NS,
+                          2 * Math.sqrt(rttVarianceNs2));
+      if (rttMeanNs < 0) {
+        rttMeanNs = rttNs;
+      } else {
+        double delta = rttNs - rttMeanNs;
+        rttMeanNs += RTT_SMOOTHING * delta;
+        rttVarianceNs2 = (1 - RTT_SMOOTHING) * (rttVarianceNs2 + RTT_SMOOTHING * delta * delta);
       }
-    }
 
-    Log.v(
-        TAG,
-        String.format(
-            "Client %s : SNTP best latency %,d ns, offsetNs %,d ns",
-            clientAddress, bestLatency, bestOffset));
+      long residualNs = 0;
+      if (clientModel.sampleCount() > 0) {
+        residualNs =
+            Math.abs(response.offsetNs() - clientModel.offsetAt(response.clientTimeNs()));
+      }
+      clientModel.addSample(
+          response.clientTimeNs(), response.offsetNs(), response.syncAccuracyNs());
 
-    return SntpOffsetResponse.create(bestOffset, bestLatency, true);
+      boolean stable =
+          residualNs < SyncConstants.SNTP_PROBE_RESIDUAL_THRESHOLD_NS
+              && Math.sqrt(rttVarianceNs2) < SyncConstants.SNTP_PROBE_RTT_JITTER_THRESHOLD_NS;
+      if (stable) {
+        intervalNs = Math.min(SyncConstants.SNTP_PROBE_MAX_INTERVAL_NS, intervalNs * 3 / 2);
+      } else {
+        intervalNs = Math.max(SyncConstants.SNTP_PROBE_MIN_INTERVAL_NS, intervalNs / 2);
+      }
+      return accepted;
+    }
   }
 
   @Override
   public void close() {
+    probeScheduler.shutdownNow();
     nptpExecutor.shutdown();
     // Wait up to 0.5 seconds for the executor service to finish.
     try {
@@ -245,5 +324,6 @@ public class SimpleNetworkTimeProtocol implements AutoCloseable {
     } catch (InterruptedException e) {
       throw new IllegalStateException("SNTP Executor didn't close gracefully: " + e);
     }
+    engine.close();
   }
 }
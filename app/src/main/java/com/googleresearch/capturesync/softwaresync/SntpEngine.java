@@ -0,0 +1,277 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leader half of the SNTP exchange, able to run exchanges with several clients concurrently over a
+ * single socket.
+ *
+ * <p>Every request is tagged with a unique sequence id, which the client ({@link SntpListener})
+ * echoes back in its response. A single receiver thread reads all responses from the socket,
+ * stamps their arrival time and routes them by sequence id to the exchange waiting for them, so any
+ * number of threads may call {@link #doSNTP} at the same time without stealing each other's
+ * responses. Late responses of exchanges that already timed out are dropped.
+ *
+ * <p>Message layout, all fields big-endian longs:
+ *
+ * <p>Request: [sequence id, t0].
+ *
+ * <p>Response: [sequence id, t0, t1, t2].
+ */
+public class SntpEngine implements AutoCloseable {
+  private static final String TAG = "SntpEngine";
+  private static final int LONG_SIZE = Long.SIZE / Byte.SIZE;
+
+  /** Size of a leader request in bytes. */
+  public static final int REQUEST_SIZE = 2 * LONG_SIZE;
+
+  /** Size of a client response in bytes. */
+  public static final int RESPONSE_SIZE = 4 * LONG_SIZE;
+
+  private final Ticker localClock;
+  private final DatagramSocket socket;
+  private final AtomicLong nextSequenceId = new AtomicLong();
+  private final Map<Long, Exchange> pendingExchanges = new ConcurrentHashMap<>();
+  private final ReceiverThread receiverThread;
+
+  /**
+   * Creates the engine and starts its receiver thread. The socket should have a receive timeout
+   * set, which bounds how long {@link #close()} takes to stop the receiver.
+   */
+  public SntpEngine(Ticker localClock, DatagramSocket socket) {
+    this.localClock = localClock;
+    this.socket = socket;
+    receiverThread = new ReceiverThread();
+    receiverThread.start();
+  }
+
+  /**
+   * Performs Min filter SNTP synchronization with the client over the socket using UDP.
+   *
+   * <p>Naive PTP protocol is as follows:
+   *
+   * <p>[1]At time t0 in the leader clock domain, Leader sends the message (t0).
+   *
+   * <p>[2]At time t1 in the client clock domain, Client receives the message (t0).
+   *
+   * <p>[3]At time t2 in the client clock domain, Client sends the message (t0,t1,t2).
+   *
+   * <p>[4]At time t3 in the leader clock domain, Leader receives the message (t0,t1,t2).
+   *
+   * <p>Clock offsetNs = ((t1 - t0) + (t2 - t3)) / 2. [Client] current_time_in_leader_domain = now()
+   * - offsetNs.
+   *
+   * <p>Round-trip latency = (t3 - t0) - (t2 - t1).
+   *
+   * <p>Final Clock offsetNs is calculated using the message with the smallest round-trip latency.
+   *
+   * <p>Safe to call concurrently from several threads, for different or the same clients.
+   *
+   * @param client The client address and SNTP port to perform synchronization with.
+   * @param numCycles The maximum number of SNTP message round trips.
+   * @return SntpOffsetResponse containing the offsetNs and sync accuracy with the client.
+   */
+  public SntpOffsetResponse doSNTP(InetSocketAddress client, int numCycles) throws IOException {
+    long bestLatency = Long.MAX_VALUE; // Start with initial high round trip
+    long bestOffset = 0;
+    long bestClientTime = 0;
+    // If there are several failed SNTP round trip sync messages, fail out.
+    int missingMessageCountdown = 10;
+    SntpOffsetResponse failureResponse =
+        SntpOffsetResponse.create(/*offset=*/ 0, /*syncAccuracy=*/ 0, false);
+
+    byte[] requestBuf = new byte[REQUEST_SIZE];
+    ByteBuffer request = ByteBuffer.wrap(requestBuf);
+    for (int i = 0; i < numCycles; i++) {
+      final long sequenceId = nextSequenceId.getAndIncrement();
+      Exchange exchange = new Exchange(client);
+      pendingExchanges.put(sequenceId, exchange);
+
+      // 1 - Send UDP SNTP message to the client with t0 at time t0.
+      final long t0 = localClock.read();
+      request.putLong(0, sequenceId);
+      request.putLong(LONG_SIZE, t0);
+      try {
+        socket.send(new DatagramPacket(requestBuf, REQUEST_SIZE, client));
+      } catch (IOException e) {
+        pendingExchanges.remove(sequenceId);
+        throw e;
+      }
+
+      // Steps 2 and 3 happen on client side B.
+      // 4 - Wait for the receiver thread to route the response with t0,t1,t2 received at t3.
+      boolean received;
+      try {
+        received = exchange.done.await(SyncConstants.SOCKET_WAIT_TIME_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        pendingExchanges.remove(sequenceId);
+        return failureResponse;
+      }
+      pendingExchanges.remove(sequenceId);
+      if (!received) {
+        // If we didn't receive a message in time, then skip this PTP pair and continue.
+        Log.w(TAG, "UDP PTP message missing, skipping");
+        missingMessageCountdown--;
+        if (missingMessageCountdown <= 0) {
+          Log.w(TAG, String.format("Missed too many messages, leaving doSNTP for %s", client));
+          return failureResponse;
+        }
+        continue;
+      }
+
+      // Confirm that the received message contains the same t0 as the t0 from this cycle.
+      if (exchange.t0 != t0) {
+        Log.w(
+            TAG,
+            String.format(
+                "Corrupted PTP message received, skipping: Expected %d vs %d", t0, exchange.t0));
+        continue;
+      }
+      final long t1 = exchange.t1;
+      final long t2 = exchange.t2;
+      final long t3 = exchange.t3;
+
+      final long timeOffset = ((t1 - t0) + (t2 - t3)) / 2;
+      final long roundTripLatency = (t3 - t0) - (t2 - t1);
+
+      Log.v(
+          TAG,
+          String.format(
+              "% 3d | PTP: %d,%d,%d,%d | Latency: %,.3f ms",
+              i, t0, t1, t2, t3, TimeUtils.nanosToMillis((double) roundTripLatency)));
+
+      if (roundTripLatency < bestLatency) {
+        bestOffset = timeOffset;
+        bestLatency = roundTripLatency;
+        bestClientTime = t1 + (t2 - t1) / 2;
+        // If round trip latency is under minimum round trip latency desired, stop here.
+        if (roundTripLatency < SyncConstants.MIN_ROUND_TRIP_LATENCY_NS) {
+          break;
+        }
+      }
+    }
+
+    if (bestLatency == Long.MAX_VALUE) {
+      return failureResponse;
+    }
+
+    Log.v(
+        TAG,
+        String.format(
+            "Client %s : SNTP best latency %,d ns, offsetNs %,d ns",
+            client, bestLatency, bestOffset));
+
+    return SntpOffsetResponse.create(bestOffset, bestLatency, bestClientTime, true);
+  }
+
+  /** A single outstanding request, completed by the receiver thread. */
+  private static final class Exchange {
+    final InetSocketAddress client;
+    final CountDownLatch done = new CountDownLatch(1);
+    long t0;
+    long t1;
+    long t2;
+    long t3;
+
+    Exchange(InetSocketAddress client) {
+      this.client = client;
+    }
+  }
+
+  /** Receives all SNTP responses and routes them to their pending exchange by sequence id. */
+  private class ReceiverThread extends Thread {
+    private volatile boolean running;
+
+    ReceiverThread() {
+      super("SntpEngineReceiver");
+    }
+
+    void stopRunning() {
+      running = false;
+    }
+
+    @Override
+    public void run() {
+      running = true;
+      byte[] buf = new byte[SyncConstants.SNTP_BUFFER_SIZE];
+      ByteBuffer response = ByteBuffer.wrap(buf);
+      DatagramPacket packet = new DatagramPacket(buf, buf.length);
+      while (running && !socket.isClosed()) {
+        packet.setLength(buf.length);
+        try {
+          socket.receive(packet);
+        } catch (SocketTimeoutException e) {
+          continue; // Normal timeout of the receive.
+        } catch (IOException e) {
+          if (!running || socket.isClosed()) {
+            return;
+          }
+          Log.w(TAG, "SNTP receive error: " + e);
+          continue;
+        }
+        final long t3 = localClock.read();
+
+        if (packet.getLength() != RESPONSE_SIZE) {
+          Log.w(TAG, "Corrupted UDP message, skipping");
+          continue;
+        }
+        final long sequenceId = response.getLong(0);
+        Exchange exchange = pendingExchanges.get(sequenceId);
+        if (exchange == null) {
+          Log.w(TAG, "Late or unknown PTP message received, skipping");
+          continue;
+        }
+        // Leave the exchange pending on a stray reply, so the real one can still complete it.
+        if (!exchange.client.getAddress().equals(packet.getAddress())) {
+          Log.w(TAG, "PTP message from unexpected address " + packet.getAddress() + ", skipping");
+          continue;
+        }
+        pendingExchanges.remove(sequenceId);
+        exchange.t0 = response.getLong(LONG_SIZE);
+        exchange.t1 = response.getLong(2 * LONG_SIZE);
+        exchange.t2 = response.getLong(3 * LONG_SIZE);
+        exchange.t3 = t3;
+        exchange.done.countDown();
+      }
+    }
+  }
+
+  /** Stops the receiver thread, waiting up to the socket timeout. Does not close the socket. */
+  @Override
+  public void close() {
+    receiverThread.stopRunning();
+    try {
+      receiverThread.join(2L * SyncConstants.SOCKET_WAIT_TIME_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // Restore the interrupted status.
+    }
+  }
+}
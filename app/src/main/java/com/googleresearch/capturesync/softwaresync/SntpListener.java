@@ -59,12 +59,10 @@ public class SntpListener extends Thread {
         // Listen for PTP messages.
         nptpSocket.receive(packet);
 
-        // 2 (B) - Recv UDP message with t0 at time t0'.
+        // 2 (B) - Recv UDP message with (sequence id, t0) at time t0'.
         long t0r = localClock.read();
 
-        final int longSize = Long.SIZE / Byte.SIZE;
-
-        if (packet.getLength() != longSize) {
+        if (packet.getLength() != SntpEngine.REQUEST_SIZE) {
           Log.e(
               TAG,
               "Received UDP message with incorrect packet length "
@@ -73,12 +71,13 @@ public class SntpListener extends Thread {
           continue;
         }
 
-        // 3 (B) - Send UDP message with t0,t0',t1 at time t1.
+        // 3 (B) - Send UDP message with (sequence id, t0, t0', t1) at time t1.
+        final int longSize = Long.SIZE / Byte.SIZE;
         long t1 = localClock.read();
-        ByteBuffer buffer = ByteBuffer.allocate(3 * longSize);
-        buffer.put(packet.getData(), 0, longSize);
-        buffer.putLong(longSize, t0r);
-        buffer.putLong(2 * longSize, t1);
+        ByteBuffer buffer = ByteBuffer.allocate(SntpEngine.RESPONSE_SIZE);
+        buffer.put(packet.getData(), 0, SntpEngine.REQUEST_SIZE);
+        buffer.putLong(SntpEngine.REQUEST_SIZE, t0r);
+        buffer.putLong(SntpEngine.REQUEST_SIZE + longSize, t1);
         byte[] bufferArray = buffer.array();
 
         // Send SNTP response back.
@@ -20,15 +20,23 @@ package com.googleresearch.capturesync.softwaresync;
 public final class SntpOffsetResponse {
   private final long offsetNs;
   private final long syncAccuracyNs;
+  private final long clientTimeNs;
   private final boolean status;
 
   static SntpOffsetResponse create(long offset, long syncAccuracy, boolean status) {
-    return new SntpOffsetResponse(offset, syncAccuracy, status);
+    return new SntpOffsetResponse(offset, syncAccuracy, /*clientTimeNs=*/ 0, status);
   }
 
-  private SntpOffsetResponse(long offsetNs, long syncAccuracyNs, boolean status) {
+  static SntpOffsetResponse create(
+      long offset, long syncAccuracy, long clientTime, boolean status) {
+    return new SntpOffsetResponse(offset, syncAccuracy, clientTime, status);
+  }
+
+  private SntpOffsetResponse(
+      long offsetNs, long syncAccuracyNs, long clientTimeNs, boolean status) {
     this.offsetNs = offsetNs;
     this.syncAccuracyNs = syncAccuracyNs;
+    this.clientTimeNs = clientTimeNs;
     this.status = status;
   }
 
@@ -50,6 +58,14 @@ public final class SntpOffsetResponse {
     return syncAccuracyNs;
   }
 
+  /**
+   * The time in the client's local clock domain at which the offset was measured, the midpoint of
+   * the client receive and send times of the chosen SNTP message.
+   */
+  public long clientTimeNs() {
+    return clientTimeNs;
+  }
+
   /** The success status of this response. */
   public boolean status() {
     return status;
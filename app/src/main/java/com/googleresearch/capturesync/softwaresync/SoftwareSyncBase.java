@@ -21,17 +21,20 @@ import android.util.Log;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.BindException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * SoftwareSyncBase is the abstract base class to SoftwareSyncLeader and SoftwareSyncClient, holding
@@ -52,6 +55,12 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
    */
   private long leaderFromLocalNs = 0;
 
+  /**
+   * Model of the offset and skew between the local and leader clocks, fit from SNTP samples. While
+   * it holds samples, it takes precedence over leaderFromLocalNs.
+   */
+  private final ClockModel clockModel = new ClockModel();
+
   /* SNTP Setup */
   final int sntpPort;
   final DatagramSocket sntpSocket;
@@ -61,9 +70,32 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
   private final DatagramSocket rpcSocket;
   private final RpcThread rpcListenerThread;
   final Map<Integer, RpcCallback> rpcMap = new HashMap<>();
+  final Map<Integer, BinaryRpcCallback> binaryRpcMap = new HashMap<>();
   /** Handle onRPC events on a separate thread. */
   private final ExecutorService rpcExecutor = Executors.newSingleThreadExecutor();
 
+  /** Sequence number of the next RPC sent. */
+  private final AtomicInteger nextRpcSequence = new AtomicInteger();
+
+  /** Epoch of the RPCs sent, so receivers don't take them for those of a previous run. */
+  private final int rpcEpoch = new Random().nextInt();
+
+  /** Frames used to encode outgoing RPCs, one per sending thread. */
+  private final ThreadLocal<RpcMessage> sendMessages =
+      new ThreadLocal<RpcMessage>() {
+        @Override
+        protected RpcMessage initialValue() {
+          return new RpcMessage();
+        }
+      };
+
+  /** Drops retransmissions of reliable RPCs that were already received. */
+  private final DuplicateRpcFilter duplicateRpcFilter = new DuplicateRpcFilter();
+
+  /** Pool of frames that received RPCs are read into and dispatched from. */
+  private final BlockingQueue<ReceivedRpc> freeReceivedRpcs =
+      new ArrayBlockingQueue<>(SyncConstants.RPC_POOL_SIZE);
+
   SoftwareSyncBase(String name, Ticker localClock, InetAddress address, InetAddress leaderAddress) {
     this.rpcPort = SyncConstants.RPC_PORT;
     this.sntpPort = SyncConstants.SNTP_PORT;
@@ -95,6 +127,9 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
 
     // Start an RPC thread loop that listens for packets on the rpc socket, processes and calls
     // onRpc with the processed method and payload.
+    for (int i = 0; i < SyncConstants.RPC_POOL_SIZE; i++) {
+      freeReceivedRpcs.add(new ReceivedRpc());
+    }
     rpcListenerThread = new RpcThread();
     rpcListenerThread.start();
   }
@@ -118,7 +153,27 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
    */
   @Override
   public long leaderTimeForLocalTimeNs(long localTimeNs) {
-    return localTimeNs - leaderFromLocalNs;
+    return localTimeNs - leaderFromLocalNsAt(localTimeNs);
+  }
+
+  /**
+   * Returns the predicted one standard deviation uncertainty in nanoseconds of {@link
+   * #leaderTimeForLocalTimeNs} for the given local time. This is zero when the offset was set
+   * directly rather than estimated, as on the leader or before a client has synced.
+   */
+  public long leaderTimeUncertaintyNs(long localTimeNs) {
+    if (clockModel.sampleCount() == 0) {
+      return 0;
+    }
+    return clockModel.uncertaintyAt(localTimeNs);
+  }
+
+  /** Returns the offset between local time and leader time at the given local time. */
+  private long leaderFromLocalNsAt(long localTimeNs) {
+    if (clockModel.sampleCount() == 0) {
+      return leaderFromLocalNs;
+    }
+    return clockModel.offsetAt(localTimeNs);
   }
 
   public String getName() {
@@ -138,12 +193,34 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
    * nanoseconds.
    */
   public long getLeaderFromLocalNs() {
-    return leaderFromLocalNs;
+    return leaderFromLocalNsAt(localClock.read());
+  }
+
+  /**
+   * Returns the estimated frequency skew between the local and leader clocks in ns per ns, zero if
+   * the offset is not being estimated.
+   */
+  public double getLeaderFromLocalSkew() {
+    return clockModel.sampleCount() == 0 ? 0 : clockModel.skew();
   }
 
   /** Set the offsetNs between this device's local elapsed time and the leader synchronized time. */
   void setLeaderFromLocalNs(long value) {
     leaderFromLocalNs = value;
+    clockModel.reset();
+  }
+
+  /**
+   * Adds a measured offsetNs between this device's local elapsed time and the leader synchronized
+   * time to the clock model.
+   *
+   * @param localTimeNs the local time the offset was measured at.
+   * @param value the measured offset.
+   * @param roundTripNs round trip latency of the measurement.
+   */
+  void addLeaderFromLocalSample(long localTimeNs, long value, long roundTripNs) {
+    clockModel.addSample(localTimeNs, value, roundTripNs);
+    leaderFromLocalNs = clockModel.offsetAt(localTimeNs);
   }
 
   void addPublicRpcCallbacks(Map<Integer, RpcCallback> callbacks) {
@@ -158,24 +235,95 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
     rpcMap.putAll(callbacks);
   }
 
+  void addPublicBinaryRpcCallbacks(Map<Integer, BinaryRpcCallback> callbacks) {
+    for (Integer key : callbacks.keySet()) {
+      if (key < SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS) {
+        throw new IllegalArgumentException(
+            String.format(
+                "Given method id %s, User method ids must" + " be >= %s",
+                key, SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS));
+      }
+    }
+    binaryRpcMap.putAll(callbacks);
+  }
+
   /** Sends a message with arguments to the specified address over the rpc socket. */
   void sendRpc(int method, String arguments, InetAddress address) {
-    byte[] messagePayload = arguments.getBytes();
-    if (messagePayload.length + 4 > SyncConstants.RPC_BUFFER_SIZE) {
-      throw new IllegalArgumentException(
-          String.format(
-              "RPC arguments too big %d v %d",
-              messagePayload.length + 4, SyncConstants.RPC_BUFFER_SIZE));
+    RpcMessage message = sendMessages.get();
+    message
+        .setString(method, nextRpcSequence.getAndIncrement(), localClock.read(), arguments)
+        .setEpoch(rpcEpoch);
+    send(message, address);
+  }
+
+  /** Sends a message with fixed-layout long values to the specified address over the rpc socket. */
+  void sendRpc(int method, InetAddress address, long... values) {
+    RpcMessage message = sendMessages.get();
+    message
+        .setLongs(method, nextRpcSequence.getAndIncrement(), localClock.read(), values)
+        .setEpoch(rpcEpoch);
+    send(message, address);
+  }
+
+  /**
+   * Sends a message with fixed-layout long values followed by a UTF-8 encoded string to the
+   * specified address over the rpc socket.
+   */
+  void sendRpc(int method, InetAddress address, byte[] utf8, long... values) {
+    RpcMessage message = sendMessages.get();
+    message
+        .setLongsAndString(
+            method, nextRpcSequence.getAndIncrement(), localClock.read(), utf8, values)
+        .setEpoch(rpcEpoch);
+    send(message, address);
+  }
+
+  /**
+   * Sends an already encoded frame to the specified address over the rpc socket. The same frame
+   * may be sent to several addresses from different threads, as for reliable broadcasts.
+   */
+  void send(RpcMessage message, InetAddress address) {
+    synchronized (message) {
+      try {
+        message.sendTo(rpcSocket, address, rpcPort);
+      } catch (IOException e) {
+        throw new IllegalStateException("Error sending RPC packet.");
+      }
     }
+  }
 
-    byte[] fullPayload =
-        ByteBuffer.allocate(messagePayload.length + 4).putInt(method).put(messagePayload).array();
+  /** Encodes an RPC with long values for dispatching locally via {@link #onRpc(RpcMessage)}. */
+  RpcMessage localRpc(int method, long... values) {
+    return new RpcMessage()
+        .setLongs(method, nextRpcSequence.getAndIncrement(), localClock.read(), values)
+        .setEpoch(rpcEpoch);
+  }
 
-    DatagramPacket packet = new DatagramPacket(fullPayload, fullPayload.length, address, rpcPort);
-    try {
-      rpcSocket.send(packet);
-    } catch (IOException e) {
-      throw new IllegalStateException("Error sending RPC packet.");
+  /** Encodes an RPC with a string payload for dispatching locally or sending to several clients. */
+  RpcMessage localRpc(int method, String arguments) {
+    return new RpcMessage()
+        .setString(method, nextRpcSequence.getAndIncrement(), localClock.read(), arguments)
+        .setEpoch(rpcEpoch);
+  }
+
+  private ReceivedRpc obtainReceivedRpc() {
+    ReceivedRpc received = freeReceivedRpcs.poll();
+    // If the pool is empty the dispatcher is behind, allocate rather than stall the socket.
+    return received != null ? received : new ReceivedRpc();
+  }
+
+  /** A pooled received frame, which dispatches itself on the rpcExecutor. */
+  private final class ReceivedRpc implements Runnable {
+    final RpcMessage message = new RpcMessage();
+
+    @Override
+    public void run() {
+      try {
+        onRpc(message);
+      } finally {
+        // Return to the pool, dropping it if the pool is full.
+        freeReceivedRpcs.offer(this);
+      }
     }
   }
 
@@ -195,28 +343,40 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
     }
 
     @Override
-    @SuppressWarnings("FutureReturnValueIgnored")
     public void run() {
       running = true;
 
-      byte[] buf = new byte[SyncConstants.RPC_BUFFER_SIZE];
+      ReceivedRpc received = obtainReceivedRpc();
       while (running && !rpcSocket.isClosed()) {
-        DatagramPacket packet = new DatagramPacket(buf, buf.length);
-
         try {
-          // Wait for a client message.
-          rpcSocket.receive(packet);
+          // Wait for a client message, read directly into a pooled frame.
+          if (!received.message.receiveFrom(rpcSocket)) {
+            Log.w(TAG, "Received malformed RPC frame, skipping.");
+            continue;
+          }
 
-          // Separate packet string into int method and string payload
-          // First 4 bytes is the integer method.
-          ByteBuffer packetByteBuffer = ByteBuffer.wrap(packet.getData());
-          int method = packetByteBuffer.getInt(); // From first 4 bytes.
-          // Rest of the bytes are the payload.
-          String payload = new String(packet.getData(), 4, packet.getLength() - 4);
+          // Acknowledge reliable RPCs right away, including retransmissions whose earlier
+          // acknowledgement was lost, but only dispatch the first copy.
+          if (received.message.isAckRequested()) {
+            InetAddress sender = received.message.senderAddress();
+            int sequence = received.message.sequence();
+            try {
+              sendRpc(SyncConstants.METHOD_RPC_ACK, sender, sequence);
+            } catch (IllegalStateException e) {
+              // The sender retransmits until acknowledged, keep listening.
+              Log.w(TAG, "Failed to acknowledge RPC " + sequence + " from " + sender + ": " + e);
+            }
+            if (duplicateRpcFilter.isDuplicate(sender, received.message.epoch(), sequence)) {
+              continue;
+            }
+          }
 
-          // Call onRpc with the method and payload in a separate thread.
-          rpcExecutor.submit(() -> onRpc(method, payload));
+          // Call onRpc with the frame in a separate thread, which returns it to the pool.
+          rpcExecutor.execute(received);
+          received = obtainReceivedRpc();
 
+        } catch (RejectedExecutionException e) {
+          // Executor shut down, drop the message.
         } catch (SocketTimeoutException e) {
           // Do nothing since this is a normal timeout of the receive.
         } catch (IOException e) {
@@ -238,6 +398,22 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
     }
   }
 
+  /**
+   * Handle a received RPC frame, preferring a binary callback for the method and falling back to a
+   * string callback with the decoded payload.
+   */
+  public void onRpc(RpcMessage message) {
+    BinaryRpcCallback binaryCallback = binaryRpcMap.get(message.method());
+    if (binaryCallback != null) {
+      binaryCallback.call(message);
+      return;
+    }
+    RpcCallback callback = rpcMap.get(message.method());
+    if (callback != null) {
+      callback.call(message.payloadString());
+    }
+  }
+
   /**
    * Idempotent close that handles closing sockets, threads if they are open or running, etc. If a
    * user overrides this method it is expected make sure to call super as well.
@@ -245,6 +421,7 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
   @Override
   public void close() throws IOException {
     rpcListenerThread.stopRunning();
+    rpcExecutor.shutdown();
     rpcSocket.close();
     sntpSocket.close();
   }
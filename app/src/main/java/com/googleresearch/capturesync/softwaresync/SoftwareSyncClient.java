@@ -19,6 +19,8 @@ package com.googleresearch.capturesync.softwaresync;
 import android.util.Log;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -64,12 +66,24 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
 
   private SntpListener sntpThread;
 
+  /** Name of this client encoded once for the heartbeats. */
+  private final byte[] heartbeatName;
+
   public SoftwareSyncClient(
       String name,
       InetAddress address,
       InetAddress leaderAddress,
       Map<Integer, RpcCallback> rpcCallbacks) {
-    this(name, new SystemTicker(), address, leaderAddress, rpcCallbacks);
+    this(name, address, leaderAddress, rpcCallbacks, new HashMap<>());
+  }
+
+  public SoftwareSyncClient(
+      String name,
+      InetAddress address,
+      InetAddress leaderAddress,
+      Map<Integer, RpcCallback> rpcCallbacks,
+      Map<Integer, BinaryRpcCallback> binaryRpcCallbacks) {
+    this(name, new SystemTicker(), address, leaderAddress, rpcCallbacks, binaryRpcCallbacks);
   }
 
   @SuppressWarnings("FutureReturnValueIgnored")
@@ -78,32 +92,45 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
       Ticker localClock,
       InetAddress address,
       InetAddress leaderAddress,
-      Map<Integer, RpcCallback> rpcCallbacks) {
+      Map<Integer, RpcCallback> rpcCallbacks,
+      Map<Integer, BinaryRpcCallback> binaryRpcCallbacks) {
     super(name, localClock, address, leaderAddress);
 
+    heartbeatName = name.getBytes(Charset.forName("UTF-8"));
+
     // Add client-specific RPC callbacks.
-    rpcMap.put(
+    binaryRpcMap.put(
         SyncConstants.METHOD_HEARTBEAT_ACK,
-        payload -> {
+        message -> {
           // Leader responded to heartbeat. update last response and change sync status as needed.
           lastLeaderResponseTimeNs = localClock.read();
           Log.v(TAG, "Heartbeat acknowledge received from leader.");
           updateState();
         });
-    rpcMap.put(
+    binaryRpcMap.put(
         SyncConstants.METHOD_OFFSET_UPDATE,
-        payload -> {
+        message -> {
           lastLeaderOffsetResponseTimeNs = localClock.read();
 
-          Log.d(TAG, "Received offsetNs update: (" + payload + "), stopping sntp sync request.");
-          // Set the time offsetNs to the offsetNs passed in by the leader and update state.
-          setLeaderFromLocalNs(Long.parseLong(payload));
+          Log.d(TAG, "Received offsetNs update, stopping sntp sync request.");
+          // Add the offsetNs passed in by the leader to the clock model and update state. The
+          // values are (offsetNs, measuredAtLocalNs, roundTripNs), or just offsetNs for a plain
+          // offset update.
+          if (message.longCount() == 3) {
+            addLeaderFromLocalSample(message.getLong(1), message.getLong(0), message.getLong(2));
+          } else if (message.longCount() == 1) {
+            setLeaderFromLocalNs(message.getLong(0));
+          } else {
+            Log.e(TAG, "Offset update has the wrong format, skipping.");
+            return;
+          }
           updateState();
           onRpc(SyncConstants.METHOD_MSG_OFFSET_UPDATED, Long.toString(getLeaderFromLocalNs()));
         });
 
     // Add callbacks passed by user.
     addPublicRpcCallbacks(rpcCallbacks);
+    addPublicBinaryRpcCallbacks(binaryRpcCallbacks);
 
     // Initial state is waiting to register with leader.
     reset();
@@ -131,21 +158,16 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
     // First update current client state based on time since last response.
     updateState();
 
-    // Generate heartbeat message containing the client address and the
-    // string value of the synchronization state.
-    final String heartbeatMsg;
+    // The heartbeat holds the synchronization state followed by the client name, the leader
+    // answers to the address it came from.
+    final boolean heartbeatSynced;
     synchronized (syncLock) {
-      // Note: Send messages using strings for simplicity.
-      heartbeatMsg =
-          String.format(
-              "%s,%s,%s",
-              getLocalClientInfo().name(),
-              getLocalClientInfo().address().getHostAddress(),
-              Boolean.toString(synced));
+      heartbeatSynced = synced;
     }
 
     // Send heartbeat RPC to leader, expecting a METHOD_HEARTBEAT_ACK rpc back from leader.
-    sendRpc(SyncConstants.METHOD_HEARTBEAT, heartbeatMsg, getLeaderAddress());
+    sendRpc(
+        SyncConstants.METHOD_HEARTBEAT, getLeaderAddress(), heartbeatName, heartbeatSynced ? 1 : 0);
   }
 
   /**
@@ -19,12 +19,9 @@ package com.googleresearch.capturesync.softwaresync;
 import android.util.Log;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ExecutorService;
@@ -59,9 +56,21 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
   /** Manages SNTP synchronization of clients. */
   private final SimpleNetworkTimeProtocol sntp;
 
+  /** Retransmits reliable RPCs until acknowledged by each client. */
+  private final ReliableRpcSender reliableSender;
+
   public SoftwareSyncLeader(
       String name, long initialTime, InetAddress address, Map<Integer, RpcCallback> rpcCallbacks) {
-    this(name, new SystemTicker(), initialTime, address, rpcCallbacks);
+    this(name, initialTime, address, rpcCallbacks, new HashMap<>());
+  }
+
+  public SoftwareSyncLeader(
+      String name,
+      long initialTime,
+      InetAddress address,
+      Map<Integer, RpcCallback> rpcCallbacks,
+      Map<Integer, BinaryRpcCallback> binaryRpcCallbacks) {
+    this(name, new SystemTicker(), initialTime, address, rpcCallbacks, binaryRpcCallbacks);
   }
 
   @SuppressWarnings("FutureReturnValueIgnored")
@@ -70,7 +79,8 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
       Ticker localClock,
       long initialTime,
       InetAddress address,
-      Map<Integer, RpcCallback> rpcCallbacks) {
+      Map<Integer, RpcCallback> rpcCallbacks,
+      Map<Integer, BinaryRpcCallback> binaryRpcCallbacks) {
     // Note: Leader address is required to be the same as local address.
     super(name, localClock, address, address);
 
@@ -84,21 +94,48 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
     setLeaderFromLocalNs(localClock.read() - initialTime);
 
     // Add client-specific RPC callbacks.
-    rpcMap.put(
+    binaryRpcMap.put(
         SyncConstants.METHOD_HEARTBEAT,
-        payload -> {
+        message -> {
           // Received heartbeat from client, send back an acknowledge and then
           // check the client state and add to sntp queue if needed.
-          Log.v(TAG, "Heartbeat received from client: " + payload);
-          try {
-            processHeartbeatRpc(payload);
-          } catch (UnknownHostException e) {
-            Log.e(TAG, "Processed heartbeat with corrupt host address: " + payload);
+          if (message.type() != RpcMessage.TYPE_LONGS_AND_STRING || message.longCount() != 1) {
+            Log.e(TAG, "Heartbeat message has the wrong format, skipping.");
+            return;
           }
+          String clientName = message.getString();
+          Log.v(TAG, "Heartbeat received from client: " + clientName);
+          processHeartbeat(clientName, message.senderAddress(), message.getLong(0) != 0);
         });
 
+    reliableSender =
+        new ReliableRpcSender(
+            localClock,
+            this::send,
+            new ReliableRpcSender.DeliveryListener() {
+              @Override
+              public void onDelivered(
+                  InetAddress address, int method, long latencyNs, int attempts) {
+                updateClientDelivery(address, latencyNs, /*delivered=*/ true);
+              }
+
+              @Override
+              public void onLost(InetAddress address, int method, int attempts) {
+                Log.w(
+                    TAG,
+                    String.format(
+                        "Reliable RPC %d lost to %s after %d attempts", method, address, attempts));
+                updateClientDelivery(address, 0, /*delivered=*/ false);
+              }
+            },
+            SyncConstants.RELIABLE_RPC_RETRANSMIT_INTERVAL_NS);
+    binaryRpcMap.put(
+        SyncConstants.METHOD_RPC_ACK,
+        message -> reliableSender.onAck(message.senderAddress(), (int) message.getLong(0)));
+
     // Add callbacks passed by user.
     addPublicRpcCallbacks(rpcCallbacks);
+    addPublicBinaryRpcCallbacks(binaryRpcCallbacks);
 
     // Set up SNTP instance for synchronizing with clients.
     sntp = new SimpleNetworkTimeProtocol(localClock, sntpSocket, SyncConstants.SNTP_PORT, this);
@@ -124,14 +161,16 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
     synchronized (clientsLock) {
       boolean clientExists = clients.containsKey(address);
       // Add or replace entry with an updated ClientInfo.
-      long offsetNs = 0;
-      long syncAccuracyNs = 0;
+      ClientInfo updatedClient;
       if (clientExists) {
-        offsetNs = clients.get(address).offset();
-        syncAccuracyNs = clients.get(address).syncAccuracy();
+        ClientInfo client = clients.get(address);
+        updatedClient =
+            client.withSync(name, client.offset(), client.syncAccuracy(), localClock.read());
+      } else {
+        updatedClient =
+            ClientInfo.create(
+                name, address, /*offset=*/ 0, /*syncAccuracy=*/ 0, localClock.read());
       }
-      ClientInfo updatedClient =
-          ClientInfo.create(name, address, offsetNs, syncAccuracyNs, localClock.read());
       clients.put(address, updatedClient);
 
       if (!clientExists) {
@@ -176,9 +215,8 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
       }
       final ClientInfo client = clients.get(clientAddress);
       ClientInfo updatedClient =
-          ClientInfo.create(
+          client.withSync(
               client.name(),
-              client.address(),
               response.offsetNs(),
               response.syncAccuracyNs(),
               client.lastHeartbeat());
@@ -186,6 +224,18 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
     }
   }
 
+  /** Records the delivery or loss of a reliable RPC in the client's info. */
+  private void updateClientDelivery(InetAddress clientAddress, long latencyNs, boolean delivered) {
+    synchronized (clientsLock) {
+      ClientInfo client = clients.get(clientAddress);
+      if (client == null) {
+        return;
+      }
+      clients.put(
+          clientAddress, delivered ? client.withDeliveredRpc(latencyNs) : client.withLostRpc());
+    }
+  }
+
   /**
    * Sends an RPC to every client in the leader's clients list.
    *
@@ -205,6 +255,25 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
     onRpc(method, payload);
   }
 
+  /**
+   * Sends an RPC with fixed-layout long values to every client in the leader's clients list.
+   *
+   * @param method int type of RPC (in {@link SyncConstants}).
+   * @param values long payload values.
+   */
+  @SuppressWarnings("FutureReturnValueIgnored")
+  private void internalBroadcastRpc(int method, long... values) {
+    // Send RPC message to all clients and call onRPC of self as well.
+    synchronized (clientsLock) {
+      for (InetAddress address : clients.keySet()) {
+        rpcMessageExecutor.submit(() -> sendRpc(method, address, values));
+      }
+    }
+
+    // Also call onRpc for self (leader).
+    onRpc(localRpc(method, values));
+  }
+
   /**
    * Public-facing broadcast RPC to all current clients, for non-softwaresync RPC methods only.
    *
@@ -213,18 +282,83 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
    * @param payload String payload.
    */
   public void broadcastRpc(int method, String payload) {
+    checkPublicMethod(method);
+    internalBroadcastRpc(method, payload);
+  }
+
+  /**
+   * Public-facing broadcast RPC to all current clients with fixed-layout long values, for
+   * non-softwaresync RPC methods only. Clients handle it with a {@link BinaryRpcCallback}, or a
+   * {@link RpcCallback} receiving the comma-separated values.
+   *
+   * @param method int type of RPC, must be greater than {@link
+   *     SyncConstants#START_NON_SOFTWARESYNC_METHOD_IDS}.
+   * @param values long payload values.
+   */
+  public void broadcastRpc(int method, long... values) {
+    checkPublicMethod(method);
+    internalBroadcastRpc(method, values);
+  }
+
+  /**
+   * Broadcast RPC to all current clients with fixed-layout long values, retransmitted to each
+   * client until it acknowledges it or the timeout passes. Clients dispatch it exactly once.
+   *
+   * <p>Use for RPCs that must not be lost, such as trigger times, with a timeout no later than
+   * when the RPC stops being useful.
+   *
+   * @param method int type of RPC, must be greater than {@link
+   *     SyncConstants#START_NON_SOFTWARESYNC_METHOD_IDS}.
+   * @param timeoutNs time from now after which retransmission stops.
+   * @param values long payload values.
+   */
+  public void broadcastReliableRpc(int method, long timeoutNs, long... values) {
+    checkPublicMethod(method);
+    internalBroadcastReliableRpc(localRpc(method, values), timeoutNs);
+  }
+
+  /**
+   * Broadcast RPC to all current clients with a string payload, retransmitted to each client until
+   * it acknowledges it or the timeout passes. Clients dispatch it exactly once.
+   *
+   * @param method int type of RPC, must be greater than {@link
+   *     SyncConstants#START_NON_SOFTWARESYNC_METHOD_IDS}.
+   * @param timeoutNs time from now after which retransmission stops.
+   * @param payload String payload.
+   */
+  public void broadcastReliableRpc(int method, long timeoutNs, String payload) {
+    checkPublicMethod(method);
+    internalBroadcastReliableRpc(localRpc(method, payload), timeoutNs);
+  }
+
+  /** Sends the same frame, with one sequence number, reliably to every client and to self. */
+  @SuppressWarnings("FutureReturnValueIgnored")
+  private void internalBroadcastReliableRpc(RpcMessage message, long timeoutNs) {
+    message.setAckRequested();
+    final long deadlineNs = localClock.read() + timeoutNs;
+    synchronized (clientsLock) {
+      for (InetAddress address : clients.keySet()) {
+        rpcMessageExecutor.submit(() -> reliableSender.send(message, address, deadlineNs));
+      }
+    }
+
+    // Also call onRpc for self (leader).
+    onRpc(message);
+  }
+
+  private static void checkPublicMethod(int method) {
     if (method < SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS) {
       throw new IllegalArgumentException(
           String.format(
               "Given method id %s, User method ids must" + " be >= %s",
               method, SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS));
     }
-    internalBroadcastRpc(method, payload);
   }
 
   @Override
   public void close() throws IOException {
     sntp.close();
+    reliableSender.close();
     staleClientChecker.shutdown();
     try {
       // Wait up to 0.5 seconds for this to close.
@@ -240,25 +374,11 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
    * Process a heartbeat rpc call from a client by responding with a heartbeat acknowledge, adding
    * or updating the client in the tracked clients list, and submitting a new SNTP sync request if
    * the client state is not yet synchronized.
-   *
-   * @param payload format of "ClientName,ClientAddress,ClientState"
    */
-  private void processHeartbeatRpc(String payload) throws UnknownHostException {
-    List<String> parts = Arrays.asList(payload.split(","));
-    if (parts.size() != 3) {
-      Log.e(
-          TAG,
-          "Heartbeat message has the wrong format, expected 3 comma-delimitted parts: "
-              + payload
-              + ". Skipping.");
-      return;
-    }
-    String clientName = parts.get(0);
-    InetAddress clientAddress = InetAddress.getByName(parts.get(1));
-    boolean clientSyncState = Boolean.parseBoolean(parts.get(2));
-
-    // Send heartbeat acknowledge RPC back to client first, containing the same payload.
-    sendRpc(SyncConstants.METHOD_HEARTBEAT_ACK, payload, clientAddress);
+  private void processHeartbeat(
+      String clientName, InetAddress clientAddress, boolean clientSyncState) {
+    // Send heartbeat acknowledge RPC back to client first, containing the sync state.
+    sendRpc(SyncConstants.METHOD_HEARTBEAT_ACK, clientAddress, clientSyncState ? 1 : 0);
 
     // Add or update client in clients.
     addOrUpdateClient(clientName, clientAddress);
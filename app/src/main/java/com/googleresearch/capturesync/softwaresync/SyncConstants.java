@@ -35,6 +35,12 @@ public class SyncConstants {
   /** RPC. */
   public static final int RPC_PORT = 8244;
   public static final int RPC_BUFFER_SIZE = 1024;
+  /** Number of pooled frames for received RPCs awaiting dispatch. */
+  public static final int RPC_POOL_SIZE = 16;
+  /** Interval between retransmissions of an unacknowledged reliable RPC. */
+  public static final long RELIABLE_RPC_RETRANSMIT_INTERVAL_NS = TimeUtils.millisToNanos(20);
+  /** Number of recent sequence numbers per sender remembered to drop retransmitted RPCs. */
+  public static final int RPC_DUPLICATE_HISTORY_SIZE = 64;
 
   /** RPC Method ids.
    * [0 - 9,999] Reserved for SoftwareSync.
@@ -45,6 +51,8 @@ public class SyncConstants {
   public static final int METHOD_HEARTBEAT = 1;
   public static final int METHOD_HEARTBEAT_ACK = 2;
   public static final int METHOD_OFFSET_UPDATE = 3;
+  /** Acknowledges a frame that requested it, the payload is the acknowledged sequence number. */
+  public static final int METHOD_RPC_ACK = 4;
 
   /* Define user RPC method ids using values greater or equal to this. */
   public static final int START_NON_SOFTWARESYNC_METHOD_IDS = 1_000;
@@ -60,6 +68,24 @@ public class SyncConstants {
   public static final int SNTP_BUFFER_SIZE = 512;
   public static final int NUM_SNTP_CYCLES = 20; //luk: was 300;
   public static final long MIN_ROUND_TRIP_LATENCY_NS = TimeUtils.millisToNanos(1);
+  /** Maximum number of clients the leader runs SNTP exchanges with concurrently. */
+  public static final int SNTP_MAX_PARALLEL_CLIENTS = 16;
+
+  /** Background SNTP probing of synced clients, with an adaptive interval per client. */
+  public static final int NUM_SNTP_PROBE_CYCLES = 3;
+  public static final long SNTP_PROBE_MIN_INTERVAL_NS = TimeUtils.secondsToNanos(1);
+  public static final long SNTP_PROBE_MAX_INTERVAL_NS = TimeUtils.secondsToNanos(30);
+  /** Offset residual against the client clock model above which probing speeds up. */
+  public static final long SNTP_PROBE_RESIDUAL_THRESHOLD_NS = 250_000L;
+  /** Round-trip latency standard deviation above which probing speeds up. */
+  public static final long SNTP_PROBE_RTT_JITTER_THRESHOLD_NS = TimeUtils.millisToNanos(1);
+
+  /** Clock model - number of SNTP samples used to fit offset and skew. */
+  public static final int CLOCK_MODEL_WINDOW_SIZE = 16;
+  /** Bound on the fitted frequency skew between clocks, 500 ppm. */
+  public static final double CLOCK_MODEL_MAX_SKEW = 500e-6;
+  /** Samples further than this from the predicted offset reset the clock model. */
+  public static final long CLOCK_MODEL_RESET_THRESHOLD_NS = TimeUtils.millisToNanos(10);
 
   private SyncConstants() {}
 }
@@ -0,0 +1,329 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync.phasealign;
+
+/**
+ * Aligns the camera phase by injecting frames, driven by the phase of the frames that follow rather
+ * than by fixed delays.
+ *
+ * <p>After each injected frame the phase of the following frames is watched until it has moved and
+ * settled again, which is when the next correction is issued. The shift each injection caused
+ * refines a linear model of shift against injected exposure, {@code shift = gain * exposure +
+ * offset}, by recursive least squares. The model starts from the static {@link PhaseConfig}, where
+ * the gain is 2 and the offset is set by the overhead, and so adapts to the actual device.
+ *
+ * <p>Injections that cause no shift within {@link #MAX_WAIT_FRAMES} frames fell below the exposure
+ * that still shifts the phase, which raises the lowest exposure used.
+ *
+ * <p>Thread safe: frames are usually fed from the camera thread while alignment is started from
+ * another. Frames are injected through the {@link FrameInjector} from the thread feeding frames.
+ */
+public final class ClosedLoopPhaseAligner {
+  /** Injects a frame with the given exposure into the repeating request. */
+  public interface FrameInjector {
+    void injectFrame(long exposureTimeNs);
+  }
+
+  /** Where the aligner is in the alignment process. */
+  public enum State {
+    /** Not started, or finished. */
+    IDLE,
+    /** Measuring the phase before the first correction. */
+    MEASURING,
+    /** Waiting for an injected frame to shift the phase and for it to settle. */
+    WAITING,
+  }
+
+  /** Frames whose phase is averaged before the first correction. */
+  public static final int BASELINE_FRAMES = 3;
+  /** Consecutive shifted frames within the tolerance of each other for the phase to be settled. */
+  public static final int SETTLE_FRAMES = 3;
+  /** Frames after an injection without a phase shift before it is taken to have had no effect. */
+  public static final int MAX_WAIT_FRAMES = 20;
+
+  /** The config gain, from the frame duration to shift of {@link PhaseAligner}. */
+  private static final double PRIOR_GAIN = 2.0;
+  /** Prior variance of the normalized model parameters. */
+  private static final double PRIOR_VARIANCE = 0.25;
+
+  private final PhaseConfig config;
+  private final FrameInjector injector;
+  private final int maxCorrections;
+  private final long periodNs;
+
+  /** Phase changes below this are noise, above it an injection took effect. */
+  private long detectNs;
+
+  /* Model of shift / period = theta0 * exposure / period + theta1, with covariance p. */
+  private double theta0;
+  private double theta1;
+  private double p00;
+  private double p01;
+  private double p11;
+  /** Measurement noise variance, normalized by the period squared. */
+  private final double noiseVariance;
+
+  /** Lowest exposure injected, raised when an injection had no effect. */
+  private long exposureFloorNs;
+
+  private State state = State.IDLE;
+  private long goalPhaseNs;
+  private long toleranceNs;
+  private int corrections = 0;
+  private boolean aligned = false;
+
+  /* Phase measurement. */
+  private long referencePhaseNs;
+  private long phaseSumNs;
+  private int phaseCount;
+  private int framesWaited;
+  private long injectedExposureNs;
+  /** Phase when the last frame was injected. */
+  private long injectionPhaseNs;
+  private long lastErrorNs;
+  private int framesSinceStart;
+  private int framesToAlign;
+
+  /**
+   * @param maxCorrections most frames injected before giving up.
+   */
+  public ClosedLoopPhaseAligner(PhaseConfig config, FrameInjector injector, int maxCorrections) {
+    this.config = config;
+    this.injector = injector;
+    this.maxCorrections = maxCorrections;
+    periodNs = config.periodNs();
+    double threshold = (double) config.alignThresholdNs() / periodNs;
+    noiseVariance = threshold * threshold;
+    theta0 = PRIOR_GAIN;
+    theta1 = PRIOR_GAIN * (config.overheadNs() - periodNs) / periodNs;
+    p00 = PRIOR_VARIANCE;
+    p01 = 0;
+    p11 = PRIOR_VARIANCE;
+    exposureFloorNs = config.minExposureNs();
+    goalPhaseNs = config.goalPhaseNs();
+    toleranceNs = config.alignThresholdNs();
+  }
+
+  /** Starts aligning to the goal phase of the config from the next frames. */
+  public boolean start() {
+    return start(config.goalPhaseNs());
+  }
+
+  /**
+   * Starts aligning to the given goal phase from the next frames, e.g. one shared by all devices or
+   * offset ahead of a known drift.
+   *
+   * @return false if already aligning.
+   */
+  public boolean start(long goalPhaseNs) {
+    return start(goalPhaseNs, config.alignThresholdNs());
+  }
+
+  /**
+   * Starts aligning to the given goal phase from the next frames, to within the given tolerance
+   * rather than the threshold of the config, e.g. to correct a small error precisely.
+   *
+   * @return false if already aligning.
+   */
+  public synchronized boolean start(long goalPhaseNs, long toleranceNs) {
+    if (state != State.IDLE) {
+      return false;
+    }
+    this.goalPhaseNs = Math.floorMod(goalPhaseNs, periodNs);
+    this.toleranceNs = toleranceNs;
+    detectNs = Math.max(1, toleranceNs / 2);
+    state = State.MEASURING;
+    corrections = 0;
+    aligned = false;
+    phaseSumNs = 0;
+    phaseCount = 0;
+    framesSinceStart = 0;
+    framesToAlign = -1;
+    return true;
+  }
+
+  /** Stops aligning, leaving the learned model as is. */
+  public synchronized void stop() {
+    state = State.IDLE;
+  }
+
+  /**
+   * Passes the timestamp of a new frame, not an injected one, in the clock domain of the config.
+   */
+  public synchronized void onFrameTimestamp(long timestampNs) {
+    if (state == State.IDLE) {
+      return;
+    }
+    framesSinceStart++;
+    final long phaseNs = Math.floorMod(timestampNs, periodNs);
+    switch (state) {
+      case MEASURING:
+        // Accumulate relative to the first frame so the mean does not break at the wrap, and
+        // start over if the phase is still moving.
+        if (phaseCount == 0
+            || Math.abs(wrap(phaseNs - referencePhaseNs) - phaseSumNs / phaseCount) > detectNs) {
+          referencePhaseNs = phaseNs;
+          phaseSumNs = 0;
+          phaseCount = 0;
+        }
+        phaseSumNs += wrap(phaseNs - referencePhaseNs);
+        phaseCount++;
+        if (phaseCount >= BASELINE_FRAMES) {
+          onPhaseSettled(Math.floorMod(referencePhaseNs + phaseSumNs / phaseCount, periodNs));
+        }
+        break;
+      case WAITING:
+        framesWaited++;
+        if (Math.abs(wrap(phaseNs - injectionPhaseNs)) <= detectNs) {
+          // Not shifted yet, or a jittered frame.
+          phaseCount = 0;
+          if (framesWaited > MAX_WAIT_FRAMES) {
+            onNoShift();
+          }
+        } else if (phaseCount > 0
+            && Math.abs(wrap(phaseNs - referencePhaseNs) - phaseSumNs / phaseCount) <= detectNs) {
+          phaseSumNs += wrap(phaseNs - referencePhaseNs);
+          phaseCount++;
+          if (phaseCount >= SETTLE_FRAMES) {
+            long settledPhaseNs =
+                Math.floorMod(referencePhaseNs + phaseSumNs / phaseCount, periodNs);
+            learn(injectedExposureNs, Math.floorMod(settledPhaseNs - injectionPhaseNs, periodNs));
+            onPhaseSettled(settledPhaseNs);
+          }
+        } else {
+          // Shifted, or still moving, e.g. a shift spread over several frames.
+          referencePhaseNs = phaseNs;
+          phaseSumNs = 0;
+          phaseCount = 1;
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  /** The phase is stable: done if aligned, otherwise issue the next correction right away. */
+  private void onPhaseSettled(long phaseNs) {
+    lastErrorNs = wrap(goalPhaseNs - phaseNs);
+    if (Math.abs(lastErrorNs) < toleranceNs) {
+      aligned = true;
+      framesToAlign = framesSinceStart;
+      state = State.IDLE;
+      return;
+    }
+    if (corrections >= maxCorrections) {
+      state = State.IDLE;
+      return;
+    }
+    // Only forward shifts are possible.
+    long desiredShiftNs = Math.floorMod(lastErrorNs, periodNs);
+    injectedExposureNs = exposureForShift(desiredShiftNs);
+    injectionPhaseNs = phaseNs;
+    phaseCount = 0;
+    framesWaited = 0;
+    corrections++;
+    state = State.WAITING;
+    injector.injectFrame(injectedExposureNs);
+  }
+
+  /** The injection had no visible effect, the exposure was too short to shift the phase. */
+  private void onNoShift() {
+    exposureFloorNs = Math.max(exposureFloorNs, injectedExposureNs + periodNs / 20);
+    onPhaseSettled(injectionPhaseNs);
+  }
+
+  /** Exposure expected to shift the phase forward by the given amount, per the current model. */
+  long exposureForShift(long shiftNs) {
+    double gain = theta0 < 0.1 ? PRIOR_GAIN : theta0;
+    double exposure = ((double) shiftNs / periodNs - theta1) / gain * periodNs;
+    // Anything much longer than needed for a full period of shift is a bad model, cap it.
+    long maxExposureNs = 3 * periodNs;
+    return Math.min(maxExposureNs, Math.max(exposureFloorNs, Math.round(exposure)));
+  }
+
+  /** Recursive least squares update of the model with an observed exposure and shift. */
+  private void learn(long exposureNs, long shiftNs) {
+    double x = (double) exposureNs / periodNs;
+    // The shift is only known modulo the period, take the one closest to the prediction, e.g. a
+    // shift just over a period rather than a small one.
+    double y = (double) shiftNs / periodNs;
+    y += Math.round(theta0 * x + theta1 - y);
+    // P * phi, with phi = [x, 1].
+    double pp0 = p00 * x + p01;
+    double pp1 = p01 * x + p11;
+    double denominator = noiseVariance + x * pp0 + pp1;
+    double k0 = pp0 / denominator;
+    double k1 = pp1 / denominator;
+    double residual = y - (theta0 * x + theta1);
+    theta0 += k0 * residual;
+    theta1 += k1 * residual;
+    // P -= K * phi' * P.
+    double n00 = p00 - k0 * pp0;
+    double n01 = p01 - k0 * pp1;
+    double n11 = p11 - k1 * pp1;
+    p00 = n00;
+    p01 = n01;
+    p11 = n11;
+  }
+
+  /** Wraps a phase difference into [-period / 2, period / 2). */
+  private long wrap(long differenceNs) {
+    return Math.floorMod(differenceNs + periodNs / 2, periodNs) - periodNs / 2;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /** Goal phase of the current or last alignment. */
+  public synchronized long getGoalPhaseNs() {
+    return goalPhaseNs;
+  }
+
+  /** Whether the last alignment reached the goal phase. */
+  public synchronized boolean isAligned() {
+    return aligned;
+  }
+
+  /** Frames injected by the current or last alignment. */
+  public synchronized int getCorrections() {
+    return corrections;
+  }
+
+  /** Frames from the start of the last alignment until aligned, or -1. */
+  public synchronized int getFramesToAlign() {
+    return framesToAlign;
+  }
+
+  /** Difference from the goal phase when the phase last settled. */
+  public synchronized long getLastErrorNs() {
+    return lastErrorNs;
+  }
+
+  /** Learned phase shift per ns of injected exposure. */
+  public synchronized double getGain() {
+    return theta0;
+  }
+
+  /**
+   * Learned overhead of an injected frame on top of its exposure, in the sense of {@link
+   * PhaseConfig#overheadNs()}.
+   */
+  public synchronized long getOverheadNs() {
+    return Math.round(periodNs * (1 + theta1 / theta0));
+  }
+}
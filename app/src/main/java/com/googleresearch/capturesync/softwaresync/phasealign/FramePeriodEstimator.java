@@ -0,0 +1,236 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync.phasealign;
+
+/**
+ * Online estimate of the frame period from a stream of frame timestamps, updated with every frame
+ * and without allocation.
+ *
+ * <p>Keeps the inter-frame deltas of the last frames in a primitive ring. On each frame, the median
+ * delta gives a rough period, each delta is divided by its nearest whole number of periods to
+ * account for skipped frames, and deltas too far from a whole number are ignored as outliers. The
+ * estimate is then the sum of the inlier deltas over their total number of periods, which averages
+ * out the jitter.
+ *
+ * <p>The estimate is converged once there are enough inliers and its standard error is small
+ * enough, which at 30 fps typically takes well under a second. The median assumes fewer than half
+ * of the frames were skipped.
+ *
+ * <p>Thread safe: frames are usually fed from the camera thread while another waits for
+ * convergence.
+ */
+public final class FramePeriodEstimator {
+  /** Deltas further than this fraction of a period from a whole number of periods are outliers. */
+  private static final double INLIER_TOLERANCE = 0.15;
+
+  private final int minSamples;
+  private final long convergenceNs;
+
+  /** Ring of the last deltas, deltaCount of them valid, the next written at deltaIndex. */
+  private final long[] deltas;
+
+  private int deltaCount = 0;
+  private int deltaIndex = 0;
+
+  /** Scratch for the median. */
+  private final long[] sorted;
+
+  private long lastTimestampNs = 0;
+  private boolean hasLastTimestamp = false;
+
+  private long periodNs = 0;
+  private long standardErrorNs = Long.MAX_VALUE;
+  private int inlierCount = 0;
+  private long skippedFrames = 0;
+  private boolean converged = false;
+
+  /**
+   * @param windowSize number of most recent inter-frame deltas used.
+   * @param minSamples inlier deltas needed before the estimate may be converged.
+   * @param convergenceNs standard error of the estimate below which it is converged.
+   */
+  public FramePeriodEstimator(int windowSize, int minSamples, long convergenceNs) {
+    if (windowSize < 3 || minSamples < 2 || minSamples > windowSize) {
+      throw new IllegalArgumentException(
+          "Invalid window size " + windowSize + " or minimum samples " + minSamples);
+    }
+    this.minSamples = minSamples;
+    this.convergenceNs = convergenceNs;
+    deltas = new long[windowSize];
+    sorted = new long[windowSize];
+  }
+
+  /** Forgets all frames, e.g. after the exposure or frame rate changed. */
+  public synchronized void reset() {
+    deltaCount = 0;
+    deltaIndex = 0;
+    hasLastTimestamp = false;
+    periodNs = 0;
+    standardErrorNs = Long.MAX_VALUE;
+    inlierCount = 0;
+    skippedFrames = 0;
+    converged = false;
+  }
+
+  /** Adds the timestamp of a new frame, which must be later than the previous one. */
+  public synchronized void onFrameTimestamp(long timestampNs) {
+    if (hasLastTimestamp) {
+      long delta = timestampNs - lastTimestampNs;
+      if (delta <= 0) {
+        // Repeated or out of order, ignore it.
+        return;
+      }
+      deltas[deltaIndex] = delta;
+      deltaIndex = (deltaIndex + 1) % deltas.length;
+      deltaCount = Math.min(deltaCount + 1, deltas.length);
+      update();
+    }
+    lastTimestampNs = timestampNs;
+    hasLastTimestamp = true;
+  }
+
+  private void update() {
+    System.arraycopy(deltas, 0, sorted, 0, deltaCount);
+    final long roughNs = select(sorted, deltaCount, deltaCount / 2);
+
+    long sumDeltas = 0;
+    long sumPeriods = 0;
+    int inliers = 0;
+    long skipped = 0;
+    for (int i = 0; i < deltaCount; i++) {
+      long delta = deltas[i];
+      long periods = Math.max(1, Math.round((double) delta / roughNs));
+      if (Math.abs(delta - periods * roughNs) <= INLIER_TOLERANCE * roughNs) {
+        sumDeltas += delta;
+        sumPeriods += periods;
+        inliers++;
+        skipped += periods - 1;
+      }
+    }
+    if (sumPeriods == 0) {
+      return;
+    }
+    final double estimateNs = (double) sumDeltas / sumPeriods;
+
+    // Spread of the per period samples, each delta weighing its number of periods.
+    double sumSquares = 0;
+    for (int i = 0; i < deltaCount; i++) {
+      long delta = deltas[i];
+      long periods = Math.max(1, Math.round((double) delta / roughNs));
+      if (Math.abs(delta - periods * roughNs) <= INLIER_TOLERANCE * roughNs) {
+        double residual = (double) delta / periods - estimateNs;
+        sumSquares += periods * residual * residual;
+      }
+    }
+
+    periodNs = Math.round(estimateNs);
+    inlierCount = inliers;
+    skippedFrames = skipped;
+    standardErrorNs =
+        inliers < 2
+            ? Long.MAX_VALUE
+            : Math.round(Math.sqrt(sumSquares / (sumPeriods - 1) / sumPeriods));
+    boolean wasConverged = converged;
+    converged = inliers >= minSamples && standardErrorNs <= convergenceNs;
+    if (converged && !wasConverged) {
+      notifyAll();
+    }
+  }
+
+  /** The k-th smallest of the first n values, partially reordering them. */
+  private static long select(long[] values, int n, int k) {
+    int left = 0;
+    int right = n - 1;
+    while (left < right) {
+      long pivot = values[(left + right) >>> 1];
+      int i = left;
+      int j = right;
+      while (i <= j) {
+        while (values[i] < pivot) {
+          i++;
+        }
+        while (values[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          long swap = values[i];
+          values[i] = values[j];
+          values[j] = swap;
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        right = j;
+      } else if (k >= i) {
+        left = i;
+      } else {
+        break;
+      }
+    }
+    return values[k];
+  }
+
+  /** Current estimate of the period, or 0 before the second frame. */
+  public synchronized long getPeriodNs() {
+    return periodNs;
+  }
+
+  /** Standard error of the current estimate, Long.MAX_VALUE until there are two inliers. */
+  public synchronized long getStandardErrorNs() {
+    return standardErrorNs;
+  }
+
+  /** Number of deltas of the window used for the estimate. */
+  public synchronized int getInlierCount() {
+    return inlierCount;
+  }
+
+  /** Number of frames skipped within the window. */
+  public synchronized long getSkippedFrames() {
+    return skippedFrames;
+  }
+
+  /**
+   * Whether there are enough inliers for the estimate to be used, even if its standard error is
+   * still too large for it to be converged.
+   */
+  public synchronized boolean hasMinSamples() {
+    return inlierCount >= minSamples;
+  }
+
+  public synchronized boolean isConverged() {
+    return converged;
+  }
+
+  /**
+   * Waits until the estimate converges.
+   *
+   * @return whether it converged within the timeout.
+   */
+  public synchronized boolean awaitConvergence(long timeoutMs) throws InterruptedException {
+    final long deadlineMs = System.currentTimeMillis() + timeoutMs;
+    while (!converged) {
+      long remainingMs = deadlineMs - System.currentTimeMillis();
+      if (remainingMs <= 0) {
+        return false;
+      }
+      wait(remainingMs);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync.phasealign;
+
+import java.util.Random;
+
+/**
+ * Simulated frame timestamps of a camera stream with injected frames, to tune and benchmark phase
+ * alignment without a device.
+ *
+ * <p>An injected frame lasts its exposure plus a jittered overhead, but at least a period, and
+ * shifts the phase of the stream by a gain times how much it overran the period. Its effect shows
+ * after a latency of some frames, as the request goes through the camera pipeline, and the injected
+ * frame itself is not delivered, like those skipped by {@link
+ * com.googleresearch.capturesync.CameraControllerSync}.
+ */
+public final class FrameTimingSimulator implements ClosedLoopPhaseAligner.FrameInjector {
+  private final long periodNs;
+  private final double gain;
+  private final long overheadNs;
+  private final double overheadJitterNs;
+  private final double timestampJitterNs;
+  private final int latencyFrames;
+  private final Random random;
+
+  private long frameStartNs;
+  /** Shift of the pending injection, applied when framesUntilShift reaches 0. */
+  private long pendingShiftNs = 0;
+  private int framesUntilShift = -1;
+  private int injectedFrames = 0;
+  private double driftNsPerFrame = 0;
+  private double driftRemainderNs = 0;
+
+  /**
+   * @param gain phase shift per ns of frame duration over the period, 1 for an ideal sensor.
+   * @param latencyFrames frames delivered before an injection takes effect.
+   */
+  public FrameTimingSimulator(
+      long periodNs,
+      double gain,
+      long overheadNs,
+      double overheadJitterNs,
+      double timestampJitterNs,
+      int latencyFrames,
+      long seed) {
+    this.periodNs = periodNs;
+    this.gain = gain;
+    this.overheadNs = overheadNs;
+    this.overheadJitterNs = overheadJitterNs;
+    this.timestampJitterNs = timestampJitterNs;
+    this.latencyFrames = latencyFrames;
+    random = new Random(seed);
+    frameStartNs = 1000000000L + Math.floorMod(random.nextLong(), periodNs);
+  }
+
+  /** Queues a frame with the given exposure, replacing one still queued. */
+  @Override
+  public void injectFrame(long exposureTimeNs) {
+    long durationNs =
+        Math.max(
+            periodNs,
+            exposureTimeNs + overheadNs + Math.round(random.nextGaussian() * overheadJitterNs));
+    pendingShiftNs = Math.round(gain * (durationNs - periodNs));
+    framesUntilShift = latencyFrames;
+    injectedFrames++;
+  }
+
+  /** Timestamp of the next delivered frame. */
+  public long nextFrameTimestampNs() {
+    if (framesUntilShift == 0) {
+      frameStartNs += pendingShiftNs;
+      framesUntilShift = -1;
+    } else if (framesUntilShift > 0) {
+      framesUntilShift--;
+    }
+    driftRemainderNs += driftNsPerFrame;
+    long driftNs = (long) driftRemainderNs;
+    driftRemainderNs -= driftNs;
+    frameStartNs += periodNs + driftNs;
+    return frameStartNs + Math.round(random.nextGaussian() * timestampJitterNs);
+  }
+
+  /**
+   * Makes the actual frame duration differ from the period, e.g. since the sensor clock is off from
+   * the synchronized clock, drifting the phase.
+   */
+  public void setDriftNsPerFrame(double driftNsPerFrame) {
+    this.driftNsPerFrame = driftNsPerFrame;
+  }
+
+  /** Phase the stream would have without timestamp jitter. */
+  public long getPhaseNs() {
+    return Math.floorMod(frameStartNs, periodNs);
+  }
+
+  public int getInjectedFrames() {
+    return injectedFrames;
+  }
+}
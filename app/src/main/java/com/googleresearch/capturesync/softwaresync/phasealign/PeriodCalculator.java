@@ -13,20 +13,22 @@ import net.sourceforge.opencamera.multisync.R;
 import net.sourceforge.opencamera.multisync.ToastBoxer;
 import net.sourceforge.opencamera.multisync.Preview.Preview;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
-import java.util.stream.Collectors;
-
 public class PeriodCalculator {
     private final Context mContext;
     private final Preview mPreview;
 
     private volatile boolean mShouldRegister;
-    private ArrayList<Long> mRegisteredTimestamps = new ArrayList<>();
+    private final FramePeriodEstimator mEstimator =
+            new FramePeriodEstimator(WINDOW_FRAMES, MIN_SAMPLES, CONVERGENCE_NS);
 
+    /** Longest wait for the estimate to converge. */
     private final long CALC_DURATION_MS = 10000L;
+    /** Inter-frame deltas kept for the estimate, about 2 seconds at 30 fps. */
+    private static final int WINDOW_FRAMES = 64;
+    /** Deltas needed before the estimate may be used. */
+    private static final int MIN_SAMPLES = 10;
+    /** Standard error of the estimate at which it is used. */
+    private static final long CONVERGENCE_NS = 20000L;
 
     public PeriodCalculator(Context context, Preview preview) {
         mContext = context;
@@ -35,70 +37,46 @@ public class PeriodCalculator {
 
     /**
      * Calculates frames period for this device using timestamps received from
-     * {@link #onFrameTimestamp} during the waiting time.
+     * {@link #onFrameTimestamp}, as soon as the estimate of a {@link FramePeriodEstimator}
+     * converges, typically within a second.
      * <p>
-     * Blocking call, sleeps for
-     * {@link com.googleresearch.capturesync.softwaresync.SyncConstants#CALC_DURATION_MS CALC_DURATION_MS}.
+     * Blocking call, waits for at most {@link #CALC_DURATION_MS}.
      *
-     * @return the calculated period, 0 in case of error.
-     * @throws InterruptedException if interrupted while sleeping.
+     * @return the calculated period, or the current estimate if it did not converge in time but
+     * had at least {@link #MIN_SAMPLES} inliers, 0 if there were fewer.
+     * @throws InterruptedException if interrupted while waiting.
      */
     public long getPeriodNs() throws InterruptedException {
         //LUK:
-        mPreview.showToast("Calculating frames period for " + (CALC_DURATION_MS * 1e-3) + " seconds", false);
-        // Start recording timestamps
-        mRegisteredTimestamps = new ArrayList<>();
+        mPreview.showToast("Calculating frames period", false);
+        // Start registering timestamps
+        mEstimator.reset();
         mShouldRegister = true;
-        Thread.sleep(CALC_DURATION_MS);
-        // Stop recording timestamps and calculate period
-        mShouldRegister = false;
-        return calcPeriodNsClusters(getDiff(mRegisteredTimestamps));
-    }
-
-    private List<Long> getDiff(ArrayList<Long> list) {
-        // TODO: check if filtering remains necessary after phase alignment gets fixed.
-        List<Long> result = StreamUtils.zip(list.stream(), list.stream().skip(1),
-                (Long x, Long y) -> y - x).filter(it -> it != 0L).collect(Collectors.toList());
-        return result;
-    }
-
-    private long calcPeriodNsClusters(List<Long> numArray) {
-        long initEstimate = Collections.min(numArray);
-        long nClust = Math.round(1.0 * Collections.max(numArray) / initEstimate);
-        double weightedSum = 0L;
-        for (int i = 0; i < nClust; i++) {
-            int finalI = i;
-            ArrayList<Long> clust = (ArrayList<Long>) numArray.stream().filter(
-                    x -> (x > (finalI + 0.5) * initEstimate) && (x < (finalI + 1.5) * initEstimate)
-            ).collect(Collectors.toList());
-            if (clust.size() > 0) {
-                weightedSum += 1.0 * median(clust) / (i + 1) * clust.size();
+        boolean converged;
+        try {
+            converged = mEstimator.awaitConvergence(CALC_DURATION_MS);
+        } finally {
+            // Stop registering timestamps
+            mShouldRegister = false;
+        }
+        final long period = mEstimator.getPeriodNs();
+        if (!converged) {
+            if (!mEstimator.hasMinSamples()) {
+                mPreview.showToast("Too few frames to calculate the period in " + (CALC_DURATION_MS * 1e-3) + " seconds", false);
+                return 0L;
             }
+            // A noisy estimate is still far better than none.
+            mPreview.showToast("Period: " + period + " +/- " + mEstimator.getStandardErrorNs() + ", did not converge", false);
+            return period;
         }
-        final long period = Math.round(weightedSum / numArray.size());
         mPreview.showToast("Period: " + period, false);
         return period;
     }
 
-    private long calcPeriodNsMedian(ArrayList<Long> numArray) {
-        return median(numArray);
-    }
-
-    private long median(ArrayList<Long> numArray) {
-        numArray.sort(Comparator.naturalOrder());
-        double median;
-        if (numArray.size() % 2 == 0)
-            median = ((double) numArray.get(numArray.size() / 2)
-                    + (double) numArray.get(numArray.size() / 2 - 1)) / 2;
-        else
-            median = (double) numArray.get(numArray.size() / 2);
-        return (long) median;
-    }
-
     public void onFrameTimestamp(long timestampNs) {
         // Register timestamp
         if (mShouldRegister) {
-            mRegisteredTimestamps.add(timestampNs);
+            mEstimator.onFrameTimestamp(timestampNs);
         }
     }
 }
@@ -0,0 +1,361 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync.phasealign;
+
+import java.util.Arrays;
+
+/**
+ * Calibrates the {@link PhaseConfig} of a device from its frame timestamps, instead of tuning it by
+ * hand.
+ *
+ * <p>First estimates the period with a {@link FramePeriodEstimator}, then sweeps the exposure of
+ * injected frames over half a period to one and a half periods. After each injection it waits for
+ * the phase to shift and settle, or for no shift at all, and records the shift. {@link #fit} then
+ * fits a line through the exposures that shifted the phase, which gives where it crosses zero and
+ * so the overhead and the minimum exposure that shifts the phase.
+ *
+ * <p>The fit only needs the exposures and shifts, so it can be checked against recorded traces.
+ *
+ * <p>Thread safe: frames are usually fed from the camera thread while another reads the state.
+ * Frames are injected through the {@link ClosedLoopPhaseAligner.FrameInjector} from the thread
+ * feeding frames.
+ */
+public final class PhaseCalibrator {
+  /** Where the calibrator is in the calibration process. */
+  public enum State {
+    IDLE,
+    /** Estimating the period. */
+    PERIOD,
+    /** Injecting frames and measuring the shifts. */
+    SWEEP,
+    DONE,
+    FAILED,
+  }
+
+  /** Fitted relationship between injected exposure and phase shift. */
+  public static final class Fit {
+    /** Phase shift per ns of exposure beyond the minimum, 2 in the model of {@link PhaseAligner}. */
+    public final double gain;
+    /** Frame duration minus exposure, where the shift starts at an exposure of period - overhead. */
+    public final long overheadNs;
+    /** Lowest exposure that shifts the phase by a detectable amount. */
+    public final long minExposureNs;
+    /** Root mean square of the shifts around the fitted line. */
+    public final long residualNs;
+    /** Number of exposures that shifted the phase and went into the fit. */
+    public final int points;
+
+    Fit(double gain, long overheadNs, long minExposureNs, long residualNs, int points) {
+      this.gain = gain;
+      this.overheadNs = overheadNs;
+      this.minExposureNs = minExposureNs;
+      this.residualNs = residualNs;
+      this.points = points;
+    }
+
+    /** The config with the given period and the fitted values, keeping the goal and threshold. */
+    public PhaseConfig toConfig(PhaseConfig base, long periodNs) {
+      return PhaseConfig.create(
+          periodNs, base.goalPhaseNs(), base.alignThresholdNs(), overheadNs, minExposureNs);
+    }
+
+    @Override
+    public String toString() {
+      return "Fit{gain="
+          + gain
+          + ", overheadNs="
+          + overheadNs
+          + ", minExposureNs="
+          + minExposureNs
+          + ", residualNs="
+          + residualNs
+          + ", points="
+          + points
+          + "}";
+    }
+  }
+
+  /**
+   * Frames the period is estimated over at least, since any error in it drifts the phase during
+   * the sweep, and at most before giving up.
+   */
+  public static final int MIN_PERIOD_FRAMES = 64;
+  public static final int MAX_PERIOD_FRAMES = 300;
+  /** Consecutive frames within the tolerance of each other for the phase to be settled. */
+  public static final int SETTLE_FRAMES = 3;
+  /** Frames after an injection without a phase shift before it is taken to have had no effect. */
+  public static final int MAX_WAIT_FRAMES = 20;
+  /** Exposures that shifted the phase needed for a fit. */
+  public static final int MIN_FIT_POINTS = 3;
+
+  private static final double SWEEP_START_PERIODS = 0.5;
+  private static final double SWEEP_END_PERIODS = 1.5;
+
+  private final PhaseConfig base;
+  private final ClosedLoopPhaseAligner.FrameInjector injector;
+  private final FramePeriodEstimator periodEstimator;
+  private final long detectNs;
+  private final long[] exposuresNs;
+  private final long[] shiftsNs;
+
+  private State state = State.IDLE;
+  private long periodNs;
+  private int step;
+  private int frames;
+
+  /* Phase measurement, as in ClosedLoopPhaseAligner. */
+  private boolean injected;
+  private long referencePhaseNs;
+  private long phaseSumNs;
+  private int phaseCount;
+  private int framesWaited;
+  private long injectionPhaseNs;
+
+  private Fit fit;
+  private PhaseConfig result;
+
+  /**
+   * @param base config whose goal phase and threshold are kept, the threshold also being the
+   *     precision of the measured shifts.
+   * @param steps number of exposures swept.
+   */
+  public PhaseCalibrator(
+      PhaseConfig base, ClosedLoopPhaseAligner.FrameInjector injector, int steps) {
+    if (steps < MIN_FIT_POINTS * 2) {
+      throw new IllegalArgumentException("Too few steps: " + steps);
+    }
+    this.base = base;
+    this.injector = injector;
+    periodEstimator =
+        new FramePeriodEstimator(MIN_PERIOD_FRAMES, 10, base.alignThresholdNs() / 20);
+    detectNs = Math.max(1, base.alignThresholdNs() / 2);
+    exposuresNs = new long[steps];
+    shiftsNs = new long[steps];
+  }
+
+  /** Starts calibrating from the next frames, returns false if already calibrating. */
+  public synchronized boolean start() {
+    if (state == State.PERIOD || state == State.SWEEP) {
+      return false;
+    }
+    periodEstimator.reset();
+    state = State.PERIOD;
+    frames = 0;
+    step = 0;
+    fit = null;
+    result = null;
+    return true;
+  }
+
+  /** Passes the timestamp of a new frame, not an injected one. */
+  public synchronized void onFrameTimestamp(long timestampNs) {
+    switch (state) {
+      case PERIOD:
+        periodEstimator.onFrameTimestamp(timestampNs);
+        frames++;
+        if (frames >= MIN_PERIOD_FRAMES && periodEstimator.isConverged()) {
+          periodNs = periodEstimator.getPeriodNs();
+          state = State.SWEEP;
+          injected = false;
+          phaseCount = 0;
+        } else if (frames >= MAX_PERIOD_FRAMES) {
+          state = State.FAILED;
+        }
+        break;
+      case SWEEP:
+        onSweepFrame(Math.floorMod(timestampNs, periodNs));
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void onSweepFrame(long phaseNs) {
+    if (!injected) {
+      // Settle the phase before the first injection.
+      if (!settle(phaseNs)) {
+        return;
+      }
+      inject(settledPhaseNs());
+      return;
+    }
+    framesWaited++;
+    if (Math.abs(wrap(phaseNs - injectionPhaseNs)) <= detectNs) {
+      phaseCount = 0;
+      if (framesWaited > MAX_WAIT_FRAMES) {
+        record(0);
+        // From this frame, so that any error in the period does not add up over the steps.
+        next(phaseNs);
+      }
+    } else if (settle(phaseNs)) {
+      long settledNs = settledPhaseNs();
+      record(Math.floorMod(settledNs - injectionPhaseNs, periodNs));
+      next(settledNs);
+    }
+  }
+
+  /** Adds the phase of a frame, returns whether the last frames settled. */
+  private boolean settle(long phaseNs) {
+    if (phaseCount == 0
+        || Math.abs(wrap(phaseNs - referencePhaseNs) - phaseSumNs / phaseCount) > detectNs) {
+      referencePhaseNs = phaseNs;
+      phaseSumNs = 0;
+      phaseCount = 0;
+    }
+    phaseSumNs += wrap(phaseNs - referencePhaseNs);
+    phaseCount++;
+    return phaseCount >= SETTLE_FRAMES;
+  }
+
+  private long settledPhaseNs() {
+    return Math.floorMod(referencePhaseNs + phaseSumNs / phaseCount, periodNs);
+  }
+
+  private void record(long shiftNs) {
+    shiftsNs[step] = shiftNs;
+    step++;
+  }
+
+  private void next(long phaseNs) {
+    if (step < exposuresNs.length) {
+      inject(phaseNs);
+      return;
+    }
+    fit = fit(periodNs, exposuresNs, shiftsNs, step, detectNs);
+    if (fit == null) {
+      state = State.FAILED;
+    } else {
+      result = fit.toConfig(base, periodNs);
+      state = State.DONE;
+    }
+  }
+
+  private void inject(long phaseNs) {
+    double periods =
+        SWEEP_START_PERIODS
+            + (SWEEP_END_PERIODS - SWEEP_START_PERIODS) * step / (exposuresNs.length - 1);
+    exposuresNs[step] = Math.round(periods * periodNs);
+    injectionPhaseNs = phaseNs;
+    phaseCount = 0;
+    framesWaited = 0;
+    injected = true;
+    injector.injectFrame(exposuresNs[step]);
+  }
+
+  private long wrap(long differenceNs) {
+    return Math.floorMod(differenceNs + periodNs / 2, periodNs) - periodNs / 2;
+  }
+
+  /**
+   * Fits the shifts measured for increasing exposures, each in [0, period), by a line through the
+   * exposures that shifted the phase by more than detectNs.
+   *
+   * <p>Consecutive shifts must differ by less than half a period, so that shifts past a period can
+   * be unwrapped.
+   *
+   * @return the fit, or null with fewer than {@link #MIN_FIT_POINTS} shifts or a non positive gain.
+   */
+  public static Fit fit(
+      long periodNs, long[] exposuresNs, long[] shiftsNs, int count, long detectNs) {
+    double[] x = new double[count];
+    double[] y = new double[count];
+    int n = 0;
+    double previousNs = 0;
+    for (int i = 0; i < count; i++) {
+      if (i > 0 && exposuresNs[i] < exposuresNs[i - 1]) {
+        throw new IllegalArgumentException("Exposures must increase: " + Arrays.toString(exposuresNs));
+      }
+      long shiftNs = shiftsNs[i];
+      if (n == 0) {
+        // Exposures too short to shift the phase, then the first and smallest shift.
+        if (shiftNs <= detectNs || shiftNs >= periodNs - detectNs) {
+          continue;
+        }
+      } else {
+        shiftNs += periodNs * Math.round((previousNs - shiftNs) / periodNs);
+      }
+      x[n] = exposuresNs[i];
+      y[n] = shiftNs;
+      previousNs = shiftNs;
+      n++;
+    }
+    if (n < MIN_FIT_POINTS) {
+      return null;
+    }
+
+    double meanX = 0;
+    double meanY = 0;
+    for (int i = 0; i < n; i++) {
+      meanX += x[i];
+      meanY += y[i];
+    }
+    meanX /= n;
+    meanY /= n;
+    double covariance = 0;
+    double variance = 0;
+    for (int i = 0; i < n; i++) {
+      covariance += (x[i] - meanX) * (y[i] - meanY);
+      variance += (x[i] - meanX) * (x[i] - meanX);
+    }
+    if (variance <= 0) {
+      return null;
+    }
+    double gain = covariance / variance;
+    if (gain <= 0) {
+      return null;
+    }
+    double intercept = meanY - gain * meanX;
+    double sumSquares = 0;
+    for (int i = 0; i < n; i++) {
+      double residual = y[i] - intercept - gain * x[i];
+      sumSquares += residual * residual;
+    }
+
+    // The line crosses zero at the exposure where frames start to last longer than a period.
+    double zeroShiftExposureNs = -intercept / gain;
+    return new Fit(
+        gain,
+        Math.round(periodNs - zeroShiftExposureNs),
+        Math.round(zeroShiftExposureNs + detectNs / gain),
+        Math.round(Math.sqrt(sumSquares / n)),
+        n);
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /** Period estimated, or 0 before. */
+  public synchronized long getPeriodNs() {
+    return state == State.PERIOD || state == State.IDLE ? 0 : periodNs;
+  }
+
+  /** Exposures injected so far. */
+  public synchronized int getSteps() {
+    return step;
+  }
+
+  /** The fit once done, or null. */
+  public synchronized Fit getFit() {
+    return fit;
+  }
+
+  /** The calibrated config once done, or null. */
+  public synchronized PhaseConfig getResult() {
+    return result;
+  }
+}
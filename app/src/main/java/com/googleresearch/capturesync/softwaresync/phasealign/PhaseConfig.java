@@ -39,6 +39,12 @@ public final class PhaseConfig {
     this.minExposureNs = minExposureNs;
   }
 
+  /** Create from the given values, e.g. for a calibrated or simulated device. */
+  public static PhaseConfig create(
+      long periodNs, long goalPhaseNs, long alignThresholdNs, long overheadNs, long minExposureNs) {
+    return new PhaseConfig(periodNs, goalPhaseNs, alignThresholdNs, overheadNs, minExposureNs);
+  }
+
   /** Parse from a given JSON. */
   public static PhaseConfig parseFromJSON(JSONObject json) throws JSONException {
     if (!json.has("periodNs")) {
@@ -64,6 +70,17 @@ public final class PhaseConfig {
         json.getLong("minExposureNs"));
   }
 
+  /** The JSON read by {@link #parseFromJSON}, e.g. to store a calibrated config. */
+  public JSONObject toJSON() throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("periodNs", periodNs);
+    json.put("goalPhaseNs", goalPhaseNs);
+    json.put("alignThresholdNs", alignThresholdNs);
+    json.put("overheadNs", overheadNs);
+    json.put("minExposureNs", minExposureNs);
+    return json;
+  }
+
   /**
    * Nominal period between two frames in the image sequence. This is usually very close to the
    * `SENSOR_FRAME_DURATION`. The period is assumed to be constant for the duration of phase
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync.phasealign;
+
+/**
+ * Tracks how the phase error drifts over time, by a least squares line through the errors of the
+ * last frames.
+ *
+ * <p>The slope is the drift rate, which tells how fast a device wanders from the goal phase, and
+ * the line extrapolates the error to decide when to correct before the error reaches the
+ * threshold. Errors must stay continuous, so the tracker is reset whenever the phase is moved on
+ * purpose.
+ *
+ * <p>Thread safe: frames are usually fed from the camera thread while the UI reads the drift.
+ */
+public final class PhaseDriftTracker {
+  private final long[] timestampsNs;
+  private final long[] errorsNs;
+  private final int minSamples;
+
+  private int count = 0;
+  private int index = 0;
+
+  /* Fit of error = intercept + slope * (t - t0), with t0 the oldest timestamp in the window. */
+  private boolean fitValid = false;
+  private long fitOriginNs;
+  private double interceptNs;
+  private double slope;
+  private double residualNs;
+
+  /**
+   * @param windowFrames number of most recent frames fitted.
+   * @param minSamples frames needed before there is a drift estimate.
+   */
+  public PhaseDriftTracker(int windowFrames, int minSamples) {
+    if (minSamples < 2 || minSamples > windowFrames) {
+      throw new IllegalArgumentException(
+          "Invalid window " + windowFrames + " or minimum samples " + minSamples);
+    }
+    timestampsNs = new long[windowFrames];
+    errorsNs = new long[windowFrames];
+    this.minSamples = minSamples;
+  }
+
+  /** Forgets all frames, e.g. after the phase was shifted. */
+  public synchronized void reset() {
+    count = 0;
+    index = 0;
+    fitValid = false;
+  }
+
+  /** Adds the phase error, goal minus phase, of a new frame. */
+  public synchronized void onPhaseError(long timestampNs, long errorNs) {
+    timestampsNs[index] = timestampNs;
+    errorsNs[index] = errorNs;
+    index = (index + 1) % timestampsNs.length;
+    count = Math.min(count + 1, timestampsNs.length);
+    if (count >= minSamples) {
+      fit();
+    }
+  }
+
+  private void fit() {
+    final int oldest = (index - count + timestampsNs.length) % timestampsNs.length;
+    fitOriginNs = timestampsNs[oldest];
+    double sumT = 0;
+    double sumE = 0;
+    for (int i = 0; i < count; i++) {
+      int j = (oldest + i) % timestampsNs.length;
+      sumT += timestampsNs[j] - fitOriginNs;
+      sumE += errorsNs[j];
+    }
+    final double meanT = sumT / count;
+    final double meanE = sumE / count;
+    double covariance = 0;
+    double variance = 0;
+    for (int i = 0; i < count; i++) {
+      int j = (oldest + i) % timestampsNs.length;
+      double t = timestampsNs[j] - fitOriginNs - meanT;
+      covariance += t * (errorsNs[j] - meanE);
+      variance += t * t;
+    }
+    slope = variance > 0 ? covariance / variance : 0;
+    interceptNs = meanE - slope * meanT;
+    double sumSquares = 0;
+    for (int i = 0; i < count; i++) {
+      int j = (oldest + i) % timestampsNs.length;
+      double residual = errorsNs[j] - interceptNs - slope * (timestampsNs[j] - fitOriginNs);
+      sumSquares += residual * residual;
+    }
+    residualNs = Math.sqrt(sumSquares / (count - 1));
+    fitValid = true;
+  }
+
+  /** Whether there are enough frames for an estimate. */
+  public synchronized boolean hasEstimate() {
+    return fitValid;
+  }
+
+  /** Drift of the phase error, in ns per second, or 0 without an estimate. */
+  public synchronized double getDriftRateNsPerSecond() {
+    return fitValid ? slope * 1e9 : 0;
+  }
+
+  /** Error expected at the given time from the fitted drift, or 0 without an estimate. */
+  public synchronized long predictErrorNs(long timestampNs) {
+    return fitValid ? Math.round(interceptNs + slope * (timestampNs - fitOriginNs)) : 0;
+  }
+
+  /** Standard deviation of the errors around the fitted drift, the frame to frame jitter. */
+  public synchronized long getResidualNs() {
+    return fitValid ? Math.round(residualNs) : 0;
+  }
+
+  public synchronized int getSampleCount() {
+    return count;
+  }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync.phasealign;
+
+/**
+ * Keeps the phase locked to the goal after alignment, since the phase drifts away over time as the
+ * sensor clock is slightly off from the synchronized clock.
+ *
+ * <p>While locked, the phase error of every frame goes into a {@link PhaseDriftTracker}. Once the
+ * error predicted a lead time ahead exceeds a fraction of the alignment threshold, the {@link
+ * ClosedLoopPhaseAligner} realigns to within half that, aiming slightly past the goal against the
+ * drift so the next correction is as far away as possible. These corrections are more precise than
+ * the first alignment, so the fraction should leave room above the jitter of injected frames. The
+ * goal phase can be set, so that all devices lock to the same goal given by the leader.
+ *
+ * <p>Frames must be fed from a single thread, the others may be called from any thread.
+ */
+public final class PhaseLockMaintainer {
+  private final PhaseConfig config;
+  private final ClosedLoopPhaseAligner aligner;
+  private final PhaseDriftTracker tracker;
+  private final long correctThresholdNs;
+  private final long leadNs;
+
+  private volatile boolean enabled = false;
+  private volatile long goalPhaseNs;
+  private volatile int maintenanceCorrections = 0;
+
+  /** Last drift estimated before the tracker was reset for a correction. */
+  private volatile double driftRateNsPerSecond = 0;
+
+  /**
+   * @param correctFraction fraction of the alignment threshold the error may reach before
+   *     correcting.
+   * @param leadNs how far ahead the error is predicted, typically the time a correction takes.
+   */
+  public PhaseLockMaintainer(
+      PhaseConfig config,
+      ClosedLoopPhaseAligner aligner,
+      PhaseDriftTracker tracker,
+      double correctFraction,
+      long leadNs) {
+    this.config = config;
+    this.aligner = aligner;
+    this.tracker = tracker;
+    this.correctThresholdNs = Math.round(config.alignThresholdNs() * correctFraction);
+    this.leadNs = leadNs;
+    goalPhaseNs = config.goalPhaseNs();
+  }
+
+  /** Turns maintenance on or off, without stopping an alignment in progress. */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Sets the goal phase of the following alignments, e.g. the one of the leader. */
+  public void setGoalPhaseNs(long goalPhaseNs) {
+    this.goalPhaseNs = Math.floorMod(goalPhaseNs, config.periodNs());
+  }
+
+  public long getGoalPhaseNs() {
+    return goalPhaseNs;
+  }
+
+  /** Aligns to the goal phase now, returns false if already aligning. */
+  public boolean startAlign() {
+    return aligner.start(goalPhaseNs);
+  }
+
+  /** Passes the timestamp of a new frame, not an injected one, to align or maintain the phase. */
+  public void onFrameTimestamp(long timestampNs) {
+    aligner.onFrameTimestamp(timestampNs);
+    if (aligner.getState() != ClosedLoopPhaseAligner.State.IDLE) {
+      // The phase is moved on purpose, drift is only measured in between.
+      tracker.reset();
+      return;
+    }
+    if (!enabled) {
+      return;
+    }
+    final long periodNs = config.periodNs();
+    final long goalNs = goalPhaseNs;
+    long errorNs = goalNs - Math.floorMod(timestampNs, periodNs);
+    errorNs = Math.floorMod(errorNs + periodNs / 2, periodNs) - periodNs / 2;
+    tracker.onPhaseError(timestampNs, errorNs);
+    if (!tracker.hasEstimate()) {
+      return;
+    }
+    driftRateNsPerSecond = tracker.getDriftRateNsPerSecond();
+    if (Math.abs(tracker.predictErrorNs(timestampNs + leadNs)) <= correctThresholdNs) {
+      return;
+    }
+    // Aim past the goal by the drift over the lead time, so the drift carries the phase through
+    // the goal. The error is goal minus phase, so a growing error wants a later phase.
+    long marginNs = Math.round(driftRateNsPerSecond * leadNs * 1e-9);
+    marginNs = Math.max(-correctThresholdNs / 2, Math.min(correctThresholdNs / 2, marginNs));
+    if (aligner.start(goalNs + marginNs, correctThresholdNs / 2)) {
+      maintenanceCorrections++;
+      tracker.reset();
+    }
+  }
+
+  /**
+   * Drift of the phase error in ns per second, from the frames since the last correction, or
+   * before it if there are too few. 0 until known.
+   */
+  public double getDriftRateNsPerSecond() {
+    return driftRateNsPerSecond;
+  }
+
+  /** Alignments started by maintenance rather than requested. */
+  public int getMaintenanceCorrections() {
+    return maintenanceCorrections;
+  }
+}
@@ -58,7 +58,11 @@ import android.os.SystemClock;
 
 import com.googleresearch.capturesync.ImageMetadataSynchronizer;
 import com.googleresearch.capturesync.ImageMetadataSynchronizer.CaptureRequestTag;
+import com.googleresearch.capturesync.softwaresync.DeadlineTrigger;
+import com.googleresearch.capturesync.softwaresync.SystemTicker;
+import com.googleresearch.capturesync.softwaresync.TimeUtils;
 
+import net.sourceforge.opencamera.multisync.NtpClock;
 import net.sourceforge.opencamera.multisync.SntpDsense;
 
 /** Provides support using Android 5's Camera 2 API
@@ -207,6 +211,8 @@ public class CameraController2 extends CameraController {
 	private volatile long cap_time;
 	private volatile long cap_avg = 0L;
 	private int tp = 0;
+	// sleeps until shortly before a sync deadline then spins, instead of spinning for the whole wait
+	private final DeadlineTrigger shutter_trigger = new DeadlineTrigger(new SystemTicker());
 
 	private enum RequestTagType {
 		CAPTURE, // request is either for a regular non-burst capture, or the last of a burst capture sequence
@@ -5495,7 +5501,15 @@ public class CameraController2 extends CameraController {
 					}
 					else if(mActivity.getSyncType().equals("preference_sync_ble")) {
 
-						if (mActivity.isBleServerConnected()) {
+						if (mActivity.isBleServerConnected() && mActivity.haveBleClockEstimates()) {
+							// the clients' clocks are known already, a single trigger in their own clocks is enough
+							final long trigger_ns = mActivity.scheduleBleTrigger();
+							if( trigger_ns != Long.MAX_VALUE ) {
+								awaitShutterDeadline(trigger_ns);
+							}
+							if( MyDebug.LOG )
+								Log.d(TAG, "BLE delivery: " + mActivity.getBleDeliveryStats());
+						} else if (mActivity.isBleServerConnected()) {
 
 							//LUK: prev. values tried: 60, 55, 50; best seems to be 55 or 50; has to do with connection interval, see below comment
 							final long delay = 55; //ms; android BLE connection interval which is >15ms, see requestConnectionPriority in BluetoothLEService
@@ -5507,12 +5521,11 @@ public class CameraController2 extends CameraController {
 							long theActualTime = SystemClock.elapsedRealtime();
 							theActualTime += delay;
 							mActivity.sendBleServerTime(theActualTime /*+ cap_avg*/);
-							while (theActualTime > SystemClock.elapsedRealtime()) {
-								//SystemClock.sleep(1);
-								final long end = System.nanoTime() + 1000000L;
-								while(System.nanoTime() < end) ;
-							}
+							awaitShutterDeadline(TimeUtils.millisToNanos(theActualTime));
 							SystemClock.sleep(mActivity.getBleLatency()); //LUK: additional sleep on server side
+						} else if (mActivity.isBleClientConnected() && waitForBleTrigger() != Long.MAX_VALUE) {
+							awaitShutterDeadline(mActivity.getBleTriggerTimeNs());
+							mActivity.setBleTriggerTimeNs(Long.MAX_VALUE);
 						} else if (mActivity.isBleClientConnected()) {
 
 							long diff = Long.MAX_VALUE;
@@ -5531,13 +5544,9 @@ public class CameraController2 extends CameraController {
 								}
 							}
 
-							for (int i = 0; i < 2000; i++) { //LUK: bug? Why not infinite loop as above?
-								if (mActivity.getServerTime() > SystemClock.elapsedRealtime() - diff /*+ cap_avg*/) {
-									//SystemClock.sleep(1);
-									final long end = System.nanoTime() + 1000000L;
-									while(System.nanoTime() < end) ;
-								}
-								else break;
+							final long server_time = waitForServerTime();
+							if( server_time != Long.MAX_VALUE ) {
+								awaitShutterDeadline(TimeUtils.millisToNanos(server_time + diff /*+ cap_avg*/));
 							}
 
 							mActivity.setServerTime(Long.MAX_VALUE);
@@ -5547,53 +5556,26 @@ public class CameraController2 extends CameraController {
 					}
 					else /*if(mActivity.getSyncType().equals("preference_sync_ntp"))*/ {
 
-						if(!mActivity.haveNtpTime())
-							mActivity.syncNTP();
+						// never wait for the network here: without the NTP time yet, capture unsynced
+						// while it is measured in the background for the next capture
+						final NtpClock ntp_clock = mActivity.getNtpClock();
+						// does nothing if already refreshing
+						mActivity.startNtpClock();
 
 						if(mActivity.haveNtpTime()) {
+							if( MyDebug.LOG )
+								Log.d(TAG, "NTP clock: " + ntp_clock);
 							if (mActivity.isBleServerConnected()) {
-
-								//long theActualTime = ntp_offset + ntp_sys_time - ntp_monotonic_time;
-								//while ( ((theActualTime + SystemClock.elapsedRealtime()) % 1000L) != 0L ) {
-								//while( (ntp_offset + System.currentTimeMillis()) % 1000L !=0) {
-									//final long end = System.nanoTime() + 1000000L;
-									//while(System.nanoTime() < end) ;
-								//}
-
-								final long ntp_offset = mActivity.ntpOffset();
-
-								//SystemClock.sleep(1000L - ((ntp_offset + System.currentTimeMillis()) % 1000L) );
-
-								long theActualTime = ntp_offset + System.currentTimeMillis();
+								long theActualTime = ntp_clock.now() / 1000000L;
 								theActualTime += 500L;
 								mActivity.sendBleServerTime(theActualTime); //+ cap_avg
 
-								while(theActualTime > ntp_offset + System.currentTimeMillis()) {
-									//SystemClock.sleep(1);
-									final long end = System.nanoTime() + 1000000L;
-									while(System.nanoTime() < end) ;
-								}
+								awaitShutterDeadline(ntp_clock.toLocalTime(TimeUtils.millisToNanos(theActualTime)));
 
 							} else if (mActivity.isBleClientConnected()) {
-
-								//long theActualTime = ntp_offset + ntp_sys_time - ntp_monotonic_time;
-								//while ( ((theActualTime + SystemClock.elapsedRealtime()) % 1000L) != 0L ) {
-								//while( (ntp_offset + System.currentTimeMillis()) % 1000L !=0) {
-									//final long end = System.nanoTime() + 1000000L;
-									//while(System.nanoTime() < end) ;
-								//}
-
-								final long ntp_offset = mActivity.ntpOffset();
-
-								//SystemClock.sleep(1000L - ((ntp_offset + System.currentTimeMillis()) % 1000L) );
-
-								for (int i = 0; i < 2000; i++) { //LUK: bug? Why not infinite loop as above?
-									if (mActivity.getServerTime() >  ntp_offset + System.currentTimeMillis()) { //+ cap_avg
-										//SystemClock.sleep(1);
-										final long end = System.nanoTime() + 1000000L;
-										while(System.nanoTime() < end) ;
-									}
-									else break;
+								final long server_time = waitForServerTime();
+								if( server_time != Long.MAX_VALUE ) {
+									awaitShutterDeadline(ntp_clock.toLocalTime(TimeUtils.millisToNanos(server_time))); //+ cap_avg
 								}
 								mActivity.setServerTime(Long.MAX_VALUE);
 
@@ -5603,7 +5585,7 @@ public class CameraController2 extends CameraController {
 					}
 
 					if(mActivity.haveNtpTime() && (mActivity.isBleServerConnected() || mActivity.isBleClientConnected())) {
-						sync_time = mActivity.ntpOffset() + System.currentTimeMillis();
+						sync_time = mActivity.getNtpClock().now() / 1000000L;
 					}
 					else sync_time = 0L;
 
@@ -5660,6 +5642,57 @@ public class CameraController2 extends CameraController {
 
 	}
 
+	/** Blocks until the given SystemClock.elapsedRealtimeNanos() time, used to gate the shutter
+	 *  for the BLE and NTP sync modes.
+	 */
+	private void awaitShutterDeadline(long deadline_ns) {
+		final long overshoot_ns = shutter_trigger.awaitDeadline(deadline_ns);
+		if( overshoot_ns == DeadlineTrigger.SKIPPED ) {
+			// a bogus or stale time, e.g. after a clock step: capture now rather than hang
+			if( MyDebug.LOG )
+				Log.e(TAG, "shutter deadline " + (deadline_ns - SystemClock.elapsedRealtimeNanos()) / 1000000L + " ms ahead, not waiting");
+			return;
+		}
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "shutter deadline overshoot: " + overshoot_ns + " ns");
+			Log.d(TAG, "shutter trigger stats: " + shutter_trigger);
+		}
+	}
+
+	/** Waits up to 2s for the BLE server to send the trigger time.
+	 * @return The server time in ms, or Long.MAX_VALUE if none arrived.
+	 */
+	private long waitForServerTime() {
+		MainActivity mActivity = (MainActivity) context;
+		long server_time = mActivity.getServerTime();
+		for(int i = 0; i < 2000 && server_time == Long.MAX_VALUE; i++) {
+			SystemClock.sleep(1);
+			server_time = mActivity.getServerTime();
+		}
+		return server_time;
+	}
+
+	/** Waits up to 2s for the BLE server to send the shutter time in our clock, see
+	 *  BleClockEstimator.
+	 * @return The shutter time in ns of SystemClock.elapsedRealtimeNanos(), or Long.MAX_VALUE if
+	 *         none arrived, or the server sent its own time instead, as it doesn't know our clock.
+	 */
+	private long waitForBleTrigger() {
+		MainActivity mActivity = (MainActivity) context;
+		long trigger_ns = mActivity.getBleTriggerTimeNs();
+		for(int i = 0; i < 2000 && trigger_ns == Long.MAX_VALUE && mActivity.getServerTime() == Long.MAX_VALUE; i++) {
+			SystemClock.sleep(1);
+			trigger_ns = mActivity.getBleTriggerTimeNs();
+		}
+		return trigger_ns;
+	}
+
+	/** Returns the trigger used to gate the shutter in the sync modes, for its jitter statistics.
+	 */
+	public DeadlineTrigger getShutterTrigger() {
+		return shutter_trigger;
+	}
+
 	public static List<Float> setupFocusBracketingDistances(float source, float target, int count) {
 		List<Float> focus_distances = new ArrayList<>();
 		float focus_distance_s = source;
@@ -114,6 +114,7 @@ import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.ZoomControls;
 
+import org.nanohttpd.protocols.http.threading.BoundedAsyncRunner;
 import org.nanohttpd.webserver.SimpleWebServer;
 
 import netP5.*; // network library for UDP Server (Andy Modla change)
@@ -122,6 +123,7 @@ import com.googleresearch.capturesync.CameraControllerSync;
 import com.googleresearch.capturesync.Constants;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraAccessException;
+import com.googleresearch.capturesync.softwaresync.SystemTicker;
 import com.googleresearch.capturesync.softwaresync.TimeUtils;
 import com.googleresearch.capturesync.SoftwareSyncController;
 import com.googleresearch.capturesync.PhaseAlignController;
@@ -152,6 +154,8 @@ public class MainActivity extends Activity {
 	//private final int phaseConfigFile = R.raw.s20ultra_phaseconfig; //LUK:
 	//private final int phaseConfigFile = R.raw.p20pro_master_phaseconfig; //LUK: phase sync 80ms period
 	private final int phaseConfigFile = R.raw.p20pro_slave_phaseconfig; //LUK: phase sync 40ms period
+	//private final Size phaseSyncImageSize = new Size(4000, 3000); //LUK: fix this; samsung
+	private final Size phaseSyncImageSize = new Size(3648, 2736); //LUK: fix this; huawei
 
 	public boolean phase_sync = false;
 	public boolean estimate_period = false;
@@ -242,6 +246,7 @@ public class MainActivity extends Activity {
 	private UdpServer1 udpServer;    // Broadcast receiver
 	public NetListener nll;
 	private SimpleWebServer httpServer;
+	private BoundedAsyncRunner httpRunner; // threads of httpServer
 	private int port = 8000;  // Broadcast port
 	private int serverPort = 8080;  // HTTP server port
 	public static String httpUrl = "";
@@ -269,11 +274,23 @@ public class MainActivity extends Activity {
 	private volatile boolean send_exp = true;
 
 	private volatile long serverTime = Long.MAX_VALUE;
+	// shutter time sent by the server in "BLE sync" mode, in ns of our SystemClock.elapsedRealtimeNanos()
+	private volatile long bleTriggerTimeNs = Long.MAX_VALUE;
 
 	private DeviceScanner ble_scanner;
 
-	private long ntp_offset, ntp_sys_time, ntp_monotonic_time, ntp_round_trip;
-	private boolean have_ntp_time = false;
+	// kept, so its socket is reused between syncs
+	private final SntpDsense ntp_client = new SntpDsense();
+	// refreshed in the background, so the shutter never waits for the network
+	private final NtpClock ntp_clock = new NtpClock(new SystemTicker(), new NtpClock.Source() {
+		@Override
+		public NtpClock.Sample measure() {
+			return ntp_client.requestTime(getNtpServer(), 1000) ? ntp_client.get_sample() : null;
+		}
+	});
+	// whether to show the result of the next NTP refresh, as the user asked for it
+	private volatile boolean ntp_sync_requested = false;
+	private boolean ntp_clock_was_started = false; // whether to restart ntp_clock in onResume()
 
 	// Code to manage Service lifecycle for remote control.
 	private final ServiceConnection mServiceConnection = new ServiceConnection() {
@@ -573,6 +590,16 @@ public class MainActivity extends Activity {
 		});
 
 
+		// set up align phases button long click
+		View alignPhasesButton = findViewById(R.id.align_phases);
+		alignPhasesButton.setOnLongClickListener(new View.OnLongClickListener() {
+			@Override
+			public boolean onLongClick(View v) {
+				longClickedAlignPhases();
+				return true;
+			}
+		});
+
 		// set up gallery button long click
 		View galleryButton = findViewById(R.id.gallery);
 		galleryButton.setOnLongClickListener(new View.OnLongClickListener() {
@@ -820,10 +847,33 @@ public class MainActivity extends Activity {
         }
 */
 
-		Log.d(TAG, "Broadcasting phase alignment request.");
-		// Request phase alignment on all devices.
+		// Request phase alignment on all devices, to the goal phase of the leader, and keep the
+		// phase there from then on. If the phase is already kept, stop keeping it instead; the
+		// leader handles its own request too, so its state is that of all devices.
+		final boolean lock = !phaseAlignController.isPhaseLockEnabled();
+		Log.d(TAG, lock ? "Broadcasting phase alignment request." : "Broadcasting phase lock release.");
+		((SoftwareSyncLeader) softwareSyncController.softwareSync)
+				.broadcastReliableRpc(
+						SoftwareSyncController.METHOD_SET_PHASE_LOCK,
+						Constants.PHASE_ALIGN_RPC_TIMEOUT_NS,
+						lock ? 1 : 0,
+						phaseAlignController.getGoalPhaseNs());
+		preview.showToast(null, lock ? "Aligning phases, keeping them aligned" : "Phase lock off");
+    }
+
+    /** Long click on the align button: calibrate the phase config of all devices. */
+    public void longClickedAlignPhases() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "longClickedAlignPhases");
+
+        if( !phase_sync ) {
+            throw new IllegalStateException("Cannot calibrate phase when RecSync is not running");
+        }
+
+		Log.d(TAG, "Broadcasting phase calibration request.");
 		((SoftwareSyncLeader) softwareSyncController.softwareSync)
-				.broadcastRpc(SoftwareSyncController.METHOD_DO_PHASE_ALIGN, "");
+				.broadcastReliableRpc(
+						SoftwareSyncController.METHOD_CALIBRATE_PHASE, Constants.PHASE_ALIGN_RPC_TIMEOUT_NS, "");
     }
 
 
@@ -834,8 +884,7 @@ public class MainActivity extends Activity {
         new CameraControllerSync(
             null,
             null,
-				//new Size(4000, 3000), //LUK: fix this; samsung
- 				new Size(3648, 2736), //LUK: fix this; huawei
+            phaseSyncImageSize,
             phaseAlignController,
             this,
             softwareSyncController.softwareSync);
@@ -879,6 +928,14 @@ private void startSoftwareSync() {
   }
 
 private PhaseConfig loadPhaseConfigFile() throws JSONException {
+    // Prefer the config calibrated on this device, see calibratePhaseConfig().
+    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+    String calibrated = sharedPreferences.getString(getPhaseConfigPreferenceKey(), null);
+    if (calibrated != null) {
+      Log.d(TAG, "Using calibrated phase config: " + calibrated);
+      return PhaseConfig.parseFromJSON(new JSONObject(calibrated));
+    }
+
     // Load phase config file and pass to phase aligner.
 
     JSONObject json;
@@ -895,6 +952,40 @@ private PhaseConfig loadPhaseConfigFile() throws JSONException {
     return PhaseConfig.parseFromJSON(json);
   }
 
+  private String getPhaseConfigPreferenceKey() {
+    return PreferenceKeys.getPhaseConfigPreferenceKey(
+        Build.MODEL, phaseSyncImageSize.getWidth(), phaseSyncImageSize.getHeight());
+  }
+
+  /**
+   * Calibrates the phase config of this device from its frames, and stores it for this device
+   * model and resolution instead of the config file.
+   */
+  public void calibratePhaseConfig() {
+    if( MyDebug.LOG )
+      Log.d(TAG, "calibratePhaseConfig");
+    boolean started = phaseAlignController.startCalibration(
+        config -> {
+          if (config == null) {
+            preview.showToast(null, "Phase calibration failed");
+            return;
+          }
+          try {
+            SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+            SharedPreferences.Editor editor = sharedPreferences.edit();
+            editor.putString(getPhaseConfigPreferenceKey(), config.toJSON().toString());
+            editor.apply();
+          } catch (JSONException e) {
+            Log.e(TAG, "Failed to store calibrated phase config", e);
+          }
+          preview.showToast(null, String.format(Locale.US,
+              "Phase calibrated: overhead %.3f ms, min exposure %.3f ms",
+              config.overheadNs() * 1e-6, config.minExposureNs() * 1e-6));
+        });
+    if (started)
+      preview.showToast(null, "Calibrating phase, keep the camera running");
+  }
+
 	private boolean address_changed;
 
 	void checkServerName() {
@@ -1381,6 +1472,12 @@ private PhaseConfig loadPhaseConfigFile() throws JSONException {
 			httpServer.stop();
 			httpServer = null;
 		}
+		if (httpRunner != null) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "http server: " + httpRunner);
+			httpRunner.shutdown();
+			httpRunner = null;
+		}
 	}
 
     @Override
@@ -1537,6 +1634,8 @@ private PhaseConfig loadPhaseConfigFile() throws JSONException {
 	    // Andy Modla begin
 		destroyServer();
 		// Andy Modla end
+		ntp_clock.stop();
+		ntp_client.close();
 	    super.onDestroy();
 		if( MyDebug.LOG )
 			Log.d(TAG, "onDestroy done");
@@ -2261,6 +2360,10 @@ private PhaseConfig loadPhaseConfigFile() throws JSONException {
 				if (httpServer != null) {
 					if (!httpServer.wasStarted()) {
 						httpServer.setApplicationInterface(applicationInterface);
+						// a few low priority threads, so clients polling for images can't slow the camera
+						if (httpRunner == null)
+							httpRunner = new BoundedAsyncRunner();
+						httpServer.setAsyncRunner(httpRunner);
 						httpServer.start();
 					}
 				}
@@ -2269,6 +2372,10 @@ private PhaseConfig loadPhaseConfigFile() throws JSONException {
 			}
 		}
 
+		// keep refreshing the NTP clock if it was in use, else its fit only gets older
+		if( ntp_clock_was_started || ntp_clock.hasTime() )
+			ntp_clock.start();
+
 		//LUK: added
 		checkServerName();
 		//checkServerNameThread();
@@ -2321,6 +2428,9 @@ private PhaseConfig loadPhaseConfigFile() throws JSONException {
 		applicationInterface.clearLastImages(); // this should happen when pausing the preview, but call explicitly just to be safe
 		applicationInterface.getDrawPreview().clearGhostImage();
 		preview.onPause();
+		// no NTP traffic in the background, the fit is kept and refreshed again on resume
+		ntp_clock_was_started = ntp_clock.isStarted();
+		ntp_clock.stop();
 
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "onPause: total time to pause: " + (System.currentTimeMillis() - debug_time));
@@ -2406,11 +2516,13 @@ private PhaseConfig loadPhaseConfigFile() throws JSONException {
                     "Trigger button, sending timestamp %,d at %,d",
                     futureTimestamp, currentTimestamp));
 
-            // Broadcast desired synchronized capture time to all devices.
+            // Broadcast desired synchronized capture time to all devices, retransmitting to clients
+            // that have not acknowledged it until the trigger time itself.
             ((SoftwareSyncLeader) softwareSyncController.softwareSync)
-                .broadcastRpc(
+                .broadcastReliableRpc(
                     SoftwareSyncController.METHOD_SET_TRIGGER_TIME,
-                    String.valueOf(futureTimestamp));
+                    Constants.FUTURE_TRIGGER_DELAY_NS,
+                    futureTimestamp);
 		}
 		else
     		this.takePicture(false);
@@ -2463,6 +2575,29 @@ private PhaseConfig loadPhaseConfigFile() throws JSONException {
 		}
 	}
 
+	/** Sends the shutter time to each client, in its own clock, see BleFanOutScheduler.
+	 * @return The shutter time in ns of SystemClock.elapsedRealtimeNanos(), or Long.MAX_VALUE if
+	 *         no client was sent it.
+	 */
+	public long scheduleBleTrigger() {
+		if(isBleServerConnected()) {
+			return mBleServerService.scheduleTrigger();
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/** Returns the clock and delivery statistics of each BLE client, for the logs.
+	 */
+	public String getBleDeliveryStats() {
+		return isBleServerConnected() ? mBleServerService.getDeliveryStats() : "";
+	}
+
+	/** Whether the clock of every BLE client is known, so scheduleBleTrigger() can be used.
+	 */
+	public boolean haveBleClockEstimates() {
+		return isBleServerConnected() && mBleServerService.hasClockEstimates();
+	}
+
 	public void sendBleFloatValue(float val) {
 		if(isBleServerConnected()) {
 			mBleServerService.sendFloat(val);
@@ -2504,6 +2639,12 @@ private PhaseConfig loadPhaseConfigFile() throws JSONException {
 		serverTime = v;
 	}
 
+	public synchronized long getBleTriggerTimeNs() { return bleTriggerTimeNs; }
+
+	public synchronized void setBleTriggerTimeNs(long v) {
+		bleTriggerTimeNs = v;
+	}
+
 	public void setZoomBle(int val) {
 		SeekBar zoomSeekBar = findViewById(R.id.zoom_seekbar);
 		zoomSeekBar.setProgress(val);
@@ -6142,40 +6283,43 @@ private PhaseConfig loadPhaseConfigFile() throws JSONException {
 	}
 
 
+	/** Starts refreshing the NTP clock in the background if not already, with a refresh soon,
+	 *  whose result is shown. Doesn't block.
+	 */
 	public void syncNTP() {
-		Thread thread = new Thread(new Runnable() {
+		ntp_sync_requested = true;
+		ntp_clock.setListener(new NtpClock.Listener() {
 			@Override
-			public void run() {
-				SntpDsense client = new SntpDsense();
-
-				boolean SntpSuceeded = client.requestTime(getNtpServer(), 1000);
-
-				if (SntpSuceeded) {
-					ntp_offset = client.getNtp_clockoffset();
-					ntp_sys_time = client.get_ntp_update_sys_time();
-					ntp_monotonic_time = client.get_ntp_update_monotonic_time();
-					ntp_round_trip = client.get_round_trip_time();
-					have_ntp_time = true;
+			public void onRefresh(boolean succeeded) {
+				if( !ntp_sync_requested )
+					return;
+				ntp_sync_requested = false;
+				if( MyDebug.LOG ) {
+					for(NtpServerSelector.ServerStats stats : ntp_client.get_server_stats())
+						Log.d(TAG, "NTP server: " + stats);
 				}
+				if( succeeded )
+					showToast("NTP offset: " + ntp_client.getNtp_clockoffset() + "  round trip: " + ntp_client.get_round_trip_time() +
+							"  servers: " + ntp_client.get_truechimer_count() + "/" + ntp_client.get_server_stats().size());
+				else
+					showToast("NTP request error");
 			}
 		});
+		ntp_clock.refreshSoon();
+	}
 
-		thread.start();
-		try {
-			thread.join();
-		} catch (InterruptedException e) {
-			have_ntp_time = false;
-		}
-
-		if (have_ntp_time)
-			showToast("NTP offset: " + ntp_offset + "  round trip: " + ntp_round_trip);
-		else
-			showToast("NTP request error");
+	/** Starts refreshing the NTP clock in the background if not already, without showing the
+	 *  result. Doesn't block.
+	 */
+	public void startNtpClock() {
+		ntp_clock.start();
 	}
 
-	public boolean haveNtpTime() { return have_ntp_time; }
+	public boolean haveNtpTime() { return ntp_clock.hasTime(); }
 
-	public long ntpOffset() { return ntp_offset; }
+	/** Returns the NTP reference clock, see haveNtpTime().
+	 */
+	public NtpClock getNtpClock() { return ntp_clock; }
 
 	//LUK: phase sync
 	  public void notifyCapturing(String name) {
@@ -6206,6 +6350,17 @@ private PhaseConfig loadPhaseConfigFile() throws JSONException {
 			return softwareSyncController.isLeader();
 		}
 
+		/**
+		 * Provides the image and capture result matching metrics of RecSync.
+		 *
+		 * @return one line for the results and one per image reader, or null if the camera is not open.
+		 */
+		public String getSyncMetricsText() {
+			if( cameraControllerSync == null )
+				return null;
+			return cameraControllerSync.imageMetadataSynchronizer.getMetrics().toString();
+		}
+
 	  public Pair<String, Boolean> getPhaseError() {
 		  return phaseAlignController.getPhaseError();
 	  }
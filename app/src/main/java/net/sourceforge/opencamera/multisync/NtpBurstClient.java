@@ -0,0 +1,394 @@
+package net.sourceforge.opencamera.multisync;
+
+import com.googleresearch.capturesync.softwaresync.Ticker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+/**
+ * NTP client measuring the offset of the local wall clock from an NTP server, with a burst of
+ * requests over a single socket kept between measurements.
+ *
+ * The requests are sent paced, without waiting for the responses, which are matched to their
+ * request by the originate timestamp the server echoes. All times are taken from a monotonic clock
+ * in ns, anchored once per burst to a tick of the wall clock, and NTP timestamps are converted
+ * with their whole 32 bit fraction.
+ *
+ * The offset isn't the one of the single exchange with the shortest round trip: the exchanges
+ * within a margin of the shortest round trip form a cluster, as they were barely delayed either
+ * way, and those whose offset is far from the median of the cluster are discarded as residuals of
+ * an asymmetric delay before averaging the others.
+ *
+ * Not thread safe, except {@link #close()} may be called during a request, which then fails.
+ */
+public class NtpBurstClient implements Closeable {
+    public static final int NTP_PORT = 123;
+    public static final int NTP_PACKET_SIZE = 48;
+    private static final int ORIGINATE_TIME_OFFSET = 24;
+    private static final int RECEIVE_TIME_OFFSET = 32;
+    private static final int TRANSMIT_TIME_OFFSET = 40;
+    private static final int NTP_MODE_CLIENT = 3;
+    private static final int NTP_MODE_SERVER = 4;
+    private static final int NTP_VERSION = 3;
+    private static final int NTP_LEAP_NOT_IN_SYNC = 3;
+
+    // seconds from 1900 to 1970, 70 years plus 17 leap days
+    private static final long OFFSET_1900_TO_1970 = ((365L * 70L) + 17L) * 24L * 60L * 60L;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /** Requests per burst. */
+    public static final int DEFAULT_BURST_SIZE = 16;
+    /** Time between the requests of a burst. */
+    public static final long DEFAULT_PACING_NS = 5000000L;
+    /** An exchange is in the cluster if its round trip time is at most the shortest one plus the
+     *  larger of CLUSTER_MARGIN_NS and CLUSTER_MARGIN_FACTOR times the shortest one. */
+    public static final long CLUSTER_MARGIN_NS = 1000000L;
+    public static final double CLUSTER_MARGIN_FACTOR = 0.25;
+    /** An offset of the cluster is a residual if further from its median than the larger of
+     *  MIN_RESIDUAL_NS and RESIDUAL_MADS median absolute deviations. */
+    public static final long MIN_RESIDUAL_NS = 250000L;
+    public static final double RESIDUAL_MADS = 3.0;
+
+    private final Ticker clock;
+    private final int burst_size;
+    private final long pacing_ns;
+
+    private volatile DatagramSocket socket;
+    private InetAddress socket_address;
+    private int socket_port;
+    private final byte [] request_buffer = new byte[NTP_PACKET_SIZE];
+    private final byte [] response_buffer = new byte[NTP_PACKET_SIZE];
+
+    private long wall_anchor_ns;
+    private long clock_anchor_ns;
+
+    // the exchanges of the last burst
+    private final long [] request_times_ns;
+    private final long [] request_stamps;
+    private final boolean [] answered;
+    private int n_sent;
+    private final long [] offsets_ns;
+    private final long [] round_trips_ns;
+    private final long [] sample_times_ns;
+    private int n_samples;
+
+    private long offset_ns;
+    private long round_trip_ns;
+    private long jitter_ns;
+    private long sample_time_ns;
+    private int n_used;
+    private long duration_ns;
+
+    /**
+     * @param clock Monotonic clock, in ns.
+     */
+    public NtpBurstClient(Ticker clock) {
+        this(clock, DEFAULT_BURST_SIZE, DEFAULT_PACING_NS);
+    }
+
+    public NtpBurstClient(Ticker clock, int burst_size, long pacing_ns) {
+        this.clock = clock;
+        this.burst_size = burst_size;
+        this.pacing_ns = pacing_ns;
+        request_times_ns = new long[burst_size];
+        request_stamps = new long[burst_size];
+        answered = new boolean[burst_size];
+        offsets_ns = new long[burst_size];
+        round_trips_ns = new long[burst_size];
+        sample_times_ns = new long[burst_size];
+    }
+
+    /**
+     * Measures the offset from the server with a burst of requests.
+     * @param timeout_ms How long to wait for the responses after the last request.
+     * @return Whether any exchange succeeded.
+     */
+    public boolean requestTime(InetAddress address, int port, int timeout_ms) {
+        try {
+            DatagramSocket socket = this.socket;
+            if( socket == null || !address.equals(socket_address) || port != socket_port ) {
+                close();
+                socket = new DatagramSocket();
+                // only accept datagrams from the server
+                socket.connect(address, port);
+                socket_address = address;
+                socket_port = port;
+                this.socket = socket;
+            }
+            return runBurst(socket, timeout_ms);
+        }
+        catch(IOException e) {
+            close();
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        final DatagramSocket socket = this.socket;
+        this.socket = null;
+        if( socket != null ) {
+            socket.close();
+        }
+    }
+
+    private boolean runBurst(DatagramSocket socket, int timeout_ms) throws IOException {
+        anchorWallClock();
+        Arrays.fill(answered, false);
+        n_sent = 0;
+        n_samples = 0;
+        DatagramPacket request = new DatagramPacket(request_buffer, NTP_PACKET_SIZE);
+        DatagramPacket response = new DatagramPacket(response_buffer, NTP_PACKET_SIZE);
+
+        final long start_ns = clock.read();
+        final long deadline_ns = start_ns + (burst_size - 1) * pacing_ns + timeout_ms * 1000000L;
+        long next_request_ns = start_ns;
+        while( n_samples < burst_size ) {
+            long now_ns = clock.read();
+            if( n_sent < burst_size && now_ns >= next_request_ns ) {
+                Arrays.fill(request_buffer, (byte)0);
+                request_buffer[0] = NTP_MODE_CLIENT | (NTP_VERSION << 3);
+                now_ns = clock.read();
+                writeTimestamp(request_buffer, TRANSMIT_TIME_OFFSET, toWallNs(now_ns));
+                request_times_ns[n_sent] = now_ns;
+                request_stamps[n_sent] = readLong(request_buffer, TRANSMIT_TIME_OFFSET);
+                socket.send(request);
+                n_sent++;
+                next_request_ns += pacing_ns;
+                continue;
+            }
+            if( now_ns >= deadline_ns )
+                break;
+            long wait_ns = Math.min(n_sent < burst_size ? next_request_ns : deadline_ns, deadline_ns) - now_ns;
+            socket.setSoTimeout((int)Math.max(1, (wait_ns + 999999) / 1000000));
+            try {
+                response.setLength(NTP_PACKET_SIZE);
+                socket.receive(response);
+            }
+            catch(SocketTimeoutException e) {
+                continue;
+            }
+            onResponse(response.getLength(), clock.read());
+        }
+        duration_ns = clock.read() - start_ns;
+        return selectOffset();
+    }
+
+    /**
+     * Stamps the wall clock right as it ticks, so wall times derived from the monotonic clock are
+     * not truncated to its ms.
+     */
+    private void anchorWallClock() {
+        final long wall_ms = System.currentTimeMillis();
+        long tick_ms;
+        while( (tick_ms = System.currentTimeMillis()) == wall_ms ) {
+            // at most 1ms
+        }
+        clock_anchor_ns = clock.read();
+        wall_anchor_ns = tick_ms * 1000000L;
+    }
+
+    private long toWallNs(long clock_ns) {
+        return wall_anchor_ns + (clock_ns - clock_anchor_ns);
+    }
+
+    private void onResponse(int length, long response_time_ns) {
+        if( length < NTP_PACKET_SIZE )
+            return;
+        final int mode = response_buffer[0] & 0x7;
+        final int leap = (response_buffer[0] >> 6) & 0x3;
+        final int stratum = response_buffer[1] & 0xff;
+        if( mode != NTP_MODE_SERVER || leap == NTP_LEAP_NOT_IN_SYNC || stratum == 0 )
+            return; // not a server, or a kiss-o'-death
+        final long originate = readLong(response_buffer, ORIGINATE_TIME_OFFSET);
+        int index = -1;
+        for(int i=0;i<n_sent;i++) {
+            if( !answered[i] && request_stamps[i] == originate ) {
+                index = i;
+                break;
+            }
+        }
+        if( index == -1 )
+            return; // stale, or not ours
+        answered[index] = true;
+
+        final long t1 = toWallNs(request_times_ns[index]);
+        final long t2 = readTimestamp(response_buffer, RECEIVE_TIME_OFFSET);
+        final long t3 = readTimestamp(response_buffer, TRANSMIT_TIME_OFFSET);
+        final long t4 = toWallNs(response_time_ns);
+        final long round_trip = (t4 - t1) - (t3 - t2);
+        if( round_trip < 0 )
+            return;
+        offsets_ns[n_samples] = ((t2 - t1) + (t3 - t4)) / 2;
+        round_trips_ns[n_samples] = round_trip;
+        sample_times_ns[n_samples] = request_times_ns[index];
+        n_samples++;
+    }
+
+    private boolean selectOffset() {
+        if( n_samples == 0 )
+            return false;
+        int min_index = 0;
+        for(int i=1;i<n_samples;i++) {
+            if( round_trips_ns[i] < round_trips_ns[min_index] )
+                min_index = i;
+        }
+        final long min_round_trip_ns = round_trips_ns[min_index];
+        final long max_round_trip_ns = min_round_trip_ns + Math.max(CLUSTER_MARGIN_NS, (long)(CLUSTER_MARGIN_FACTOR * min_round_trip_ns));
+
+        long [] cluster = new long[n_samples];
+        int n_cluster = 0;
+        // the true offset is within half the round trip of every offset, whatever the asymmetry
+        long min_offset_ns = Long.MIN_VALUE, max_offset_ns = Long.MAX_VALUE;
+        for(int i=0;i<n_samples;i++) {
+            if( round_trips_ns[i] <= max_round_trip_ns ) {
+                cluster[n_cluster++] = offsets_ns[i];
+                min_offset_ns = Math.max(min_offset_ns, offsets_ns[i] - round_trips_ns[i] / 2);
+                max_offset_ns = Math.min(max_offset_ns, offsets_ns[i] + round_trips_ns[i] / 2);
+            }
+        }
+        final long median_ns = median(cluster, n_cluster);
+        long [] deviations = new long[n_cluster];
+        for(int i=0;i<n_cluster;i++) {
+            deviations[i] = Math.abs(cluster[i] - median_ns);
+        }
+        // 1.4826 scales the median absolute deviation to a standard deviation
+        final double max_residual_ns = Math.max(MIN_RESIDUAL_NS, RESIDUAL_MADS * 1.4826 * median(deviations, n_cluster));
+        double sum_ns = 0.0;
+        n_used = 0;
+        for(int i=0;i<n_cluster;i++) {
+            if( Math.abs(cluster[i] - median_ns) <= max_residual_ns ) {
+                sum_ns += cluster[i];
+                n_used++;
+            }
+        }
+        offset_ns = Math.round(sum_ns / n_used);
+        // the jitter is of the averaged offsets around their own mean, before it is clamped
+        double sum_squares = 0.0;
+        for(int i=0;i<n_cluster;i++) {
+            if( Math.abs(cluster[i] - median_ns) <= max_residual_ns )
+                sum_squares += (double)(cluster[i] - offset_ns) * (cluster[i] - offset_ns);
+        }
+        jitter_ns = Math.round(Math.sqrt(sum_squares / n_used));
+        if( min_offset_ns <= max_offset_ns )
+            offset_ns = Math.max(min_offset_ns, Math.min(max_offset_ns, offset_ns));
+        round_trip_ns = min_round_trip_ns;
+        sample_time_ns = sample_times_ns[min_index];
+        return true;
+    }
+
+    private static long median(long [] values, int count) {
+        long [] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        return count % 2 == 1 ? sorted[count/2] : (sorted[count/2 - 1] + sorted[count/2]) / 2;
+    }
+
+    /** Returns the offset of the server clock from the local wall clock, server - local, in ns.
+     */
+    public long getOffsetNs() {
+        return offset_ns;
+    }
+
+    /** Returns the shortest round trip time of the burst.
+     */
+    public long getRoundTripNs() {
+        return round_trip_ns;
+    }
+
+    /** Returns the RMS deviation of the offsets averaged from their mean.
+     */
+    public long getJitterNs() {
+        return jitter_ns;
+    }
+
+    /** Returns the time of the monotonic clock the exchange with the shortest round trip started.
+     */
+    public long getSampleTimeNs() {
+        return sample_time_ns;
+    }
+
+    /** Returns the server time, in ns since 1970, at {@link #getSampleTimeNs()}.
+     */
+    public long getReferenceTimeNs() {
+        return toWallNs(sample_time_ns) + offset_ns;
+    }
+
+    /** Returns the wall time, in ns since 1970, at the given time of the monotonic clock, as
+     *  anchored for the last burst.
+     */
+    public long getWallTimeNs(long clock_ns) {
+        return toWallNs(clock_ns);
+    }
+
+    /** Returns the number of exchanges of the last burst that succeeded.
+     */
+    public int getSampleCount() {
+        return n_samples;
+    }
+
+    /** Returns the number of exchanges the offset was averaged from.
+     */
+    public int getUsedCount() {
+        return n_used;
+    }
+
+    /** Returns how long the last burst took, until its last response or its timeout.
+     */
+    public long getDurationNs() {
+        return duration_ns;
+    }
+
+    private static long readLong(byte [] buffer, int offset) {
+        long value = 0;
+        for(int i=0;i<8;i++) {
+            value = (value << 8) | (buffer[offset+i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Reads the NTP timestamp at the given offset, as ns since 1970. Timestamps with the most
+     * significant bit of the seconds clear are taken as after 2036, in the next NTP era.
+     */
+    public static long readTimestamp(byte [] buffer, int offset) {
+        final long stamp = readLong(buffer, offset);
+        long seconds = stamp >>> 32;
+        final long fraction = stamp & 0xffffffffL;
+        if( seconds == 0 && fraction == 0 )
+            return 0;
+        if( (seconds & 0x80000000L) == 0 )
+            seconds += 0x100000000L; // era 1, from 7 February 2036
+        return (seconds - OFFSET_1900_TO_1970) * NANOS_PER_SECOND + ((fraction * NANOS_PER_SECOND) >>> 32);
+    }
+
+    /**
+     * Writes a time in ns since 1970 as an NTP timestamp at the given offset, rounding to the
+     * nearest fraction.
+     */
+    public static void writeTimestamp(byte [] buffer, int offset, long time_ns) {
+        if( time_ns == 0 ) {
+            Arrays.fill(buffer, offset, offset + 8, (byte)0);
+            return;
+        }
+        // round towards minus infinity, as Math.floorDiv needs API level 24
+        long seconds = time_ns / NANOS_PER_SECOND;
+        if( time_ns % NANOS_PER_SECOND < 0 )
+            seconds--;
+        final long nanos = time_ns - seconds * NANOS_PER_SECOND;
+        long fraction = ((nanos << 32) + NANOS_PER_SECOND / 2) / NANOS_PER_SECOND;
+        long ntp_seconds = seconds + OFFSET_1900_TO_1970;
+        if( fraction > 0xffffffffL ) {
+            fraction = 0;
+            ntp_seconds++;
+        }
+        final long stamp = ((ntp_seconds & 0xffffffffL) << 32) | fraction;
+        for(int i=7;i>=0;i--) {
+            buffer[offset+7-i] = (byte)(stamp >> (8 * i));
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package net.sourceforge.opencamera.multisync;
+
+import android.util.Log;
+
+import com.googleresearch.capturesync.softwaresync.ClockModel;
+import com.googleresearch.capturesync.softwaresync.Ticker;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clock of an NTP reference, kept up to date in the background so reading it never waits for the
+ * network.
+ *
+ * A {@link Source} is measured on a schedule, each measurement giving the reference time at a time
+ * of the local monotonic clock. The offsets between the two clocks are fitted by a
+ * {@link ClockModel}, so the drift of the local clock is corrected between refreshes rather than
+ * holding the last offset. {@link #now()} and the conversions only evaluate the model.
+ *
+ * Reference times are in ns since 1970, local times in ns of the Ticker. Thread safe.
+ */
+public class NtpClock {
+    /** Time between refreshes, once the clock is known. */
+    public static final long DEFAULT_REFRESH_INTERVAL_NS = 64000000000L;
+    /** Time until retrying a refresh that failed, or after the first one, so the drift is
+     *  measured soon. */
+    public static final long DEFAULT_RETRY_INTERVAL_NS = 8000000000L;
+    /** Refreshes kept in the fit. */
+    public static final int WINDOW_SIZE = 8;
+    /** Bound on the drift of the local clock, in ns per ns. */
+    public static final double MAX_SKEW = 500e-6;
+    /** A measurement further than this from the prediction is a step of the reference clock, and
+     *  restarts the fit. */
+    public static final long RESET_THRESHOLD_NS = 100000000L;
+    /** Standard deviations of the model in the error bound. */
+    public static final double ERROR_SIGMAS = 3.0;
+
+    private static final String TAG = "NtpClock";
+
+    /** One measurement of the reference clock.
+     */
+    public static class Sample {
+        /** Local time of the measurement. */
+        public final long local_time_ns;
+        /** Reference time at local_time_ns. */
+        public final long reference_time_ns;
+        /** Round trip time of the exchange, bounding the error of reference_time_ns. */
+        public final long round_trip_ns;
+
+        public Sample(long local_time_ns, long reference_time_ns, long round_trip_ns) {
+            this.local_time_ns = local_time_ns;
+            this.reference_time_ns = reference_time_ns;
+            this.round_trip_ns = round_trip_ns;
+        }
+    }
+
+    /** Measures the reference clock, e.g. with an {@link NtpBurstClient}. Called on the refresh
+     *  thread, so it may block.
+     */
+    public interface Source {
+        /** @return The measurement, or null if it failed. */
+        Sample measure();
+    }
+
+    /** Notified after every refresh, on the refresh thread.
+     */
+    public interface Listener {
+        void onRefresh(boolean succeeded);
+    }
+
+    private final Ticker clock;
+    private final Source source;
+    private final long refresh_interval_ns;
+    private final long retry_interval_ns;
+    private final ClockModel model = new ClockModel(WINDOW_SIZE, MAX_SKEW, RESET_THRESHOLD_NS);
+
+    private volatile Listener listener;
+    private volatile long last_round_trip_ns;
+    private volatile long last_refresh_time_ns;
+    private volatile int n_refreshes;
+    private volatile int n_failures;
+
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> next_refresh;
+
+    public NtpClock(Ticker clock, Source source) {
+        this(clock, source, DEFAULT_REFRESH_INTERVAL_NS, DEFAULT_RETRY_INTERVAL_NS);
+    }
+
+    public NtpClock(Ticker clock, Source source, long refresh_interval_ns, long retry_interval_ns) {
+        this.clock = clock;
+        this.source = source;
+        this.refresh_interval_ns = refresh_interval_ns;
+        this.retry_interval_ns = retry_interval_ns;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Starts refreshing in the background, with a refresh at once. Does nothing if started.
+     */
+    public synchronized void start() {
+        if( scheduler != null )
+            return;
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduleRefresh(0);
+    }
+
+    /** Stops refreshing, keeping the fit so far. A refresh in progress completes.
+     */
+    public synchronized void stop() {
+        if( scheduler == null )
+            return;
+        scheduler.shutdownNow();
+        scheduler = null;
+        next_refresh = null;
+    }
+
+    public synchronized boolean isStarted() {
+        return scheduler != null;
+    }
+
+    /** Requests a refresh in the background as soon as possible, starting if needed.
+     */
+    public synchronized void refreshSoon() {
+        if( scheduler == null ) {
+            start();
+            return;
+        }
+        if( next_refresh != null && next_refresh.cancel(false) )
+            scheduleRefresh(0);
+    }
+
+    private void scheduleRefresh(long delay_ns) {
+        final ScheduledExecutorService scheduler = this.scheduler;
+        next_refresh = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                final boolean succeeded = refresh();
+                synchronized( NtpClock.this ) {
+                    if( NtpClock.this.scheduler == scheduler ) {
+                        scheduleRefresh(succeeded && model.sampleCount() > 1 ? refresh_interval_ns : retry_interval_ns);
+                    }
+                }
+                Listener listener = NtpClock.this.listener;
+                if( listener != null )
+                    listener.onRefresh(succeeded);
+            }
+        }, delay_ns, TimeUnit.NANOSECONDS);
+    }
+
+    /** Measures the source and adds it to the fit, blocking. Called by the background refreshes,
+     *  or directly when not started.
+     * @return Whether the measurement succeeded.
+     */
+    public boolean refresh() {
+        final Sample sample = source.measure();
+        if( sample == null ) {
+            n_failures++;
+            if( MyDebug.LOG )
+                Log.d(TAG, "refresh failed");
+            return false;
+        }
+        // ClockModel's offset is local - reference
+        model.addSample(sample.local_time_ns, sample.local_time_ns - sample.reference_time_ns, sample.round_trip_ns);
+        last_round_trip_ns = sample.round_trip_ns;
+        last_refresh_time_ns = sample.local_time_ns;
+        n_refreshes++;
+        if( MyDebug.LOG )
+            Log.d(TAG, "refreshed: " + this);
+        return true;
+    }
+
+    /** Whether the reference clock is known.
+     */
+    public boolean hasTime() {
+        return model.sampleCount() > 0;
+    }
+
+    /** Returns the current reference time. Doesn't block.
+     * @throws IllegalStateException If the reference clock isn't known yet, see {@link #hasTime}.
+     */
+    public long now() {
+        return toReferenceTime(clock.read());
+    }
+
+    /** Returns the bound on the error of {@link #now()}.
+     */
+    public long getErrorBoundNs() {
+        return getErrorBoundNs(clock.read());
+    }
+
+    /** Returns the bound on the error of the reference time at the given local time: half the
+     *  round trip of the last refresh, plus ERROR_SIGMAS standard deviations of the fit, which
+     *  grow with the time since the refreshes.
+     */
+    public long getErrorBoundNs(long local_time_ns) {
+        return last_round_trip_ns / 2 + (long)(ERROR_SIGMAS * model.uncertaintyAt(local_time_ns));
+    }
+
+    public long toReferenceTime(long local_time_ns) {
+        return local_time_ns - model.offsetAt(local_time_ns);
+    }
+
+    /** Returns the local time at which the reference clock reads the given time, e.g. to wait
+     *  for a shutter time sent in the reference clock.
+     */
+    public long toLocalTime(long reference_time_ns) {
+        // the offset hardly changes over the distance, so refine once
+        final long local_time_ns = reference_time_ns + model.offsetAt(clock.read());
+        return reference_time_ns + model.offsetAt(local_time_ns);
+    }
+
+    /** Returns how much faster the local clock runs than the reference, in ns per ns.
+     */
+    public double getSkew() {
+        return model.skew();
+    }
+
+    public int getRefreshCount() {
+        return n_refreshes;
+    }
+
+    public int getFailureCount() {
+        return n_failures;
+    }
+
+    /** Returns the local time of the last successful refresh.
+     */
+    public long getLastRefreshTimeNs() {
+        return last_refresh_time_ns;
+    }
+
+    @Override
+    public String toString() {
+        if( !hasTime() )
+            return "NtpClock{refreshes=0, failures=" + n_failures + "}";
+        final long now_ns = clock.read();
+        return "NtpClock{refreshes=" + n_refreshes + ", failures=" + n_failures +
+                ", skew_ppm=" + getSkew() * 1e6 + ", error_ms=" + getErrorBoundNs(now_ns) / 1000000.0 +
+                ", since_refresh_s=" + (now_ns - last_refresh_time_ns) / 1000000000.0 + "}";
+    }
+}
@@ -0,0 +1,420 @@
+package net.sourceforge.opencamera.multisync;
+
+import com.googleresearch.capturesync.softwaresync.Ticker;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Measures the time of several NTP servers in parallel, each with its own {@link NtpBurstClient},
+ * and combines those that agree, so one noisy or restarting server doesn't spoil the time.
+ *
+ * Each server gives an offset, and a distance bounding its error: half its round trip, which the
+ * true offset is within for any asymmetry of the delays, plus the jitter of its burst. As in the
+ * clock select of NTP (RFC 5905), the smallest number of falsetickers is found for which the
+ * intervals of all the others, the truechimers, have a point in common; there must be a majority
+ * of them. The offsets of the truechimers are averaged weighted by the inverse square of their
+ * distance.
+ *
+ * Offsets are of the reference from the local monotonic clock, reference - local, in ns. Not
+ * thread safe, except {@link #getServerStats()} and {@link #close()}.
+ */
+public class NtpServerSelector implements Closeable {
+    /** Lower bound on the distance of a server, so a server on the local network with a tiny
+     *  round trip doesn't outweigh all the others. */
+    public static final long MIN_DISTANCE_NS = 100000L;
+
+    /** Statistics of one server, to see which one is degrading.
+     */
+    public static class ServerStats {
+        private final InetSocketAddress address;
+        private int n_polls;
+        private int n_failures;
+        private int n_falsetickers;
+        private boolean truechimer;
+        private long offset_ns;
+        private long round_trip_ns;
+        private long jitter_ns;
+        private long distance_ns;
+        private long deviation_ns;
+
+        ServerStats(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        ServerStats(ServerStats stats) {
+            this.address = stats.address;
+            this.n_polls = stats.n_polls;
+            this.n_failures = stats.n_failures;
+            this.n_falsetickers = stats.n_falsetickers;
+            this.truechimer = stats.truechimer;
+            this.offset_ns = stats.offset_ns;
+            this.round_trip_ns = stats.round_trip_ns;
+            this.jitter_ns = stats.jitter_ns;
+            this.distance_ns = stats.distance_ns;
+            this.deviation_ns = stats.deviation_ns;
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        public int getPollCount() {
+            return n_polls;
+        }
+
+        /** Returns the number of polls the server didn't answer.
+         */
+        public int getFailureCount() {
+            return n_failures;
+        }
+
+        /** Returns the number of polls the server disagreed with the others.
+         */
+        public int getFalsetickerCount() {
+            return n_falsetickers;
+        }
+
+        /** Whether the server was combined in the last poll.
+         */
+        public boolean isTruechimer() {
+            return truechimer;
+        }
+
+        /** Returns the offset of the server in the last poll it answered.
+         */
+        public long getOffsetNs() {
+            return offset_ns;
+        }
+
+        public long getRoundTripNs() {
+            return round_trip_ns;
+        }
+
+        public long getJitterNs() {
+            return jitter_ns;
+        }
+
+        public long getDistanceNs() {
+            return distance_ns;
+        }
+
+        /** Returns the offset of the server minus the combined offset, in the last poll both were
+         *  known.
+         */
+        public long getDeviationNs() {
+            return deviation_ns;
+        }
+
+        @Override
+        public String toString() {
+            return "ServerStats{" + address + ", polls=" + n_polls + ", failures=" + n_failures +
+                    ", falsetickers=" + n_falsetickers + ", truechimer=" + truechimer +
+                    ", round_trip_ms=" + round_trip_ns / 1000000.0 + ", jitter_ms=" + jitter_ns / 1000000.0 +
+                    ", deviation_ms=" + deviation_ns / 1000000.0 + "}";
+        }
+    }
+
+    private static class Server {
+        final ServerStats stats;
+        final NtpBurstClient client;
+        // the last poll
+        boolean answered;
+        long offset_ns;
+        long distance_ns;
+        long sample_time_ns;
+
+        Server(InetSocketAddress address, Ticker clock) {
+            this.stats = new ServerStats(address);
+            this.client = new NtpBurstClient(clock);
+        }
+    }
+
+    private final Ticker clock;
+    private final List<Server> servers = new ArrayList<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private long offset_ns;
+    private long error_ns;
+    private long round_trip_ns;
+    private long sample_time_ns;
+    private Server best_server;
+    private int n_truechimers;
+
+    /**
+     * @param clock Monotonic clock, in ns.
+     */
+    public NtpServerSelector(Ticker clock) {
+        this.clock = clock;
+    }
+
+    /** Sets the servers to poll, keeping the socket and statistics of those already polled.
+     */
+    public void setServers(List<InetSocketAddress> addresses) {
+        List<Server> kept = new ArrayList<>();
+        for(InetSocketAddress address : addresses) {
+            Server server = null;
+            for(Server old_server : servers) {
+                if( old_server.stats.address.equals(address) ) {
+                    server = old_server;
+                    break;
+                }
+            }
+            kept.add(server != null ? server : new Server(address, clock));
+        }
+        for(Server server : servers) {
+            if( !kept.contains(server) )
+                server.client.close();
+        }
+        synchronized( servers ) {
+            servers.clear();
+            servers.addAll(kept);
+        }
+        if( best_server != null && !kept.contains(best_server) ) {
+            best_server = null;
+            n_truechimers = 0;
+        }
+    }
+
+    /**
+     * Polls all the servers in parallel, with a burst each, and combines the truechimers.
+     * @param timeout_ms How long to wait for the responses after the last request of a burst.
+     * @return Whether a majority of the servers answered and agreed.
+     */
+    public boolean requestTime(final int timeout_ms) {
+        final int n_servers = servers.size();
+        if( n_servers == 0 )
+            return false;
+        List<Callable<Boolean>> polls = new ArrayList<>();
+        for(final Server server : servers) {
+            polls.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    InetSocketAddress address = server.stats.address;
+                    return server.client.requestTime(address.getAddress(), address.getPort(), timeout_ms);
+                }
+            });
+        }
+        List<Future<Boolean>> results;
+        try {
+            results = executor.invokeAll(polls);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch(RejectedExecutionException e) {
+            return false; // closed
+        }
+
+        long [] offsets_ns = new long[n_servers];
+        long [] distances_ns = new long[n_servers];
+        int n_answered = 0;
+        synchronized( servers ) {
+            for(int i=0;i<n_servers;i++) {
+                Server server = servers.get(i);
+                ServerStats stats = server.stats;
+                server.answered = isAnswered(results.get(i));
+                stats.n_polls++;
+                stats.truechimer = false;
+                if( !server.answered ) {
+                    stats.n_failures++;
+                    continue;
+                }
+                NtpBurstClient client = server.client;
+                server.sample_time_ns = client.getSampleTimeNs();
+                server.offset_ns = client.getReferenceTimeNs() - server.sample_time_ns;
+                server.distance_ns = Math.max(MIN_DISTANCE_NS, client.getRoundTripNs() / 2 + client.getJitterNs());
+                stats.offset_ns = server.offset_ns;
+                stats.round_trip_ns = client.getRoundTripNs();
+                stats.jitter_ns = client.getJitterNs();
+                stats.distance_ns = server.distance_ns;
+                offsets_ns[n_answered] = server.offset_ns;
+                distances_ns[n_answered] = server.distance_ns;
+                n_answered++;
+            }
+
+            long [] interval = selectInterval(offsets_ns, distances_ns, n_answered, n_servers);
+            if( interval == null ) {
+                for(Server server : servers) {
+                    if( server.answered )
+                        server.stats.n_falsetickers++;
+                }
+                n_truechimers = 0;
+                return false;
+            }
+
+            double sum_weights = 0.0;
+            double sum_offsets = 0.0;
+            Server best = null;
+            final long reference_offset_ns = offsets_ns[0]; // keeps the sums exact as doubles
+            int n_survivors = 0;
+            for(Server server : servers) {
+                if( !server.answered )
+                    continue;
+                if( server.offset_ns + server.distance_ns < interval[0] || server.offset_ns - server.distance_ns > interval[1] ) {
+                    server.stats.n_falsetickers++;
+                    continue;
+                }
+                server.stats.truechimer = true;
+                n_survivors++;
+                final double weight = 1.0 / ((double)server.distance_ns * server.distance_ns);
+                sum_weights += weight;
+                sum_offsets += weight * (server.offset_ns - reference_offset_ns);
+                if( best == null || server.distance_ns < best.distance_ns )
+                    best = server;
+            }
+            offset_ns = reference_offset_ns + Math.round(sum_offsets / sum_weights);
+            error_ns = Math.round(Math.sqrt(1.0 / sum_weights));
+            best_server = best;
+            sample_time_ns = best.sample_time_ns;
+            round_trip_ns = best.client.getRoundTripNs();
+            n_truechimers = n_survivors;
+            for(Server server : servers) {
+                if( server.answered )
+                    server.stats.deviation_ns = server.offset_ns - offset_ns;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAnswered(Future<Boolean> result) {
+        try {
+            return result.get();
+        }
+        catch(InterruptedException | ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the interval common to the most servers, allowing the fewest falsetickers, as the
+     * intersection algorithm of NTP.
+     * @param n_servers The number of servers polled, of which the truechimers must be a majority,
+     *                  those which didn't answer counting as falsetickers.
+     * @return The bounds of the interval, or null if there is no majority.
+     */
+    private static long [] selectInterval(long [] offsets_ns, long [] distances_ns, int n_answered, int n_servers) {
+        // the edges of the intervals, lower edges before upper ones at the same offset
+        long [][] edges = new long[2 * n_answered][];
+        for(int i=0;i<n_answered;i++) {
+            edges[2*i] = new long[]{offsets_ns[i] - distances_ns[i], -1};
+            edges[2*i+1] = new long[]{offsets_ns[i] + distances_ns[i], 1};
+        }
+        Arrays.sort(edges, new Comparator<long[]>() {
+
+            @Override
+            public int compare(long[] a, long[] b) {
+                if( a[0] != b[0] )
+                    return a[0] < b[0] ? -1 : 1;
+                return a[1] < b[1] ? -1 : (a[1] > b[1] ? 1 : 0);
+            }
+        });
+        for(int n_falsetickers=n_servers-n_answered;2*n_falsetickers<n_servers;n_falsetickers++) {
+            final int n_needed = n_servers - n_falsetickers;
+            long low = Long.MAX_VALUE;
+            int count = 0;
+            for(long [] edge : edges) {
+                count -= edge[1];
+                if( count >= n_needed ) {
+                    low = edge[0];
+                    break;
+                }
+            }
+            long high = Long.MIN_VALUE;
+            count = 0;
+            for(int i=edges.length-1;i>=0;i--) {
+                count += edges[i][1];
+                if( count >= n_needed ) {
+                    high = edges[i][0];
+                    break;
+                }
+            }
+            if( low <= high )
+                return new long[]{low, high};
+        }
+        return null;
+    }
+
+    /** Returns the combined offset of the reference from the local monotonic clock.
+     */
+    public long getOffsetNs() {
+        return offset_ns;
+    }
+
+    /** Returns the error of the combined offset, from the distances of the truechimers.
+     */
+    public long getErrorNs() {
+        return error_ns;
+    }
+
+    /** Returns the round trip time of the truechimer with the smallest distance.
+     */
+    public long getRoundTripNs() {
+        return round_trip_ns;
+    }
+
+    /** Returns the time of the monotonic clock the truechimer with the smallest distance was
+     *  measured.
+     */
+    public long getSampleTimeNs() {
+        return sample_time_ns;
+    }
+
+    /** Returns the reference time, in ns since 1970, at {@link #getSampleTimeNs()}.
+     */
+    public long getReferenceTimeNs() {
+        return sample_time_ns + offset_ns;
+    }
+
+    /** Returns the wall time, in ns since 1970, at the given time of the monotonic clock, as
+     *  anchored for the last burst of the truechimer with the smallest distance.
+     */
+    public long getWallTimeNs(long clock_ns) {
+        return best_server == null ? 0 : best_server.client.getWallTimeNs(clock_ns);
+    }
+
+    /** Returns the number of servers combined in the last poll.
+     */
+    public int getTruechimerCount() {
+        return n_truechimers;
+    }
+
+    public int getServerCount() {
+        return servers.size();
+    }
+
+    /** Returns a copy of the statistics of every server. May be called from any thread.
+     */
+    public List<ServerStats> getServerStats() {
+        List<ServerStats> stats = new ArrayList<>();
+        synchronized( servers ) {
+            for(Server server : servers) {
+                stats.add(new ServerStats(server.stats));
+            }
+        }
+        return stats;
+    }
+
+    /** Closes the sockets, and doesn't wait for a poll in progress, which fails.
+     */
+    @Override
+    public void close() {
+        synchronized( servers ) {
+            for(Server server : servers) {
+                server.client.close();
+            }
+        }
+        executor.shutdownNow();
+    }
+}
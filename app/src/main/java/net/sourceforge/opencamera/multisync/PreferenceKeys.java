@@ -75,6 +75,12 @@ public class PreferenceKeys {
 
 	public static final String FocusAssistPreferenceKey = "preference_focus_assist";
 
+    /** Phase config calibrated on this device for phase sync, as JSON.
+	 */
+    public static String getPhaseConfigPreferenceKey(String model, int width, int height) {
+    	return "phase_config_" + model + "_" + width + "x" + height;
+    }
+
     public static String getResolutionPreferenceKey(int cameraId) {
     	return "camera_resolution_" + cameraId;
     }
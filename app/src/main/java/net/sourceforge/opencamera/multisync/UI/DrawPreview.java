@@ -109,6 +109,7 @@ public class DrawPreview {
 	private Rect text_bounds_time;
 	private Rect text_bounds_camera_id;
 	private Rect text_bounds_phase_error;
+	private int text_bounds_phase_error_length; // length of the text measured, as the drift is appended once locked
 	private Rect text_bounds_free_memory;
 	private Rect text_bounds_angle_single;
 	private Rect text_bounds_angle_double;
@@ -122,6 +123,9 @@ public class DrawPreview {
 	private String free_memory_gb_string;
 	private long last_free_memory_time;
 
+	private String [] sync_metrics_lines; // cached for UI performance
+	private long last_sync_metrics_time;
+
 	private String current_time_string;
 	private long last_current_time_time;
 
@@ -1116,6 +1120,23 @@ public class DrawPreview {
 					}
 				}
 			}
+			// image and capture result matching
+			if( sync_metrics_lines == null || time_ms > last_sync_metrics_time + 1000 ) {
+				String metrics = main_activity.getSyncMetricsText();
+				sync_metrics_lines = metrics == null ? null : metrics.split("\n");
+				last_sync_metrics_time = time_ms;
+			}
+			if( sync_metrics_lines != null ) {
+				for (String line : sync_metrics_lines) {
+					int height = applicationInterface.drawTextWithBackground(canvas, p, line, Color.WHITE, Color.BLACK, location_x, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP, ybounds_text, true);
+					height += gap_y;
+					if (ui_rotation == 90) {
+						location_y -= height;
+					} else {
+						location_y += height;
+					}
+				}
+			}
 		}
 
 
@@ -1124,8 +1145,10 @@ public class DrawPreview {
 			Pair<String, Boolean> phaseError = main_activity.getPhaseError();
 			if (phaseError != null) {
 				int color = phaseError.second ? Color.GREEN : Color.RED;
-				if (text_bounds_phase_error == null) {
-					text_bounds_phase_error = new Rect();
+				if (text_bounds_phase_error == null || text_bounds_phase_error_length != phaseError.first.length()) {
+					if (text_bounds_phase_error == null)
+						text_bounds_phase_error = new Rect();
+					text_bounds_phase_error_length = phaseError.first.length();
 					p.getTextBounds(phaseError.first, 0, phaseError.first.length(), text_bounds_phase_error);
 				}
 				int height = applicationInterface.drawTextWithBackground(canvas, p, phaseError.first, color, Color.BLACK, location_x, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP, null, true, text_bounds_phase_error);
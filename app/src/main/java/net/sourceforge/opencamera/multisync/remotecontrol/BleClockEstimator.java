@@ -0,0 +1,197 @@
+package net.sourceforge.opencamera.multisync.remotecontrol;
+
+import com.googleresearch.capturesync.softwaresync.ClockModel;
+
+/**
+ * Estimates the offset between the clock of the server and the clock of a client, and the round
+ * trip time of the link, from two way exchanges over BLE.
+ *
+ * The server sends a ping, reported as sent at t1 (server clock). The client receives it at t2 and
+ * echoes it back at t3 (client clock), which the server receives at t4. The round trip time is
+ * (t4 - t1) - (t3 - t2), as in NTP. The NTP offset ((t2 - t1) + (t3 - t4)) / 2 assumes both ways
+ * take as long, but over BLE each packet waits for the next connection event, and the echo, sent
+ * just after one, waits almost a whole connection interval while the ping doesn't wait when t1
+ * is taken once it was sent. So the offset is t2 - t1 instead: both are taken as the same
+ * connection event ends, on each side, and differ only by the callback latencies.
+ *
+ * Exchanges with a round trip time well above the shortest recent one, where a side was held up,
+ * are rejected, and the others fitted by a {@link ClockModel}, which weights them by their round
+ * trip time and also tracks the drift between the clocks.
+ *
+ * Runs on the server, one per client, with all times in ns of SystemClock.elapsedRealtimeNanos()
+ * on each device. Thread safe.
+ */
+public class BleClockEstimator {
+    /** Exchanges fitted. */
+    public final static int WINDOW_SIZE = 16;
+    /** Exchanges before there is an estimate. */
+    public final static int MIN_SAMPLES = 4;
+    /** Exchanges whose round trip time is compared. */
+    public final static int RTT_WINDOW_SIZE = 16;
+    /** An exchange is rejected if its round trip time exceeds MAX_RTT_FACTOR times the shortest
+     *  recent one, plus RTT_SLACK_NS. */
+    public final static double MAX_RTT_FACTOR = 1.5;
+    public final static long RTT_SLACK_NS = 3000000L;
+    /** An offset further than this from the fit, e.g. after a client restarted, resets the fit. */
+    public final static long RESET_THRESHOLD_NS = 50000000L;
+    private final static double MAX_SKEW = 500e-6;
+
+    private final ClockModel model = new ClockModel(WINDOW_SIZE, MAX_SKEW, RESET_THRESHOLD_NS);
+    private final long [] rtts_ns = new long[RTT_WINDOW_SIZE];
+    private int n_rtts;
+    private int rtt_index;
+
+    private int ping_id = -1;
+    private long ping_time_ns;
+    private boolean ping_sent;
+    private int next_ping_id;
+
+    private long last_offset_ns;
+    private long last_rtt_ns;
+    private int n_pings;
+    private int n_samples;
+    private int n_rejected;
+
+    /** Starts an exchange, replacing one still outstanding.
+     * @return The id of the ping, to send to the client, in [0, 255].
+     */
+    public synchronized int startPing() {
+        ping_id = next_ping_id;
+        next_ping_id = (next_ping_id + 1) & 0xff;
+        ping_sent = false;
+        n_pings++;
+        return ping_id;
+    }
+
+    /** Called once the ping is reported as sent.
+     * @param server_time_ns The time the ping was reported as sent, t1.
+     */
+    public synchronized void onPingSent(int id, long server_time_ns) {
+        if( id == ping_id && !ping_sent ) {
+            ping_time_ns = server_time_ns;
+            ping_sent = true;
+        }
+    }
+
+    /** Returns the id of the ping waiting to be reported as sent, or -1.
+     */
+    public synchronized int getUnsentPingId() {
+        return ping_sent ? -1 : ping_id;
+    }
+
+    /** Completes an exchange with the echo of the client.
+     * @param id The id of the ping echoed.
+     * @param client_receive_ns The time the client received the ping, t2.
+     * @param client_hold_ns The time between the client receiving the ping and echoing it, t3 - t2.
+     * @param server_receive_ns The time the echo was received, t4.
+     * @return Whether the exchange was added to the fit.
+     */
+    public synchronized boolean onEcho(int id, long client_receive_ns, long client_hold_ns, long server_receive_ns) {
+        if( id != ping_id || !ping_sent )
+            return false; // unknown, or a late echo of a replaced ping
+        ping_id = -1;
+        long rtt_ns = server_receive_ns - ping_time_ns - client_hold_ns;
+        if( rtt_ns < 0 || client_hold_ns < 0 ) {
+            n_rejected++;
+            return false;
+        }
+        long offset_ns = client_receive_ns - ping_time_ns;
+        last_offset_ns = offset_ns;
+        last_rtt_ns = rtt_ns;
+
+        long min_rtt_ns = Long.MAX_VALUE;
+        for(int i=0;i<n_rtts;i++) {
+            min_rtt_ns = Math.min(min_rtt_ns, rtts_ns[i]);
+        }
+        rtts_ns[rtt_index] = rtt_ns;
+        rtt_index = (rtt_index + 1) % RTT_WINDOW_SIZE;
+        n_rtts = Math.min(n_rtts + 1, RTT_WINDOW_SIZE);
+        if( n_rtts > MIN_SAMPLES && rtt_ns > min_rtt_ns * MAX_RTT_FACTOR + RTT_SLACK_NS ) {
+            // one side waited longer than the other for a connection event
+            n_rejected++;
+            return false;
+        }
+        // the model holds server - client at the server time the ping was received
+        model.addSample(ping_time_ns, -offset_ns, rtt_ns);
+        n_samples++;
+        return true;
+    }
+
+    /** Forgets all exchanges, e.g. when the client reconnects.
+     */
+    public synchronized void reset() {
+        model.reset();
+        n_rtts = 0;
+        rtt_index = 0;
+        ping_id = -1;
+    }
+
+    public synchronized boolean hasEstimate() {
+        return model.sampleCount() >= MIN_SAMPLES;
+    }
+
+    /** Returns the offset client - server at the given server time, or 0 without an estimate.
+     */
+    public synchronized long getOffsetNs(long server_time_ns) {
+        return hasEstimate() ? -model.offsetAt(server_time_ns) : 0;
+    }
+
+    /** Returns the one standard deviation uncertainty of the offset at the given server time, or
+     *  Long.MAX_VALUE without an estimate.
+     */
+    public synchronized long getUncertaintyNs(long server_time_ns) {
+        return hasEstimate() ? model.uncertaintyAt(server_time_ns) : Long.MAX_VALUE;
+    }
+
+    /** Converts a server time to the client clock.
+     */
+    public synchronized long toClientTime(long server_time_ns) {
+        return server_time_ns + getOffsetNs(server_time_ns);
+    }
+
+    /** Converts a client time to the server clock.
+     */
+    public synchronized long toServerTime(long client_time_ns) {
+        // the offset barely changes over its own size, evaluate it near the server time
+        long server_time_ns = client_time_ns - getOffsetNs(client_time_ns - last_offset_ns);
+        return client_time_ns - getOffsetNs(server_time_ns);
+    }
+
+    /** Returns the shortest recent round trip time, or 0 before any exchange.
+     */
+    public synchronized long getMinRttNs() {
+        long min_rtt_ns = n_rtts == 0 ? 0 : Long.MAX_VALUE;
+        for(int i=0;i<n_rtts;i++) {
+            min_rtt_ns = Math.min(min_rtt_ns, rtts_ns[i]);
+        }
+        return min_rtt_ns;
+    }
+
+    public synchronized long getLastRttNs() {
+        return last_rtt_ns;
+    }
+
+    /** Returns the offset measured by the last exchange, unfiltered.
+     */
+    public synchronized long getLastOffsetNs() {
+        return last_offset_ns;
+    }
+
+    public synchronized int getPingCount() {
+        return n_pings;
+    }
+
+    public synchronized int getSampleCount() {
+        return n_samples;
+    }
+
+    public synchronized int getRejectedCount() {
+        return n_rejected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BleClockEstimator{pings=" + n_pings + ", samples=" + n_samples + ", rejected=" + n_rejected +
+                ", min_rtt_ms=" + getMinRttNs() / 1000000.0 + ", last_offset_ms=" + last_offset_ns / 1000000.0 + "}";
+    }
+}
@@ -0,0 +1,218 @@
+package net.sourceforge.opencamera.multisync.remotecontrol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queue of the commands the server sends to one client, see {@link BleCommandFrame}.
+ *
+ * Only one packet is in flight at a time: the next is built once the previous notification was
+ * sent, from everything queued meanwhile, filling up to the negotiated MTU. Settings (values that
+ * replace the previous one, like ISO and exposure time or zoom) still queued are coalesced with
+ * the newer value, unless a command was queued in between, so the client sees the same sequence
+ * of states as if every value had been sent.
+ *
+ * Clients that didn't announce support for framed packets get one legacy packet per command,
+ * still coalesced.
+ *
+ * Doesn't depend on Android, the caller passes the packets to the GATT server.
+ */
+public class BleCommandChannel {
+    /** The default ATT MTU, before any exchange. */
+    public final static int DEFAULT_MTU = 23;
+    /** The ATT header of a notification, taken from the MTU. */
+    public final static int ATT_HEADER_SIZE = 3;
+    /** After this long without the notification being reported as sent, it is taken as lost. */
+    public final static long IN_FLIGHT_TIMEOUT_MS = 1000;
+
+    private static class Record {
+        final byte [] packet; // in the legacy format
+        final boolean is_setting;
+
+        Record(byte [] packet, boolean is_setting) {
+            this.packet = packet;
+            this.is_setting = is_setting;
+        }
+    }
+
+    private final List<Record> pending = new ArrayList<>();
+    private final Map<Integer, byte []> last_settings = new HashMap<>(); // last value sent of each setting
+    private boolean framed;
+    private int max_packet_size = DEFAULT_MTU - ATT_HEADER_SIZE;
+    private int sequence;
+    private boolean in_flight;
+    private long in_flight_time_ms;
+    private final List<Record> in_flight_records = new ArrayList<>();
+
+    private int n_packets;
+    private int n_queued;
+    private int n_coalesced;
+    private int n_timeouts;
+
+    /** Queues a setting, replacing its value still queued if no command was queued since.
+     * @param packet The legacy packet, command code followed by payload.
+     */
+    public synchronized void putSetting(byte [] packet) {
+        n_queued++;
+        int command = packet[0];
+        for(int i=pending.size()-1;i>=0;i--) {
+            Record record = pending.get(i);
+            if( !record.is_setting )
+                break;
+            if( record.packet[0] == command ) {
+                pending.set(i, new Record(packet, true));
+                n_coalesced++;
+                return;
+            }
+        }
+        pending.add(new Record(packet, true));
+    }
+
+    /** Queues a command, which is always sent, in order.
+     * @param packet The legacy packet, command code followed by payload.
+     */
+    public synchronized void putCommand(byte [] packet) {
+        n_queued++;
+        pending.add(new Record(packet, false));
+    }
+
+    /** Sets whether the client supports framed packets.
+     */
+    public synchronized void setFramed(boolean framed) {
+        this.framed = framed;
+    }
+
+    public synchronized boolean isFramed() {
+        return framed;
+    }
+
+    /** Sets the MTU negotiated with the client.
+     */
+    public synchronized void setMtu(int mtu) {
+        max_packet_size = Math.max(DEFAULT_MTU, mtu) - ATT_HEADER_SIZE;
+    }
+
+    public synchronized int getMaxPacketSize() {
+        return max_packet_size;
+    }
+
+    /** Queues the last value sent of every setting again, e.g. after the client lost packets.
+     */
+    public synchronized void resync() {
+        for(byte [] packet : last_settings.values()) {
+            putSetting(packet);
+        }
+    }
+
+    /** Returns the next packet to send, or null if there is nothing to send or a packet is still in
+     *  flight. The caller must then call {@link #onPacketSent}.
+     */
+    public synchronized byte [] nextPacket(long time_ms) {
+        if( in_flight ) {
+            if( time_ms - in_flight_time_ms < IN_FLIGHT_TIMEOUT_MS )
+                return null;
+            // never reported as sent, take the settings it carried as lost
+            n_timeouts++;
+            onPacketSent(false);
+        }
+        if( pending.isEmpty() )
+            return null;
+
+        byte [] packet;
+        Record first = pending.get(0);
+        if( !framed || BleCommandFrame.HEADER_SIZE + BleCommandFrame.recordSize(first.packet) > max_packet_size ) {
+            // one legacy packet
+            pending.remove(0);
+            in_flight_records.add(first);
+            packet = first.packet;
+        }
+        else {
+            int size = BleCommandFrame.HEADER_SIZE;
+            int count = 0;
+            while( count < pending.size() && size + BleCommandFrame.recordSize(pending.get(count).packet) <= max_packet_size ) {
+                size += BleCommandFrame.recordSize(pending.get(count).packet);
+                count++;
+            }
+            packet = new byte[size];
+            int offset = BleCommandFrame.writeHeader(packet, sequence);
+            sequence = (sequence + 1) & 0xff;
+            for(int i=0;i<count;i++) {
+                Record record = pending.remove(0);
+                offset = BleCommandFrame.writeRecord(packet, offset, record.packet);
+                in_flight_records.add(record);
+            }
+        }
+        for(Record record : in_flight_records) {
+            if( record.is_setting )
+                last_settings.put((int)record.packet[0], record.packet);
+        }
+        in_flight = true;
+        in_flight_time_ms = time_ms;
+        n_packets++;
+        return packet;
+    }
+
+    /** Called once the packet returned by {@link #nextPacket} was sent, or failed to.
+     *  The settings of a failed packet are queued again, unless newer values are queued already.
+     */
+    public synchronized void onPacketSent(boolean success) {
+        if( !in_flight )
+            return;
+        in_flight = false;
+        if( !success ) {
+            for(int i=in_flight_records.size()-1;i>=0;i--) {
+                Record record = in_flight_records.get(i);
+                if( record.is_setting && !hasPendingSetting(record.packet[0]) )
+                    pending.add(0, record);
+            }
+        }
+        in_flight_records.clear();
+    }
+
+    private boolean hasPendingSetting(byte command) {
+        for(Record record : pending) {
+            if( record.is_setting && record.packet[0] == command )
+                return true;
+        }
+        return false;
+    }
+
+    public synchronized boolean isInFlight() {
+        return in_flight;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /** Returns the number of packets sent.
+     */
+    public synchronized int getPacketCount() {
+        return n_packets;
+    }
+
+    /** Returns the number of commands and settings queued.
+     */
+    public synchronized int getQueuedCount() {
+        return n_queued;
+    }
+
+    /** Returns the number of settings replaced by a newer value before being sent.
+     */
+    public synchronized int getCoalescedCount() {
+        return n_coalesced;
+    }
+
+    public synchronized int getTimeoutCount() {
+        return n_timeouts;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BleCommandChannel{framed=" + framed + ", max_packet_size=" + max_packet_size +
+                ", queued=" + n_queued + ", packets=" + n_packets + ", coalesced=" + n_coalesced +
+                ", timeouts=" + n_timeouts + "}";
+    }
+}
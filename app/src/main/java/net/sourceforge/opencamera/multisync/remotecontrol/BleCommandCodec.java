@@ -0,0 +1,167 @@
+package net.sourceforge.opencamera.multisync.remotecontrol;
+
+/**
+ * Encoding of the commands the server sends to the clients, used by {@link PeripheralRoleService},
+ * and their decoding, used by {@link BluetoothLeService}.
+ *
+ * A command is its code, followed by a payload of a fixed size for that code, with the fields
+ * big-endian at fixed offsets. This is the legacy packet format, also the records of a
+ * {@link BleCommandFrame}.
+ *
+ * Decoding reads the fields straight from the received bytes and dispatches by a table indexed
+ * by the code, so it doesn't allocate, as it runs on the Bluetooth callback thread that also
+ * delivers the shutter and server time commands.
+ */
+public class BleCommandCodec {
+    /** ISO (int) and exposure time (long). */
+    public final static int COMMAND_ISO_TIME = 2;
+    /** Focus distance (float). */
+    public final static int COMMAND_FOCUS_DISTANCE = 4;
+    /** Zoom (int). */
+    public final static int COMMAND_ZOOM = 6;
+    /** Take a picture, waiting for the shutter command. */
+    public final static int COMMAND_FOCUS_EXP = 8;
+    /** Server time (long), for the BLE sync. */
+    public final static int COMMAND_SERVER_TIME = 10;
+    public final static int COMMAND_NTP_SYNC = 12;
+    /** Clock ping (id, unsigned byte), echoed by the client, see {@link BleClockEstimator}. */
+    public final static int COMMAND_TIME_PING = 14;
+    public final static int COMMAND_MODE = 16;
+    /** Shutter time (long), in ns of the client SystemClock.elapsedRealtimeNanos(). */
+    public final static int COMMAND_TRIGGER_TIME = 18;
+    public final static int COMMAND_SHUTDOWN = 22;
+    /** Focus region (float x, float y). */
+    public final static int COMMAND_FOCUS_REGION = 28;
+    public final static int COMMAND_SHUTTER = 32;
+    public final static int COMMAND_MENU = 48;
+    public final static int COMMAND_UP = 64;
+    public final static int COMMAND_DOWN = 80;
+    public final static int COMMAND_AFMF_LONG = 96;
+    public final static int COMMAND_AFMF = 97;
+
+    private final static int N_COMMANDS = 256;
+    private final static int [] payload_sizes = new int[N_COMMANDS];
+
+    static {
+        payload_sizes[COMMAND_ISO_TIME] = 12;
+        payload_sizes[COMMAND_FOCUS_DISTANCE] = 4;
+        payload_sizes[COMMAND_ZOOM] = 4;
+        payload_sizes[COMMAND_SERVER_TIME] = 8;
+        payload_sizes[COMMAND_TIME_PING] = 1;
+        payload_sizes[COMMAND_TRIGGER_TIME] = 8;
+        payload_sizes[COMMAND_FOCUS_REGION] = 8;
+    }
+
+    /** Returns the size of the payload following the code of a command.
+     */
+    public static int getPayloadSize(int command) {
+        return payload_sizes[command & 0xff];
+    }
+
+    public static byte [] encodeCommand(int command) {
+        return new byte[] { (byte)command };
+    }
+
+    public static byte [] encodeIsoTime(int iso, long exposure_time) {
+        byte [] packet = create(COMMAND_ISO_TIME);
+        putInt(packet, 1, iso);
+        putLong(packet, 5, exposure_time);
+        return packet;
+    }
+
+    public static byte [] encodeFocusDistance(float focus_distance) {
+        byte [] packet = create(COMMAND_FOCUS_DISTANCE);
+        putInt(packet, 1, Float.floatToIntBits(focus_distance));
+        return packet;
+    }
+
+    public static byte [] encodeZoom(int zoom) {
+        byte [] packet = create(COMMAND_ZOOM);
+        putInt(packet, 1, zoom);
+        return packet;
+    }
+
+    public static byte [] encodeServerTime(long time) {
+        byte [] packet = create(COMMAND_SERVER_TIME);
+        putLong(packet, 1, time);
+        return packet;
+    }
+
+    public static byte [] encodeTimePing(int id) {
+        byte [] packet = create(COMMAND_TIME_PING);
+        packet[1] = (byte)id;
+        return packet;
+    }
+
+    public static byte [] encodeTriggerTime(long time_ns) {
+        byte [] packet = create(COMMAND_TRIGGER_TIME);
+        putLong(packet, 1, time_ns);
+        return packet;
+    }
+
+    public static byte [] encodeFocusRegion(float x, float y) {
+        byte [] packet = create(COMMAND_FOCUS_REGION);
+        putInt(packet, 1, Float.floatToIntBits(x));
+        putInt(packet, 5, Float.floatToIntBits(y));
+        return packet;
+    }
+
+    private static byte [] create(int command) {
+        byte [] packet = new byte[1 + getPayloadSize(command)];
+        packet[0] = (byte)command;
+        return packet;
+    }
+
+    public static void putInt(byte [] bytes, int offset, int value) {
+        bytes[offset] = (byte)(value >> 24);
+        bytes[offset+1] = (byte)(value >> 16);
+        bytes[offset+2] = (byte)(value >> 8);
+        bytes[offset+3] = (byte)value;
+    }
+
+    public static void putLong(byte [] bytes, int offset, long value) {
+        putInt(bytes, offset, (int)(value >> 32));
+        putInt(bytes, offset+4, (int)value);
+    }
+
+    public static int getInt(byte [] bytes, int offset) {
+        return (bytes[offset] << 24) | ((bytes[offset+1] & 0xff) << 16) | ((bytes[offset+2] & 0xff) << 8) | (bytes[offset+3] & 0xff);
+    }
+
+    public static long getLong(byte [] bytes, int offset) {
+        return ((long)getInt(bytes, offset) << 32) | (getInt(bytes, offset+4) & 0xffffffffL);
+    }
+
+    public static float getFloat(byte [] bytes, int offset) {
+        return Float.intBitsToFloat(getInt(bytes, offset));
+    }
+
+    public interface CommandHandler {
+        /** Called with the payload of the command starting at bytes[offset].
+         */
+        void onCommand(byte [] bytes, int offset);
+    }
+
+    /** Table of the handlers of each command code.
+     */
+    public static class Dispatcher {
+        private final CommandHandler [] handlers = new CommandHandler[N_COMMANDS];
+
+        public void setHandler(int command, CommandHandler handler) {
+            handlers[command & 0xff] = handler;
+        }
+
+        /** Passes a command to its handler.
+         * @param length The number of bytes of payload available from offset.
+         * @return False if there is no handler for the command, or its payload is too short.
+         */
+        public boolean dispatch(int command, byte [] bytes, int offset, int length) {
+            command &= 0xff;
+            CommandHandler handler = handlers[command];
+            if( handler == null || length < payload_sizes[command] )
+                return false;
+            handler.onCommand(bytes, offset);
+            return true;
+        }
+    }
+}
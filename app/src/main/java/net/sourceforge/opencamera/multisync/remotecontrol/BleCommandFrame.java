@@ -0,0 +1,166 @@
+package net.sourceforge.opencamera.multisync.remotecontrol;
+
+/**
+ * Framing of the commands the server sends to the clients over the command characteristic.
+ *
+ * A legacy packet is a single command: the command code, followed by its payload.
+ * A framed packet carries several commands at once, so that settings changed quickly one after
+ * the other all go out in the same connection event:
+ *
+ *    [FRAME_MARKER] [sequence] ([command] [payload length] [payload])*
+ *
+ * The sequence number is incremented for every framed packet, so a client can detect lost
+ * packets (see {@link SequenceTracker}) and ask for the settings again with REQUEST_RESYNC.
+ * The marker is not a legacy command code, so old clients ignore framed packets. The server only
+ * sends them to clients that announced themselves with REQUEST_HELLO.
+ *
+ * The clients write requests to the same characteristic, framed the same way, with a sequence of 0.
+ */
+public class BleCommandFrame {
+    /** First byte of a framed packet, not used by any legacy command. */
+    public final static int FRAME_MARKER = 126;
+    public final static int HEADER_SIZE = 2;
+    public final static int RECORD_HEADER_SIZE = 2;
+    public final static int MAX_PAYLOAD_SIZE = 255;
+
+    /** Client request: supports framed packets, with the version as payload. */
+    public final static int REQUEST_HELLO = 1;
+    /** Client request: packets were lost, send all settings again. */
+    public final static int REQUEST_RESYNC = 2;
+    /** Client request: echo of a clock ping, see {@link #createTimeEcho}. */
+    public final static int REQUEST_TIME_ECHO = 3;
+    public final static int TIME_ECHO_SIZE = 13;
+    /** Client request: a shutter trigger was received, at the time (long) of the client clock. */
+    public final static int REQUEST_TRIGGER_RECEIVED = 4;
+    public final static int TRIGGER_RECEIVED_SIZE = 8;
+    public final static int VERSION = 1;
+
+    public interface RecordListener {
+        /** Called for each record of a framed packet, with the payload at packet[offset, offset+length). */
+        void onRecord(int command, byte [] packet, int offset, int length);
+    }
+
+    public static boolean isFrame(byte [] packet) {
+        return packet != null && packet.length >= HEADER_SIZE && (packet[0] & 0xff) == FRAME_MARKER;
+    }
+
+    public static int getSequence(byte [] packet) {
+        return packet[1] & 0xff;
+    }
+
+    /** Writes the header of a framed packet, returns the offset of the first record.
+     */
+    public static int writeHeader(byte [] packet, int sequence) {
+        packet[0] = (byte)FRAME_MARKER;
+        packet[1] = (byte)sequence;
+        return HEADER_SIZE;
+    }
+
+    /** Size of a legacy packet once framed as a record.
+     */
+    public static int recordSize(byte [] legacy_packet) {
+        return legacy_packet.length - 1 + RECORD_HEADER_SIZE;
+    }
+
+    /** Writes a legacy packet, i.e., a command code and its payload, as a record at offset.
+     * @return The offset following the record.
+     */
+    public static int writeRecord(byte [] packet, int offset, byte [] legacy_packet) {
+        int length = legacy_packet.length - 1;
+        if( length > MAX_PAYLOAD_SIZE )
+            throw new IllegalArgumentException("payload too long: " + length);
+        packet[offset] = legacy_packet[0];
+        packet[offset+1] = (byte)length;
+        System.arraycopy(legacy_packet, 1, packet, offset + RECORD_HEADER_SIZE, length);
+        return offset + RECORD_HEADER_SIZE + length;
+    }
+
+    /** Returns a framed client request without payload.
+     */
+    public static byte [] createRequest(int request) {
+        return new byte[] { (byte)FRAME_MARKER, 0, (byte)request, 0 };
+    }
+
+    /** Returns the framed client hello request.
+     */
+    public static byte [] createHello() {
+        return new byte[] { (byte)FRAME_MARKER, 0, (byte)REQUEST_HELLO, 1, (byte)VERSION };
+    }
+
+    /** Returns the framed echo of a clock ping: [id] [receive time (long)] [hold time (int)].
+     * @param receive_ns When the ping was received, in the client clock.
+     * @param hold_ns The time from receiving the ping until echoing it.
+     */
+    public static byte [] createTimeEcho(int id, long receive_ns, long hold_ns) {
+        byte [] packet = new byte[HEADER_SIZE + RECORD_HEADER_SIZE + TIME_ECHO_SIZE];
+        int offset = writeHeader(packet, 0);
+        packet[offset] = (byte)REQUEST_TIME_ECHO;
+        packet[offset+1] = (byte)TIME_ECHO_SIZE;
+        packet[offset+2] = (byte)id;
+        BleCommandCodec.putLong(packet, offset+3, receive_ns);
+        BleCommandCodec.putInt(packet, offset+11, (int)Math.min(hold_ns, Integer.MAX_VALUE));
+        return packet;
+    }
+
+    /** Returns the framed report of receiving a shutter trigger.
+     * @param receive_ns When the trigger was received, in the client clock.
+     */
+    public static byte [] createTriggerReceived(long receive_ns) {
+        byte [] packet = new byte[HEADER_SIZE + RECORD_HEADER_SIZE + TRIGGER_RECEIVED_SIZE];
+        int offset = writeHeader(packet, 0);
+        packet[offset] = (byte)REQUEST_TRIGGER_RECEIVED;
+        packet[offset+1] = (byte)TRIGGER_RECEIVED_SIZE;
+        BleCommandCodec.putLong(packet, offset+2, receive_ns);
+        return packet;
+    }
+
+    /** Passes each record of a framed packet to the listener.
+     * @return The number of records, or -1 if the packet is not a well formed frame, in which case
+     *         the records up to the malformed one have been passed already.
+     */
+    public static int decode(byte [] packet, RecordListener listener) {
+        if( !isFrame(packet) )
+            return -1;
+        int offset = HEADER_SIZE;
+        int records = 0;
+        while( offset < packet.length ) {
+            if( offset + RECORD_HEADER_SIZE > packet.length )
+                return -1;
+            int command = packet[offset] & 0xff;
+            int length = packet[offset+1] & 0xff;
+            offset += RECORD_HEADER_SIZE;
+            if( offset + length > packet.length )
+                return -1;
+            listener.onRecord(command, packet, offset, length);
+            offset += length;
+            records++;
+        }
+        return records;
+    }
+
+    /** Detects lost framed packets from their sequence numbers, on the client.
+     */
+    public static class SequenceTracker {
+        private int last_sequence = -1;
+        private int lost;
+
+        /** Resets, e.g., when reconnecting, as the server starts a new sequence.
+         */
+        public void reset() {
+            last_sequence = -1;
+        }
+
+        /** Returns the number of packets lost since the previous one.
+         */
+        public int onSequence(int sequence) {
+            int missed = last_sequence == -1 ? 0 : (sequence - last_sequence - 1) & 0xff;
+            last_sequence = sequence & 0xff;
+            lost += missed;
+            return missed;
+        }
+
+        public int getLost() {
+            return lost;
+        }
+    }
+}
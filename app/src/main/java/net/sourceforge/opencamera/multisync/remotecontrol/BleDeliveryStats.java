@@ -0,0 +1,91 @@
+package net.sourceforge.opencamera.multisync.remotecontrol;
+
+import java.util.Arrays;
+
+/**
+ * Delivery statistics of the commands the server sends to one client: the latency from queueing a
+ * command until the client received it, in the server clock, over the recent commands, and how
+ * many shutter triggers arrived after their time. Thread safe.
+ */
+public class BleDeliveryStats {
+    /** Latencies kept for the quantiles. */
+    public final static int WINDOW_SIZE = 32;
+
+    private final long [] latencies_ns = new long[WINDOW_SIZE];
+    private int n_latencies;
+    private int latency_index;
+
+    private int n_deliveries;
+    private long max_latency_ns;
+    private double sum_latency_ns;
+    private int n_triggers;
+    private int n_late_triggers;
+    private long min_slack_ns = Long.MAX_VALUE;
+
+    /** Adds the latency of a command.
+     */
+    public synchronized void addLatency(long latency_ns) {
+        latencies_ns[latency_index] = latency_ns;
+        latency_index = (latency_index + 1) % WINDOW_SIZE;
+        n_latencies = Math.min(n_latencies + 1, WINDOW_SIZE);
+        n_deliveries++;
+        max_latency_ns = Math.max(max_latency_ns, latency_ns);
+        sum_latency_ns += latency_ns;
+    }
+
+    /** Adds a shutter trigger.
+     * @param slack_ns How long before the shutter time the client received it, negative if late.
+     */
+    public synchronized void addTrigger(long slack_ns) {
+        n_triggers++;
+        if( slack_ns < 0 )
+            n_late_triggers++;
+        min_slack_ns = Math.min(min_slack_ns, slack_ns);
+    }
+
+    /** Returns the number of recent latencies, up to WINDOW_SIZE.
+     */
+    public synchronized int getWindowCount() {
+        return n_latencies;
+    }
+
+    /** Returns the given quantile of the recent latencies, or 0 if there are none.
+     * @param quantile In [0, 1].
+     */
+    public synchronized long getLatencyQuantileNs(double quantile) {
+        if( n_latencies == 0 )
+            return 0;
+        long [] sorted = Arrays.copyOf(latencies_ns, n_latencies);
+        Arrays.sort(sorted);
+        int index = (int)Math.ceil(quantile * n_latencies) - 1;
+        return sorted[Math.max(0, Math.min(n_latencies - 1, index))];
+    }
+
+    public synchronized long getMeanLatencyNs() {
+        return n_deliveries == 0 ? 0 : (long)(sum_latency_ns / n_deliveries);
+    }
+
+    public synchronized long getMaxLatencyNs() {
+        return max_latency_ns;
+    }
+
+    public synchronized int getDeliveryCount() {
+        return n_deliveries;
+    }
+
+    public synchronized int getTriggerCount() {
+        return n_triggers;
+    }
+
+    public synchronized int getLateTriggerCount() {
+        return n_late_triggers;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BleDeliveryStats{deliveries=" + n_deliveries + ", mean_ms=" + getMeanLatencyNs() / 1000000.0 +
+                ", p95_ms=" + getLatencyQuantileNs(0.95) / 1000000.0 + ", max_ms=" + max_latency_ns / 1000000.0 +
+                ", triggers=" + n_triggers + ", late=" + n_late_triggers +
+                (n_triggers > 0 ? ", min_slack_ms=" + min_slack_ns / 1000000.0 : "") + "}";
+    }
+}
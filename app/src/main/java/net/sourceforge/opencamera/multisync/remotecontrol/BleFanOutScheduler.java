@@ -0,0 +1,201 @@
+package net.sourceforge.opencamera.multisync.remotecontrol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Schedules the shutter of all the clients at the same time, for rigs of more than two phones.
+ *
+ * Each client has its own {@link BleClockEstimator} and {@link BleDeliveryStats}. The latency from
+ * queueing a command until the client received it is measured from every clock ping and every
+ * trigger, with the receive time of the client converted to the server clock. A trigger is then
+ * scheduled far enough ahead for the slowest client to receive it in time, as a timestamp in the
+ * clock of each client rather than a command to fire at once, so the clients receiving it earlier
+ * just wait longer. The triggers are returned slowest client first, to be sent in that order.
+ *
+ * Doesn't depend on Android, the caller sends the commands. Times are in ns of
+ * SystemClock.elapsedRealtimeNanos() of the server unless said otherwise. Thread safe.
+ *
+ * @param <K> The type identifying a client.
+ */
+public class BleFanOutScheduler<K> {
+    /** Lead time until the clients have enough latency samples. */
+    public final static long DEFAULT_LEAD_TIME_NS = 150000000L;
+    /** Lead time at least, for the camera of the server to be ready. */
+    public final static long MIN_LEAD_TIME_NS = 30000000L;
+    /** Latency quantile a trigger is scheduled for, and the margin added. */
+    public final static double LEAD_QUANTILE = 0.95;
+    public final static long LEAD_MARGIN_NS = 10000000L;
+    /** Latencies needed before a client's own lead time is used. */
+    public final static int MIN_LATENCIES = 4;
+
+    private static class Device {
+        final BleClockEstimator estimator = new BleClockEstimator();
+        final BleDeliveryStats stats = new BleDeliveryStats();
+        long ping_queue_time_ns;
+        long trigger_queue_time_ns;
+        long trigger_time_ns = Long.MAX_VALUE;
+    }
+
+    /** The trigger of one client.
+     */
+    public static class Trigger<K> {
+        public final K device;
+        /** Shutter time in the server clock, the same for all the clients. */
+        public final long server_time_ns;
+        /** Shutter time in the client clock, to send to it. */
+        public final long client_time_ns;
+
+        Trigger(K device, long server_time_ns, long client_time_ns) {
+            this.device = device;
+            this.server_time_ns = server_time_ns;
+            this.client_time_ns = client_time_ns;
+        }
+    }
+
+    private final Map<K, Device> devices = new LinkedHashMap<>();
+
+    public synchronized void addDevice(K device) {
+        if( !devices.containsKey(device) )
+            devices.put(device, new Device());
+    }
+
+    /** Forgets a client, e.g. once disconnected.
+     * @return A summary of its clock and delivery statistics, or null if it was unknown.
+     */
+    public synchronized String removeDevice(K device) {
+        Device state = devices.remove(device);
+        return state == null ? null : state.estimator + " " + state.stats;
+    }
+
+    public synchronized boolean hasDevice(K device) {
+        return devices.containsKey(device);
+    }
+
+    /** Whether the clock of the client is known, so it can be sent a trigger.
+     */
+    public synchronized boolean hasEstimate(K device) {
+        Device state = devices.get(device);
+        return state != null && state.estimator.hasEstimate();
+    }
+
+    /** Returns the clock estimator of the client, or null if it is unknown.
+     */
+    public synchronized BleClockEstimator getEstimator(K device) {
+        Device state = devices.get(device);
+        return state == null ? null : state.estimator;
+    }
+
+    /** Returns the delivery statistics of the client, or null if it is unknown.
+     */
+    public synchronized BleDeliveryStats getStats(K device) {
+        Device state = devices.get(device);
+        return state == null ? null : state.stats;
+    }
+
+    /** Starts a clock exchange with the client, see {@link BleClockEstimator#startPing}.
+     * @return The id of the ping, or -1 if the client is unknown.
+     */
+    public synchronized int startPing(K device, long queue_time_ns) {
+        Device state = devices.get(device);
+        if( state == null )
+            return -1;
+        state.ping_queue_time_ns = queue_time_ns;
+        return state.estimator.startPing();
+    }
+
+    /** Called once a packet was reported as sent to the client, which is the ping if one is
+     *  waiting to be, see {@link BleClockEstimator#onPingSent}.
+     */
+    public synchronized void onPacketSent(K device, long sent_time_ns) {
+        Device state = devices.get(device);
+        if( state == null )
+            return;
+        int id = state.estimator.getUnsentPingId();
+        if( id != -1 )
+            state.estimator.onPingSent(id, sent_time_ns);
+    }
+
+    /** Completes a clock exchange, see {@link BleClockEstimator#onEcho}.
+     * @return Whether the exchange was added to the fit.
+     */
+    public synchronized boolean onEcho(K device, int id, long client_receive_ns, long client_hold_ns, long server_receive_ns) {
+        Device state = devices.get(device);
+        if( state == null || !state.estimator.onEcho(id, client_receive_ns, client_hold_ns, server_receive_ns) )
+            return false;
+        if( state.estimator.hasEstimate() )
+            state.stats.addLatency(state.estimator.toServerTime(client_receive_ns) - state.ping_queue_time_ns);
+        return true;
+    }
+
+    /** Called once the client reported receiving its trigger.
+     * @param client_receive_ns When it received the trigger, in its clock.
+     */
+    public synchronized void onTriggerReceived(K device, long client_receive_ns) {
+        Device state = devices.get(device);
+        if( state == null || state.trigger_time_ns == Long.MAX_VALUE )
+            return;
+        long receive_ns = state.estimator.toServerTime(client_receive_ns);
+        state.stats.addLatency(receive_ns - state.trigger_queue_time_ns);
+        state.stats.addTrigger(state.trigger_time_ns - receive_ns);
+        state.trigger_time_ns = Long.MAX_VALUE;
+    }
+
+    /** Returns how far ahead a trigger must be scheduled for the client to receive it in time.
+     */
+    public synchronized long getLeadTimeNs(K device) {
+        Device state = devices.get(device);
+        return state == null ? DEFAULT_LEAD_TIME_NS : getLeadTimeNs(state);
+    }
+
+    private static long getLeadTimeNs(Device state) {
+        if( state.stats.getWindowCount() < MIN_LATENCIES )
+            return DEFAULT_LEAD_TIME_NS;
+        return Math.max(MIN_LEAD_TIME_NS, state.stats.getLatencyQuantileNs(LEAD_QUANTILE) + LEAD_MARGIN_NS);
+    }
+
+    /** Schedules a trigger for every client whose clock is known, for the lead time of the slowest.
+     * @param now_ns The time the triggers are queued.
+     * @return The triggers, slowest client first, empty if no clock is known.
+     */
+    public synchronized List<Trigger<K>> schedule(long now_ns) {
+        final List<Map.Entry<K, Device>> ready = new ArrayList<>();
+        long lead_time_ns = MIN_LEAD_TIME_NS;
+        for(Map.Entry<K, Device> entry : devices.entrySet()) {
+            if( entry.getValue().estimator.hasEstimate() ) {
+                ready.add(entry);
+                lead_time_ns = Math.max(lead_time_ns, getLeadTimeNs(entry.getValue()));
+            }
+        }
+        Collections.sort(ready, new Comparator<Map.Entry<K, Device>>() {
+            @Override
+            public int compare(Map.Entry<K, Device> a, Map.Entry<K, Device> b) {
+                return Long.compare(getLeadTimeNs(b.getValue()), getLeadTimeNs(a.getValue()));
+            }
+        });
+        final long time_ns = now_ns + lead_time_ns;
+        List<Trigger<K>> triggers = new ArrayList<>();
+        for(Map.Entry<K, Device> entry : ready) {
+            Device state = entry.getValue();
+            state.trigger_queue_time_ns = now_ns;
+            state.trigger_time_ns = time_ns;
+            triggers.add(new Trigger<>(entry.getKey(), time_ns, state.estimator.toClientTime(time_ns)));
+        }
+        return triggers;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("BleFanOutScheduler{");
+        for(Map.Entry<K, Device> entry : devices.entrySet()) {
+            Device state = entry.getValue();
+            builder.append("\n  ").append(entry.getKey()).append(": lead_ms=").append(getLeadTimeNs(state) / 1000000.0)
+                    .append(" ").append(state.estimator).append(" ").append(state.stats);
+        }
+        return builder.append("}").toString();
+    }
+}
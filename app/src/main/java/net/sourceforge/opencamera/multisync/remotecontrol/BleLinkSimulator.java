@@ -0,0 +1,125 @@
+package net.sourceforge.opencamera.multisync.remotecontrol;
+
+import java.util.Random;
+
+/**
+ * Simulated BLE link between the server and a client, to tune and test the clock exchanges of
+ * {@link BleClockEstimator} without devices.
+ *
+ * Packets in both directions wait for the next connection event, then take the air time and some
+ * jitter to be received, and as long to be reported as sent. The client clock is off from the
+ * server clock by an offset, and runs at a slightly different rate. Packets may be lost. Times are
+ * in ns, in the server clock unless said otherwise.
+ */
+public class BleLinkSimulator {
+    private final long connection_interval_ns;
+    private final long anchor_ns;
+    private final long air_time_ns;
+    private final double jitter_ns;
+    private final long clock_offset_ns;
+    private final double clock_skew;
+    private final double loss_rate;
+    private final Random random;
+
+    private int n_lost;
+
+    /**
+     * @param connection_interval_ns Time between connection events, 7.5 to 50 ms on Android.
+     * @param air_time_ns Time from the connection event to the packet being received.
+     * @param jitter_ns Standard deviation of the delay until the receiving app sees the packet.
+     * @param clock_offset_ns Client clock minus server clock, at server time 0.
+     * @param clock_skew How much faster the client clock runs, in ns per ns.
+     * @param loss_rate Probability a packet is lost.
+     */
+    public BleLinkSimulator(long connection_interval_ns, long air_time_ns, double jitter_ns,
+                            long clock_offset_ns, double clock_skew, double loss_rate, long seed) {
+        this.connection_interval_ns = connection_interval_ns;
+        this.air_time_ns = air_time_ns;
+        this.jitter_ns = jitter_ns;
+        this.clock_offset_ns = clock_offset_ns;
+        this.clock_skew = clock_skew;
+        this.loss_rate = loss_rate;
+        this.random = new Random(seed);
+        this.anchor_ns = Math.floorMod(random.nextLong(), connection_interval_ns);
+    }
+
+    /** Returns the connection event a packet sent at the given time goes out in, or -1 if it is
+     *  lost.
+     */
+    public long nextEvent(long send_time_ns) {
+        if( random.nextDouble() < loss_rate ) {
+            n_lost++;
+            return -1;
+        }
+        long events = Math.floorDiv(send_time_ns - anchor_ns + connection_interval_ns - 1, connection_interval_ns);
+        return anchor_ns + events * connection_interval_ns;
+    }
+
+    /** Returns the time from a connection event until its packet is received or reported as sent.
+     */
+    public long callbackDelay() {
+        return air_time_ns + Math.round(Math.abs(random.nextGaussian()) * jitter_ns);
+    }
+
+    /** Returns when a packet sent at the given time is received, or -1 if it is lost.
+     */
+    public long deliver(long send_time_ns) {
+        long event_ns = nextEvent(send_time_ns);
+        return event_ns == -1 ? -1 : event_ns + callbackDelay();
+    }
+
+    public long toClientTime(long server_time_ns) {
+        return server_time_ns + clock_offset_ns + Math.round(server_time_ns * clock_skew);
+    }
+
+    public long toServerTime(long client_time_ns) {
+        return Math.round((client_time_ns - clock_offset_ns) / (1.0 + clock_skew));
+    }
+
+    /** Client clock minus server clock at the given server time.
+     */
+    public long getOffsetNs(long server_time_ns) {
+        return toClientTime(server_time_ns) - server_time_ns;
+    }
+
+    /** Runs a clock exchange of the estimator starting at the given time.
+     * @param client_hold_ns Time the client takes to echo the ping.
+     * @return The server time the exchange finished, or the ping was lost, to schedule the next one.
+     */
+    public long exchange(BleClockEstimator estimator, long server_time_ns, long client_hold_ns) {
+        int id = estimator.startPing();
+        long ping_event_ns = nextEvent(server_time_ns);
+        if( ping_event_ns == -1 )
+            return server_time_ns;
+        estimator.onPingSent(id, ping_event_ns + callbackDelay());
+        long client_receive_ns = toClientTime(ping_event_ns + callbackDelay());
+        long echo_sent_ns = toServerTime(client_receive_ns + client_hold_ns);
+        long echo_received_ns = deliver(echo_sent_ns);
+        if( echo_received_ns == -1 )
+            return echo_sent_ns;
+        estimator.onEcho(id, client_receive_ns, client_hold_ns, echo_received_ns);
+        return echo_received_ns;
+    }
+
+    /** Runs a clock exchange of the scheduler with the given client starting at the given time,
+     *  see {@link #exchange(BleClockEstimator, long, long)}.
+     */
+    public <K> long exchange(BleFanOutScheduler<K> fan_out, K device, long server_time_ns, long client_hold_ns) {
+        int id = fan_out.startPing(device, server_time_ns);
+        long ping_event_ns = nextEvent(server_time_ns);
+        if( ping_event_ns == -1 )
+            return server_time_ns;
+        fan_out.onPacketSent(device, ping_event_ns + callbackDelay());
+        long client_receive_ns = toClientTime(ping_event_ns + callbackDelay());
+        long echo_sent_ns = toServerTime(client_receive_ns + client_hold_ns);
+        long echo_received_ns = deliver(echo_sent_ns);
+        if( echo_received_ns == -1 )
+            return echo_sent_ns;
+        fan_out.onEcho(device, id, client_receive_ns, client_hold_ns, echo_received_ns);
+        return echo_received_ns;
+    }
+
+    public int getLostCount() {
+        return n_lost;
+    }
+}
@@ -18,13 +18,15 @@ import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
 import net.sourceforge.opencamera.multisync.MainActivity;
 
 import java.lang.ref.WeakReference;
-import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -44,6 +46,22 @@ public class BluetoothLeService extends Service {
     private String mRemoteDeviceType;
     private final HashMap<String, BluetoothGattCharacteristic> subscribedCharacteristics = new HashMap<>();
     private final List<BluetoothGattCharacteristic> charsToSubscribeTo = new ArrayList<>();
+    // the characteristic the server sends commands on, see BleCommandFrame
+    private BluetoothGattCharacteristic mCommandCharacteristic;
+    private boolean mHelloSent;
+    private final BleCommandFrame.SequenceTracker mSequenceTracker = new BleCommandFrame.SequenceTracker();
+    private final Handler mPriorityHandler = new Handler(Looper.getMainLooper());
+    private boolean mHighPriority;
+    // when the notification being handled was received, for the clock pings
+    private long mReceiveTimeNs;
+    private final BleCommandCodec.Dispatcher mDispatcher = createDispatcher();
+    // kept, so that receiving a framed packet doesn't allocate
+    private final BleCommandFrame.RecordListener mRecordListener = new BleCommandFrame.RecordListener() {
+        @Override
+        public void onRecord(int command, byte[] packet, int offset, int length) {
+            handleCommand(command, packet, offset, length);
+        }
+    };
 
     private double currentTemp = -1;
     private double currentDepth = -1;
@@ -70,15 +88,21 @@ public class BluetoothLeService extends Service {
             "net.sourceforge.opencamera.multisync.Remotecontrol.DEPTH";
     public final static String EXTRA_DATA =
             "net.sourceforge.opencamera.multisync.Remotecontrol.EXTRA_DATA";
-    public final static int COMMAND_ZOOM = 6;
-    public final static int COMMAND_FOCUS_EXP = 8; //LUK:
-    public final static int COMMAND_SHUTTER = 32;
-    public final static int COMMAND_MODE = 16;
-    public final static int COMMAND_FOCUS = 28;
-    public final static int COMMAND_MENU = 48;
-    public final static int COMMAND_AFMF = 97;
-    public final static int COMMAND_UP = 64;
-    public final static int COMMAND_DOWN = 80;
+    public final static int COMMAND_ZOOM = BleCommandCodec.COMMAND_ZOOM;
+    public final static int COMMAND_FOCUS_EXP = BleCommandCodec.COMMAND_FOCUS_EXP; //LUK:
+    public final static int COMMAND_SHUTTER = BleCommandCodec.COMMAND_SHUTTER;
+    public final static int COMMAND_MODE = BleCommandCodec.COMMAND_MODE;
+    public final static int COMMAND_FOCUS = BleCommandCodec.COMMAND_FOCUS_REGION;
+    public final static int COMMAND_MENU = BleCommandCodec.COMMAND_MENU;
+    public final static int COMMAND_AFMF = BleCommandCodec.COMMAND_AFMF;
+    public final static int COMMAND_UP = BleCommandCodec.COMMAND_UP;
+    public final static int COMMAND_DOWN = BleCommandCodec.COMMAND_DOWN;
+
+    // MTU requested, so several commands fit in one packet; the default is 23
+    private final static int REQUESTED_MTU = 185;
+    // how long the connection interval stays short after the server prepares a capture, and after the shutter
+    private final static long CAPTURE_PRIORITY_MS = 5000;
+    private final static long SHUTTER_PRIORITY_MS = 1000;
 
     //LUK: added
     //public final static int COMMAND_ZOOM = 90;
@@ -100,9 +124,14 @@ public class BluetoothLeService extends Service {
                 broadcastUpdate(intentAction);
                 if( MyDebug.LOG ) {
                     Log.d(TAG, "Connected to GATT server.");
-                    Log.d(TAG, "Attempting to start service discovery");
                 }
-                mBluetoothGatt.discoverServices();
+                mCommandCharacteristic = null;
+                mHelloSent = false;
+                mSequenceTracker.reset();
+                // only one GATT operation at a time: discover the services once the MTU is exchanged
+                if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || !mBluetoothGatt.requestMtu(REQUESTED_MTU) ) {
+                    discoverServices();
+                }
                 currentDepth = -1;
                 currentTemp = -1;
 
@@ -126,6 +155,13 @@ public class BluetoothLeService extends Service {
             }, 5000);
         }
 
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "MTU changed to " + mtu + ", status: " + status);
+            discoverServices();
+        }
+
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
@@ -149,6 +185,7 @@ public class BluetoothLeService extends Service {
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
+            mReceiveTimeNs = SystemClock.elapsedRealtimeNanos();
             if (MyDebug.LOG)
                 Log.d(TAG,"Got notification");
             broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
@@ -163,9 +200,59 @@ public class BluetoothLeService extends Service {
             if (!charsToSubscribeTo.isEmpty()) {
                 setCharacteristicNotification(charsToSubscribeTo.remove(0), true);
             }
+            else if( !mHelloSent ) {
+                // tell the server we support framed commands; old servers don't accept writes
+                mHelloSent = writeRequest(BleCommandFrame.createHello());
+            }
         }
     };
 
+    private void discoverServices() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "Attempting to start service discovery");
+        if( mBluetoothGatt != null )
+            mBluetoothGatt.discoverServices();
+    }
+
+    /**
+     * Writes a request to the server over the command characteristic, if it accepts writes.
+     */
+    private boolean writeRequest(byte [] request) {
+        BluetoothGattCharacteristic characteristic = mCommandCharacteristic;
+        if( mBluetoothGatt == null || characteristic == null ||
+                (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == 0 ) {
+            return false;
+        }
+        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        characteristic.setValue(request);
+        return mBluetoothGatt.writeCharacteristic(characteristic);
+    }
+
+    /**
+     * Shortens the connection interval for the given time, so that the commands around a capture
+     * aren't delayed by up to a balanced connection interval each.
+     */
+    private void requestCapturePriority(long duration_ms) {
+        if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || mBluetoothGatt == null )
+            return;
+        if( !mHighPriority ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "high connection priority");
+            mHighPriority = mBluetoothGatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        }
+        mPriorityHandler.removeCallbacksAndMessages(null);
+        mPriorityHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "balanced connection priority");
+                mHighPriority = false;
+                if( mBluetoothGatt != null )
+                    mBluetoothGatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+            }
+        }, duration_ms);
+    }
+
     /**
      * Subscribe to the services/characteristics we need depending
      * on the remote device model
@@ -197,6 +284,8 @@ public class BluetoothLeService extends Service {
                     if( MyDebug.LOG )
                         Log.d(TAG, "Found characteristic to subscribe to: " + uuid);
                     charsToSubscribeTo.add(gattCharacteristic);
+                    if( KrakenGattAttributes.KRAKEN_BUTTONS_CHARACTERISTIC.equals(uuid) )
+                        mCommandCharacteristic = gattCharacteristic;
                 }
             }
         }
@@ -214,119 +303,27 @@ public class BluetoothLeService extends Service {
     private void broadcastUpdate( String action,
                                  final BluetoothGattCharacteristic characteristic) {
         UUID uuid = characteristic.getUuid();
-        final int format_uint8 = BluetoothGattCharacteristic.FORMAT_UINT8;
         final int format_uint16 = BluetoothGattCharacteristic.FORMAT_UINT16;
-        int remoteCommand = -1;
 
         if (KrakenGattAttributes.KRAKEN_BUTTONS_CHARACTERISTIC.equals(uuid)) {
             if( MyDebug.LOG )
                 Log.d(TAG,"Got Kraken button press");
-            final int buttonCode= characteristic.getIntValue(format_uint8, 0);
-            if( MyDebug.LOG )
-                Log.d(TAG, String.format("Received Button press: %d", buttonCode));
-            // Note: we stay at a fairly generic level here and will manage variants
-            // on the various button actions in MainActivity, because those will change depending
-            // on the current state of the app, and we don't want to know anything about that state
-            // from the Bluetooth LE service
-            // TODO: update to remove all those tests and just forward buttonCode since value is identical
-            //       but this is more readable if we want to implement other drivers
-            if( buttonCode == 2) {
-                //On client, triggers take picture but locks and waits for shutter command from server
-                remoteCommand = -1;
-                //float val = characteristic.getFloatValue(BluetoothGattCharacteristic.FORMAT_FLOAT, 1);
-                byte[] bytes = characteristic.getValue();
-                int intBits = new BigInteger(java.util.Arrays.copyOfRange(bytes, 1, 5)).intValue();
-                long intBits1 = new BigInteger(java.util.Arrays.copyOfRange(bytes, 5, 13)).longValue();
-                mActivityRef.get().setIsoBle(intBits);
-                mActivityRef.get().setExpTimeBle(intBits1);
-
-                 if( MyDebug.LOG )
-                    Log.d(TAG, "iso: " + intBits1 + " exp time: " + intBits1);
-               }
-            else if( buttonCode == 4) { //LUK:!!!focus data
-                //On client, triggers take picture but locks and waits for shutter command from server
-                remoteCommand = -1;
-                //float val = characteristic.getFloatValue(BluetoothGattCharacteristic.FORMAT_FLOAT, 1);
-                byte[] bytes = characteristic.getValue();
-                int intBits = new BigInteger(java.util.Arrays.copyOfRange(bytes, 1, 5)).intValue();
-                float zoom_val = Float.intBitsToFloat(intBits);
-                mActivityRef.get().setFocusBle(zoom_val);
-                mActivityRef.get().setFocused(true);
-
-                if( MyDebug.LOG )
-                    Log.d(TAG, "Zoom val" + zoom_val);
-            }
-            else if( buttonCode == BluetoothLeService.COMMAND_FOCUS) { //LUK:!!! focus region
-               remoteCommand = -1;
-               byte[] bytes = characteristic.getValue();
-               int intBitsx = new BigInteger(java.util.Arrays.copyOfRange(bytes, 1, 5)).intValue();
-               float x = Float.intBitsToFloat(intBitsx);
-               int intBitsy = new BigInteger(java.util.Arrays.copyOfRange(bytes, 5, 9)).intValue();
-               float y = Float.intBitsToFloat(intBitsy);
-
-               mActivityRef.get().setFocusRegion(x, y);
-            }
-            else if (buttonCode == COMMAND_ZOOM ) { //LUK: zoom
-                remoteCommand = -1;
-
-                byte[] bytes = characteristic.getValue();
-                int intBits = new BigInteger(java.util.Arrays.copyOfRange(bytes, 1, 5)).intValue();
-                mActivityRef.get().setZoomBle(intBits);
-            }
-
-            else if( buttonCode == 8) {
-                //On client, triggers take picture but locks and waits for shutter command from server
-                remoteCommand = COMMAND_FOCUS_EXP;
-                 mActivityRef.get().setServerTime(Long.MAX_VALUE); //LUK: required for NTP ???
-            }
-            else if( buttonCode == 10) { //LUK: NTP sync
-                remoteCommand = -1;
-
-                byte[] bytes = characteristic.getValue();
-                long intBits1 = new BigInteger(java.util.Arrays.copyOfRange(bytes, 1, 9)).longValue();
-                mActivityRef.get().setServerTime(intBits1);
-            }
-            else if( buttonCode == 12) { //LUK: NTP cmd sync
-                remoteCommand = -1;
-
-                mActivityRef.get().syncNTP();
-            }
-            else if( buttonCode == 22) { //LUK: shutdown
-                remoteCommand = -1;
-
-                mActivityRef.get().setShutdown();
-            }
-            else if (buttonCode == 32) {
-                // Shutter press
-                remoteCommand = -1;//COMMAND_SHUTTER;
-                mActivityRef.get().setBleCmd(2);
-
-            } else if (buttonCode == 16) {
-                // "Mode" button: either "back" action or "Photo/Camera" switch
-                remoteCommand = COMMAND_MODE;
-            } else if (buttonCode == 48) {
-                // "Menu" button
-                remoteCommand = COMMAND_MENU;
-            } else if (buttonCode == 97) {
-                // AF/MF button
-                remoteCommand = COMMAND_AFMF;
-            } else if (buttonCode == 96) {
-                // Long press on MF/AF button.
-                // Note: the camera issues button code 97 first, then
-                // 96 after one second of continuous press
-            } else if (buttonCode == 64) {
-                // Up button
-                remoteCommand = COMMAND_UP;
-            } else if (buttonCode == 80) {
-                // Down button
-                remoteCommand = COMMAND_DOWN;
+            byte[] bytes = characteristic.getValue();
+            if( BleCommandFrame.isFrame(bytes) ) {
+                // several commands from a server supporting framed commands
+                int lost = mSequenceTracker.onSequence(BleCommandFrame.getSequence(bytes));
+                if( lost > 0 ) {
+                    Log.e(TAG, "Lost " + lost + " command packets, requesting resync");
+                    writeRequest(BleCommandFrame.createRequest(BleCommandFrame.REQUEST_RESYNC));
+                }
+                int records = BleCommandFrame.decode(bytes, mRecordListener);
+                if( records < 0 ) {
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "Malformed command packet: " + Arrays.toString(bytes));
+                }
             }
-
-            // Only send forward if we have something to say
-            if (remoteCommand > -1) {
-                final Intent intent = new Intent(ACTION_REMOTE_COMMAND);
-                intent.putExtra(EXTRA_DATA, remoteCommand);
-                sendBroadcast(intent);
+            else if( bytes != null && bytes.length > 0 ) {
+                handleCommand(bytes[0] & 0xff, bytes, 1, bytes.length - 1);
             }
         } else if (KrakenGattAttributes.KRAKEN_SENSORS_CHARACTERISTIC.equals(uuid)) {
             // The housing returns four bytes.
@@ -357,6 +354,101 @@ public class BluetoothLeService extends Service {
 
     }
 
+    /**
+     * Handles a command from the server, or a button press of the housing.
+     * @param bytes The packet holding the command.
+     * @param offset The offset of the payload of the command in bytes.
+     * @param length The number of bytes of payload available.
+     */
+    private void handleCommand(int buttonCode, byte[] bytes, int offset, int length) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "Received Button press: " + buttonCode);
+        if( !mDispatcher.dispatch(buttonCode, bytes, offset, length) ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "Ignoring command " + buttonCode + " with " + length + " bytes of payload");
+        }
+    }
+
+    /**
+     * The handlers of the commands from the server and the button presses of the housing.
+     */
+    private BleCommandCodec.Dispatcher createDispatcher() {
+        BleCommandCodec.Dispatcher dispatcher = new BleCommandCodec.Dispatcher();
+        dispatcher.setHandler(BleCommandCodec.COMMAND_ISO_TIME, (bytes, offset) -> {
+            int iso = BleCommandCodec.getInt(bytes, offset);
+            long exposure_time = BleCommandCodec.getLong(bytes, offset + 4);
+            mActivityRef.get().setIsoBle(iso);
+            mActivityRef.get().setExpTimeBle(exposure_time);
+            if( MyDebug.LOG )
+                Log.d(TAG, "iso: " + iso + " exp time: " + exposure_time);
+        });
+        dispatcher.setHandler(BleCommandCodec.COMMAND_FOCUS_DISTANCE, (bytes, offset) -> { //LUK:!!!focus data
+            float focus_distance = BleCommandCodec.getFloat(bytes, offset);
+            mActivityRef.get().setFocusBle(focus_distance);
+            mActivityRef.get().setFocused(true);
+            if( MyDebug.LOG )
+                Log.d(TAG, "Focus distance: " + focus_distance);
+        });
+        dispatcher.setHandler(BleCommandCodec.COMMAND_FOCUS_REGION, (bytes, offset) -> //LUK:!!! focus region
+            mActivityRef.get().setFocusRegion(BleCommandCodec.getFloat(bytes, offset), BleCommandCodec.getFloat(bytes, offset + 4))
+        );
+        dispatcher.setHandler(BleCommandCodec.COMMAND_ZOOM, (bytes, offset) -> //LUK: zoom
+            mActivityRef.get().setZoomBle(BleCommandCodec.getInt(bytes, offset))
+        );
+        dispatcher.setHandler(BleCommandCodec.COMMAND_FOCUS_EXP, (bytes, offset) -> {
+            //On client, triggers take picture but locks and waits for shutter command from server
+            mActivityRef.get().setServerTime(Long.MAX_VALUE); //LUK: required for NTP ???
+            mActivityRef.get().setBleTriggerTimeNs(Long.MAX_VALUE);
+            requestCapturePriority(CAPTURE_PRIORITY_MS);
+            broadcastRemoteCommand(COMMAND_FOCUS_EXP);
+        });
+        dispatcher.setHandler(BleCommandCodec.COMMAND_SERVER_TIME, (bytes, offset) -> //LUK: NTP sync
+            mActivityRef.get().setServerTime(BleCommandCodec.getLong(bytes, offset))
+        );
+        dispatcher.setHandler(BleCommandCodec.COMMAND_TIME_PING, (bytes, offset) -> {
+            // echoed at once, the server measures our clock from it, see BleClockEstimator
+            final long hold_ns = SystemClock.elapsedRealtimeNanos() - mReceiveTimeNs;
+            writeRequest(BleCommandFrame.createTimeEcho(bytes[offset] & 0xff, mReceiveTimeNs, hold_ns));
+        });
+        dispatcher.setHandler(BleCommandCodec.COMMAND_TRIGGER_TIME, (bytes, offset) -> {
+            mActivityRef.get().setBleTriggerTimeNs(BleCommandCodec.getLong(bytes, offset));
+            // for the delivery statistics of the server, see BleFanOutScheduler
+            writeRequest(BleCommandFrame.createTriggerReceived(mReceiveTimeNs));
+        });
+        dispatcher.setHandler(BleCommandCodec.COMMAND_NTP_SYNC, (bytes, offset) -> //LUK: NTP cmd sync
+            mActivityRef.get().syncNTP()
+        );
+        dispatcher.setHandler(BleCommandCodec.COMMAND_SHUTDOWN, (bytes, offset) -> //LUK: shutdown
+            mActivityRef.get().setShutdown()
+        );
+        dispatcher.setHandler(BleCommandCodec.COMMAND_SHUTTER, (bytes, offset) -> {
+            // Shutter press, not forwarded as COMMAND_SHUTTER
+            mActivityRef.get().setBleCmd(2);
+            requestCapturePriority(SHUTTER_PRIORITY_MS);
+        });
+        // Note: we stay at a fairly generic level here and will manage variants
+        // on the various button actions in MainActivity, because those will change depending
+        // on the current state of the app, and we don't want to know anything about that state
+        // from the Bluetooth LE service
+        // "Mode" button: either "back" action or "Photo/Camera" switch
+        dispatcher.setHandler(BleCommandCodec.COMMAND_MODE, (bytes, offset) -> broadcastRemoteCommand(COMMAND_MODE));
+        dispatcher.setHandler(BleCommandCodec.COMMAND_MENU, (bytes, offset) -> broadcastRemoteCommand(COMMAND_MENU));
+        dispatcher.setHandler(BleCommandCodec.COMMAND_AFMF, (bytes, offset) -> broadcastRemoteCommand(COMMAND_AFMF));
+        // Long press on MF/AF button.
+        // Note: the camera issues button code 97 first, then
+        // 96 after one second of continuous press
+        dispatcher.setHandler(BleCommandCodec.COMMAND_AFMF_LONG, (bytes, offset) -> {});
+        dispatcher.setHandler(BleCommandCodec.COMMAND_UP, (bytes, offset) -> broadcastRemoteCommand(COMMAND_UP));
+        dispatcher.setHandler(BleCommandCodec.COMMAND_DOWN, (bytes, offset) -> broadcastRemoteCommand(COMMAND_DOWN));
+        return dispatcher;
+    }
+
+    private void broadcastRemoteCommand(int remoteCommand) {
+        final Intent intent = new Intent(ACTION_REMOTE_COMMAND);
+        intent.putExtra(EXTRA_DATA, remoteCommand);
+        sendBroadcast(intent);
+    }
+
     public class LocalBinder extends Binder {
         public BluetoothLeService getService() {
             return BluetoothLeService.this;
@@ -446,14 +538,15 @@ public class BluetoothLeService extends Service {
                 BluetoothGatt#CONNECTION_PRIORITY_BALANCED: Interval: 30 - 50 ms, latency: 0, supervision timeout: 20 sec
                 BluetoothGatt#CONNECTION_PRIORITY_LOW_POWER: Interval: 100 - 125 ms, latency: 2, supervision timeout: 20 sec.
             */
+            // raised around captures, see requestCapturePriority(); the MTU is requested once connected
             mBluetoothGatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
-            mBluetoothGatt.requestMtu(20);
         }
 
         return true;
 	}
 
     private void close() {
+        mPriorityHandler.removeCallbacksAndMessages(null);
         if( mBluetoothGatt == null ) {
             return;
         }
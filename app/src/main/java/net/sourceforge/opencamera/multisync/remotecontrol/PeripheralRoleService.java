@@ -14,11 +14,16 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 
 import static net.sourceforge.opencamera.multisync.remotecontrol.Constants.BODY_SENSOR_LOCATION_CHARACTERISTIC_UUID;
 import static net.sourceforge.opencamera.multisync.remotecontrol.Constants.HEART_RATE_SERVICE_UUID;
@@ -48,6 +53,20 @@ public class PeripheralRoleService extends Service {
     private BluetoothManager mBluetoothManager;
     private BluetoothGattServer mGattServer;
     private HashSet<BluetoothDevice> mBluetoothDevices;
+    // the queue of commands of each connected device, also guarding the characteristic value
+    private final HashMap<BluetoothDevice, BleCommandChannel> mChannels = new HashMap<>();
+    // the clock and delivery statistics of each device supporting framed commands
+    private final BleFanOutScheduler<BluetoothDevice> mFanOut = new BleFanOutScheduler<>();
+    // clock pings go out in the background while connected, see BleClockEstimator
+    private final static long PING_INTERVAL_MS = 500;
+    private final Handler mPingHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mPingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sendPings();
+            mPingHandler.postDelayed(this, PING_INTERVAL_MS);
+        }
+    };
 
     public class LocalBinder extends Binder {
         public PeripheralRoleService getService() {
@@ -70,6 +89,12 @@ public class PeripheralRoleService extends Service {
         return super.onUnbind(intent);
     }
 
+    @Override
+    public void onDestroy() {
+        mPingHandler.removeCallbacks(mPingRunnable);
+        super.onDestroy();
+    }
+
     private void close() {
         //LUK: enough???
         stopAdvertising();
@@ -79,56 +104,98 @@ public class PeripheralRoleService extends Service {
         setGattServer();
         setBluetoothService();
 
+        mPingHandler.removeCallbacks(mPingRunnable);
+        mPingHandler.postDelayed(mPingRunnable, PING_INTERVAL_MS);
         return true;
     }
 
     public void sendValue(int val)
     {
         if(!mBluetoothDevices.isEmpty()) {
-            setCharacteristic(val);
-            notifyCharacteristicChanged();
+            queueCommand(BleCommandCodec.encodeCommand(val));
         }
     }
 
     public void sendFloat(float value) {
         if(!mBluetoothDevices.isEmpty()) {
-            setKrakenCharacteristic(value);
-            notifyCharacteristicChanged();
+            queueSetting(BleCommandCodec.encodeFocusDistance(value));
         }
      }
 
     public void sendIsoTime(int iso, long time) {
         if(!mBluetoothDevices.isEmpty()) {
-            setIsoTimeCharacteristic(iso, time);
-            notifyCharacteristicChanged();
+            queueSetting(BleCommandCodec.encodeIsoTime(iso, time));
         }
     }
 
     public void sendFocusRegion(float x, float y) {
          if(!mBluetoothDevices.isEmpty()) {
-             setFocusRegion(x, y);
-             notifyCharacteristicChanged();
+             queueSetting(BleCommandCodec.encodeFocusRegion(x, y));
          }
     }
 
     public void sendServerTime(long time) {
         if(!mBluetoothDevices.isEmpty()) {
-            setServerTimeCharacteristic(time);
-            notifyCharacteristicChanged();
+            // a shutter time, not a setting: never coalesced, nor sent again by resync() or after
+            // a failed packet, when it would be stale
+            queueCommand(BleCommandCodec.encodeServerTime(time));
         }
     }
 
     public void sendShutdown() {
         if(!mBluetoothDevices.isEmpty()) {
-            setCharacteristic(22);
-            notifyCharacteristicChanged();
+            queueCommand(BleCommandCodec.encodeCommand(BleCommandCodec.COMMAND_SHUTDOWN));
         }
     }
 
     public void sendZoom(int value) {
         if(!mBluetoothDevices.isEmpty()) {
-            setZoomCharacteristicValue(value);
-            notifyCharacteristicChanged();
+            queueSetting(BleCommandCodec.encodeZoom(value));
+        }
+    }
+
+    /**
+     * Sends each client the time to take a picture, converted to its own clock, far enough ahead
+     * for the slowest client to receive it in time, see BleFanOutScheduler.
+     * @return The time, in ns of SystemClock.elapsedRealtimeNanos(), or Long.MAX_VALUE if no
+     *         client was sent it.
+     */
+    public long scheduleTrigger() {
+        synchronized (mChannels) {
+            List<BleFanOutScheduler.Trigger<BluetoothDevice>> triggers = mFanOut.schedule(SystemClock.elapsedRealtimeNanos());
+            // slowest client first, each notified at once rather than after the others
+            for (BleFanOutScheduler.Trigger<BluetoothDevice> trigger : triggers) {
+                BleCommandChannel channel = mChannels.get(trigger.device);
+                if (channel != null) {
+                    channel.putCommand(BleCommandCodec.encodeTriggerTime(trigger.client_time_ns));
+                    flush(trigger.device);
+                }
+            }
+            return triggers.isEmpty() ? Long.MAX_VALUE : triggers.get(0).server_time_ns;
+        }
+    }
+
+    /**
+     * Returns the clock and delivery statistics of each client, for the logs.
+     */
+    public String getDeliveryStats() {
+        return mFanOut.toString();
+    }
+
+    /**
+     * Whether the clock of every connected client is known, so that scheduleTrigger() reaches all.
+     */
+    public boolean hasClockEstimates() {
+        synchronized (mChannels) {
+            if (mChannels.isEmpty()) {
+                return false;
+            }
+            for (BluetoothDevice device : mChannels.keySet()) {
+                if (!mFanOut.hasEstimate(device)) {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 
@@ -174,8 +241,9 @@ public class PeripheralRoleService extends Service {
         create the Characteristic.
         we need to grant to the Client permission to read (for when the user clicks the "Request Characteristic" button).
         no need for notify permission as this is an action the Server initiate.
+        the Client writes its requests, see BleCommandFrame.
          */
-        mSampleCharacteristic = new BluetoothGattCharacteristic(BODY_SENSOR_LOCATION_CHARACTERISTIC_UUID, BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
+        mSampleCharacteristic = new BluetoothGattCharacteristic(BODY_SENSOR_LOCATION_CHARACTERISTIC_UUID, BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
         mKrakenCharacteristic = new BluetoothGattCharacteristic(KRAKEN_SENSORS_CHARACTERISTIC_UUID, BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
 
         setCharacteristic(-1); // set initial state
@@ -207,76 +275,65 @@ public class PeripheralRoleService extends Service {
         mSampleCharacteristic.setValue(getValue(value));
     }
 
-    private void setZoomCharacteristicValue(int value) {
-        int intBits =  value;
-        byte[] fbytes = new byte[] { BluetoothLeService.COMMAND_ZOOM, (byte) (intBits >> 24), (byte) (intBits >> 16), (byte) (intBits >> 8), (byte) (intBits) };
-        mSampleCharacteristic.setValue(fbytes);
-    }
-
     private void setKrakenCharacteristic(float value) {
         /*
         done each time the user changes a value of a Characteristic
          */
-
-        int intBits =  Float.floatToIntBits(value);
-        byte[] fbytes = new byte[] { 4, (byte) (intBits >> 24), (byte) (intBits >> 16), (byte) (intBits >> 8), (byte) (intBits) };
-        mSampleCharacteristic.setValue(fbytes);
-    }
-
-    private void setFocusRegion(float x, float y) {
-        int intBitsx =  Float.floatToIntBits(x);
-        int intBitsy =  Float.floatToIntBits(y);
-
-        byte[] fbytes = new byte[] { BluetoothLeService.COMMAND_FOCUS, (byte) (intBitsx >> 24), (byte) (intBitsx >> 16), (byte) (intBitsx >> 8), (byte) (intBitsx),
-                (byte) (intBitsy >> 24), (byte) (intBitsy >> 16), (byte) (intBitsy >> 8), (byte) (intBitsy)
-        };
-        mSampleCharacteristic.setValue(fbytes);
+        mSampleCharacteristic.setValue(BleCommandCodec.encodeFocusDistance(value));
     }
 
-    private void setIsoTimeCharacteristic(int iso, long time) {
-        /*
-        done each time the user changes a value of a Characteristic
-         */
-
-        int intBits =  iso;
-        long intBits1 =  time;
-
-        byte[] fbytes = new byte[] { 2, (byte) (intBits >> 24), (byte) (intBits >> 16), (byte) (intBits >> 8), (byte) (intBits),
-                                         (byte) (intBits1 >> 56), (byte) (intBits1 >> 48), (byte) (intBits1 >> 40), (byte) (intBits1 >> 32),
-                                         (byte) (intBits1 >> 24), (byte) (intBits1 >> 16), (byte) (intBits1 >> 8), (byte) (intBits1) };
-        mSampleCharacteristic.setValue(fbytes);
+    private byte[] getValue(int value) {
+        return new byte[]{(byte) value};
     }
 
-   private void setServerTimeCharacteristic(long time) {
-        /*
-        done each time the user changes a value of a Characteristic
-         */
-
-        long intBits1 =  time;
-
-        byte[] fbytes = new byte[] { 10, (byte) (intBits1 >> 56), (byte) (intBits1 >> 48), (byte) (intBits1 >> 40), (byte) (intBits1 >> 32),
-                                         (byte) (intBits1 >> 24), (byte) (intBits1 >> 16), (byte) (intBits1 >> 8), (byte) (intBits1) };
-        mSampleCharacteristic.setValue(fbytes);
+    private void queueSetting(byte[] value) {
+        synchronized (mChannels) {
+            for (BleCommandChannel channel : mChannels.values()) {
+                channel.putSetting(value);
+            }
+        }
+        flush();
     }
 
-    private byte[] getValue(int value) {
-        return new byte[]{(byte) value};
+    private void queueCommand(byte[] value) {
+        synchronized (mChannels) {
+            for (BleCommandChannel channel : mChannels.values()) {
+                channel.putCommand(value);
+            }
+        }
+        flush();
     }
 
     /*
-    send to the client the value of the Characteristic,
-    as the user requested to notify.
+    send to each client its next packet, unless the previous one is still in flight:
+    the commands queued meanwhile then go out together once it was sent, see onNotificationSent().
      */
-    private void notifyCharacteristicChanged() {
+    private void flush() {
+        synchronized (mChannels) {
+            for (BluetoothDevice device : mChannels.keySet()) {
+                flush(device);
+            }
+        }
+    }
+
+    private void flush(BluetoothDevice device) {
         /*
-        done when the user clicks the notify button in the app.
         indicate - true for indication (acknowledge) and false for notification (un-acknowledge).
          */
-        boolean indicate = (mSampleCharacteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) == BluetoothGattCharacteristic.PROPERTY_INDICATE;
-
-        for (BluetoothDevice device : mBluetoothDevices) {
-            if (mGattServer != null) {
-                mGattServer.notifyCharacteristicChanged(device, mSampleCharacteristic, indicate);
+        synchronized (mChannels) {
+            BleCommandChannel channel = mChannels.get(device);
+            if (channel == null || mGattServer == null) {
+                return;
+            }
+            byte[] packet = channel.nextPacket(System.currentTimeMillis());
+            if (packet == null) {
+                return;
+            }
+            boolean indicate = (mSampleCharacteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) == BluetoothGattCharacteristic.PROPERTY_INDICATE;
+            mSampleCharacteristic.setValue(packet);
+            if (!mGattServer.notifyCharacteristicChanged(device, mSampleCharacteristic, indicate)) {
+                Log.e(TAG, "Failed to notify " + device.getAddress());
+                channel.onPacketSent(false);
             }
         }
     }
@@ -299,6 +356,74 @@ public class PeripheralRoleService extends Service {
         }
     }
 
+    private void removeChannel(BluetoothDevice device) {
+        synchronized (mChannels) {
+            BleCommandChannel channel = mChannels.remove(device);
+            if (channel != null) {
+                Log.d(TAG, "Closed channel to " + device.getAddress() + ": " + channel);
+            }
+            String stats = mFanOut.removeDevice(device);
+            if (stats != null) {
+                Log.d(TAG, "Clock of " + device.getAddress() + ": " + stats);
+            }
+        }
+    }
+
+    /*
+    start a clock exchange with each client supporting it, unless commands are being sent to it:
+    a ping sent on its own is reported as sent as soon as its connection event ends.
+     */
+    private void sendPings() {
+        synchronized (mChannels) {
+            for (BluetoothDevice device : mChannels.keySet()) {
+                BleCommandChannel channel = mChannels.get(device);
+                if (!mFanOut.hasDevice(device) || channel.isInFlight() || channel.getPendingCount() > 0) {
+                    continue;
+                }
+                channel.putCommand(BleCommandCodec.encodeTimePing(mFanOut.startPing(device, SystemClock.elapsedRealtimeNanos())));
+                flush(device);
+            }
+        }
+    }
+
+    /*
+    a request written by a client supporting framed packets.
+     */
+    private void onClientRequest(final BluetoothDevice device, byte[] value, final long receive_ns) {
+        BleCommandFrame.decode(value, new BleCommandFrame.RecordListener() {
+            @Override
+            public void onRecord(int command, byte[] packet, int offset, int length) {
+                synchronized (mChannels) {
+                    BleCommandChannel channel = mChannels.get(device);
+                    if (channel == null) {
+                        return;
+                    }
+                    if (command == BleCommandFrame.REQUEST_HELLO) {
+                        Log.d(TAG, "Framed commands for " + device.getAddress());
+                        channel.setFramed(true);
+                        mFanOut.addDevice(device);
+                    } else if (command == BleCommandFrame.REQUEST_TIME_ECHO) {
+                        if (length >= BleCommandFrame.TIME_ECHO_SIZE) {
+                            mFanOut.onEcho(device, packet[offset] & 0xff, BleCommandCodec.getLong(packet, offset + 1),
+                                    BleCommandCodec.getInt(packet, offset + 9), receive_ns);
+                            if( MyDebug.LOG )
+                                Log.d(TAG, "Clock of " + device.getAddress() + ": " + mFanOut.getEstimator(device));
+                        }
+                    } else if (command == BleCommandFrame.REQUEST_TRIGGER_RECEIVED) {
+                        if (length >= BleCommandFrame.TRIGGER_RECEIVED_SIZE) {
+                            mFanOut.onTriggerReceived(device, BleCommandCodec.getLong(packet, offset));
+                            Log.d(TAG, "Trigger delivery to " + device.getAddress() + ": " + mFanOut.getStats(device));
+                        }
+                    } else if (command == BleCommandFrame.REQUEST_RESYNC) {
+                        Log.d(TAG, "Resync requested by " + device.getAddress());
+                        channel.resync();
+                    }
+                }
+            }
+        });
+        flush(device);
+    }
+
     /**
      * Returns Intent addressed to the {@code PeripheralAdvertiseService} class.
      */
@@ -321,6 +446,9 @@ public class PeripheralRoleService extends Service {
                 if (newState == BluetoothGatt.STATE_CONNECTED) {
 
                     mBluetoothDevices.add(device);
+                    synchronized (mChannels) {
+                        mChannels.put(device, new BleCommandChannel());
+                    }
 
                     msg = "Connected to device: " + device.getAddress();
                     Log.d(TAG, msg);
@@ -333,6 +461,7 @@ public class PeripheralRoleService extends Service {
                 } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
 
                     mBluetoothDevices.remove(device);
+                    removeChannel(device);
 
                     msg = "Disconnected from device";
                     Log.d(TAG, msg);
@@ -340,6 +469,7 @@ public class PeripheralRoleService extends Service {
 
             } else {
                 mBluetoothDevices.remove(device);
+                removeChannel(device);
                 Log.e(TAG, "Error when connecting");
             }
         }
@@ -347,8 +477,33 @@ public class PeripheralRoleService extends Service {
 
         @Override
         public void onNotificationSent(BluetoothDevice device, int status) {
+            final long sent_ns = SystemClock.elapsedRealtimeNanos();
             super.onNotificationSent(device, status);
-            Log.d(TAG, "Notification sent. Status: " + status);
+            if( MyDebug.LOG )
+                Log.d(TAG, "Notification sent. Status: " + status);
+            synchronized (mChannels) {
+                BleCommandChannel channel = mChannels.get(device);
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    // a ping is sent on its own, see sendPings()
+                    mFanOut.onPacketSent(device, sent_ns);
+                }
+                if (channel != null) {
+                    channel.onPacketSent(status == BluetoothGatt.GATT_SUCCESS);
+                    flush(device);
+                }
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothDevice device, int mtu) {
+            super.onMtuChanged(device, mtu);
+            Log.d(TAG, "MTU changed to " + mtu + " for " + device.getAddress());
+            synchronized (mChannels) {
+                BleCommandChannel channel = mChannels.get(device);
+                if (channel != null) {
+                    channel.setMtu(mtu);
+                }
+            }
         }
 
 
@@ -370,12 +525,19 @@ public class PeripheralRoleService extends Service {
 
         @Override
         public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+            final long receive_ns = SystemClock.elapsedRealtimeNanos();
 
             super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value);
 
             Log.d(TAG, "Characteristic Write request: " + Arrays.toString(value));
 
-            mSampleCharacteristic.setValue(value);
+            if (BleCommandFrame.isFrame(value)) {
+                onClientRequest(device, value, receive_ns);
+            } else {
+                synchronized (mChannels) {
+                    mSampleCharacteristic.setValue(value);
+                }
+            }
 
             if (responseNeeded) {
                 mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, value);
@@ -33,6 +33,7 @@ package org.nanohttpd.protocols.http;
  * #L%
  */
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
@@ -40,6 +41,7 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.logging.Level;
 
+import org.nanohttpd.protocols.http.response.Response;
 import org.nanohttpd.protocols.http.tempfiles.ITempFileManager;
 
 /**
@@ -53,6 +55,12 @@ public class ClientHandler implements Runnable {
 
     private final Socket acceptSocket;
 
+    private volatile boolean keepAlive = true;
+
+    private volatile int keepAliveTimeout = 0;
+
+    private volatile HTTPSession session;
+
     public ClientHandler(NanoHTTPD httpd, InputStream inputStream, Socket acceptSocket) {
         this.httpd = httpd;
         this.inputStream = inputStream;
@@ -64,6 +72,55 @@ public class ClientHandler implements Runnable {
         NanoHTTPD.safeClose(this.acceptSocket);
     }
 
+    /**
+     * Closes the connection once the current request is answered, rather than
+     * waiting for another request on it, e.g. to free the thread for other
+     * connections.
+     */
+    public void stopKeepAlive() {
+        this.keepAlive = false;
+        HTTPSession session = this.session;
+        if (session != null) {
+            // so the response says the connection is closed
+            session.stopKeepAlive();
+        }
+    }
+
+    /**
+     * Sets how long to wait for another request on a kept alive connection,
+     * in ms, or 0 for the read timeout of the server.
+     */
+    public void setKeepAliveTimeout(int keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    /**
+     * Answers the client with the given response without reading its request,
+     * and closes the connection, e.g. when the server is too busy to serve it.
+     */
+    public void reject(Response response) {
+        OutputStream outputStream = null;
+        try {
+            outputStream = this.acceptSocket.getOutputStream();
+            // the request isn't read, so neither is whether gzip is accepted
+            response.setUseGzip(false);
+            response.setKeepAlive(false);
+            response.send(outputStream);
+            this.acceptSocket.shutdownOutput();
+            // discard what the client sent, so closing doesn't reset the
+            // connection before it reads the response
+            int available = this.inputStream.available();
+            if (available > 0) {
+                this.inputStream.skip(available);
+            }
+        } catch (IOException e) {
+            NanoHTTPD.LOG.log(Level.FINE, "Could not reject the client", e);
+        } finally {
+            NanoHTTPD.safeClose(outputStream);
+            close();
+        }
+    }
+
     @Override
     public void run() {
         OutputStream outputStream = null;
@@ -71,8 +128,24 @@ public class ClientHandler implements Runnable {
             outputStream = this.acceptSocket.getOutputStream();
             ITempFileManager tempFileManager = httpd.getTempFileManagerFactory().create();
             HTTPSession session = new HTTPSession(httpd, tempFileManager, this.inputStream, outputStream, this.acceptSocket.getInetAddress());
+            session.setOutputChannel(this.acceptSocket.getChannel());
+            this.session = session;
+            if (!this.keepAlive) {
+                // stopped before the session was set
+                session.stopKeepAlive();
+            }
             while (!this.acceptSocket.isClosed()) {
+                // ends with a SocketException once a response said
+                // Connection: close
                 session.execute();
+                if (!this.keepAlive) {
+                    // stopped after the response was sent, closing an idle
+                    // connection is allowed
+                    break;
+                }
+                if (this.keepAliveTimeout > 0) {
+                    this.acceptSocket.setSoTimeout(this.keepAliveTimeout);
+                }
             }
         } catch (Exception e) {
             // When the socket is closed by the client,
@@ -50,6 +50,7 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -89,6 +90,10 @@ public class HTTPSession implements IHTTPSession {
 
     private final OutputStream outputStream;
 
+    private WritableByteChannel outputChannel;
+
+    private volatile boolean keepAliveAllowed = true;
+
     private final BufferedInputStream inputStream;
 
     private int splitbyte;
@@ -130,6 +135,22 @@ public class HTTPSession implements IHTTPSession {
         this.headers = new HashMap<String, String>();
     }
 
+    /**
+     * Sets the channel of the socket written by outputStream, if it has one,
+     * so files can be sent to it directly.
+     */
+    public void setOutputChannel(WritableByteChannel outputChannel) {
+        this.outputChannel = outputChannel;
+    }
+
+    /**
+     * Answers the current request, or the next one, with Connection: close
+     * and then ends the session, rather than keeping the connection alive.
+     */
+    public void stopKeepAlive() {
+        this.keepAliveAllowed = false;
+    }
+
     /**
      * Decodes the sent headers and loads the data into Key/value pairs
      */
@@ -431,8 +452,10 @@ public class HTTPSession implements IHTTPSession {
                 if (acceptEncoding == null || !acceptEncoding.contains("gzip")) {
                     r.setUseGzip(false);
                 }
+                // checked once served, keep-alive may have been stopped meanwhile
+                keepAlive = keepAlive && this.keepAliveAllowed;
                 r.setKeepAlive(keepAlive);
-                r.send(this.outputStream);
+                r.send(this.outputStream, this.outputChannel);
             }
             if (!keepAlive || r.isCloseConnection()) {
                 throw new SocketException("NanoHttpd Shutdown");
@@ -0,0 +1,112 @@
+package org.nanohttpd.protocols.http.response;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Body of a response made of regions of a file, each optionally preceded by a
+ * few bytes, e.g. the headers of the parts of a multipart/byteranges response.
+ * <p/>
+ * <p>
+ * The regions are sent with FileChannel.transferTo(), so the file isn't copied
+ * through a buffer on the heap, and when the body is sent to the channel of a
+ * socket the system can copy the file to it directly.
+ * </p>
+ */
+public class FileChannelBody implements Closeable {
+
+    private final FileInputStream input;
+
+    private final FileChannel channel;
+
+    private final List<byte[]> prefixes = new ArrayList<byte[]>();
+
+    private final List<long[]> regions = new ArrayList<long[]>();
+
+    private byte[] suffix = new byte[0];
+
+    private long length;
+
+    public FileChannelBody(File file) throws IOException {
+        this.input = new FileInputStream(file);
+        this.channel = this.input.getChannel();
+    }
+
+    /**
+     * Adds the given bytes, which may be null, followed by count bytes of the
+     * file from position.
+     */
+    public FileChannelBody addRegion(byte[] prefix, long position, long count) {
+        prefix = prefix != null ? prefix : new byte[0];
+        this.prefixes.add(prefix);
+        this.regions.add(new long[]{
+            position,
+            count
+        });
+        this.length += prefix.length + count;
+        return this;
+    }
+
+    /**
+     * Sets the bytes sent after the last region.
+     */
+    public FileChannelBody setSuffix(byte[] suffix) {
+        this.length += suffix.length - this.suffix.length;
+        this.suffix = suffix;
+        return this;
+    }
+
+    /**
+     * @return the number of bytes of the body.
+     */
+    public long getLength() {
+        return this.length;
+    }
+
+    /**
+     * Sends the body to the given channel, or to the stream if it is null.
+     * Anything written to the stream before must be flushed.
+     */
+    public void send(OutputStream outputStream, WritableByteChannel outputChannel) throws IOException {
+        WritableByteChannel target = outputChannel != null ? outputChannel : Channels.newChannel(outputStream);
+        for (int i = 0; i < this.regions.size(); i++) {
+            writeFully(target, this.prefixes.get(i));
+            long position = this.regions.get(i)[0];
+            long end = position + this.regions.get(i)[1];
+            while (position < end) {
+                long sent = this.channel.transferTo(position, end - position, target);
+                if (sent <= 0) {
+                    if (position >= this.channel.size()) {
+                        throw new IOException("File shorter than the response");
+                    }
+                    // a non-blocking channel may be full, just try again
+                    Thread.yield();
+                }
+                position += sent;
+            }
+        }
+        writeFully(target, this.suffix);
+        outputStream.flush();
+    }
+
+    private static void writeFully(WritableByteChannel target, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.input.close();
+    }
+}
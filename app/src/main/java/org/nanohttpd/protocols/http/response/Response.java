@@ -42,6 +42,7 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.text.SimpleDateFormat;
@@ -80,6 +81,11 @@ public class Response implements Closeable {
      */
     private InputStream data;
 
+    /**
+     * Data of the response read from a file, sent instead of data if not null.
+     */
+    private FileChannelBody fileBody;
+
     private long contentLength;
 
     /**
@@ -149,6 +155,9 @@ public class Response implements Closeable {
         if (this.data != null) {
             this.data.close();
         }
+        if (this.fileBody != null) {
+            this.fileBody.close();
+        }
     }
 
     /**
@@ -226,6 +235,14 @@ public class Response implements Closeable {
      * Sends given response to the socket.
      */
     public void send(OutputStream outputStream) {
+        send(outputStream, null);
+    }
+
+    /**
+     * Sends given response to the socket, writing a file body to its channel
+     * if not null.
+     */
+    public void send(OutputStream outputStream, WritableByteChannel outputChannel) {
         SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
         gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
 
@@ -265,9 +282,16 @@ public class Response implements Closeable {
             }
             pw.append("\r\n");
             pw.flush();
-            sendBodyWithCorrectTransferAndEncoding(outputStream, pending);
+            if (this.fileBody != null) {
+                if (this.requestMethod != Method.HEAD) {
+                    this.fileBody.send(outputStream, outputChannel);
+                }
+            } else {
+                sendBodyWithCorrectTransferAndEncoding(outputStream, pending);
+            }
             outputStream.flush();
             NanoHTTPD.safeClose(this.data);
+            NanoHTTPD.safeClose(this.fileBody);
         } catch (IOException ioe) {
             NanoHTTPD.LOG.log(Level.SEVERE, "Could not send response to the client", ioe);
         }
@@ -387,6 +411,18 @@ public class Response implements Closeable {
         return new Response(status, mimeType, data, totalBytes);
     }
 
+    /**
+     * Create a response sending regions of a file, never gzipped nor chunked.
+     */
+    public static Response newFileResponse(IStatus status, String mimeType, FileChannelBody body) {
+        Response response = new Response(status, mimeType, null, 0);
+        response.fileBody = body;
+        response.contentLength = body.getLength();
+        response.chunkedTransfer = false;
+        response.setUseGzip(false);
+        return response;
+    }
+
     /**
      * Create a text response with known length.
      */
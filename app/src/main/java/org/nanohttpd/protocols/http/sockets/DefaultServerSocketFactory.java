@@ -35,17 +35,19 @@ package org.nanohttpd.protocols.http.sockets;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 
 import org.nanohttpd.util.IFactoryThrowing;
 
 /**
- * Creates a normal ServerSocket for TCP connections
+ * Creates a normal ServerSocket for TCP connections, backed by a channel so
+ * files can be sent to the accepted sockets with FileChannel.transferTo()
  */
 public class DefaultServerSocketFactory implements IFactoryThrowing<ServerSocket, IOException> {
 
     @Override
     public ServerSocket create() throws IOException {
-        return new ServerSocket();
+        return ServerSocketChannel.open().socket();
     }
 
 }
@@ -0,0 +1,320 @@
+package org.nanohttpd.protocols.http.threading;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2016 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.nanohttpd.protocols.http.ClientHandler;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.response.Status;
+
+/**
+ * Threading strategy for NanoHTTPD with a fixed pool of worker threads, so
+ * many clients polling the server can't start a thread each.
+ * <p/>
+ * <p>
+ * Connections wait in a queue of limited length for a free worker, and are
+ * answered 503 Service Unavailable if it is full. While connections are
+ * waiting, the running ones are closed once their current request is answered
+ * rather than kept alive, so a few clients can't hold all the workers. The
+ * workers run at a low priority, so serving never competes with more urgent
+ * threads, e.g. those of the camera.
+ * </p>
+ * <p>
+ * The time connections waited for a worker, and were then served for, is
+ * measured over the recent connections.
+ * </p>
+ */
+public class BoundedAsyncRunner implements IAsyncRunner {
+
+    public static final int DEFAULT_WORKERS = 4;
+
+    public static final int DEFAULT_QUEUE_LIMIT = 16;
+
+    /** Time to wait for another request on a kept alive connection, in ms. */
+    public static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 2000;
+
+    /** Connections kept for the latency quantiles. */
+    public static final int LATENCY_WINDOW = 256;
+
+    private final ThreadPoolExecutor executor;
+
+    private final int keepAliveTimeout;
+
+    /**
+     * Connections from when they are given to the executor, queued or
+     * running, until closed.
+     */
+    private final List<ClientHandler> running = Collections.synchronizedList(new ArrayList<ClientHandler>());
+
+    private long acceptedCount;
+
+    private long rejectedCount;
+
+    private int activeCount;
+
+    private int peakActiveCount;
+
+    private int peakQueuedCount;
+
+    private final long[] queueWaits = new long[LATENCY_WINDOW];
+
+    private final long[] serviceTimes = new long[LATENCY_WINDOW];
+
+    private int latencyCount;
+
+    private int latencyIndex;
+
+    /**
+     * A connection waiting for, or run by, a worker.
+     */
+    private class Job implements Runnable {
+
+        final ClientHandler clientHandler;
+
+        final long queuedTime = System.nanoTime();
+
+        Job(ClientHandler clientHandler) {
+            this.clientHandler = clientHandler;
+        }
+
+        @Override
+        public void run() {
+            final long startTime = System.nanoTime();
+            onStarted();
+            if (!executor.getQueue().isEmpty()) {
+                this.clientHandler.stopKeepAlive();
+            }
+            try {
+                this.clientHandler.run();
+            } finally {
+                onFinished(startTime - this.queuedTime, System.nanoTime() - startTime);
+            }
+        }
+    }
+
+    public BoundedAsyncRunner() {
+        this(DEFAULT_WORKERS, DEFAULT_QUEUE_LIMIT, Thread.MIN_PRIORITY, DEFAULT_KEEP_ALIVE_TIMEOUT);
+    }
+
+    /**
+     * @param workers
+     *            the number of worker threads.
+     * @param queueLimit
+     *            how many connections may wait for a worker, beyond which
+     *            they are rejected.
+     * @param priority
+     *            the priority of the worker threads, see Thread.setPriority().
+     * @param keepAliveTimeout
+     *            how long to wait for another request on a kept alive
+     *            connection, in ms, or 0 for the read timeout of the server.
+     */
+    public BoundedAsyncRunner(int workers, int queueLimit, final int priority, int keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+        BlockingQueue<Runnable> queue = queueLimit > 0 ? new ArrayBlockingQueue<Runnable>(queueLimit) : new SynchronousQueue<Runnable>();
+        this.executor = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS, queue, new ThreadFactory() {
+
+            private int threadCount;
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread t = new Thread(runnable);
+                t.setDaemon(true);
+                t.setPriority(priority);
+                t.setName("NanoHttpd Request Worker (#" + (++this.threadCount) + ")");
+                return t;
+            }
+        });
+        // no idle threads while the server isn't used
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void closeAll() {
+        List<Runnable> queued = new ArrayList<Runnable>();
+        this.executor.getQueue().drainTo(queued);
+        for (Runnable job : queued) {
+            ClientHandler clientHandler = ((Job) job).clientHandler;
+            // never run, so never reported closed
+            this.running.remove(clientHandler);
+            clientHandler.close();
+        }
+        // copy of the list for concurrency
+        for (ClientHandler clientHandler : new ArrayList<ClientHandler>(this.running)) {
+            clientHandler.close();
+        }
+    }
+
+    @Override
+    public void closed(ClientHandler clientHandler) {
+        this.running.remove(clientHandler);
+    }
+
+    @Override
+    public void exec(ClientHandler clientHandler) {
+        clientHandler.setKeepAliveTimeout(this.keepAliveTimeout);
+        // before execute(), so closeAll() can't miss a job taken by a
+        // worker before it starts
+        this.running.add(clientHandler);
+        try {
+            this.executor.execute(new Job(clientHandler));
+        } catch (RejectedExecutionException e) {
+            this.running.remove(clientHandler);
+            synchronized (this) {
+                ++this.rejectedCount;
+            }
+            Response response = Response.newFixedLengthResponse(Status.SERVICE_UNAVAILABLE, NanoHTTPD.MIME_PLAINTEXT, "SERVICE UNAVAILABLE: too many connections, retry later.");
+            response.addHeader("Retry-After", "1");
+            clientHandler.reject(response);
+            return;
+        }
+        final int queued = this.executor.getQueue().size();
+        synchronized (this) {
+            ++this.acceptedCount;
+            this.peakQueuedCount = Math.max(this.peakQueuedCount, queued);
+        }
+        if (queued > 0) {
+            // connections are waiting for a worker
+            for (ClientHandler runningHandler : new ArrayList<ClientHandler>(this.running)) {
+                runningHandler.stopKeepAlive();
+            }
+        }
+    }
+
+    private synchronized void onStarted() {
+        ++this.activeCount;
+        this.peakActiveCount = Math.max(this.peakActiveCount, this.activeCount);
+    }
+
+    private synchronized void onFinished(long queueWait, long serviceTime) {
+        --this.activeCount;
+        this.queueWaits[this.latencyIndex] = queueWait;
+        this.serviceTimes[this.latencyIndex] = serviceTime;
+        this.latencyIndex = (this.latencyIndex + 1) % LATENCY_WINDOW;
+        this.latencyCount = Math.min(this.latencyCount + 1, LATENCY_WINDOW);
+    }
+
+    /**
+     * @return the number of connections given to a worker, now or later.
+     */
+    public synchronized long getAcceptedCount() {
+        return this.acceptedCount;
+    }
+
+    /**
+     * @return the number of connections answered 503 as the queue was full.
+     */
+    public synchronized long getRejectedCount() {
+        return this.rejectedCount;
+    }
+
+    /**
+     * @return the number of connections being served.
+     */
+    public synchronized int getActiveCount() {
+        return this.activeCount;
+    }
+
+    /**
+     * @return the most connections served at once.
+     */
+    public synchronized int getPeakActiveCount() {
+        return this.peakActiveCount;
+    }
+
+    /**
+     * @return the number of connections waiting for a worker.
+     */
+    public int getQueuedCount() {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * @return the most connections that waited for a worker at once.
+     */
+    public synchronized int getPeakQueuedCount() {
+        return this.peakQueuedCount;
+    }
+
+    /**
+     * @return the given quantile, in [0, 1], of how long the recent
+     *         connections waited for a worker, in ns.
+     */
+    public synchronized long getQueueWaitQuantile(double quantile) {
+        return quantile(this.queueWaits, quantile);
+    }
+
+    /**
+     * @return the given quantile, in [0, 1], of how long the recent
+     *         connections were served for, until closed, in ns.
+     */
+    public synchronized long getServiceTimeQuantile(double quantile) {
+        return quantile(this.serviceTimes, quantile);
+    }
+
+    private long quantile(long[] values, double quantile) {
+        if (this.latencyCount == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(values, this.latencyCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(quantile * this.latencyCount) - 1;
+        return sorted[Math.max(0, Math.min(this.latencyCount - 1, index))];
+    }
+
+    /**
+     * Stops the workers once the connections they serve are closed.
+     */
+    public void shutdown() {
+        this.executor.shutdown();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BoundedAsyncRunner{accepted=" + this.acceptedCount + ", rejected=" + this.rejectedCount + ", active=" + this.activeCount + ", peak_active="
+                + this.peakActiveCount + ", peak_queued=" + this.peakQueuedCount + ", wait_p50_ms=" + quantile(this.queueWaits, 0.5) / 1000000.0
+                + ", wait_p99_ms=" + quantile(this.queueWaits, 0.99) / 1000000.0 + ", served_p50_ms=" + quantile(this.serviceTimes, 0.5) / 1000000.0 + "}";
+    }
+}
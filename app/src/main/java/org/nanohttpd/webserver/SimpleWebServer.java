@@ -38,6 +38,7 @@ import net.sourceforge.opencamera.multisync.Preview.ApplicationInterface;
 import org.nanohttpd.protocols.http.IHTTPSession;
 import org.nanohttpd.protocols.http.NanoHTTPD;
 import org.nanohttpd.protocols.http.request.Method;
+import org.nanohttpd.protocols.http.response.FileChannelBody;
 import org.nanohttpd.protocols.http.response.IStatus;
 import org.nanohttpd.protocols.http.response.Response;
 import org.nanohttpd.protocols.http.response.Status;
@@ -45,8 +46,6 @@ import org.nanohttpd.util.ServerRunner;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
@@ -55,10 +54,12 @@ import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.ServiceLoader;
 import java.util.StringTokenizer;
 
@@ -98,9 +99,15 @@ public class SimpleWebServer extends NanoHTTPD {
         LICENCE = text;
     }
 
+    /**
+     * Most byte ranges served in one response, beyond which the whole file is.
+     */
+    private static final int MAX_RANGES = 16;
+
     private static Map<String, WebServerPlugin> mimeTypeHandlers = new HashMap<String, WebServerPlugin>();
     private ApplicationInterface applicationInterface;
     private String filename;
+    private final Random boundaryRandom = new Random();
 
     /**
      * Starts as a standalone file server and waits for Enter.
@@ -537,95 +544,48 @@ public class SimpleWebServer extends NanoHTTPD {
     Response serveFile(String uri, Map<String, String> header, File file, String mime) {
         Response res;
         try {
-            // Calculate etag
-            String etag = Integer.toHexString((file.getAbsolutePath() + file.lastModified() + "" + file.length()).hashCode());
-
-            // Support (simple) skipping:
-            long startFrom = 0;
-            long endAt = -1;
-            String range = header.get("range");
-            if (range != null) {
-                if (range.startsWith("bytes=")) {
-                    range = range.substring("bytes=".length());
-                    int minus = range.indexOf('-');
-                    try {
-                        if (minus > 0) {
-                            startFrom = Long.parseLong(range.substring(0, minus));
-                            endAt = Long.parseLong(range.substring(minus + 1));
-                        }
-                    } catch (NumberFormatException ignored) {
-                    }
-                }
-            }
+            String etag = getETag(file);
+            long fileLen = file.length();
 
             // get if-range header. If present, it must match etag or else we
             // should ignore the range request
+            String range = header.get("range");
             String ifRange = header.get("if-range");
-            boolean headerIfRangeMissingOrMatching = (ifRange == null || etag.equals(ifRange));
+            boolean headerIfRangeMissingOrMatching = ifRange == null || etagMatches(ifRange, etag, false);
+            List<long[]> ranges = range != null && headerIfRangeMissingOrMatching ? parseRanges(range, fileLen) : null;
 
             String ifNoneMatch = header.get("if-none-match");
-            boolean headerIfNoneMatchPresentAndMatching = ifNoneMatch != null && ("*".equals(ifNoneMatch) || ifNoneMatch.equals(etag));
-
-            // Change return code and add Content-Range header when skipping is
-            // requested
-            long fileLen = file.length();
-
-            if (headerIfRangeMissingOrMatching && range != null && startFrom >= 0 && startFrom < fileLen) {
-                // range request that matches current etag
-                // and the startFrom of the range is satisfiable
-                if (headerIfNoneMatchPresentAndMatching) {
-                    // range request that matches current etag
-                    // and the startFrom of the range is satisfiable
-                    // would return range from file
-                    // respond with not-modified
-                    res = newFixedLengthResponse(Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
-                } else {
-                    if (endAt < 0) {
-                        endAt = fileLen - 1;
-                    }
-                    long newLen = endAt - startFrom + 1;
-                    if (newLen < 0) {
-                        newLen = 0;
-                    }
-
-                    FileInputStream fis = new FileInputStream(file);
-                    fis.skip(startFrom);
-
-                    res = Response.newFixedLengthResponse(Status.PARTIAL_CONTENT, mime, fis, newLen);
-                    res.addHeader("Accept-Ranges", "bytes");
-                    res.addHeader("Content-Length", "" + newLen);
-                    res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
-                    res.addHeader("ETag", etag);
-                }
+            boolean headerIfNoneMatchPresentAndMatching = ifNoneMatch != null && etagMatches(ifNoneMatch, etag, true);
+
+            if (ranges != null && ranges.isEmpty()) {
+                // return the size of the file
+                // 4xx responses are not trumped by if-none-match
+                res = newFixedLengthResponse(Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
+                res.addHeader("Content-Range", "bytes */" + fileLen);
+            } else if (headerIfNoneMatchPresentAndMatching) {
+                // would return the file or ranges of it, which the client has
+                // respond with not-modified
+                res = newFixedLengthResponse(Status.NOT_MODIFIED, mime, "");
+            } else if (ranges == null) {
+                // supply the file
+                res = newFileResponse(Status.OK, mime, new FileChannelBody(file).addRegion(null, 0, fileLen));
+            } else if (ranges.size() == 1) {
+                long startFrom = ranges.get(0)[0];
+                long endAt = ranges.get(0)[1];
+                res = newFileResponse(Status.PARTIAL_CONTENT, mime, new FileChannelBody(file).addRegion(null, startFrom, endAt - startFrom + 1));
+                res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
             } else {
-
-                if (headerIfRangeMissingOrMatching && range != null && startFrom >= fileLen) {
-                    // return the size of the file
-                    // 4xx responses are not trumped by if-none-match
-                    res = newFixedLengthResponse(Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
-                    res.addHeader("Content-Range", "bytes */" + fileLen);
-                    res.addHeader("ETag", etag);
-                } else if (range == null && headerIfNoneMatchPresentAndMatching) {
-                    // full-file-fetch request
-                    // would return entire file
-                    // respond with not-modified
-                    res = newFixedLengthResponse(Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
-                } else if (!headerIfRangeMissingOrMatching && headerIfNoneMatchPresentAndMatching) {
-                    // range request that doesn't match current etag
-                    // would return entire (different) file
-                    // respond with not-modified
-
-                    res = newFixedLengthResponse(Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
-                } else {
-                    // supply the file
-                    res = newFixedFileResponse(file, mime);
-                    res.addHeader("Content-Length", "" + fileLen);
-                    res.addHeader("ETag", etag);
+                // the ranges as parts of a multipart/byteranges body
+                String boundary = "BYTERANGES_" + Long.toHexString(this.boundaryRandom.nextLong());
+                FileChannelBody body = new FileChannelBody(file);
+                for (long[] part : ranges) {
+                    String partHeader = "\r\n--" + boundary + "\r\nContent-Type: " + mime + "\r\nContent-Range: bytes " + part[0] + "-" + part[1] + "/" + fileLen + "\r\n\r\n";
+                    body.addRegion(partHeader.getBytes("US-ASCII"), part[0], part[1] - part[0] + 1);
                 }
+                body.setSuffix(("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII"));
+                res = newFileResponse(Status.PARTIAL_CONTENT, "multipart/byteranges; boundary=" + boundary, body);
             }
+            res.addHeader("ETag", etag);
         } catch (IOException ioe) {
             res = getForbiddenResponse("Reading file failed.");
         }
@@ -633,13 +593,103 @@ public class SimpleWebServer extends NanoHTTPD {
         return res;
     }
 
-    private Response newFixedFileResponse(File file, String mime) throws FileNotFoundException {
-        Response res;
-        res = Response.newFixedLengthResponse(Status.OK, mime, new FileInputStream(file), (int) file.length());
+    private static Response newFileResponse(Status status, String mime, FileChannelBody body) {
+        Response res = Response.newFileResponse(status, mime, body);
         res.addHeader("Accept-Ranges", "bytes");
+        res.addHeader("Content-Length", "" + body.getLength());
         return res;
     }
 
+    /**
+     * Returns a strong etag of the file, from its modification time and
+     * length, which change whenever the file is written.
+     */
+    private static String getETag(File file) {
+        return "\"" + Long.toHexString(file.lastModified()) + "-" + Long.toHexString(file.length()) + "\"";
+    }
+
+    /**
+     * Whether the list of etags of an If-None-Match or If-Range header matches
+     * the given strong etag. With the weak comparison, etags marked weak (W/)
+     * match too.
+     */
+    private static boolean etagMatches(String header, String etag, boolean weak) {
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (weak && tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag) || (weak && tag.equals("*"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses the byte ranges of a Range header, as sorted lists of the first
+     * and last bytes, with overlapping or adjacent ranges merged.
+     * 
+     * @return the ranges within the file, which are empty if none is, or null
+     *         if the header is invalid or has too many ranges, so should be
+     *         ignored.
+     */
+    private static List<long[]> parseRanges(String range, long fileLen) {
+        if (!range.startsWith("bytes=")) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<long[]>();
+        for (String spec : range.substring("bytes=".length()).split(",")) {
+            spec = spec.trim();
+            int minus = spec.indexOf('-');
+            if (minus < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (minus == 0) {
+                    // suffix of the file
+                    long suffixLen = Long.parseLong(spec.substring(1));
+                    first = Math.max(0, fileLen - suffixLen);
+                    last = suffixLen > 0 ? fileLen - 1 : -1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, minus));
+                    last = minus + 1 < spec.length() ? Long.parseLong(spec.substring(minus + 1)) : Long.MAX_VALUE;
+                    if (first < 0 || last < first) {
+                        return null;
+                    }
+                    last = Math.min(last, fileLen - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first <= last) {
+                ranges.add(new long[]{
+                    first,
+                    last
+                });
+            }
+        }
+        Collections.sort(ranges, new Comparator<long[]>() {
+
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] > b[0] ? 1 : 0);
+            }
+        });
+        List<long[]> merged = new ArrayList<long[]>();
+        for (long[] r : ranges) {
+            long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (previous != null && r[0] <= previous[1] + 1) {
+                previous[1] = Math.max(previous[1], r[1]);
+            } else {
+                merged.add(r);
+            }
+        }
+        return merged.size() <= MAX_RANGES ? merged : null;
+    }
+
     protected Response addCORSHeaders(Map<String, String> queryHeaders, Response resp, String cors) {
         resp.addHeader("Access-Control-Allow-Origin", cors);
         resp.addHeader("Access-Control-Allow-Headers", calculateAllowHeaders(queryHeaders));
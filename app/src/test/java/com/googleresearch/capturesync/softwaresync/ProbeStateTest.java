@@ -0,0 +1,101 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Tests the adaptive background probing of {@link SimpleNetworkTimeProtocol.ProbeState}. */
+public class ProbeStateTest {
+  private static final long MIN_INTERVAL = SyncConstants.SNTP_PROBE_MIN_INTERVAL_NS;
+  private static final long MAX_INTERVAL = SyncConstants.SNTP_PROBE_MAX_INTERVAL_NS;
+  private static final long OFFSET = 1234567890L;
+  private static final long RTT = 500_000L; // 500us
+
+  @Test
+  public void stableClientBacksOffToMaxInterval() {
+    SimpleNetworkTimeProtocol.ProbeState state = new SimpleNetworkTimeProtocol.ProbeState();
+    assertEquals(MIN_INTERVAL, state.intervalNs());
+
+    // A stable client grows the interval by half each time, up to the maximum.
+    long clientTime = 0;
+    long expected = MIN_INTERVAL;
+    for (int i = 0; i < 20; i++) {
+      clientTime += state.intervalNs();
+      assertTrue(state.update(SntpOffsetResponse.create(OFFSET, RTT, clientTime, true)));
+      expected = Math.min(MAX_INTERVAL, expected * 3 / 2);
+      assertEquals(expected, state.intervalNs());
+    }
+    assertEquals(MAX_INTERVAL, state.intervalNs());
+
+    // An offset off the client's clock model halves it, but is still accepted.
+    clientTime += state.intervalNs();
+    assertTrue(
+        state.update(
+            SntpOffsetResponse.create(
+                OFFSET + 2 * SyncConstants.SNTP_PROBE_RESIDUAL_THRESHOLD_NS,
+                RTT,
+                clientTime,
+                true)));
+    assertEquals(MAX_INTERVAL / 2, state.intervalNs());
+  }
+
+  @Test
+  public void failedExchangesHalveIntervalDownToMin() {
+    SimpleNetworkTimeProtocol.ProbeState state = new SimpleNetworkTimeProtocol.ProbeState();
+    long clientTime = 0;
+    for (int i = 0; i < 10; i++) {
+      clientTime += state.intervalNs();
+      state.update(SntpOffsetResponse.create(OFFSET, RTT, clientTime, true));
+    }
+    assertEquals(MAX_INTERVAL, state.intervalNs());
+
+    assertFalse(state.update(SntpOffsetResponse.create(0, 0, false)));
+    assertEquals(MAX_INTERVAL / 2, state.intervalNs());
+    for (int i = 0; i < 20; i++) {
+      assertFalse(state.update(SntpOffsetResponse.create(0, 0, false)));
+    }
+    assertEquals(MIN_INTERVAL, state.intervalNs());
+  }
+
+  @Test
+  public void latencyOutliersAreRejectedAndSpeedUpProbing() {
+    SimpleNetworkTimeProtocol.ProbeState state = new SimpleNetworkTimeProtocol.ProbeState();
+    long clientTime = 0;
+    for (int i = 0; i < 10; i++) {
+      clientTime += state.intervalNs();
+      state.update(SntpOffsetResponse.create(OFFSET, RTT, clientTime, true));
+    }
+    assertEquals(MAX_INTERVAL, state.intervalNs());
+
+    // Growing round-trip jitter halves the interval, with the offset still on the model. Only the
+    // exchanges near the usual latency are accepted.
+    long interval = state.intervalNs();
+    for (int i = 0; i < 4; i++) {
+      clientTime += state.intervalNs();
+      boolean outlier = i % 2 == 0;
+      long rtt = outlier ? 20 * RTT : RTT;
+      boolean accepted = state.update(SntpOffsetResponse.create(OFFSET, rtt, clientTime, true));
+      assertEquals(!outlier, accepted);
+      assertEquals(Math.max(MIN_INTERVAL, interval / 2), state.intervalNs());
+      interval = state.intervalNs();
+    }
+  }
+}
@@ -2,24 +2,102 @@ package net.sourceforge.opencamera.multisync.test;
 
 import android.media.CamcorderProfile;
 
+import com.googleresearch.capturesync.Nv21Converter;
+import com.googleresearch.capturesync.Nv21Thumbnailer;
+import com.googleresearch.capturesync.PipelineStage;
+import com.googleresearch.capturesync.RawSequenceWriter;
+import com.googleresearch.capturesync.RollingHistogram;
+import com.googleresearch.capturesync.SyncMetrics;
+import com.googleresearch.capturesync.TimestampMatcher;
+import com.googleresearch.capturesync.softwaresync.ClockModel;
+import com.googleresearch.capturesync.softwaresync.DeadlineTrigger;
+import com.googleresearch.capturesync.softwaresync.DuplicateRpcFilter;
+import com.googleresearch.capturesync.softwaresync.ReliableRpcSender;
+import com.googleresearch.capturesync.softwaresync.RpcMessage;
+import com.googleresearch.capturesync.softwaresync.SntpEngine;
+import com.googleresearch.capturesync.softwaresync.SntpListener;
+import com.googleresearch.capturesync.softwaresync.SntpOffsetResponse;
+import com.googleresearch.capturesync.softwaresync.SyncConstants;
+import com.googleresearch.capturesync.softwaresync.Ticker;
+import com.googleresearch.capturesync.softwaresync.phasealign.ClosedLoopPhaseAligner;
+import com.googleresearch.capturesync.softwaresync.phasealign.FramePeriodEstimator;
+import com.googleresearch.capturesync.softwaresync.phasealign.FrameTimingSimulator;
+import com.googleresearch.capturesync.softwaresync.phasealign.PhaseAligner;
+import com.googleresearch.capturesync.softwaresync.phasealign.PhaseCalibrator;
+import com.googleresearch.capturesync.softwaresync.phasealign.PhaseConfig;
+import com.googleresearch.capturesync.softwaresync.phasealign.PhaseDriftTracker;
+import com.googleresearch.capturesync.softwaresync.phasealign.PhaseLockMaintainer;
+import com.googleresearch.capturesync.softwaresync.phasealign.PhaseResponse;
+
 import net.sourceforge.opencamera.multisync.CameraController.CameraController;
 import net.sourceforge.opencamera.multisync.CameraController.CameraController2;
 import net.sourceforge.opencamera.multisync.HDRProcessor;
 import net.sourceforge.opencamera.multisync.ImageSaver;
 import net.sourceforge.opencamera.multisync.LocationSupplier;
+import net.sourceforge.opencamera.multisync.NtpBurstClient;
+import net.sourceforge.opencamera.multisync.NtpClock;
+import net.sourceforge.opencamera.multisync.NtpServerSelector;
 import net.sourceforge.opencamera.multisync.Preview.Preview;
 import net.sourceforge.opencamera.multisync.Preview.VideoQualityHandler;
 import net.sourceforge.opencamera.multisync.TextFormatter;
 import net.sourceforge.opencamera.multisync.UI.DrawPreview;
+import net.sourceforge.opencamera.multisync.remotecontrol.BleClockEstimator;
+import net.sourceforge.opencamera.multisync.remotecontrol.BleCommandChannel;
+import net.sourceforge.opencamera.multisync.remotecontrol.BleCommandCodec;
+import net.sourceforge.opencamera.multisync.remotecontrol.BleCommandFrame;
+import net.sourceforge.opencamera.multisync.remotecontrol.BleDeliveryStats;
+import net.sourceforge.opencamera.multisync.remotecontrol.BleFanOutScheduler;
+import net.sourceforge.opencamera.multisync.remotecontrol.BleLinkSimulator;
 
 import org.junit.Test;
-
+import org.nanohttpd.protocols.http.IHTTPSession;
+import org.nanohttpd.protocols.http.NanoHTTPD;
+import org.nanohttpd.protocols.http.response.FileChannelBody;
+import org.nanohttpd.protocols.http.response.Response;
+import org.nanohttpd.protocols.http.response.Status;
+import org.nanohttpd.protocols.http.threading.BoundedAsyncRunner;
+import org.nanohttpd.protocols.http.threading.DefaultAsyncRunner;
+import org.nanohttpd.protocols.http.threading.IAsyncRunner;
+import org.nanohttpd.webserver.SimpleWebServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static org.junit.Assert.*;
 
@@ -710,4 +788,2925 @@ public class UnitTest {
 		assertEquals(1.0f/(0.369070f*(0.2f-0.1f) + 0.1f), focus_distances.get(1), 1.0e-5);
 		assertEquals(1.0f/0.2f, focus_distances.get(0), 1.0e-5);
 	}
+
+	@Test
+	public void testDeadlineTrigger() {
+		Log.d(TAG, "testDeadlineTrigger");
+
+		// fake clock advancing 3us per read, so the trigger spins without sleeping
+		final long [] fake_time = new long[]{0};
+		DeadlineTrigger trigger = new DeadlineTrigger(() -> fake_time[0] += 3000, Long.MAX_VALUE);
+
+		long overshoot = trigger.awaitDeadline(100000);
+		Log.d(TAG, "overshoot: " + overshoot);
+		assertTrue(overshoot >= 0 && overshoot < 3000);
+		assertTrue(fake_time[0] >= 100000);
+		assertEquals(0, trigger.getMissedCount());
+
+		// deadline already passed
+		overshoot = trigger.awaitDeadline(0);
+		Log.d(TAG, "overshoot: " + overshoot);
+		assertTrue(overshoot > 0);
+		assertEquals(1, trigger.getMissedCount());
+		assertEquals(2, trigger.getTriggerCount());
+
+		long [] histogram = trigger.getOvershootHistogram();
+		assertEquals(DeadlineTrigger.HISTOGRAM_NUM_BUCKETS, histogram.length);
+		long total = 0;
+		for(long count : histogram)
+			total += count;
+		assertEquals(2, total);
+		assertEquals(1, histogram[0]);
+
+		// real clock: sleeps most of the wait, then spins
+		trigger = new DeadlineTrigger(System::nanoTime);
+		for(int i=0;i<5;i++) {
+			overshoot = trigger.awaitDelay(5000000);
+			assertTrue(overshoot >= 0);
+		}
+		Log.d(TAG, "real clock: " + trigger);
+		assertEquals(5, trigger.getTriggerCount());
+
+		// a deadline beyond the longest wait, e.g. from a stale server time, is skipped at once
+		long start_ns = System.nanoTime();
+		assertEquals(DeadlineTrigger.SKIPPED, trigger.awaitDelay(DeadlineTrigger.DEFAULT_MAX_WAIT_NS + 1000000000L));
+		assertEquals(DeadlineTrigger.SKIPPED, trigger.awaitDeadline(Long.MAX_VALUE));
+		assertTrue(System.nanoTime() - start_ns < 100000000L);
+		assertEquals(2, trigger.getSkippedCount());
+		assertEquals(5, trigger.getTriggerCount());
+		// but one within it is waited for
+		trigger = new DeadlineTrigger(System::nanoTime, DeadlineTrigger.DEFAULT_SLEEP_MARGIN_NS, 50000000L);
+		assertTrue(trigger.awaitDelay(40000000L) >= 0);
+		assertEquals(DeadlineTrigger.SKIPPED, trigger.awaitDelay(60000000L));
+		assertEquals(1, trigger.getTriggerCount());
+		assertEquals(1, trigger.getSkippedCount());
+		try {
+			new DeadlineTrigger(System::nanoTime, DeadlineTrigger.DEFAULT_SLEEP_MARGIN_NS, -1);
+			fail("expected IllegalArgumentException");
+		}
+		catch(IllegalArgumentException e) {
+			// expected
+		}
+
+		// an interrupt doesn't end the sleep early, so the thread doesn't spin for the rest of the wait
+		final long [] n_reads = new long[1];
+		trigger = new DeadlineTrigger(() -> { n_reads[0]++; return System.nanoTime(); });
+		final Thread waiting_thread = Thread.currentThread();
+		new Thread(() -> { try { Thread.sleep(20); } catch(InterruptedException e) {} waiting_thread.interrupt(); }).start();
+		start_ns = System.nanoTime();
+		assertTrue(trigger.awaitDelay(200000000L) >= 0);
+		assertTrue(System.nanoTime() - start_ns >= 200000000L);
+		assertTrue(Thread.interrupted()); // restored, and cleared here
+		Log.d(TAG, "clock reads with an interrupt: " + n_reads[0]);
+		assertTrue(n_reads[0] < 2000000);
+	}
+
+	@Test
+	public void testClockModel() {
+		Log.d(TAG, "testClockModel");
+
+		// simulated client clock running 40ppm fast with a large initial offset
+		final long [] true_time = new long[]{0};
+		final double skew = 40e-6;
+		final long initial_offset = 1234567890123L;
+		Ticker client_clock = () -> initial_offset + true_time[0] + (long)(true_time[0] * skew);
+
+		ClockModel model = new ClockModel();
+		Random random = new Random(0);
+		final long sample_interval = 10000000000L; // 10s
+		long first_offset = 0;
+		for(int i=0;i<8;i++) {
+			true_time[0] = i * sample_interval;
+			long local = client_clock.read();
+			// offset = local - leader, with up to 200us of latency noise
+			long noise = (long)(random.nextGaussian() * 100000);
+			long offset = local - true_time[0] + noise;
+			if( i == 0 )
+				first_offset = offset;
+			model.addSample(local, offset, 400000);
+		}
+		Log.d(TAG, "skew: " + model.skew());
+		assertEquals(skew, model.skew(), 5e-6);
+
+		// extrapolate 60s past the last sample
+		true_time[0] = 7 * sample_interval + 60000000000L;
+		long local = client_clock.read();
+		long expected_offset = local - true_time[0];
+		long error = model.offsetAt(local) - expected_offset;
+		long uncertainty = model.uncertaintyAt(local);
+		Log.d(TAG, "error: " + error + " uncertainty: " + uncertainty);
+		assertTrue(Math.abs(error) < 500000);
+		assertTrue(uncertainty > 0);
+		// a single offset would have drifted by several ms
+		assertTrue(Math.abs(first_offset - expected_offset) > 4000000);
+		// uncertainty grows away from the samples
+		assertTrue(model.uncertaintyAt(local + 600000000000L) > uncertainty);
+
+		// a discontinuity resets the model
+		model.addSample(local, expected_offset + 1000000000L, 400000);
+		assertEquals(1, model.sampleCount());
+	}
+
+	/** Loopback benchmark of the concurrent SNTP engine: measures the time until all of 2, 8 and 32
+	 *  simulated clients (each with its own clock offset) are synced.
+	 */
+	@Test
+	public void testSntpEngineLoopback() throws Exception {
+		Log.d(TAG, "testSntpEngineLoopback");
+
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		for(int n_clients : new int[]{2, 8, 32}) {
+			DatagramSocket leader_socket = new DatagramSocket(new InetSocketAddress(loopback, 0));
+			leader_socket.setSoTimeout(SyncConstants.SOCKET_WAIT_TIME_MS);
+			SntpEngine engine = new SntpEngine(System::nanoTime, leader_socket);
+
+			List<DatagramSocket> client_sockets = new ArrayList<>();
+			List<SntpListener> listeners = new ArrayList<>();
+			for(int i=0;i<n_clients;i++) {
+				final long offset = (i+1) * 1000000000L;
+				DatagramSocket client_socket = new DatagramSocket(new InetSocketAddress(loopback, 0));
+				client_socket.setSoTimeout(SyncConstants.SOCKET_WAIT_TIME_MS);
+				SntpListener listener = new SntpListener(() -> System.nanoTime() + offset, client_socket, leader_socket.getLocalPort());
+				listener.start();
+				client_sockets.add(client_socket);
+				listeners.add(listener);
+			}
+
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(n_clients, SyncConstants.SNTP_MAX_PARALLEL_CLIENTS));
+			long start_time = System.nanoTime();
+			List<Future<SntpOffsetResponse>> results = new ArrayList<>();
+			for(DatagramSocket client_socket : client_sockets) {
+				final InetSocketAddress client = new InetSocketAddress(loopback, client_socket.getLocalPort());
+				results.add(executor.submit(() -> engine.doSNTP(client, SyncConstants.NUM_SNTP_CYCLES)));
+			}
+			for(int i=0;i<n_clients;i++) {
+				SntpOffsetResponse response = results.get(i).get();
+				assertTrue(response.status());
+				long expected_offset = (i+1) * 1000000000L;
+				assertTrue(Math.abs(response.offsetNs() - expected_offset) <= response.syncAccuracyNs());
+			}
+			long time_to_all_synced = System.nanoTime() - start_time;
+			Log.d(TAG, n_clients + " clients: all synced in " + (time_to_all_synced/1000) + " us");
+
+			executor.shutdown();
+			for(SntpListener listener : listeners)
+				listener.stopRunning();
+			engine.close();
+			for(SntpListener listener : listeners)
+				listener.join();
+			for(DatagramSocket client_socket : client_sockets)
+				client_socket.close();
+			leader_socket.close();
+		}
+	}
+
+	/** A reply to a pending SNTP request from the wrong address must not consume the request, so the
+	 *  real reply that follows still completes it.
+	 */
+	@Test
+	public void testSntpEngineIgnoresStrayReply() throws Exception {
+		Log.d(TAG, "testSntpEngineIgnoresStrayReply");
+
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		final DatagramSocket leader_socket = new DatagramSocket(new InetSocketAddress(loopback, 0));
+		leader_socket.setSoTimeout(SyncConstants.SOCKET_WAIT_TIME_MS);
+		final DatagramSocket client_socket = new DatagramSocket(new InetSocketAddress(loopback, 0));
+		client_socket.setSoTimeout(SyncConstants.SOCKET_WAIT_TIME_MS);
+		final DatagramSocket stray_socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName("127.0.0.2"), 0));
+		SntpEngine engine = new SntpEngine(System::nanoTime, leader_socket);
+
+		Thread client_thread = new Thread(() -> {
+			try {
+				byte [] buf = new byte[SntpEngine.RESPONSE_SIZE];
+				DatagramPacket packet = new DatagramPacket(buf, buf.length);
+				client_socket.receive(packet);
+				long t1 = System.nanoTime();
+				ByteBuffer buffer = ByteBuffer.wrap(buf);
+				buffer.putLong(SntpEngine.REQUEST_SIZE, t1);
+				buffer.putLong(SntpEngine.REQUEST_SIZE + 8, t1);
+				InetSocketAddress leader = new InetSocketAddress(packet.getAddress(), packet.getPort());
+				// the stray copy arrives first
+				stray_socket.send(new DatagramPacket(buf, buf.length, leader));
+				Thread.sleep(10);
+				client_socket.send(new DatagramPacket(buf, buf.length, leader));
+			}
+			catch(Exception e) {
+				Log.d(TAG, "client failed: " + e);
+			}
+		});
+		client_thread.start();
+
+		SntpOffsetResponse response = engine.doSNTP(new InetSocketAddress(loopback, client_socket.getLocalPort()), 1);
+		assertTrue(response.status());
+
+		client_thread.join();
+		engine.close();
+		stray_socket.close();
+		client_socket.close();
+		leader_socket.close();
+	}
+
+	@Test
+	public void testRpcMessage() {
+		Log.d(TAG, "testRpcMessage");
+
+		RpcMessage message = new RpcMessage();
+		message.setLongs(200000, 7, 123456789L, -1L, Long.MAX_VALUE, 0L);
+		assertEquals(200000, message.method());
+		assertEquals(7, message.sequence());
+		assertEquals(123456789L, message.sendTimeNs());
+		assertEquals(0, message.epoch());
+		assertEquals(-5, message.setEpoch(-5).epoch());
+		assertEquals(7, message.sequence());
+		assertEquals(123456789L, message.sendTimeNs());
+		assertEquals(RpcMessage.TYPE_LONGS, message.type());
+		assertEquals(3, message.longCount());
+		assertEquals(-1L, message.getLong(0));
+		assertEquals(Long.MAX_VALUE, message.getLong(1));
+		assertEquals(0L, message.getLong(2));
+		assertEquals("-1," + Long.MAX_VALUE + ",0", message.payloadString());
+
+		// reuse the same frame for a string payload
+		message.setString(1, 8, 5L, "name,192.168.0.2,true");
+		assertEquals(1, message.method());
+		assertEquals(RpcMessage.TYPE_STRING, message.type());
+		assertEquals(0, message.longCount());
+		assertEquals("name,192.168.0.2,true", message.payloadString());
+		assertEquals("name,192.168.0.2,true", message.getString());
+
+		// longs followed by a string, as for heartbeats
+		message.setLongsAndString(1, 9, 6L, "client".getBytes(StandardCharsets.UTF_8), 1L);
+		assertEquals(RpcMessage.TYPE_LONGS_AND_STRING, message.type());
+		assertEquals(1, message.longCount());
+		assertEquals(1L, message.getLong(0));
+		assertEquals("client", message.getString());
+		assertEquals("1,client", message.payloadString());
+		message.setLongs(2, 10, 7L, 3L);
+		assertEquals("", message.getString());
+
+		try {
+			message.setLongs(1, 0, 0, new long[RpcMessage.MAX_LONGS + 1]);
+			fail("expected IllegalArgumentException");
+		}
+		catch(IllegalArgumentException e) {
+			// expected
+		}
+
+		// compare against the string encoding previously used for trigger times
+		final int n_iterations = 100000;
+		long checksum = 0;
+		long start_time = System.nanoTime();
+		for(int i=0;i<n_iterations;i++) {
+			message.setLongs(200000, i, i, i);
+			checksum += message.getLong(0);
+		}
+		long binary_time = System.nanoTime() - start_time;
+		start_time = System.nanoTime();
+		for(int i=0;i<n_iterations;i++) {
+			byte [] bytes = String.valueOf((long)i).getBytes();
+			checksum -= Long.parseLong(new String(bytes));
+		}
+		long string_time = System.nanoTime() - start_time;
+		Log.d(TAG, "binary: " + (binary_time/n_iterations) + " ns/msg, string: " + (string_time/n_iterations) + " ns/msg");
+		assertEquals(0, checksum);
+	}
+
+	/** Sends an RPC as SoftwareSync did before binary frames: the method followed by the string
+	 *  payload, in a new buffer and packet.
+	 */
+	private static void sendStringRpc(DatagramSocket socket, int method, String arguments, InetSocketAddress address) throws IOException {
+		byte [] payload = arguments.getBytes();
+		byte [] full_payload = ByteBuffer.allocate(payload.length + 4).putInt(method).put(payload).array();
+		socket.send(new DatagramPacket(full_payload, full_payload.length, address));
+	}
+
+	/** Receives an RPC sent by sendStringRpc(), returning its payload split on commas.
+	 */
+	private static String [] receiveStringRpc(DatagramSocket socket, byte [] buffer) throws IOException {
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		socket.receive(packet);
+		return new String(packet.getData(), 4, packet.getLength() - 4).split(",");
+	}
+
+	/** Sends heartbeats from the client socket to the leader socket, which acknowledges each, with
+	 *  either framing. Returns the round trip times in ns.
+	 */
+	private static long [] runRpcRoundTrips(final DatagramSocket client, final DatagramSocket leader, final boolean binary, final int n_round_trips) throws Exception {
+		final InetSocketAddress leader_address = new InetSocketAddress(InetAddress.getLoopbackAddress(), leader.getLocalPort());
+		Thread echo = new Thread(() -> {
+			try {
+				byte [] buffer = new byte[SyncConstants.RPC_BUFFER_SIZE];
+				RpcMessage received = new RpcMessage();
+				RpcMessage ack = new RpcMessage();
+				for(int i=0;i<n_round_trips;i++) {
+					if( binary ) {
+						assertTrue(received.receiveFrom(leader));
+						assertEquals("client", received.getString());
+						ack.setLongs(SyncConstants.METHOD_HEARTBEAT_ACK, i, 0, received.getLong(0));
+						ack.sendTo(leader, received.senderAddress(), client.getLocalPort());
+					}
+					else {
+						String [] parts = receiveStringRpc(leader, buffer);
+						assertEquals("client", parts[0]);
+						InetAddress address = InetAddress.getByName(parts[1]);
+						sendStringRpc(leader, SyncConstants.METHOD_HEARTBEAT_ACK, parts[0] + "," + parts[1] + "," + parts[2], new InetSocketAddress(address, client.getLocalPort()));
+					}
+				}
+			}
+			catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		echo.start();
+
+		long [] round_trips = new long[n_round_trips];
+		byte [] buffer = new byte[SyncConstants.RPC_BUFFER_SIZE];
+		byte [] name = "client".getBytes(StandardCharsets.UTF_8);
+		RpcMessage heartbeat = new RpcMessage();
+		RpcMessage ack = new RpcMessage();
+		for(int i=0;i<n_round_trips;i++) {
+			long start_time = System.nanoTime();
+			if( binary ) {
+				heartbeat.setLongsAndString(SyncConstants.METHOD_HEARTBEAT, i, start_time, name, 1L);
+				heartbeat.sendTo(client, leader_address.getAddress(), leader_address.getPort());
+				assertTrue(ack.receiveFrom(client));
+				assertEquals(1L, ack.getLong(0));
+			}
+			else {
+				sendStringRpc(client, SyncConstants.METHOD_HEARTBEAT, String.format("%s,%s,%s", "client", "127.0.0.1", Boolean.toString(true)), leader_address);
+				String [] parts = receiveStringRpc(client, buffer);
+				assertTrue(Boolean.parseBoolean(parts[2]));
+			}
+			round_trips[i] = System.nanoTime() - start_time;
+		}
+		echo.join();
+		return round_trips;
+	}
+
+	/** Compares the loopback round trip of a heartbeat and its acknowledgement with the previous
+	 *  string framing and with binary frames.
+	 */
+	@Test
+	public void testRpcLoopbackRoundTrip() throws Exception {
+		Log.d(TAG, "testRpcLoopbackRoundTrip");
+
+		final int n_round_trips = 5000;
+		try( DatagramSocket client = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+			 DatagramSocket leader = new DatagramSocket(0, InetAddress.getLoopbackAddress()) ) {
+			client.setSoTimeout(2000);
+			leader.setSoTimeout(2000);
+			// warm up both paths
+			runRpcRoundTrips(client, leader, false, 1000);
+			runRpcRoundTrips(client, leader, true, 1000);
+
+			for(int binary=0;binary<2;binary++) {
+				long [] round_trips = runRpcRoundTrips(client, leader, binary == 1, n_round_trips);
+				long total = 0;
+				for(long round_trip : round_trips)
+					total += round_trip;
+				Arrays.sort(round_trips);
+				Log.d(TAG, (binary == 1 ? "binary" : "string") + ": round trip mean " + (total / n_round_trips / 1000.0) + " us, p50 " +
+						(round_trips[n_round_trips / 2] / 1000.0) + " us, p99 " + (round_trips[n_round_trips * 99 / 100] / 1000.0) + " us");
+			}
+		}
+	}
+
+	/** Tests that a sender restarting its sequence numbers under a new epoch isn't taken for
+	 *  retransmissions.
+	 */
+	@Test
+	public void testDuplicateRpcFilterEpoch() throws Exception {
+		Log.d(TAG, "testDuplicateRpcFilterEpoch");
+
+		final InetAddress leader = InetAddress.getByAddress(new byte[]{(byte)192, (byte)168, 0, 1});
+		final InetAddress client = InetAddress.getByAddress(new byte[]{(byte)192, (byte)168, 0, 2});
+		DuplicateRpcFilter filter = new DuplicateRpcFilter(8);
+		for(int i=0;i<5;i++) {
+			assertFalse(filter.isDuplicate(leader, 100, i));
+		}
+		assertTrue(filter.isDuplicate(leader, 100, 3));
+		// the same sequence numbers from another sender
+		assertFalse(filter.isDuplicate(client, 100, 3));
+
+		// the leader app restarted: its first RPCs are new, then retransmissions are dropped again
+		for(int i=0;i<5;i++) {
+			assertFalse(filter.isDuplicate(leader, 200, i));
+		}
+		assertTrue(filter.isDuplicate(leader, 200, 0));
+		assertTrue(filter.isDuplicate(client, 100, 3));
+	}
+
+	/** Reliable RPCs over a lossy loopback shim, dropping 30% of frames and acknowledgements in
+	 *  both directions: every RPC must be delivered, and dispatched exactly once per client.
+	 */
+	@Test
+	public void testReliableRpcOverLossyTransport() throws Exception {
+		Log.d(TAG, "testReliableRpcOverLossyTransport");
+
+		final int n_clients = 4;
+		final int n_messages = 50;
+		final Random random = new Random(0);
+		final InetAddress [] clients = new InetAddress[n_clients];
+		final int [][] dispatched = new int[n_clients][n_messages];
+		for(int i=0;i<n_clients;i++) {
+			clients[i] = InetAddress.getByAddress(new byte[]{(byte)192, (byte)168, 0, (byte)(i+2)});
+		}
+		final DuplicateRpcFilter filter = new DuplicateRpcFilter();
+		final AtomicInteger delivered = new AtomicInteger();
+		final AtomicInteger lost = new AtomicInteger();
+		final AtomicInteger attempts = new AtomicInteger();
+		final ReliableRpcSender [] sender = new ReliableRpcSender[1];
+
+		ReliableRpcSender.Transport lossy_transport = (message, address) -> {
+			boolean drop_frame, drop_ack;
+			synchronized( random ) {
+				drop_frame = random.nextInt(10) < 3;
+				drop_ack = random.nextInt(10) < 3;
+			}
+			if( drop_frame )
+				return;
+			// the simulated client acknowledges every copy, but only dispatches the first
+			int client = address.getAddress()[3] - 2;
+			if( !filter.isDuplicate(address, message.epoch(), message.sequence()) ) {
+				synchronized( dispatched ) {
+					dispatched[client][(int)message.getLong(0)]++;
+				}
+			}
+			if( !drop_ack )
+				sender[0].onAck(address, message.sequence());
+		};
+		sender[0] = new ReliableRpcSender(
+				System::nanoTime,
+				lossy_transport,
+				new ReliableRpcSender.DeliveryListener() {
+					@Override
+					public void onDelivered(InetAddress address, int method, long latencyNs, int n_attempts) {
+						delivered.incrementAndGet();
+						attempts.addAndGet(n_attempts);
+					}
+
+					@Override
+					public void onLost(InetAddress address, int method, int n_attempts) {
+						lost.incrementAndGet();
+					}
+				},
+				SyncConstants.RELIABLE_RPC_RETRANSMIT_INTERVAL_NS / 10);
+
+		final long deadline = System.nanoTime() + 5_000_000_000L;
+		for(int i=0;i<n_messages;i++) {
+			RpcMessage message = new RpcMessage().setLongs(200000, i, System.nanoTime(), i).setAckRequested();
+			for(InetAddress client : clients) {
+				sender[0].send(message, client, deadline);
+			}
+		}
+		while( sender[0].pendingCount() > 0 && System.nanoTime() < deadline ) {
+			Thread.sleep(1);
+		}
+		sender[0].close();
+
+		Log.d(TAG, "delivered: " + delivered.get() + " lost: " + lost.get() + " mean attempts: " + (attempts.get() / (double)Math.max(1, delivered.get())));
+		assertEquals(0, lost.get());
+		assertEquals(n_clients * n_messages, delivered.get());
+		// with 30% loss each way, retransmissions must have been needed
+		assertTrue(attempts.get() > n_clients * n_messages);
+		for(int i=0;i<n_clients;i++) {
+			for(int j=0;j<n_messages;j++) {
+				assertEquals(1, dispatched[i][j]);
+			}
+		}
+	}
+
+	/** Builds the planes of a synthetic YUV_420_888 frame, with optional row padding and either
+	 *  semi-planar (pixel stride 2, V and U views into one interleaved buffer) or planar chroma.
+	 *  Returns {y, u, v} and fills in the row strides.
+	 */
+	private static ByteBuffer [] makeYuvPlanes(int width, int height, int padding, boolean semi_planar, int [] strides, Random random) {
+		int y_row_stride = width + padding;
+		ByteBuffer y = ByteBuffer.allocateDirect(y_row_stride * (height-1) + width);
+		for(int i=0;i<y.capacity();i++)
+			y.put(i, (byte)random.nextInt());
+		int uv_row_stride;
+		ByteBuffer u, v;
+		if( semi_planar ) {
+			uv_row_stride = width + padding;
+			ByteBuffer vu = ByteBuffer.allocateDirect(uv_row_stride * (height/2-1) + width);
+			for(int i=0;i<vu.capacity();i++)
+				vu.put(i, (byte)random.nextInt());
+			// as on devices, each plane view is one byte short of the interleaved data
+			vu.limit(vu.capacity()-1);
+			v = vu.slice();
+			vu.limit(vu.capacity());
+			vu.position(1);
+			u = vu.slice();
+		}
+		else {
+			uv_row_stride = width/2 + padding;
+			u = ByteBuffer.allocateDirect(uv_row_stride * (height/2-1) + width/2);
+			v = ByteBuffer.allocateDirect(uv_row_stride * (height/2-1) + width/2);
+			for(int i=0;i<u.capacity();i++) {
+				u.put(i, (byte)random.nextInt());
+				v.put(i, (byte)random.nextInt());
+			}
+		}
+		strides[0] = y_row_stride;
+		strides[1] = uv_row_stride;
+		return new ByteBuffer[]{y, u, v};
+	}
+
+	/** Straightforward per pixel reference for the rotated NV21 conversion. */
+	private static byte [] referenceRotatedNv21(ByteBuffer [] planes, int [] strides, int uv_pixel_stride, int width, int height) {
+		byte [] out = new byte[width * height * 3 / 2];
+		for(int r=0;r<height;r++) {
+			for(int c=0;c<width;c++) {
+				out[c * height + (height - 1 - r)] = planes[0].get(r * strides[0] + c);
+			}
+		}
+		for(int r=0;r<height/2;r++) {
+			for(int c=0;c<width/2;c++) {
+				int o = width * height + c * height + 2 * (height/2 - 1 - r);
+				int i = r * strides[1] + c * uv_pixel_stride;
+				out[o] = planes[2].get(i);
+				out[o+1] = planes[1].get(i);
+			}
+		}
+		return out;
+	}
+
+	/** The conversion previously used by ResultProcessor: pack the planes into a new array, then
+	 *  rotate into a second one walking the source column-wise. Requires unpadded semi-planar data.
+	 */
+	private static byte [] legacyRotatedNv21(ByteBuffer [] planes, int width, int height) {
+		byte [] packed = new byte[width * height * 3 / 2];
+		ByteBuffer y = planes[0].duplicate();
+		ByteBuffer v = planes[2].duplicate();
+		ByteBuffer u = planes[1].duplicate();
+		y.get(packed, 0, y.capacity());
+		v.get(packed, y.capacity(), v.capacity());
+		u.position(u.capacity()-1);
+		u.get(packed, packed.length-1, 1);
+
+		byte [] yuv = new byte[width * height * 3 / 2];
+		int i = 0;
+		for(int x=0;x<width;x++) {
+			for(int yy=height-1;yy>=0;yy--) {
+				yuv[i++] = packed[yy * width + x];
+			}
+		}
+		i = width * height * 3 / 2 - 1;
+		for(int x=width-1;x>0;x-=2) {
+			for(int yy=0;yy<height/2;yy++) {
+				yuv[i--] = packed[width * height + yy * width + x];
+				yuv[i--] = packed[width * height + yy * width + x - 1];
+			}
+		}
+		return yuv;
+	}
+
+	@Test
+	public void testNv21ConverterRotation() {
+		Log.d(TAG, "testNv21ConverterRotation");
+
+		Random random = new Random(0);
+		Nv21Converter converter = new Nv21Converter(1);
+		// sizes not a multiple of the tile size, with and without row padding
+		int [][] sizes = {{2, 2}, {130, 66}, {200, 150}};
+		for(int [] size : sizes) {
+			int width = size[0], height = size[1];
+			for(int padding : new int[]{0, 24}) {
+				for(boolean semi_planar : new boolean[]{true, false}) {
+					int [] strides = new int[2];
+					ByteBuffer [] planes = makeYuvPlanes(width, height, padding, semi_planar, strides, random);
+					int uv_pixel_stride = semi_planar ? 2 : 1;
+					byte [] expected = referenceRotatedNv21(planes, strides, uv_pixel_stride, width, height);
+					byte [] actual = converter.convertRotated90(planes[0], strides[0], 1, planes[1], planes[2], strides[1], uv_pixel_stride, width, height);
+					assertArrayEquals(expected, actual);
+					if( semi_planar && padding == 0 ) {
+						assertArrayEquals(legacyRotatedNv21(planes, width, height), actual);
+					}
+					// the plane positions are left untouched
+					assertEquals(0, planes[0].position());
+					converter.release(actual);
+				}
+			}
+		}
+
+		// released buffers of the same size are reused
+		byte [] first = converter.acquire(Nv21Converter.nv21Size(4, 2));
+		converter.release(first);
+		assertSame(first, converter.acquire(Nv21Converter.nv21Size(4, 2)));
+	}
+
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/** Benchmark of the rotated NV21 conversion on 12 MP frames, against the previous two step
+	 *  path, reporting time and allocation per frame.
+	 */
+	@Test
+	public void testNv21ConverterBenchmark() {
+		Log.d(TAG, "testNv21ConverterBenchmark");
+
+		final int width = 4000, height = 3000;
+		final int n_warmup = 3, n_frames = 10;
+		int [] strides = new int[2];
+		ByteBuffer [] planes = makeYuvPlanes(width, height, 0, true, strides, new Random(0));
+		Nv21Converter converter = new Nv21Converter(1);
+
+		long checksum = 0;
+		for(int i=0;i<n_warmup;i++) {
+			checksum += legacyRotatedNv21(planes, width, height)[i];
+			byte [] nv21 = converter.convertRotated90(planes[0], strides[0], 1, planes[1], planes[2], strides[1], 2, width, height);
+			checksum -= nv21[i];
+			converter.release(nv21);
+		}
+		assertEquals(0, checksum);
+
+		long start_bytes = allocatedBytes();
+		long start_time = System.nanoTime();
+		for(int i=0;i<n_frames;i++) {
+			checksum += legacyRotatedNv21(planes, width, height)[i];
+		}
+		long legacy_time = (System.nanoTime() - start_time) / n_frames;
+		long legacy_bytes = (allocatedBytes() - start_bytes) / n_frames;
+
+		start_bytes = allocatedBytes();
+		start_time = System.nanoTime();
+		for(int i=0;i<n_frames;i++) {
+			byte [] nv21 = converter.convertRotated90(planes[0], strides[0], 1, planes[1], planes[2], strides[1], 2, width, height);
+			checksum -= nv21[i];
+			converter.release(nv21);
+		}
+		long pooled_time = (System.nanoTime() - start_time) / n_frames;
+		long pooled_bytes = (allocatedBytes() - start_bytes) / n_frames;
+
+		Log.d(TAG, "two step: " + (legacy_time / 1000000.0) + " ms/frame, " + legacy_bytes + " bytes/frame");
+		Log.d(TAG, "pooled tiled: " + (pooled_time / 1000000.0) + " ms/frame, " + pooled_bytes + " bytes/frame");
+		assertEquals(0, checksum);
+		// the previous path allocates two full frames, the pooled one none
+		assertTrue(legacy_bytes >= 2L * Nv21Converter.nv21Size(width, height));
+		assertTrue(pooled_bytes < Nv21Converter.nv21Size(width, height) / 100);
+	}
+
+	@Test
+	public void testNv21Thumbnailer() {
+		Log.d(TAG, "testNv21Thumbnailer");
+
+		final int width = 64, height = 48;
+		byte [] nv21 = new byte[Nv21Converter.nv21Size(width, height)];
+		// grey luma ramp across each 8x8 block, averaging to 100; neutral chroma
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				nv21[y * width + x] = (byte)(100 + (x % 8) - 4 + (y % 2 == 0 ? 1 : 0));
+			}
+		}
+		for(int i=width*height;i<nv21.length;i++) {
+			nv21[i] = (byte)128;
+		}
+		Nv21Thumbnailer thumbnailer = new Nv21Thumbnailer(8);
+		assertEquals(8, thumbnailer.thumbnailWidth(width));
+		assertEquals(6, thumbnailer.thumbnailHeight(height));
+		int [] pixels = thumbnailer.thumbnail(nv21, width, height);
+		for(int i=0;i<8*6;i++) {
+			assertEquals(0xff646464, pixels[i]);
+		}
+
+		// saturated colours: V = 255 is strongly red, U = 255 strongly blue
+		for(int i=0;i<width*height;i++) {
+			nv21[i] = (byte)128;
+		}
+		for(int i=width*height;i<nv21.length;i+=2) {
+			boolean left = ((i - width*height) % width) < width/2;
+			nv21[i] = (byte)(left ? 255 : 128); // V
+			nv21[i+1] = (byte)(left ? 128 : 255); // U
+		}
+		pixels = thumbnailer.thumbnail(nv21, width, height);
+		int left = pixels[0], right = pixels[7];
+		assertEquals(255, (left >> 16) & 0xff);
+		assertTrue(((left >> 8) & 0xff) < 128);
+		assertEquals(128, left & 0xff);
+		assertEquals(128, (right >> 16) & 0xff);
+		assertEquals(255, right & 0xff);
+
+		// the output array is reused between calls
+		assertSame(pixels, thumbnailer.thumbnail(nv21, width, height));
+	}
+
+	/** Runs items through a stage whose single worker is held up until released, checking the
+	 *  backpressure policy applied to items that do not fit in the queue.
+	 */
+	private static PipelineStage<Integer> makeHeldStage(PipelineStage.Backpressure backpressure, final CountDownLatch release, final List<String> processed_on, final List<Integer> dropped) {
+		return makeHeldStage(backpressure, 2, release, processed_on, dropped);
+	}
+
+	private static PipelineStage<Integer> makeHeldStage(PipelineStage.Backpressure backpressure, int capacity, final CountDownLatch release, final List<String> processed_on, final List<Integer> dropped) {
+		return new PipelineStage<>(
+				"Test", 1, capacity, backpressure,
+				item -> {
+					try {
+						release.await();
+					}
+					catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					synchronized( processed_on ) {
+						processed_on.add(Thread.currentThread().getName());
+					}
+				},
+				item -> {
+					synchronized( dropped ) {
+						dropped.add(item);
+					}
+				});
+	}
+
+	@Test
+	public void testPipelineStageBackpressure() throws InterruptedException {
+		Log.d(TAG, "testPipelineStageBackpressure");
+
+		// DROP: one item with the worker, two queued, the rest dropped
+		CountDownLatch release = new CountDownLatch(1);
+		List<String> processed_on = new ArrayList<>();
+		List<Integer> dropped = new ArrayList<>();
+		PipelineStage<Integer> stage = makeHeldStage(PipelineStage.Backpressure.DROP, release, processed_on, dropped);
+		for(int i=0;i<6;i++) {
+			stage.submit(i);
+		}
+		Thread.sleep(50);
+		assertEquals(2, stage.getQueueDepth());
+		assertEquals(3, stage.getDroppedCount());
+		assertEquals(3, dropped.size());
+		release.countDown();
+		assertTrue(stage.close(1000));
+		assertEquals(3, stage.getProcessedCount());
+		assertTrue(stage.getMaxLatencyNs() >= stage.getMeanLatencyNs());
+		assertTrue(stage.getMeanLatencyNs() > 0);
+
+		// CALLER_RUNS: items that do not fit are processed on the submitting thread
+		final CountDownLatch release2 = new CountDownLatch(1);
+		processed_on.clear();
+		stage = makeHeldStage(PipelineStage.Backpressure.CALLER_RUNS, release2, processed_on, dropped);
+		for(int i=0;i<3;i++) {
+			stage.submit(i);
+		}
+		Thread.sleep(50);
+		new Thread(() -> { try { Thread.sleep(50); } catch(InterruptedException e) {} release2.countDown(); }).start();
+		stage.submit(3); // queue full, runs here once released
+		assertTrue(processed_on.contains(Thread.currentThread().getName()));
+		assertTrue(stage.close(1000));
+
+		// BLOCK: the submitting thread waits for space, nothing is dropped
+		final CountDownLatch release3 = new CountDownLatch(1);
+		processed_on.clear();
+		dropped.clear();
+		stage = makeHeldStage(PipelineStage.Backpressure.BLOCK, release3, processed_on, dropped);
+		new Thread(() -> { try { Thread.sleep(50); } catch(InterruptedException e) {} release3.countDown(); }).start();
+		for(int i=0;i<10;i++) {
+			stage.submit(i);
+		}
+		assertTrue(stage.close(1000));
+		assertEquals(10, stage.getProcessedCount());
+		assertEquals(0, stage.getDroppedCount());
+		assertEquals(0, dropped.size());
+		for(String name : processed_on) {
+			assertEquals("Test-0", name);
+		}
+
+		// no queue: an item is only handed to an idle worker, never left waiting
+		final CountDownLatch release4 = new CountDownLatch(1);
+		processed_on.clear();
+		stage = makeHeldStage(PipelineStage.Backpressure.CALLER_RUNS, 0, release4, processed_on, dropped);
+		stage.submit(0);
+		Thread.sleep(50);
+		assertEquals(0, stage.getQueueDepth());
+		new Thread(() -> { try { Thread.sleep(50); } catch(InterruptedException e) {} release4.countDown(); }).start();
+		stage.submit(1); // worker busy, runs here once released
+		assertTrue(processed_on.contains(Thread.currentThread().getName()));
+		assertTrue(stage.close(1000));
+		assertEquals(2, stage.getProcessedCount());
+		assertEquals(0, stage.getDroppedCount());
+
+		// no queue and DROP, as for the copy stage: the submitting thread never waits
+		final CountDownLatch release5 = new CountDownLatch(1);
+		processed_on.clear();
+		dropped.clear();
+		stage = makeHeldStage(PipelineStage.Backpressure.DROP, 0, release5, processed_on, dropped);
+		stage.submit(0);
+		Thread.sleep(50);
+		long start_time = System.nanoTime();
+		stage.submit(1); // worker busy, dropped at once
+		assertTrue(System.nanoTime() - start_time < 50000000L);
+		assertEquals(1, stage.getDroppedCount());
+		assertEquals(Arrays.asList(1), dropped);
+		release5.countDown();
+		assertTrue(stage.close(1000));
+		assertEquals(1, stage.getProcessedCount());
+		assertFalse(processed_on.contains(Thread.currentThread().getName()));
+	}
+
+	/** Directory on tmpfs if available, so the benchmark measures the writer rather than a disk. */
+	private static File rawSequenceTestDir() throws IOException {
+		File shm = new File("/dev/shm");
+		File parent = shm.isDirectory() && shm.canWrite() ? shm : new File(System.getProperty("java.io.tmpdir"));
+		return Files.createTempDirectory(parent.toPath(), "rawseq").toFile();
+	}
+
+	@Test
+	public void testRawSequenceWriter() throws IOException {
+		Log.d(TAG, "testRawSequenceWriter");
+
+		File dir = rawSequenceTestDir();
+		File data = new File(dir, "seq.raw");
+		File sidecar = new File(dir, "seq.idx");
+		Random random = new Random(0);
+		final int width = 200, height = 150;
+		int [] strides = new int[2];
+		// padded semi-planar and planar frames
+		ByteBuffer [] semi_planar = makeYuvPlanes(width, height, 24, true, strides, random);
+		int [] semi_planar_strides = strides.clone();
+		ByteBuffer [] planar = makeYuvPlanes(width, height, 8, false, strides, random);
+		int [] planar_strides = strides.clone();
+		final int raw_row_stride = RawSequenceWriter.raw10RowBytes(width) + 16;
+		ByteBuffer raw = ByteBuffer.allocateDirect(raw_row_stride * height);
+		for(int i=0;i<raw.capacity();i++)
+			raw.put(i, (byte)random.nextInt());
+
+		RawSequenceWriter writer = new RawSequenceWriter(data, sidecar);
+		writer.writeNv21(semi_planar[0], semi_planar_strides[0], semi_planar[1], semi_planar[2], semi_planar_strides[1], 2, width, height, 1000L, 10L);
+		writer.writeNv21(planar[0], planar_strides[0], planar[1], planar[2], planar_strides[1], 1, width, height, 2000L, 20L);
+		// packed apart from the writer, as by the copy stage, reusing a frame packed bigger before
+		RawSequenceWriter.PackedFrame packed = new RawSequenceWriter.PackedFrame();
+		packed.packNv21(semi_planar[0], semi_planar_strides[0], semi_planar[1], semi_planar[2], semi_planar_strides[1], 2, width, height, 0L, 0L);
+		packed.packRaw10(raw, raw_row_stride, width, height, 3000L, 30L);
+		assertEquals(RawSequenceWriter.raw10RowBytes(width) * height, packed.getLength());
+		writer.write(packed);
+		assertEquals(3, writer.getFrameCount());
+		// the file only holds what was written
+		assertEquals(writer.getLength(), data.length());
+		writer.close();
+		writer.close(); // idempotent
+
+		final int nv21_size = width * height * 3 / 2;
+		final int raw_size = RawSequenceWriter.raw10RowBytes(width) * height;
+		byte [] bytes = Files.readAllBytes(data.toPath());
+		assertEquals(2 * nv21_size + raw_size, bytes.length);
+
+		// the NV21 frames match the reference conversion without rotation: the luma, then VU pairs
+		byte [] expected = new byte[nv21_size];
+		for(int frame=0;frame<2;frame++) {
+			ByteBuffer [] planes = frame == 0 ? semi_planar : planar;
+			int [] s = frame == 0 ? semi_planar_strides : planar_strides;
+			int pixel_stride = frame == 0 ? 2 : 1;
+			for(int r=0;r<height;r++)
+				for(int c=0;c<width;c++)
+					expected[r * width + c] = planes[0].get(r * s[0] + c);
+			for(int r=0;r<height/2;r++) {
+				for(int c=0;c<width/2;c++) {
+					expected[width * height + r * width + 2 * c] = planes[2].get(r * s[1] + c * pixel_stride);
+					expected[width * height + r * width + 2 * c + 1] = planes[1].get(r * s[1] + c * pixel_stride);
+				}
+			}
+			assertArrayEquals(expected, Arrays.copyOfRange(bytes, frame * nv21_size, (frame + 1) * nv21_size));
+		}
+		for(int r=0;r<height;r++) {
+			for(int c=0;c<RawSequenceWriter.raw10RowBytes(width);c++) {
+				assertEquals(raw.get(r * raw_row_stride + c), bytes[2 * nv21_size + r * RawSequenceWriter.raw10RowBytes(width) + c]);
+			}
+		}
+
+		ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(sidecar.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(RawSequenceWriter.HEADER_SIZE + 3 * RawSequenceWriter.RECORD_SIZE, index.capacity());
+		assertEquals(RawSequenceWriter.MAGIC, index.getInt());
+		assertEquals(RawSequenceWriter.VERSION, index.getInt());
+		long offset = 0;
+		for(int frame=0;frame<3;frame++) {
+			assertEquals(frame < 2 ? RawSequenceWriter.FORMAT_NV21 : RawSequenceWriter.FORMAT_RAW10, index.getInt());
+			assertEquals(width, index.getInt());
+			assertEquals(height, index.getInt());
+			assertEquals(frame < 2 ? width : RawSequenceWriter.raw10RowBytes(width), index.getInt());
+			assertEquals(offset, index.getLong());
+			long length = index.getLong();
+			assertEquals(frame < 2 ? nv21_size : raw_size, length);
+			assertEquals(1000L * (frame + 1), index.getLong());
+			assertEquals(10L * (frame + 1), index.getLong());
+			offset += length;
+		}
+
+		// NV12, with U before V in the shared buffer, still gives VU pairs
+		File nv12_data = new File(dir, "nv12.raw");
+		File nv12_sidecar = new File(dir, "nv12.idx");
+		writer = new RawSequenceWriter(nv12_data, nv12_sidecar);
+		writer.writeNv21(semi_planar[0], semi_planar_strides[0], semi_planar[2], semi_planar[1], semi_planar_strides[1], 2, width, height, 1000L, 10L);
+		writer.close();
+		bytes = Files.readAllBytes(nv12_data.toPath());
+		assertEquals(nv21_size, bytes.length);
+		for(int r=0;r<height/2;r++) {
+			for(int c=0;c<width/2;c++) {
+				assertEquals(semi_planar[1].get(r * semi_planar_strides[1] + c * 2), bytes[width * height + r * width + 2 * c]);
+				assertEquals(semi_planar[2].get(r * semi_planar_strides[1] + c * 2), bytes[width * height + r * width + 2 * c + 1]);
+			}
+		}
+
+		nv12_data.delete();
+		nv12_sidecar.delete();
+		data.delete();
+		sidecar.delete();
+		dir.delete();
+	}
+
+	/** Throughput of recording 12 MP NV21 frames to a tmpfs target. */
+	@Test
+	public void testRawSequenceWriterBenchmark() throws IOException {
+		Log.d(TAG, "testRawSequenceWriterBenchmark");
+
+		final int width = 4000, height = 3000;
+		final int n_frames = 20;
+		int [] strides = new int[2];
+		ByteBuffer [] planes = makeYuvPlanes(width, height, 64, true, strides, new Random(0));
+		File dir = rawSequenceTestDir();
+		File data = new File(dir, "seq.raw");
+		File sidecar = new File(dir, "seq.idx");
+		final long frame_size = (long)width * height * 3 / 2;
+
+		RawSequenceWriter writer = new RawSequenceWriter(data, sidecar);
+		long start_time = System.nanoTime();
+		for(int i=0;i<n_frames;i++) {
+			writer.writeNv21(planes[0], strides[0], planes[1], planes[2], strides[1], 2, width, height, i, i);
+		}
+		long write_time = System.nanoTime() - start_time;
+		writer.close();
+		long total_time = System.nanoTime() - start_time;
+
+		double mb = n_frames * frame_size / (1024.0 * 1024.0);
+		Log.d(TAG, "target: " + dir.getParent() + ", " + n_frames + " frames of " + (frame_size / 1024 / 1024) + " MB");
+		Log.d(TAG, "write: " + (write_time / 1000000.0 / n_frames) + " ms/frame, " + (mb / (write_time * 1e-9)) + " MB/s");
+		Log.d(TAG, "including close: " + (n_frames / (total_time * 1e-9)) + " frames/s");
+		assertEquals(n_frames * frame_size, data.length());
+
+		data.delete();
+		sidecar.delete();
+		dir.delete();
+	}
+
+	/** Records what a TimestampMatcher delivers; images are their own timestamps. */
+	private static class MatchRecorder implements TimestampMatcher.Listener<String, Long> {
+		final List<String> matches = new ArrayList<>();
+		final List<Long> discarded = new ArrayList<>();
+		long n_matches;
+		long n_matched_images;
+		long n_discarded;
+		boolean record = true;
+
+		@Override
+		public void onMatch(TimestampMatcher.Match<String, Long> match) {
+			n_matches++;
+			StringBuilder description = record ? new StringBuilder(match.result()) : null;
+			for(int i=0;i<2;i++) {
+				Long image = match.image(i);
+				if( image != null ) {
+					n_matched_images++;
+					// images always belong to their result
+					assertEquals(match.timestamp(), (long)image);
+				}
+				if( record ) {
+					description.append(image == null ? ((match.droppedMask() & (1 << i)) != 0 ? " dropped" : " -") : " " + image);
+				}
+			}
+			if( record ) {
+				matches.add(description.toString());
+			}
+		}
+
+		@Override
+		public void onImageDiscarded(int reader, Long image) {
+			n_discarded++;
+			if( record ) {
+				discarded.add(image);
+			}
+		}
+	}
+
+	@Test
+	public void testTimestampMatcher() {
+		Log.d(TAG, "testTimestampMatcher");
+
+		MatchRecorder recorder = new MatchRecorder();
+		TimestampMatcher<String, Long> matcher = new TimestampMatcher<>(2, 4, 8, 1, recorder);
+
+		// result first
+		matcher.offerResult(100, 3, "r100");
+		matcher.offerImage(0, 100, 100L);
+		assertEquals(0, recorder.matches.size());
+		matcher.offerImage(1, 100, 100L);
+		// images first
+		matcher.offerImage(0, 200, 200L);
+		matcher.offerImage(1, 200, 200L);
+		matcher.offerResult(200, 3, "r200");
+		// single target
+		matcher.offerImage(1, 250, 250L);
+		matcher.offerResult(250, 2, "r250");
+		assertEquals(Arrays.asList("r100 100 100", "r200 200 200", "r250 - 250"), recorder.matches);
+		assertEquals(3, matcher.getMatchedCount());
+
+		// image 300 dropped on reader 1, found by the newer image 400
+		matcher.offerResult(300, 3, "r300");
+		matcher.offerImage(0, 300, 300L);
+		matcher.offerImage(1, 400, 400L);
+		assertEquals("r300 300 dropped", recorder.matches.get(3));
+		matcher.offerImage(0, 400, 400L);
+		matcher.offerResult(400, 3, "r400");
+		assertEquals("r400 400 400", recorder.matches.get(4));
+		assertEquals(1, matcher.getPartialCount());
+		assertEquals(1, matcher.getDroppedImageCount());
+
+		// result 500 dropped, its images are orphaned by the result 600
+		matcher.offerImage(0, 500, 500L);
+		matcher.offerImage(1, 500, 500L);
+		matcher.offerResult(600, 3, "r600");
+		assertEquals(Arrays.asList(500L, 500L), recorder.discarded);
+		assertEquals(2, matcher.getOrphanedImageCount());
+		matcher.offerImage(0, 600, 600L);
+		matcher.offerImage(1, 600, 600L);
+		assertEquals("r600 600 600", recorder.matches.get(5));
+
+		// duplicate result
+		matcher.offerResult(700, 1, "r700");
+		matcher.offerResult(700, 1, "r700");
+		assertEquals(1, matcher.getDroppedResultCount());
+
+		// close releases pending images and rejects new ones
+		matcher.offerImage(1, 800, 800L);
+		matcher.close();
+		assertEquals(Arrays.asList(500L, 500L, 800L), recorder.discarded);
+		assertFalse(matcher.offerImage(0, 900, 900L));
+		assertFalse(matcher.offerResult(900, 1, "r900"));
+		assertEquals(6, recorder.matches.size());
+
+		// with a reorder window of 2, results may swap places
+		recorder = new MatchRecorder();
+		matcher = new TimestampMatcher<>(2, 4, 8, 2, recorder);
+		matcher.offerImage(0, 100, 100L);
+		matcher.offerImage(0, 200, 200L);
+		matcher.offerResult(200, 1, "r200");
+		matcher.offerResult(100, 1, "r100");
+		assertEquals(Arrays.asList("r200 200 -", "r100 100 -"), recorder.matches);
+		assertEquals(0, recorder.discarded.size());
+		// with a window of 1 the first image would be taken as orphaned
+		recorder = new MatchRecorder();
+		matcher = new TimestampMatcher<>(2, 4, 8, 1, recorder);
+		matcher.offerImage(0, 100, 100L);
+		matcher.offerImage(0, 200, 200L);
+		matcher.offerResult(200, 1, "r200");
+		matcher.offerResult(100, 1, "r100");
+		assertEquals(Arrays.asList("r200 200 -", "r100 dropped -"), recorder.matches);
+		assertEquals(Arrays.asList(100L), recorder.discarded);
+	}
+
+	@Test
+	public void testTimestampMatcherBenchmark() throws InterruptedException {
+		Log.d(TAG, "testTimestampMatcherBenchmark");
+
+		// synthetic 30 fps streams for 2 readers, with dropped images and results and swapped results
+		final int n_frames = 200000;
+		final long frame_ns = 33333333;
+		final Long [] timestamps = new Long[n_frames];
+		final boolean [][] image_dropped = new boolean[2][n_frames];
+		final boolean [] result_dropped = new boolean[n_frames];
+		final int [] result_order = new int[n_frames];
+		Random random = new Random(0);
+		long expected_matched = 0, expected_partial = 0, expected_orphaned = 0;
+		for(int i=0;i<n_frames;i++) {
+			timestamps[i] = 1000000000L + i * frame_ns;
+			image_dropped[0][i] = random.nextInt(100) < 2;
+			image_dropped[1][i] = random.nextInt(100) < 2;
+			result_dropped[i] = random.nextInt(100) < 2;
+			result_order[i] = i;
+			if( i > 0 && result_order[i-1] == i-1 && random.nextInt(100) < 5 ) {
+				result_order[i-1] = i;
+				result_order[i] = i-1;
+			}
+			if( !result_dropped[i] ) {
+				if( image_dropped[0][i] || image_dropped[1][i] )
+					expected_partial++;
+				else
+					expected_matched++;
+			}
+			else {
+				expected_orphaned += (image_dropped[0][i] ? 0 : 1) + (image_dropped[1][i] ? 0 : 1);
+			}
+		}
+
+		// single threaded: exact accounting, and no allocation once warmed up
+		final String result = "result";
+		for(int i=0;i<3;i++) {
+			MatchRecorder warmup = new MatchRecorder();
+			warmup.record = false;
+			feedTimestampMatcher(new TimestampMatcher<>(2, 8, 16, 2, warmup), timestamps, image_dropped, result_dropped, result_order, result);
+		}
+		MatchRecorder recorder = new MatchRecorder();
+		recorder.record = false;
+		TimestampMatcher<String, Long> matcher = new TimestampMatcher<>(2, 8, 16, 2, recorder);
+		long start_bytes = allocatedBytes();
+		long start_time = System.nanoTime();
+		feedTimestampMatcher(matcher, timestamps, image_dropped, result_dropped, result_order, result);
+		long single_time = System.nanoTime() - start_time;
+		long single_bytes = allocatedBytes() - start_bytes;
+		matcher.close();
+		Log.d(TAG, "single thread: " + (single_time / (double)n_frames) + " ns/frame, " + (single_bytes / (double)n_frames) + " bytes/frame");
+		Log.d(TAG, "matched " + matcher.getMatchedCount() + " partial " + matcher.getPartialCount() + " orphaned " + matcher.getOrphanedImageCount() + " dropped images " + matcher.getDroppedImageCount());
+		final long n_images = 2L * n_frames - countTrue(image_dropped[0]) - countTrue(image_dropped[1]);
+		assertEquals(expected_matched, matcher.getMatchedCount());
+		assertEquals(expected_partial, matcher.getPartialCount());
+		assertEquals(0, matcher.getDroppedResultCount());
+		// the last orphans may only be released by close()
+		assertTrue(matcher.getOrphanedImageCount() <= expected_orphaned);
+		assertTrue(matcher.getOrphanedImageCount() >= expected_orphaned - 4);
+		assertEquals(n_images, recorder.n_matched_images + recorder.n_discarded);
+		assertTrue(single_bytes < n_frames);
+
+		// one producer thread per reader and one for results, each at most a few frames ahead of
+		// the others as with a camera; every image must come back exactly once
+		recorder = new MatchRecorder();
+		recorder.record = false;
+		final TimestampMatcher<String, Long> concurrent_matcher = new TimestampMatcher<>(2, 8, 16, 2, recorder);
+		final AtomicIntegerArray progress = new AtomicIntegerArray(3);
+		final int max_skew = 2;
+		final AtomicInteger n_rejected = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread [] producers = new Thread[3];
+		for(int t=0;t<3;t++) {
+			final int producer = t;
+			producers[t] = new Thread(() -> {
+				try {
+					start.await();
+				}
+				catch(InterruptedException e) {
+					return;
+				}
+				for(int i=0;i<n_frames;i++) {
+					while( i > Math.min(progress.get(0), Math.min(progress.get(1), progress.get(2))) + max_skew ) {
+						Thread.yield();
+					}
+					if( producer < 2 ) {
+						if( !image_dropped[producer][i] && !concurrent_matcher.offerImage(producer, timestamps[i], timestamps[i]) )
+							n_rejected.incrementAndGet();
+					}
+					else {
+						int r = result_order[i];
+						if( !result_dropped[r] )
+							concurrent_matcher.offerResult(timestamps[r], 3, result);
+					}
+					progress.set(producer, i + 1);
+				}
+			});
+			producers[t].start();
+		}
+		start_time = System.nanoTime();
+		start.countDown();
+		for(Thread producer : producers) {
+			producer.join();
+		}
+		long concurrent_time = System.nanoTime() - start_time;
+		concurrent_matcher.close();
+		Log.d(TAG, "3 producer threads: " + (concurrent_time / (double)n_frames) + " ns/frame");
+		Log.d(TAG, "matched " + concurrent_matcher.getMatchedCount() + " partial " + concurrent_matcher.getPartialCount() + " orphaned " + concurrent_matcher.getOrphanedImageCount() + " rejected " + n_rejected.get());
+		assertEquals(n_images, recorder.n_matched_images + recorder.n_discarded + n_rejected.get());
+		assertEquals(n_frames - countTrue(result_dropped) - concurrent_matcher.getDroppedResultCount(), recorder.n_matches);
+		// results may now lag their images by more than the reorder window, but most still match
+		assertTrue(concurrent_matcher.getMatchedCount() > expected_matched / 2);
+	}
+
+	@Test
+	public void testSyncMetrics() {
+		Log.d(TAG, "testSyncMetrics");
+
+		assertEquals(0, RollingHistogram.bucketOf(999));
+		assertEquals(1, RollingHistogram.bucketOf(1000));
+		assertEquals(11, RollingHistogram.bucketOf(1500000)); // 1500 us in [1024, 2048)
+		assertEquals(RollingHistogram.BUCKET_COUNT - 1, RollingHistogram.bucketOf(Long.MAX_VALUE));
+		assertEquals(2048000, RollingHistogram.bucketUpperBoundNs(11));
+
+		final long window_ns = 1000000000L;
+		RollingHistogram histogram = new RollingHistogram(window_ns);
+		assertEquals(0, histogram.getPercentileNs(0.5));
+		long now_ns = 0;
+		for(int i=0;i<90;i++) {
+			histogram.record(1500000, now_ns); // 1.5 ms
+		}
+		for(int i=0;i<10;i++) {
+			histogram.record(40000000, now_ns); // 40 ms
+		}
+		assertEquals(100, histogram.getCount());
+		assertEquals(2048000, histogram.getPercentileNs(0.5));
+		assertEquals(65536000, histogram.getPercentileNs(0.95));
+		// the previous window is still counted, then rolls off
+		now_ns += window_ns;
+		histogram.record(1500000, now_ns);
+		assertEquals(101, histogram.getCount());
+		now_ns += window_ns;
+		histogram.record(1500000, now_ns);
+		assertEquals(2, histogram.getCount());
+		now_ns += 5 * window_ns;
+		histogram.record(40000000, now_ns);
+		assertEquals(1, histogram.getCount());
+		assertEquals(65536000, histogram.getPercentileNs(0.5));
+
+		// per reader counters from the matcher
+		SyncMetrics metrics = new SyncMetrics(2, window_ns);
+		MatchRecorder recorder = new MatchRecorder();
+		TimestampMatcher<String, Long> matcher = new TimestampMatcher<>(2, 4, 8, 1, recorder, metrics);
+		assertSame(metrics, matcher.getMetrics());
+		matcher.offerImage(0, 100, 100L);
+		matcher.offerImage(1, 100, 100L);
+		matcher.offerResult(100, 3, "r100");
+		// image 200 dropped on reader 1
+		matcher.offerResult(200, 3, "r200");
+		matcher.offerImage(0, 200, 200L);
+		matcher.offerImage(1, 300, 300L);
+		// result 300 dropped, result 400 duplicated
+		matcher.offerImage(0, 300, 300L);
+		matcher.offerResult(400, 3, "r400");
+		matcher.offerResult(400, 3, "r400");
+		matcher.offerImage(0, 400, 400L);
+		matcher.offerImage(1, 400, 400L);
+		assertEquals(2, metrics.getMatchedResults());
+		assertEquals(1, metrics.getPartialResults());
+		assertEquals(1, metrics.getDroppedResults());
+		assertEquals(3, metrics.getMatchedImages(0));
+		assertEquals(2, metrics.getMatchedImages(1));
+		assertEquals(0, metrics.getDroppedImages(0));
+		assertEquals(1, metrics.getDroppedImages(1));
+		assertEquals(1, metrics.getOrphanedImages(0));
+		assertEquals(1, metrics.getOrphanedImages(1));
+		assertEquals(1, metrics.getPendingImagesHighWater(0));
+		assertEquals(1, metrics.getPendingResultsHighWater());
+		assertEquals(3, metrics.getMatchLatency(0).getCount());
+		assertEquals(2, metrics.getMatchLatency(1).getCount());
+		String text = metrics.toString();
+		Log.d(TAG, text);
+		assertEquals(3, text.split("\n").length);
+		assertTrue(text.startsWith("sync: 2 ok, 1 partial, 1 results lost"));
+	}
+
+	private static void feedTimestampMatcher(TimestampMatcher<String, Long> matcher, Long [] timestamps, boolean [][] image_dropped, boolean [] result_dropped, int [] result_order, String result) {
+		for(int i=0;i<timestamps.length;i++) {
+			for(int k=0;k<2;k++) {
+				if( !image_dropped[k][i] )
+					matcher.offerImage(k, timestamps[i], timestamps[i]);
+			}
+			int r = result_order[i];
+			if( !result_dropped[r] )
+				matcher.offerResult(timestamps[r], 3, result);
+		}
+	}
+
+	private static int countTrue(boolean [] values) {
+		int count = 0;
+		for(boolean value : values) {
+			if( value )
+				count++;
+		}
+		return count;
+	}
+
+	/** Feeds frames of the given period with gaussian jitter, skipping frames with the given probability. Returns the frames fed until convergence, or -1. */
+	private static int feedFramePeriodEstimator(FramePeriodEstimator estimator, long period_ns, double jitter_ns, double skip_probability, int n_frames, Random random) {
+		int converged_after = -1;
+		long frame_start_ns = 1000000000L;
+		for(int i=0;i<n_frames;i++) {
+			frame_start_ns += period_ns;
+			if( random.nextDouble() < skip_probability )
+				continue;
+			estimator.onFrameTimestamp(frame_start_ns + Math.round(random.nextGaussian() * jitter_ns));
+			if( converged_after == -1 && estimator.isConverged() )
+				converged_after = i + 1;
+		}
+		return converged_after;
+	}
+
+	@Test
+	public void testFramePeriodEstimator() throws InterruptedException {
+		Log.d(TAG, "testFramePeriodEstimator");
+
+		final long period_ns = 33333333;
+		Random random = new Random(0);
+
+		// clean stream, converged as soon as there are enough samples
+		FramePeriodEstimator estimator = new FramePeriodEstimator(64, 10, 20000);
+		assertEquals(0, estimator.getPeriodNs());
+		assertFalse(estimator.isConverged());
+		assertFalse(estimator.hasMinSamples());
+		assertEquals(11, feedFramePeriodEstimator(estimator, period_ns, 0.0, 0.0, 30, random));
+		assertEquals(period_ns, estimator.getPeriodNs());
+		assertEquals(0, estimator.getSkippedFrames());
+
+		// jittered stream
+		estimator.reset();
+		assertFalse(estimator.isConverged());
+		int converged_after = feedFramePeriodEstimator(estimator, period_ns, 50000.0, 0.0, 30, random);
+		Log.d(TAG, "jittered: converged after " + converged_after + " frames, period " + estimator.getPeriodNs() + " +/- " + estimator.getStandardErrorNs());
+		assertTrue(converged_after > 0 && converged_after <= 30);
+		assertEquals(period_ns, estimator.getPeriodNs(), 20000);
+
+		// jittered stream with skipped frames, converging on the period rather than the mean delta
+		estimator.reset();
+		converged_after = feedFramePeriodEstimator(estimator, period_ns, 50000.0, 0.2, 30, random);
+		Log.d(TAG, "skipped frames: converged after " + converged_after + " frames, period " + estimator.getPeriodNs() + " +/- " + estimator.getStandardErrorNs() + ", " + estimator.getSkippedFrames() + " skipped");
+		assertTrue(converged_after > 0 && converged_after <= 30);
+		assertEquals(period_ns, estimator.getPeriodNs(), 20000);
+		assertTrue(estimator.getSkippedFrames() > 0);
+		// long run, the estimate tightens
+		feedFramePeriodEstimator(estimator, period_ns, 50000.0, 0.2, 1000, random);
+		assertEquals(period_ns, estimator.getPeriodNs(), 10000);
+		assertTrue(estimator.isConverged());
+
+		// a glitch and a repeated timestamp are ignored
+		estimator.reset();
+		long timestamp_ns = 0;
+		for(int i=0;i<20;i++) {
+			timestamp_ns += i == 10 ? period_ns / 3 : period_ns;
+			estimator.onFrameTimestamp(timestamp_ns);
+			if( i == 5 )
+				estimator.onFrameTimestamp(timestamp_ns);
+		}
+		assertEquals(period_ns, estimator.getPeriodNs());
+		assertEquals(18, estimator.getInlierCount());
+
+		// too much jitter never converges, but the estimate can still be used
+		estimator.reset();
+		assertFalse(estimator.hasMinSamples());
+		assertEquals(-1, feedFramePeriodEstimator(estimator, period_ns, 2000000.0, 0.0, 30, random));
+		assertFalse(estimator.awaitConvergence(10));
+		assertTrue(estimator.hasMinSamples());
+		assertEquals(period_ns, estimator.getPeriodNs(), 1000000);
+
+		// waiting for convergence from another thread
+		estimator.reset();
+		final FramePeriodEstimator shared_estimator = estimator;
+		Thread camera = new Thread(() -> feedFramePeriodEstimator(shared_estimator, period_ns, 50000.0, 0.0, 30, new Random(1)));
+		camera.start();
+		assertTrue(estimator.awaitConvergence(10000));
+		camera.join();
+	}
+
+	// returns the frames the alignment took, or -1 if not aligned
+	private static int runClosedLoopPhaseAligner(ClosedLoopPhaseAligner aligner, FrameTimingSimulator simulator, int max_frames) {
+		assertTrue(aligner.start());
+		for(int i=0;i<max_frames;i++) {
+			aligner.onFrameTimestamp(simulator.nextFrameTimestampNs());
+			if( aligner.getState() == ClosedLoopPhaseAligner.State.IDLE )
+				return aligner.isAligned() ? i + 1 : -1;
+		}
+		aligner.stop();
+		return -1;
+	}
+
+	// emulates the previous alignment, inserting a frame every settle delay for at most 5
+	// iterations; returns the frames it took, or -1 if not aligned
+	private static int runFixedDelayPhaseAligner(PhaseConfig config, FrameTimingSimulator simulator, int settle_frames) {
+		PhaseAligner aligner = new PhaseAligner(config);
+		int frames = 0;
+		for(int iteration=0;;iteration++) {
+			PhaseResponse response = aligner.passTimestamp(simulator.nextFrameTimestampNs());
+			frames++;
+			if( response.isAligned() )
+				return frames;
+			if( iteration == 5 )
+				return -1;
+			simulator.injectFrame(response.exposureTimeToShiftNs());
+			for(int i=0;i<settle_frames;i++) {
+				simulator.nextFrameTimestampNs();
+				frames++;
+			}
+		}
+	}
+
+	@Test
+	public void testClosedLoopPhaseAligner() {
+		Log.d(TAG, "testClosedLoopPhaseAligner");
+
+		final long period_ns = 33333271;
+		final long threshold_ns = 200000;
+		final long true_overhead_ns = 1000000;
+		// config from a similar device, with the overhead off by 0.8 ms
+		PhaseConfig config = PhaseConfig.create(period_ns, 15000000, threshold_ns, 200000, 33370000);
+
+		// exact timing, and the learned model matches the simulated device
+		FrameTimingSimulator simulator = new FrameTimingSimulator(period_ns, 2.0, true_overhead_ns, 0.0, 0.0, 2, 0);
+		ClosedLoopPhaseAligner aligner = new ClosedLoopPhaseAligner(config, simulator, 10);
+		assertEquals(ClosedLoopPhaseAligner.State.IDLE, aligner.getState());
+		int frames = runClosedLoopPhaseAligner(aligner, simulator, 1000);
+		Log.d(TAG, "exact: aligned after " + frames + " frames, " + aligner.getCorrections() + " corrections, gain " + aligner.getGain() + ", overhead " + aligner.getOverheadNs());
+		assertTrue(frames > 0);
+		assertTrue(Math.abs(aligner.getLastErrorNs()) < threshold_ns);
+		assertEquals(15000000, simulator.getPhaseNs(), threshold_ns);
+		assertEquals(simulator.getInjectedFrames(), aligner.getCorrections());
+		assertEquals(true_overhead_ns, aligner.getOverheadNs(), 100000);
+		// already aligned, nothing to do
+		frames = runClosedLoopPhaseAligner(aligner, simulator, 1000);
+		assertEquals(ClosedLoopPhaseAligner.BASELINE_FRAMES, frames);
+		assertEquals(0, aligner.getCorrections());
+
+		// jittered timing, the learned model is reused for the next alignments
+		simulator = new FrameTimingSimulator(period_ns, 2.0, true_overhead_ns, 30000.0, 10000.0, 2, 1);
+		aligner = new ClosedLoopPhaseAligner(config, simulator, 10);
+		int first_corrections = -1;
+		int total_corrections = 0;
+		for(int i=0;i<10;i++) {
+			// move away from the goal phase
+			simulator.injectFrame(period_ns + (i + 1) * period_ns / 25);
+			frames = runClosedLoopPhaseAligner(aligner, simulator, 1000);
+			Log.d(TAG, "jittered " + i + ": aligned after " + frames + " frames, " + aligner.getCorrections() + " corrections, overhead " + aligner.getOverheadNs());
+			assertTrue(frames > 0);
+			assertEquals(15000000, simulator.getPhaseNs(), 2 * threshold_ns);
+			if( i == 0 )
+				first_corrections = aligner.getCorrections();
+			else
+				total_corrections += aligner.getCorrections();
+		}
+		assertTrue(total_corrections <= 9 * first_corrections);
+		assertEquals(true_overhead_ns, aligner.getOverheadNs(), 200000);
+
+		// a camera ignoring the injected frames, giving up after the maximum corrections
+		simulator = new FrameTimingSimulator(period_ns, 0.0, true_overhead_ns, 0.0, 0.0, 2, 2);
+		assertTrue(Math.abs(15000000 - simulator.getPhaseNs()) > threshold_ns);
+		aligner = new ClosedLoopPhaseAligner(config, simulator, 4);
+		assertEquals(-1, runClosedLoopPhaseAligner(aligner, simulator, 1000));
+		assertEquals(4, aligner.getCorrections());
+		assertEquals(ClosedLoopPhaseAligner.State.IDLE, aligner.getState());
+	}
+
+	@Test
+	public void testClosedLoopPhaseAlignerBenchmark() {
+		Log.d(TAG, "testClosedLoopPhaseAlignerBenchmark");
+
+		// time to align and final error against fixed delay alignment, on simulated devices whose
+		// overhead differs from the config
+
+		final long period_ns = 33333271;
+		final long threshold_ns = 200000;
+		// 2000 ms at 30 fps
+		final int settle_frames = 60;
+		final int n_runs = 50;
+		PhaseConfig config = PhaseConfig.create(period_ns, 15000000, threshold_ns, 200000, 33370000);
+		Random random = new Random(0);
+
+		int closed_aligned = 0;
+		long closed_frames = 0;
+		double closed_error_ns = 0.0;
+		int fixed_aligned = 0;
+		long fixed_frames = 0;
+		double fixed_error_ns = 0.0;
+		for(int run=0;run<n_runs;run++) {
+			long true_overhead_ns = 200000 + random.nextInt(1000000);
+			long seed = random.nextLong();
+
+			FrameTimingSimulator simulator = new FrameTimingSimulator(period_ns, 2.0, true_overhead_ns, 30000.0, 10000.0, 2, seed);
+			ClosedLoopPhaseAligner aligner = new ClosedLoopPhaseAligner(config, simulator, 10);
+			int frames = runClosedLoopPhaseAligner(aligner, simulator, 10 * settle_frames);
+			if( frames > 0 ) {
+				closed_aligned++;
+				closed_frames += frames;
+			}
+			closed_error_ns += Math.abs(15000000 - simulator.getPhaseNs());
+
+			simulator = new FrameTimingSimulator(period_ns, 2.0, true_overhead_ns, 30000.0, 10000.0, 2, seed);
+			frames = runFixedDelayPhaseAligner(config, simulator, settle_frames);
+			if( frames > 0 ) {
+				fixed_aligned++;
+				fixed_frames += frames;
+			}
+			fixed_error_ns += Math.abs(15000000 - simulator.getPhaseNs());
+		}
+		Log.d(TAG, "closed loop: " + closed_aligned + "/" + n_runs + " aligned, mean " + (closed_frames / Math.max(1, closed_aligned)) + " frames, mean error " + (closed_error_ns / n_runs * 1e-6) + " ms");
+		Log.d(TAG, "fixed delay: " + fixed_aligned + "/" + n_runs + " aligned, mean " + (fixed_frames / Math.max(1, fixed_aligned)) + " frames, mean error " + (fixed_error_ns / n_runs * 1e-6) + " ms");
+		assertEquals(n_runs, closed_aligned);
+		assertTrue(closed_aligned >= fixed_aligned);
+		assertTrue(closed_error_ns <= fixed_error_ns);
+		if( fixed_aligned > 0 )
+			assertTrue(closed_frames / closed_aligned < fixed_frames / fixed_aligned);
+	}
+
+	@Test
+	public void testPhaseDriftTracker() {
+		Log.d(TAG, "testPhaseDriftTracker");
+
+		final long period_ns = 33333333;
+		PhaseDriftTracker tracker = new PhaseDriftTracker(90, 30);
+		Random random = new Random(0);
+		long timestamp_ns = 1000000000L;
+		for(int i=0;i<29;i++) {
+			tracker.onPhaseError(timestamp_ns, 1000 - i * 1000 + Math.round(random.nextGaussian() * 20000.0));
+			timestamp_ns += period_ns;
+		}
+		assertFalse(tracker.hasEstimate());
+		assertEquals(0.0, tracker.getDriftRateNsPerSecond(), 0.0);
+		// -1000 ns per frame is -30 us per second
+		for(int i=29;i<300;i++) {
+			tracker.onPhaseError(timestamp_ns, 1000 - i * 1000 + Math.round(random.nextGaussian() * 20000.0));
+			timestamp_ns += period_ns;
+		}
+		assertTrue(tracker.hasEstimate());
+		assertEquals(90, tracker.getSampleCount());
+		Log.d(TAG, "drift " + tracker.getDriftRateNsPerSecond() + " ns/s, residual " + tracker.getResidualNs());
+		assertEquals(-30000.0, tracker.getDriftRateNsPerSecond(), 5000.0);
+		assertEquals(20000, tracker.getResidualNs(), 5000);
+		assertEquals(1000 - 300 * 1000, tracker.predictErrorNs(timestamp_ns), 10000);
+
+		tracker.reset();
+		assertFalse(tracker.hasEstimate());
+		assertEquals(0, tracker.getSampleCount());
+	}
+
+	@Test
+	public void testPhaseLockMaintainer() {
+		Log.d(TAG, "testPhaseLockMaintainer");
+
+		final long period_ns = 33333271;
+		final long threshold_ns = 500000;
+		PhaseConfig config = PhaseConfig.create(period_ns, 15000000, threshold_ns, 1000000, 33370000);
+
+		for(int sign=-1;sign<=1;sign+=2) {
+			// drifting 10 us per second, so out of the threshold within 50 s
+			FrameTimingSimulator simulator = new FrameTimingSimulator(period_ns, 2.0, 1000000, 30000.0, 10000.0, 2, 5);
+			simulator.setDriftNsPerFrame(sign * 10000.0 / 30);
+			ClosedLoopPhaseAligner aligner = new ClosedLoopPhaseAligner(config, simulator, 10);
+			PhaseLockMaintainer maintainer = new PhaseLockMaintainer(config, aligner, new PhaseDriftTracker(300, 60), 0.5, 500000000L);
+			// goal of the leader, rather than the config
+			maintainer.setGoalPhaseNs(20000000);
+			maintainer.setEnabled(true);
+			assertTrue(maintainer.startAlign());
+			long max_error_ns = 0;
+			for(int i=0;i<30*120;i++) {
+				maintainer.onFrameTimestamp(simulator.nextFrameTimestampNs());
+				if( i > 60 && aligner.getState() == ClosedLoopPhaseAligner.State.IDLE )
+					max_error_ns = Math.max(max_error_ns, Math.abs(20000000 - simulator.getPhaseNs()));
+			}
+			Log.d(TAG, "drift " + sign + ": " + maintainer.getMaintenanceCorrections() + " relocks, max error " + max_error_ns + ", drift estimate " + maintainer.getDriftRateNsPerSecond());
+			// without maintenance, the error would have reached 1.2 ms
+			assertTrue(max_error_ns < threshold_ns);
+			assertTrue(maintainer.getMaintenanceCorrections() > 0);
+			assertTrue(maintainer.getMaintenanceCorrections() < 20);
+			assertEquals(-sign * 10000.0, maintainer.getDriftRateNsPerSecond(), 5000.0);
+		}
+
+		// no drift, no corrections, and disabled maintenance never corrects
+		FrameTimingSimulator simulator = new FrameTimingSimulator(period_ns, 2.0, 1000000, 30000.0, 10000.0, 2, 6);
+		ClosedLoopPhaseAligner aligner = new ClosedLoopPhaseAligner(config, simulator, 10);
+		PhaseLockMaintainer maintainer = new PhaseLockMaintainer(config, aligner, new PhaseDriftTracker(300, 60), 0.5, 500000000L);
+		maintainer.setEnabled(true);
+		assertTrue(maintainer.startAlign());
+		for(int i=0;i<30*60;i++)
+			maintainer.onFrameTimestamp(simulator.nextFrameTimestampNs());
+		assertEquals(0, maintainer.getMaintenanceCorrections());
+		simulator.setDriftNsPerFrame(1000.0);
+		maintainer.setEnabled(false);
+		for(int i=0;i<30*60;i++)
+			maintainer.onFrameTimestamp(simulator.nextFrameTimestampNs());
+		assertEquals(0, maintainer.getMaintenanceCorrections());
+		assertEquals(ClosedLoopPhaseAligner.State.IDLE, aligner.getState());
+	}
+
+	@Test
+	public void testPhaseCalibrator() {
+		Log.d(TAG, "testPhaseCalibrator");
+
+		final long period_ns = 33333271;
+		// only the goal and threshold are kept from the config
+		PhaseConfig base = PhaseConfig.create(30000000, 15000000, 200000, 0, 0);
+
+		for(long true_overhead_ns : new long[]{200000, 1000000, 4000000}) {
+			FrameTimingSimulator simulator = new FrameTimingSimulator(period_ns, 2.0, true_overhead_ns, 30000.0, 10000.0, 2, true_overhead_ns);
+			PhaseCalibrator calibrator = new PhaseCalibrator(base, simulator, 16);
+			assertEquals(PhaseCalibrator.State.IDLE, calibrator.getState());
+			assertTrue(calibrator.start());
+			assertFalse(calibrator.start());
+			int frames = 0;
+			while( calibrator.getState() != PhaseCalibrator.State.DONE && calibrator.getState() != PhaseCalibrator.State.FAILED && frames < 2000 ) {
+				calibrator.onFrameTimestamp(simulator.nextFrameTimestampNs());
+				frames++;
+			}
+			Log.d(TAG, "overhead " + true_overhead_ns + ": " + calibrator.getState() + " after " + frames + " frames, " + calibrator.getFit() + ", " + calibrator.getResult());
+			assertEquals(PhaseCalibrator.State.DONE, calibrator.getState());
+			assertEquals(16, calibrator.getSteps());
+			assertEquals(16, simulator.getInjectedFrames());
+			// well under a minute at 30 fps
+			assertTrue(frames < 30 * 60);
+			PhaseConfig config = calibrator.getResult();
+			assertEquals(period_ns, config.periodNs(), 1000);
+			assertEquals(15000000, config.goalPhaseNs());
+			assertEquals(200000, config.alignThresholdNs());
+			assertEquals(true_overhead_ns, config.overheadNs(), 100000);
+			assertEquals(period_ns - true_overhead_ns, config.minExposureNs(), 150000);
+			assertEquals(2.0, calibrator.getFit().gain, 0.05);
+		}
+
+		// a camera ignoring injected frames cannot be calibrated
+		FrameTimingSimulator simulator = new FrameTimingSimulator(period_ns, 0.0, 1000000, 0.0, 0.0, 2, 0);
+		PhaseCalibrator calibrator = new PhaseCalibrator(base, simulator, 16);
+		assertTrue(calibrator.start());
+		for(int i=0;i<2000 && calibrator.getState() != PhaseCalibrator.State.FAILED;i++)
+			calibrator.onFrameTimestamp(simulator.nextFrameTimestampNs());
+		assertEquals(PhaseCalibrator.State.FAILED, calibrator.getState());
+		assertNull(calibrator.getResult());
+	}
+
+	@Test
+	public void testPhaseCalibratorFit() {
+		Log.d(TAG, "testPhaseCalibratorFit");
+
+		// trace of a 30 fps device with 2 ms overhead: no shift up to 31.3 ms, then 2 ns per ns,
+		// wrapping past the period, with 30 us of jitter
+		final long period_ns = 33333333;
+		long [] exposures_ns = {16666667, 20000000, 23333333, 26666667, 30000000, 33333333, 36666667, 40000000, 43333333, 46666667, 50000000};
+		long [] shifts_ns = {0, 33320000, 12000, 0, 0, 4021000, 10690000, 17340000, 24010000, 30695000, 4025000};
+		PhaseCalibrator.Fit fit = PhaseCalibrator.fit(period_ns, exposures_ns, shifts_ns, exposures_ns.length, 100000);
+		assertNotNull(fit);
+		Log.d(TAG, "fit: " + fit);
+		assertEquals(6, fit.points);
+		assertEquals(2.0, fit.gain, 0.01);
+		assertEquals(2000000, fit.overheadNs, 20000);
+		assertEquals(period_ns - 2000000 + 50000, fit.minExposureNs, 20000);
+		assertTrue(fit.residualNs < 30000);
+		PhaseConfig config = fit.toConfig(PhaseConfig.create(0, 15000000, 100000, 0, 0), period_ns);
+		assertEquals(period_ns, config.periodNs());
+		assertEquals(fit.overheadNs, config.overheadNs());
+
+		// too few shifts
+		assertNull(PhaseCalibrator.fit(period_ns, exposures_ns, shifts_ns, 7, 100000));
+	}
+
+	@Test
+	public void testBleCommandFrame() {
+		Log.d(TAG, "testBleCommandFrame");
+
+		final byte [] iso_time = {2, 0, 0, 1, (byte)144, 0, 0, 0, 0, 1, 2, 3, 4};
+		final byte [] shutter = {32};
+		byte [] packet = new byte[BleCommandFrame.HEADER_SIZE + BleCommandFrame.recordSize(iso_time) + BleCommandFrame.recordSize(shutter)];
+		int offset = BleCommandFrame.writeHeader(packet, 255);
+		offset = BleCommandFrame.writeRecord(packet, offset, iso_time);
+		offset = BleCommandFrame.writeRecord(packet, offset, shutter);
+		assertEquals(packet.length, offset);
+		assertTrue(BleCommandFrame.isFrame(packet));
+		assertFalse(BleCommandFrame.isFrame(iso_time));
+		assertEquals(255, BleCommandFrame.getSequence(packet));
+
+		final List<byte []> records = new ArrayList<>();
+		int n_records = BleCommandFrame.decode(packet, new BleCommandFrame.RecordListener() {
+			@Override
+			public void onRecord(int command, byte[] packet, int offset, int length) {
+				// back to the legacy format
+				byte [] record = new byte[length+1];
+				record[0] = (byte)command;
+				System.arraycopy(packet, offset, record, 1, length);
+				records.add(record);
+			}
+		});
+		assertEquals(2, n_records);
+		assertArrayEquals(iso_time, records.get(0));
+		assertArrayEquals(shutter, records.get(1));
+
+		// truncated
+		records.clear();
+		assertEquals(-1, BleCommandFrame.decode(Arrays.copyOf(packet, packet.length-1), new BleCommandFrame.RecordListener() {
+			@Override
+			public void onRecord(int command, byte[] packet, int offset, int length) {
+				records.add(null);
+			}
+		}));
+		assertEquals(1, records.size());
+
+		BleCommandFrame.SequenceTracker tracker = new BleCommandFrame.SequenceTracker();
+		assertEquals(0, tracker.onSequence(254));
+		assertEquals(0, tracker.onSequence(255));
+		assertEquals(0, tracker.onSequence(0));
+		assertEquals(2, tracker.onSequence(3));
+		assertEquals(2, tracker.getLost());
+		tracker.reset();
+		assertEquals(0, tracker.onSequence(0));
+	}
+
+	@Test
+	public void testBleCommandChannel() {
+		Log.d(TAG, "testBleCommandChannel");
+
+		final byte [] focus_exp = {8};
+		final byte [] shutter = {32};
+		BleCommandChannel channel = new BleCommandChannel();
+
+		// legacy client: one command per packet, settings still coalesced
+		channel.putSetting(new byte[]{6, 0, 0, 0, 1});
+		channel.putSetting(new byte[]{6, 0, 0, 0, 2});
+		channel.putCommand(focus_exp);
+		long time_ms = 1000;
+		assertArrayEquals(new byte[]{6, 0, 0, 0, 2}, channel.nextPacket(time_ms));
+		// only one packet in flight
+		assertNull(channel.nextPacket(time_ms));
+		channel.onPacketSent(true);
+		assertArrayEquals(focus_exp, channel.nextPacket(time_ms));
+		channel.onPacketSent(true);
+		assertNull(channel.nextPacket(time_ms));
+		assertEquals(1, channel.getCoalescedCount());
+
+		// framed client: everything queued while a packet is in flight goes in the next one
+		channel.setFramed(true);
+		channel.putCommand(shutter);
+		byte [] packet = channel.nextPacket(time_ms);
+		assertEquals(0, BleCommandFrame.getSequence(packet));
+		for(int i=0;i<10;i++) {
+			channel.putSetting(new byte[]{2, 0, 0, 0, (byte)i, 0, 0, 0, 0, 0, 0, 0, (byte)i});
+			channel.putSetting(new byte[]{6, 0, 0, 0, (byte)i});
+		}
+		channel.putCommand(focus_exp);
+		// a setting after a command isn't coalesced with the one before, so the command sees the same state
+		channel.putSetting(new byte[]{6, 0, 0, 0, 20});
+		assertNull(channel.nextPacket(time_ms));
+		channel.onPacketSent(true);
+		assertEquals(4, channel.getPendingCount());
+
+		// doesn't fit the default MTU: the zoom and the command, in the next packet
+		packet = channel.nextPacket(time_ms);
+		assertEquals(BleCommandFrame.HEADER_SIZE + 14, packet.length);
+		assertEquals(1, BleCommandFrame.getSequence(packet));
+		channel.onPacketSent(true);
+		channel.setMtu(185);
+		packet = channel.nextPacket(time_ms);
+		assertEquals(2, BleCommandFrame.getSequence(packet));
+		final List<Integer> commands = new ArrayList<>();
+		BleCommandFrame.decode(packet, new BleCommandFrame.RecordListener() {
+			@Override
+			public void onRecord(int command, byte[] packet, int offset, int length) {
+				commands.add(command);
+				if( command == 6 )
+					assertEquals(commands.size() == 1 ? 9 : 20, packet[offset+3]);
+			}
+		});
+		assertEquals(Arrays.asList(6, 8, 6), commands);
+		channel.onPacketSent(true);
+
+		// a failed packet is sent again, unless a newer value is queued
+		channel.putSetting(new byte[]{10, 0, 0, 0, 0, 0, 0, 0, 1});
+		channel.nextPacket(time_ms);
+		channel.onPacketSent(false);
+		assertEquals(1, channel.getPendingCount());
+		// a packet never reported as sent times out
+		assertNotNull(channel.nextPacket(time_ms));
+		assertNull(channel.nextPacket(time_ms + BleCommandChannel.IN_FLIGHT_TIMEOUT_MS - 1));
+		packet = channel.nextPacket(time_ms + BleCommandChannel.IN_FLIGHT_TIMEOUT_MS);
+		assertNotNull(packet);
+		assertEquals(10, packet[BleCommandFrame.HEADER_SIZE]);
+		assertEquals(1, channel.getTimeoutCount());
+		channel.onPacketSent(true);
+
+		// resync queues the last value of every setting
+		channel.resync();
+		assertEquals(3, channel.getPendingCount());
+		while( channel.nextPacket(time_ms) != null ) {
+			channel.onPacketSent(true);
+		}
+
+		// a shutter time is a command: lost with a failed packet rather than sent late, and never resynced
+		channel.putCommand(BleCommandCodec.encodeServerTime(123456789L));
+		assertNotNull(channel.nextPacket(time_ms));
+		channel.onPacketSent(false);
+		assertEquals(0, channel.getPendingCount());
+		channel.resync();
+		assertEquals(3, channel.getPendingCount());
+		Log.d(TAG, "channel: " + channel);
+	}
+
+	@Test
+	public void testBleCommandCodec() {
+		Log.d(TAG, "testBleCommandCodec");
+
+		byte [] packet = BleCommandCodec.encodeIsoTime(1600, 33333333L);
+		assertEquals(13, packet.length);
+		assertEquals(BleCommandCodec.COMMAND_ISO_TIME, packet[0]);
+		assertEquals(1600, BleCommandCodec.getInt(packet, 1));
+		assertEquals(33333333L, BleCommandCodec.getLong(packet, 5));
+		// same bytes as the previous encoding
+		assertArrayEquals(new byte[]{2, 0, 0, 6, 64, 0, 0, 0, 0, 1, (byte)0xfc, (byte)0xa0, 0x55}, packet);
+
+		final long [] longs = {0, 1, -1, Long.MIN_VALUE, Long.MAX_VALUE, 0x00000000ffffffffL, 0xffffffff00000000L, 1234567890123456789L};
+		for(long value : longs) {
+			packet = BleCommandCodec.encodeServerTime(value);
+			assertEquals(value, BleCommandCodec.getLong(packet, 1));
+			// as decoded previously
+			assertEquals(value, new BigInteger(Arrays.copyOfRange(packet, 1, 9)).longValue());
+		}
+		final int [] ints = {0, 1, -1, 127, 128, 255, 256, Integer.MIN_VALUE, Integer.MAX_VALUE};
+		for(int value : ints) {
+			packet = BleCommandCodec.encodeZoom(value);
+			assertEquals(value, BleCommandCodec.getInt(packet, 1));
+			assertEquals(value, new BigInteger(Arrays.copyOfRange(packet, 1, 5)).intValue());
+		}
+		final float [] floats = {0.0f, -0.0f, 1.5f, -3.25f, Float.MIN_VALUE, Float.MAX_VALUE, Float.NaN};
+		for(float value : floats) {
+			packet = BleCommandCodec.encodeFocusRegion(value, -value);
+			assertEquals(Float.floatToIntBits(value), Float.floatToIntBits(BleCommandCodec.getFloat(packet, 1)));
+			assertEquals(Float.floatToIntBits(-value), Float.floatToIntBits(BleCommandCodec.getFloat(packet, 5)));
+			packet = BleCommandCodec.encodeFocusDistance(value);
+			assertEquals(Float.floatToIntBits(value), Float.floatToIntBits(BleCommandCodec.getFloat(packet, 1)));
+		}
+		assertEquals(BleCommandCodec.getPayloadSize(BleCommandCodec.COMMAND_SHUTTER) + 1, BleCommandCodec.encodeCommand(BleCommandCodec.COMMAND_SHUTTER).length);
+
+		// clock exchange
+		packet = BleCommandCodec.encodeTimePing(200);
+		assertEquals(2, packet.length);
+		assertEquals(200, packet[1] & 0xff);
+		packet = BleCommandCodec.encodeTriggerTime(-1234567890123L);
+		assertEquals(-1234567890123L, BleCommandCodec.getLong(packet, 1));
+		packet = BleCommandFrame.createTimeEcho(255, 987654321098765L, 1500000);
+		assertTrue(packet.length <= BleCommandChannel.DEFAULT_MTU - BleCommandChannel.ATT_HEADER_SIZE);
+		final long [] echo = new long[3];
+		assertEquals(1, BleCommandFrame.decode(packet, (command, bytes, offset, length) -> {
+			assertEquals(BleCommandFrame.REQUEST_TIME_ECHO, command);
+			assertEquals(BleCommandFrame.TIME_ECHO_SIZE, length);
+			echo[0] = bytes[offset] & 0xff;
+			echo[1] = BleCommandCodec.getLong(bytes, offset + 1);
+			echo[2] = BleCommandCodec.getInt(bytes, offset + 9);
+		}));
+		assertArrayEquals(new long[]{255, 987654321098765L, 1500000}, echo);
+
+		// dispatch, also from a framed packet
+		final long [] received = new long[3];
+		BleCommandCodec.Dispatcher dispatcher = new BleCommandCodec.Dispatcher();
+		dispatcher.setHandler(BleCommandCodec.COMMAND_ISO_TIME, (bytes, offset) -> {
+			received[0] = BleCommandCodec.getInt(bytes, offset);
+			received[1] = BleCommandCodec.getLong(bytes, offset + 4);
+		});
+		dispatcher.setHandler(BleCommandCodec.COMMAND_SHUTTER, (bytes, offset) -> received[2]++);
+		packet = BleCommandCodec.encodeIsoTime(100, -5);
+		assertTrue(dispatcher.dispatch(packet[0], packet, 1, packet.length - 1));
+		assertEquals(100, received[0]);
+		assertEquals(-5, received[1]);
+		// too short
+		assertFalse(dispatcher.dispatch(packet[0], packet, 1, packet.length - 2));
+		// no handler
+		assertFalse(dispatcher.dispatch(BleCommandCodec.COMMAND_ZOOM, packet, 1, 4));
+
+		byte [] iso_time = BleCommandCodec.encodeIsoTime(200, 1000);
+		byte [] shutter = BleCommandCodec.encodeCommand(BleCommandCodec.COMMAND_SHUTTER);
+		byte [] frame = new byte[BleCommandFrame.HEADER_SIZE + BleCommandFrame.recordSize(iso_time) + BleCommandFrame.recordSize(shutter)];
+		int offset = BleCommandFrame.writeHeader(frame, 0);
+		offset = BleCommandFrame.writeRecord(frame, offset, iso_time);
+		BleCommandFrame.writeRecord(frame, offset, shutter);
+		assertEquals(2, BleCommandFrame.decode(frame, dispatcher::dispatch));
+		assertEquals(200, received[0]);
+		assertEquals(1000, received[1]);
+		assertEquals(1, received[2]);
+	}
+
+	/** Decodes ISO and exposure time packets with the codec, against the previous BigInteger
+	 *  parsing, reporting time and allocation per packet.
+	 */
+	@Test
+	public void testBleCommandCodecBenchmark() {
+		Log.d(TAG, "testBleCommandCodecBenchmark");
+
+		final int n_packets = 100000;
+		final int n_warmup = 3;
+		byte [][] packets = new byte[256][];
+		Random random = new Random(0);
+		for(int i=0;i<packets.length;i++) {
+			packets[i] = BleCommandCodec.encodeIsoTime(random.nextInt(6400), random.nextLong());
+		}
+		final long [] sum = new long[1];
+		BleCommandCodec.Dispatcher dispatcher = new BleCommandCodec.Dispatcher();
+		dispatcher.setHandler(BleCommandCodec.COMMAND_ISO_TIME, (bytes, offset) -> sum[0] += BleCommandCodec.getInt(bytes, offset) + BleCommandCodec.getLong(bytes, offset + 4));
+
+		long legacy_time = 0, legacy_bytes = 0, codec_time = 0, codec_bytes = 0;
+		for(int run=0;run<n_warmup;run++) {
+			long checksum = 0;
+			long start_bytes = allocatedBytes();
+			long start_time = System.nanoTime();
+			for(int i=0;i<n_packets;i++) {
+				byte [] bytes = packets[i & 255];
+				checksum += new BigInteger(Arrays.copyOfRange(bytes, 1, 5)).intValue() + new BigInteger(Arrays.copyOfRange(bytes, 5, 13)).longValue();
+			}
+			legacy_time = (System.nanoTime() - start_time) / n_packets;
+			legacy_bytes = (allocatedBytes() - start_bytes) / n_packets;
+
+			sum[0] = 0;
+			start_bytes = allocatedBytes();
+			start_time = System.nanoTime();
+			for(int i=0;i<n_packets;i++) {
+				byte [] bytes = packets[i & 255];
+				dispatcher.dispatch(bytes[0], bytes, 1, bytes.length - 1);
+			}
+			codec_time = (System.nanoTime() - start_time) / n_packets;
+			codec_bytes = (allocatedBytes() - start_bytes) / n_packets;
+			assertEquals(checksum, sum[0]);
+		}
+
+		Log.d(TAG, "BigInteger: " + legacy_time + " ns/packet, " + legacy_bytes + " bytes/packet");
+		Log.d(TAG, "codec: " + codec_time + " ns/packet, " + codec_bytes + " bytes/packet");
+		// the previous parsing allocates two slices and two BigIntegers per packet, the codec nothing
+		assertTrue(legacy_bytes >= 64);
+		assertEquals(0, codec_bytes);
+	}
+
+	/** Runs clock exchanges every 500 ms over a simulated link for 30 s, and returns the error of
+	 *  the estimated offset, against the previous BLE sync, which takes the minimum one way time of
+	 *  10 pings 55 ms apart as offset: {estimator error, legacy error} in ns.
+	 */
+	private static long [] runBleClockEstimator(long connection_interval_ns, long seed) {
+		final long offset_ns = 123456789012L;
+		BleLinkSimulator link = new BleLinkSimulator(connection_interval_ns, 1000000, 500000, offset_ns, 20e-6, 0.05, seed);
+		BleClockEstimator estimator = new BleClockEstimator();
+		Random random = new Random(seed);
+		long time_ns = 1000000000L;
+		for(int i=0;i<60;i++) {
+			link.exchange(estimator, time_ns, 200000 + random.nextInt(2000000));
+			time_ns += 500000000L;
+		}
+		assertTrue(estimator.hasEstimate());
+		long error_ns = estimator.toClientTime(time_ns) - link.toClientTime(time_ns);
+
+		long min_diff_ns = Long.MAX_VALUE;
+		for(int i=0;i<10;i++) {
+			long received_ns = link.deliver(time_ns);
+			if( received_ns != -1 )
+				min_diff_ns = Math.min(min_diff_ns, link.toClientTime(received_ns) - time_ns);
+			time_ns += 55000000L;
+		}
+		long legacy_error_ns = min_diff_ns - link.getOffsetNs(time_ns);
+		Log.d(TAG, "connection interval " + connection_interval_ns / 1000000.0 + " ms: " + estimator +
+				", error " + error_ns / 1000000.0 + " ms, legacy error " + legacy_error_ns / 1000000.0 + " ms");
+		return new long[]{ error_ns, legacy_error_ns };
+	}
+
+	@Test
+	public void testBleClockEstimator() {
+		Log.d(TAG, "testBleClockEstimator");
+
+		final long [] connection_intervals_ns = {7500000L, 15000000L, 30000000L, 50000000L};
+		for(long connection_interval_ns : connection_intervals_ns) {
+			long max_error_ns = 0, max_legacy_error_ns = 0;
+			for(int seed=0;seed<20;seed++) {
+				long [] errors = runBleClockEstimator(connection_interval_ns, seed);
+				max_error_ns = Math.max(max_error_ns, Math.abs(errors[0]));
+				max_legacy_error_ns = Math.max(max_legacy_error_ns, Math.abs(errors[1]));
+			}
+			Log.d(TAG, "connection interval " + connection_interval_ns / 1000000.0 + " ms: max error " + max_error_ns / 1000000.0 +
+					" ms, legacy " + max_legacy_error_ns / 1000000.0 + " ms");
+			assertTrue(max_error_ns < 1000000L);
+			assertTrue(max_error_ns < max_legacy_error_ns);
+		}
+	}
+
+	@Test
+	public void testBleFanOutScheduler() {
+		Log.d(TAG, "testBleFanOutScheduler");
+
+		// a rig of four clients, at different connection intervals
+		final long [] connection_intervals_ns = {7500000L, 15000000L, 30000000L, 50000000L};
+		for(int seed=0;seed<10;seed++) {
+			Random random = new Random(seed);
+			BleFanOutScheduler<Integer> fan_out = new BleFanOutScheduler<>();
+			BleLinkSimulator [] links = new BleLinkSimulator[connection_intervals_ns.length];
+			for(int i=0;i<links.length;i++) {
+				links[i] = new BleLinkSimulator(connection_intervals_ns[i], 1000000, 500000, random.nextLong() >> 16, (random.nextDouble() - 0.5) * 100e-6, 0.05, seed * 10 + i);
+				fan_out.addDevice(i);
+			}
+			assertTrue(fan_out.schedule(0).isEmpty());
+
+			long time_ns = 1000000000L;
+			long max_error_ns = 0, max_spread_ns = 0, max_fire_now_spread_ns = 0;
+			for(int round=0;round<20;round++) {
+				for(int i=0;i<4;i++) {
+					for(int j=0;j<links.length;j++) {
+						links[j].exchange(fan_out, j, time_ns, 200000 + random.nextInt(2000000));
+					}
+					// not locked to the phase of the connection events
+					time_ns += 500000000L + random.nextInt(10000000);
+				}
+				if( round < 4 )
+					continue; // the estimates and latencies settle first
+
+				List<BleFanOutScheduler.Trigger<Integer>> triggers = fan_out.schedule(time_ns);
+				assertEquals(links.length, triggers.size());
+				// slowest first
+				for(int i=1;i<triggers.size();i++) {
+					assertTrue(fan_out.getLeadTimeNs(triggers.get(i-1).device) >= fan_out.getLeadTimeNs(triggers.get(i).device));
+				}
+				long min_capture_ns = Long.MAX_VALUE, max_capture_ns = Long.MIN_VALUE;
+				long min_receive_ns = Long.MAX_VALUE, max_receive_ns = Long.MIN_VALUE;
+				for(BleFanOutScheduler.Trigger<Integer> trigger : triggers) {
+					BleLinkSimulator link = links[trigger.device];
+					long received_ns = link.deliver(time_ns);
+					if( received_ns != -1 ) {
+						fan_out.onTriggerReceived(trigger.device, link.toClientTime(received_ns));
+						min_receive_ns = Math.min(min_receive_ns, received_ns);
+						max_receive_ns = Math.max(max_receive_ns, received_ns);
+					}
+					long capture_ns = link.toServerTime(trigger.client_time_ns);
+					max_error_ns = Math.max(max_error_ns, Math.abs(capture_ns - trigger.server_time_ns));
+					min_capture_ns = Math.min(min_capture_ns, capture_ns);
+					max_capture_ns = Math.max(max_capture_ns, capture_ns);
+				}
+				max_spread_ns = Math.max(max_spread_ns, max_capture_ns - min_capture_ns);
+				max_fire_now_spread_ns = Math.max(max_fire_now_spread_ns, max_receive_ns - min_receive_ns);
+				time_ns += 500000000L;
+			}
+			Log.d(TAG, "seed " + seed + ": max error " + max_error_ns / 1000000.0 + " ms, spread " + max_spread_ns / 1000000.0 +
+					" ms, fire now spread " + max_fire_now_spread_ns / 1000000.0 + " ms " + fan_out);
+			assertTrue(max_error_ns < 1000000L);
+			assertTrue(max_spread_ns < 1500000L);
+			assertTrue(max_spread_ns < max_fire_now_spread_ns);
+			for(int i=0;i<links.length;i++) {
+				BleDeliveryStats stats = fan_out.getStats(i);
+				assertTrue(stats.getTriggerCount() > 0);
+				assertEquals(0, stats.getLateTriggerCount());
+				// a trigger is scheduled ahead by about the connection interval of the slowest client
+				assertTrue(stats.getLatencyQuantileNs(1.0) <= connection_intervals_ns[i] + 5000000L);
+			}
+			assertTrue(fan_out.getLeadTimeNs(0) < fan_out.getLeadTimeNs(links.length - 1));
+			assertTrue(fan_out.getLeadTimeNs(links.length - 1) < BleFanOutScheduler.DEFAULT_LEAD_TIME_NS);
+		}
+	}
+
+	@Test
+	public void testNtpTimestamp() {
+		Log.d(TAG, "testNtpTimestamp");
+
+		byte [] buffer = new byte[8];
+		// 1970 is 2208988800 s after 1900, half a second is a fraction of 2^31
+		NtpBurstClient.writeTimestamp(buffer, 0, 500000000L);
+		assertArrayEquals(new byte[]{(byte)0x83, (byte)0xaa, 0x7e, (byte)0x80, (byte)0x80, 0, 0, 0}, buffer);
+		assertEquals(500000000L, NtpBurstClient.readTimestamp(buffer, 0));
+
+		final long [] times_ns = {1L, 999999999L, -1L, -999999999L, -1500000001L, 1700000000123456789L, 2085978495999999999L, 2085978496000000001L, 2500000000000000001L};
+		for(long time_ns : times_ns) {
+			NtpBurstClient.writeTimestamp(buffer, 0, time_ns);
+			// a fraction is 0.23 ns
+			assertEquals(time_ns, NtpBurstClient.readTimestamp(buffer, 0), 1.0);
+		}
+		// after 2036 the seconds wrap around, into the next era
+		NtpBurstClient.writeTimestamp(buffer, 0, 2085978496001000000L);
+		assertEquals(0, buffer[0] & 0x80);
+	}
+
+	/** NTP server on the loopback, whose clock is the wall clock plus an offset, with simulated
+	 *  network delays: a base delay each way, exponential jitter, and occasional long delays of one
+	 *  way only. It can stop answering, as if restarting.
+	 */
+	private static class FakeNtpServer implements AutoCloseable {
+		final DatagramSocket socket;
+		final long offset_ns;
+		final long base_delay_ns, mean_jitter_ns;
+		volatile boolean answering = true;
+		final ScheduledExecutorService delayer = Executors.newScheduledThreadPool(2);
+		final Random random;
+		final long wall_anchor_ns, clock_anchor_ns;
+		final Thread thread;
+
+		FakeNtpServer(long offset_ns, long seed) throws IOException {
+			this(offset_ns, seed, 1500000L, 2000000L);
+		}
+
+		FakeNtpServer(long offset_ns, long seed, long base_delay_ns, long mean_jitter_ns) throws IOException {
+			this.base_delay_ns = base_delay_ns;
+			this.mean_jitter_ns = mean_jitter_ns;
+			this.socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+			this.offset_ns = offset_ns;
+			this.random = new Random(seed);
+			long wall_ms = System.currentTimeMillis(), tick_ms;
+			while( (tick_ms = System.currentTimeMillis()) == wall_ms ) {
+			}
+			clock_anchor_ns = System.nanoTime();
+			wall_anchor_ns = tick_ms * 1000000L;
+			thread = new Thread(this::run);
+			thread.start();
+		}
+
+		long serverTimeNs() {
+			return wall_anchor_ns + (System.nanoTime() - clock_anchor_ns) + offset_ns;
+		}
+
+		long delayNs() {
+			long delay_ns = base_delay_ns + (long)(-Math.log(1.0 - random.nextDouble()) * mean_jitter_ns);
+			if( random.nextInt(10) == 0 )
+				delay_ns += 20000000L;
+			return delay_ns;
+		}
+
+		void run() {
+			byte [] buffer = new byte[NtpBurstClient.NTP_PACKET_SIZE];
+			while( !socket.isClosed() ) {
+				DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+				try {
+					socket.receive(request);
+				}
+				catch(IOException e) {
+					return;
+				}
+				if( !answering )
+					continue;
+				final byte [] response = new byte[NtpBurstClient.NTP_PACKET_SIZE];
+				response[0] = (byte)(4 | (3 << 3)); // server, version 3
+				response[1] = 2; // stratum
+				System.arraycopy(buffer, 40, response, 24, 8); // originate = transmit of the request
+				final java.net.SocketAddress client = request.getSocketAddress();
+				final long forward_ns = delayNs(), back_ns = delayNs();
+				// the request arrived forward_ns after it was received, and the response is sent
+				// back_ns before it is, so the late running of the task isn't a delay of either way
+				final long receive_ns = serverTimeNs() + forward_ns;
+				NtpBurstClient.writeTimestamp(response, 32, receive_ns);
+				delayer.schedule(() -> {
+					NtpBurstClient.writeTimestamp(response, 40, serverTimeNs() - back_ns);
+					try {
+						socket.send(new DatagramPacket(response, response.length, client));
+					}
+					catch(IOException e) {
+						// closed
+					}
+				}, forward_ns + back_ns, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		@Override
+		public void close() throws InterruptedException {
+			socket.close();
+			thread.join();
+			delayer.shutdownNow();
+		}
+	}
+
+	/** The previous SntpDsense.requestTime(): 21 sequential exchanges, each with its own socket,
+	 *  stamped in ms, keeping the one with the shortest round trip under 10ms.
+	 * @return The offset in ms, or Long.MIN_VALUE if no exchange was kept.
+	 */
+	private static long runLegacySntp(InetAddress address, int port) throws IOException {
+		long best_offset_ms = Long.MIN_VALUE, best_round_trip_ms = Long.MAX_VALUE;
+		for(int i=0;i<21;i++) {
+			try( DatagramSocket socket = new DatagramSocket() ) {
+				socket.setSoTimeout(1000);
+				byte [] buffer = new byte[NtpBurstClient.NTP_PACKET_SIZE];
+				buffer[0] = 3 | (3 << 3);
+				final long request_time = System.currentTimeMillis();
+				final long request_ticks = System.nanoTime() / 1000000L;
+				NtpBurstClient.writeTimestamp(buffer, 40, request_time * 1000000L);
+				socket.send(new DatagramPacket(buffer, buffer.length, address, port));
+				socket.receive(new DatagramPacket(buffer, buffer.length));
+				final long response_ticks = System.nanoTime() / 1000000L;
+				final long response_time = request_time + (response_ticks - request_ticks);
+				final long originate_time = Math.floorDiv(NtpBurstClient.readTimestamp(buffer, 24), 1000000L);
+				final long receive_time = Math.floorDiv(NtpBurstClient.readTimestamp(buffer, 32), 1000000L);
+				final long transmit_time = Math.floorDiv(NtpBurstClient.readTimestamp(buffer, 40), 1000000L);
+				final long round_trip = response_ticks - request_ticks - (transmit_time - receive_time);
+				final long offset = ((receive_time - originate_time) + (transmit_time - response_time)) / 2;
+				if( round_trip < 10 && round_trip < best_round_trip_ms ) {
+					best_round_trip_ms = round_trip;
+					best_offset_ms = offset;
+				}
+			}
+		}
+		return best_offset_ms;
+	}
+
+	/** Benchmarks the burst NTP client against the previous sequential one, with a fake server on
+	 *  the loopback.
+	 */
+	@Test
+	public void testNtpBurstClient() throws Exception {
+		Log.d(TAG, "testNtpBurstClient");
+
+		final long offset_ns = 123456789L;
+		final int n_runs = 5;
+		NtpBurstClient client = new NtpBurstClient(System::nanoTime);
+		double sum_error_ns = 0.0, sum_legacy_error_ns = 0.0;
+		long sum_duration_ns = 0, sum_legacy_duration_ns = 0;
+		int n_legacy = 0;
+		for(int run=0;run<n_runs;run++) {
+			try( FakeNtpServer server = new FakeNtpServer(offset_ns, run) ) {
+				InetAddress address = server.socket.getLocalAddress();
+				int port = server.socket.getLocalPort();
+
+				assertTrue(client.requestTime(address, port, 1000));
+				long error_ns = client.getOffsetNs() - offset_ns;
+				Log.d(TAG, "burst: error " + error_ns / 1000.0 + " us, round trip " + client.getRoundTripNs() / 1000.0 +
+						" us, used " + client.getUsedCount() + " of " + client.getSampleCount() + ", took " + client.getDurationNs() / 1000000.0 + " ms");
+				assertEquals(NtpBurstClient.DEFAULT_BURST_SIZE, client.getSampleCount());
+				// the true offset is within half the round trip, whatever the asymmetry
+				assertTrue(Math.abs(error_ns) <= client.getRoundTripNs() / 2);
+				sum_error_ns += Math.abs(error_ns);
+				sum_duration_ns += client.getDurationNs();
+
+				long start_ns = System.nanoTime();
+				long legacy_offset_ms = runLegacySntp(address, port);
+				long legacy_duration_ns = System.nanoTime() - start_ns;
+				sum_legacy_duration_ns += legacy_duration_ns;
+				if( legacy_offset_ms != Long.MIN_VALUE ) {
+					long legacy_error_ns = legacy_offset_ms * 1000000L - offset_ns;
+					Log.d(TAG, "legacy: error " + legacy_error_ns / 1000.0 + " us, took " + legacy_duration_ns / 1000000.0 + " ms");
+					sum_legacy_error_ns += Math.abs(legacy_error_ns);
+					n_legacy++;
+				}
+				else {
+					Log.d(TAG, "legacy: failed, took " + legacy_duration_ns / 1000000.0 + " ms");
+				}
+			}
+		}
+		client.close();
+		Log.d(TAG, "burst: mean error " + sum_error_ns / n_runs / 1000.0 + " us, mean time " + sum_duration_ns / n_runs / 1000000.0 + " ms");
+		Log.d(TAG, "legacy: mean error " + (n_legacy == 0 ? "-" : (sum_legacy_error_ns / n_legacy / 1000.0) + " us") +
+				", mean time " + sum_legacy_duration_ns / n_runs / 1000000.0 + " ms");
+		assertTrue(sum_duration_ns < sum_legacy_duration_ns);
+		if( n_legacy > 0 )
+			assertTrue(sum_error_ns / n_runs < sum_legacy_error_ns / n_legacy);
+	}
+
+	/** Tests the drift of the local clock is corrected between refreshes, with a simulated source.
+	 */
+	@Test
+	public void testNtpClockDrift() {
+		Log.d(TAG, "testNtpClockDrift");
+
+		final long [] local_time_ns = {1000000000000L};
+		final long local_start_ns = local_time_ns[0];
+		final long reference_start_ns = 1700000000000000000L;
+		final double local_skew = 80e-6; // local clock runs 80ppm fast
+		final Random random = new Random(22);
+		NtpClock clock = new NtpClock(() -> local_time_ns[0], () -> {
+			if( random.nextInt(5) == 0 )
+				return null;
+			long round_trip_ns = 4000000L + random.nextInt(2000000);
+			long error_ns = (long)((random.nextDouble() - 0.5) * round_trip_ns / 2);
+			long reference_ns = reference_start_ns + Math.round((local_time_ns[0] - local_start_ns) / (1.0 + local_skew));
+			return new NtpClock.Sample(local_time_ns[0], reference_ns + error_ns, round_trip_ns);
+		});
+		assertFalse(clock.hasTime());
+		try {
+			clock.now();
+			fail();
+		}
+		catch(IllegalStateException e) {
+			// expected
+		}
+
+		long last_offset_ns = 0;
+		for(int i=0;i<8;i++) {
+			if( clock.refresh() )
+				last_offset_ns = clock.now() - local_time_ns[0];
+			local_time_ns[0] += NtpClock.DEFAULT_REFRESH_INTERVAL_NS;
+		}
+		assertTrue(clock.hasTime());
+		assertTrue(clock.getRefreshCount() >= 4);
+		assertEquals(8, clock.getRefreshCount() + clock.getFailureCount());
+		assertEquals(local_skew, clock.getSkew(), 10e-6);
+
+		// a minute after the last refresh
+		local_time_ns[0] += 60000000000L - NtpClock.DEFAULT_REFRESH_INTERVAL_NS;
+		final long reference_ns = reference_start_ns + Math.round((local_time_ns[0] - local_start_ns) / (1.0 + local_skew));
+		final long error_ns = clock.now() - reference_ns;
+		final long held_error_ns = local_time_ns[0] + last_offset_ns - reference_ns;
+		Log.d(TAG, clock.toString());
+		Log.d(TAG, "error: " + error_ns / 1000.0 + " us, bound " + clock.getErrorBoundNs() / 1000.0 + " us, holding the offset: " + held_error_ns / 1000.0 + " us");
+		assertTrue(Math.abs(error_ns) <= clock.getErrorBoundNs());
+		assertTrue(Math.abs(error_ns) < 1000000L);
+		assertTrue(Math.abs(error_ns) < Math.abs(held_error_ns));
+		assertEquals(local_time_ns[0], clock.toLocalTime(clock.now()), 1000.0);
+		// half a second of the reference is longer of the fast local clock
+		assertEquals(local_time_ns[0] + 500000000L * (1.0 + clock.getSkew()), clock.toLocalTime(clock.now() + 500000000L), 1000.0);
+	}
+
+	/** Tests the clock refreshes in the background from a fake NTP server with a drifting local
+	 *  clock, while reading it doesn't block.
+	 */
+	@Test
+	public void testNtpClockService() throws Exception {
+		Log.d(TAG, "testNtpClockService");
+
+		final long offset_ns = -987654321L;
+		final long base_ns = System.nanoTime();
+		// local clock runs 300ppm fast
+		final Ticker local_clock = () -> base_ns + Math.round((System.nanoTime() - base_ns) * (1.0 + 300e-6));
+		try( FakeNtpServer server = new FakeNtpServer(offset_ns, 22) ) {
+			final InetAddress address = server.socket.getLocalAddress();
+			final int port = server.socket.getLocalPort();
+			final NtpBurstClient client = new NtpBurstClient(local_clock);
+			NtpClock clock = new NtpClock(local_clock, () -> client.requestTime(address, port, 1000) ?
+					new NtpClock.Sample(client.getSampleTimeNs(), client.getReferenceTimeNs(), client.getRoundTripNs()) : null,
+					100000000L, 50000000L);
+			final AtomicInteger n_callbacks = new AtomicInteger();
+			clock.setListener(succeeded -> n_callbacks.incrementAndGet());
+			clock.start();
+			assertTrue(clock.isStarted());
+			for(int i=0;i<1000 && clock.getRefreshCount() < 5;i++) {
+				Thread.sleep(10);
+			}
+			assertTrue(clock.getRefreshCount() >= 5);
+
+			// read the clock while it keeps refreshing
+			long max_read_ns = 0;
+			double sum_error_ns = 0.0;
+			final int n_reads = 100;
+			for(int i=0;i<n_reads;i++) {
+				final long start_ns = System.nanoTime();
+				final long time_ns = clock.now();
+				final long read_ns = System.nanoTime() - start_ns;
+				final long error_ns = time_ns - server.serverTimeNs();
+				final long bound_ns = clock.getErrorBoundNs();
+				max_read_ns = Math.max(max_read_ns, read_ns);
+				sum_error_ns += Math.abs(error_ns);
+				assertTrue("error " + error_ns + " bound " + bound_ns, Math.abs(error_ns) <= bound_ns);
+				Thread.sleep(5);
+			}
+			clock.stop();
+			client.close();
+			assertFalse(clock.isStarted());
+			Log.d(TAG, clock.toString());
+			Log.d(TAG, "mean error " + sum_error_ns / n_reads / 1000.0 + " us, longest read " + max_read_ns / 1000.0 + " us");
+			assertTrue(sum_error_ns / n_reads < 1000000.0);
+			assertTrue(max_read_ns < 5000000L);
+			assertTrue(n_callbacks.get() >= clock.getRefreshCount());
+		}
+	}
+
+	/** Tests polling several fake NTP servers, with a falseticker, a noisy one, and one that stops
+	 *  answering.
+	 */
+	@Test
+	public void testNtpServerSelector() throws Exception {
+		Log.d(TAG, "testNtpServerSelector");
+
+		final long offset_ns = 345678901L;
+		final FakeNtpServer [] servers = {
+			new FakeNtpServer(offset_ns, 1, 1500000L, 2000000L),
+			new FakeNtpServer(offset_ns, 2, 4000000L, 6000000L), // noisy
+			new FakeNtpServer(offset_ns, 3, 1000000L, 1000000L),
+			new FakeNtpServer(offset_ns + 30000000L, 4, 1500000L, 2000000L), // falseticker
+			new FakeNtpServer(offset_ns, 5, 2000000L, 3000000L),
+		};
+		final int falseticker = 3;
+		NtpServerSelector selector = new NtpServerSelector(System::nanoTime);
+		try {
+			List<InetSocketAddress> addresses = new ArrayList<>();
+			for(FakeNtpServer server : servers) {
+				addresses.add(new InetSocketAddress(server.socket.getLocalAddress(), server.socket.getLocalPort()));
+			}
+			selector.setServers(addresses);
+			assertEquals(servers.length, selector.getServerCount());
+
+			final int n_polls = 3;
+			for(int i=0;i<n_polls;i++) {
+				assertTrue(selector.requestTime(500));
+				// reference - local monotonic clock
+				final long expected_offset_ns = servers[0].serverTimeNs() - System.nanoTime();
+				final long error_ns = selector.getOffsetNs() - expected_offset_ns;
+				Log.d(TAG, "error " + error_ns / 1000.0 + " us, estimated " + selector.getErrorNs() / 1000.0 + " us");
+				assertEquals(servers.length - 1, selector.getTruechimerCount());
+				assertTrue(Math.abs(error_ns) <= selector.getErrorNs());
+				assertEquals(selector.getSampleTimeNs() + selector.getOffsetNs(), selector.getReferenceTimeNs());
+			}
+			List<NtpServerSelector.ServerStats> stats = selector.getServerStats();
+			for(int i=0;i<servers.length;i++) {
+				Log.d(TAG, stats.get(i).toString());
+				assertEquals(n_polls, stats.get(i).getPollCount());
+				assertEquals(0, stats.get(i).getFailureCount());
+				assertEquals(i == falseticker ? n_polls : 0, stats.get(i).getFalsetickerCount());
+				assertEquals(i != falseticker, stats.get(i).isTruechimer());
+			}
+			assertEquals(30000000.0, stats.get(falseticker).getDeviationNs(), 1000000.0);
+
+			// the truechimers are still a majority while one restarts
+			servers[0].answering = false;
+			assertTrue(selector.requestTime(200));
+			assertEquals(servers.length - 2, selector.getTruechimerCount());
+			final long expected_offset_ns = servers[0].serverTimeNs() - System.nanoTime();
+			assertTrue(Math.abs(selector.getOffsetNs() - expected_offset_ns) <= selector.getErrorNs());
+			stats = selector.getServerStats();
+			assertEquals(1, stats.get(0).getFailureCount());
+			assertFalse(stats.get(0).isTruechimer());
+
+			// but not if another one restarts
+			servers[2].answering = false;
+			assertFalse(selector.requestTime(200));
+			assertEquals(0, selector.getTruechimerCount());
+
+			// a server alone is taken as it is
+			selector.setServers(addresses.subList(falseticker, falseticker + 1));
+			assertTrue(selector.requestTime(500));
+			assertEquals(1, selector.getTruechimerCount());
+			assertEquals(1, selector.getServerStats().size());
+			assertEquals(n_polls + 3, selector.getServerStats().get(0).getPollCount());
+			assertEquals(30000000.0, selector.getOffsetNs() - expected_offset_ns, 1000000.0);
+		}
+		finally {
+			selector.close();
+			for(FakeNtpServer server : servers) {
+				server.close();
+			}
+		}
+	}
+
+	/** Result of hammering a web server with requests.
+	 */
+	private static class HttpLoadResult {
+		int n_ok;
+		int n_unavailable;
+		int n_other;
+		long elapsed_ns;
+		final List<Long> latencies_ns = new ArrayList<>();
+
+		long latencyQuantile(double quantile) {
+			List<Long> sorted = new ArrayList<>(latencies_ns);
+			Collections.sort(sorted);
+			int index = (int)Math.ceil(quantile * sorted.size()) - 1;
+			return sorted.get(Math.max(0, Math.min(sorted.size()-1, index)));
+		}
+
+		double requestsPerSecond() {
+			return n_ok * 1.0e9 / elapsed_ns;
+		}
+	}
+
+	/** Gets the url from n_clients threads at once, n_requests times each, with keep alive
+	 *  connections as a browser would.
+	 */
+	private static HttpLoadResult runHttpLoad(final URL url, final int n_clients, final int n_requests) throws Exception {
+		final HttpLoadResult result = new HttpLoadResult();
+		ExecutorService clients = Executors.newFixedThreadPool(n_clients);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> futures = new ArrayList<>();
+		for(int i=0;i<n_clients;i++) {
+			futures.add(clients.submit(() -> {
+				start.await();
+				byte [] buffer = new byte[16384];
+				for(int j=0;j<n_requests;j++) {
+					final long start_ns = System.nanoTime();
+					HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+					connection.setConnectTimeout(5000);
+					connection.setReadTimeout(5000);
+					int code;
+					try {
+						code = connection.getResponseCode();
+						// read it all, so the connection can be kept alive
+						InputStream input = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+						if( input != null ) {
+							while( input.read(buffer) != -1 ) {
+							}
+							input.close();
+						}
+					}
+					catch(IOException e) {
+						code = -1;
+					}
+					final long latency_ns = System.nanoTime() - start_ns;
+					synchronized( result ) {
+						if( code == 200 ) {
+							result.n_ok++;
+							result.latencies_ns.add(latency_ns);
+						}
+						else if( code == 503 )
+							result.n_unavailable++;
+						else
+							result.n_other++;
+					}
+				}
+				return null;
+			}));
+		}
+		final long start_ns = System.nanoTime();
+		start.countDown();
+		for(Future<?> future : futures) {
+			future.get();
+		}
+		result.elapsed_ns = System.nanoTime() - start_ns;
+		clients.shutdown();
+		return result;
+	}
+
+	private static HttpLoadResult runWebServerLoad(File folder, IAsyncRunner runner, int n_clients, int n_requests) throws Exception {
+		SimpleWebServer server = new SimpleWebServer("127.0.0.1", 0, folder, true);
+		server.setAsyncRunner(runner);
+		server.start();
+		try {
+			return runHttpLoad(new URL("http://127.0.0.1:" + server.getListeningPort() + "/image.jpg"), n_clients, n_requests);
+		}
+		finally {
+			server.closeAllConnections();
+			server.stop();
+		}
+	}
+
+	/** Compares serving many clients polling for an image with a thread per connection, and with
+	 *  a bounded pool of workers.
+	 */
+	@Test
+	public void testWebServerLoad() throws Exception {
+		Log.d(TAG, "testWebServerLoad");
+
+		File folder = Files.createTempDirectory("webserver").toFile();
+		File file = new File(folder, "image.jpg");
+		byte [] data = new byte[65536];
+		new Random(24).nextBytes(data);
+		Files.write(file.toPath(), data);
+		try {
+			final int n_clients = 32;
+			final int n_requests = 40;
+			// warm up
+			runWebServerLoad(folder, new DefaultAsyncRunner(), 4, 10);
+
+			HttpLoadResult unbounded = runWebServerLoad(folder, new DefaultAsyncRunner(), n_clients, n_requests);
+			Log.d(TAG, "thread per connection: " + unbounded.requestsPerSecond() + " requests/s, p50 " +
+					unbounded.latencyQuantile(0.5) / 1000000.0 + " ms, p99 " + unbounded.latencyQuantile(0.99) / 1000000.0 + " ms");
+			assertEquals(n_clients * n_requests, unbounded.n_ok);
+
+			final int n_workers = 4;
+			BoundedAsyncRunner runner = new BoundedAsyncRunner(n_workers, n_clients, Thread.MIN_PRIORITY, 1000);
+			HttpLoadResult bounded = runWebServerLoad(folder, runner, n_clients, n_requests);
+			Log.d(TAG, "bounded pool: " + bounded.requestsPerSecond() + " requests/s, p50 " +
+					bounded.latencyQuantile(0.5) / 1000000.0 + " ms, p99 " + bounded.latencyQuantile(0.99) / 1000000.0 + " ms, " +
+					bounded.n_unavailable + " unavailable");
+			Log.d(TAG, runner.toString());
+			runner.shutdown();
+			// queue long enough for every client
+			assertEquals(n_clients * n_requests, bounded.n_ok);
+			assertEquals(0, bounded.n_unavailable);
+			assertEquals(0, runner.getRejectedCount());
+			assertTrue(runner.getPeakActiveCount() <= n_workers);
+			assertTrue(runner.getAcceptedCount() >= n_clients);
+			assertTrue(runner.getQueueWaitQuantile(0.5) <= runner.getQueueWaitQuantile(0.99));
+		}
+		finally {
+			file.delete();
+			folder.delete();
+		}
+	}
+
+	/** Tests that connections beyond the queue of a bounded pool are answered 503 at once, and
+	 *  that the server recovers.
+	 */
+	@Test
+	public void testWebServerRejects() throws Exception {
+		Log.d(TAG, "testWebServerRejects");
+
+		File folder = Files.createTempDirectory("webserver").toFile();
+		File file = new File(folder, "image.jpg");
+		Files.write(file.toPath(), new byte[1000]);
+		BoundedAsyncRunner runner = new BoundedAsyncRunner(1, 1, Thread.MIN_PRIORITY, 1000);
+		SimpleWebServer server = new SimpleWebServer("127.0.0.1", 0, folder, true);
+		server.setAsyncRunner(runner);
+		server.start();
+		try {
+			final int port = server.getListeningPort();
+			// idle connections, one held by the worker and one queued
+			Socket idle1 = new Socket("127.0.0.1", port);
+			Socket idle2 = new Socket("127.0.0.1", port);
+			for(int i=0;i<100 && runner.getAcceptedCount() < 2;i++) {
+				Thread.sleep(10);
+			}
+			assertEquals(2, runner.getAcceptedCount());
+
+			final long start_ns = System.nanoTime();
+			try( Socket socket = new Socket("127.0.0.1", port) ) {
+				socket.setSoTimeout(2000);
+				OutputStream output = socket.getOutputStream();
+				output.write("GET /image.jpg HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+				output.flush();
+				byte [] buffer = new byte[12];
+				InputStream input = socket.getInputStream();
+				int n_read = 0;
+				while( n_read < buffer.length ) {
+					int n = input.read(buffer, n_read, buffer.length - n_read);
+					assertTrue(n > 0);
+					n_read += n;
+				}
+				assertEquals("HTTP/1.1 503", new String(buffer, StandardCharsets.US_ASCII));
+			}
+			// answered without waiting for the idle connections to time out
+			assertTrue(System.nanoTime() - start_ns < NanoHTTPD.SOCKET_READ_TIMEOUT * 1000000L);
+			assertEquals(1, runner.getRejectedCount());
+			assertEquals(1, runner.getPeakQueuedCount());
+
+			// closing all connections closes the queued one as well as the running one
+			runner.closeAll();
+			for(Socket idle : new Socket[]{idle1, idle2}) {
+				idle.setSoTimeout(2000);
+				assertEquals(-1, idle.getInputStream().read());
+			}
+			idle1.close();
+			idle2.close();
+			HttpLoadResult result = runHttpLoad(new URL("http://127.0.0.1:" + port + "/image.jpg"), 1, 3);
+			assertEquals(3, result.n_ok);
+			assertEquals(1, runner.getPeakActiveCount());
+		}
+		finally {
+			server.closeAllConnections();
+			server.stop();
+			runner.shutdown();
+			file.delete();
+			folder.delete();
+		}
+	}
+
+	/** Reads the status line and headers of a response, and skips its body. Returns the headers.
+	 */
+	private static String readHttpResponse(InputStream input) throws IOException {
+		StringBuilder head = new StringBuilder();
+		while( head.length() < 4 || !head.substring(head.length() - 4).equals("\r\n\r\n") ) {
+			int c = input.read();
+			assertTrue(c != -1);
+			head.append((char)c);
+		}
+		Matcher matcher = Pattern.compile("(?i)content-length: *(\\d+)").matcher(head);
+		assertTrue(matcher.find());
+		for(long remaining = Long.parseLong(matcher.group(1)); remaining > 0; remaining--) {
+			assertTrue(input.read() != -1);
+		}
+		return head.toString();
+	}
+
+	/** Tests that a kept alive connection stopped as others wait for a worker is answered with
+	 *  Connection: close before it is closed.
+	 */
+	@Test
+	public void testWebServerStopKeepAlive() throws Exception {
+		Log.d(TAG, "testWebServerStopKeepAlive");
+
+		File folder = Files.createTempDirectory("webserver").toFile();
+		File file = new File(folder, "image.jpg");
+		Files.write(file.toPath(), new byte[1000]);
+		BoundedAsyncRunner runner = new BoundedAsyncRunner(1, 1, Thread.MIN_PRIORITY, 5000);
+		SimpleWebServer server = new SimpleWebServer("127.0.0.1", 0, folder, true);
+		server.setAsyncRunner(runner);
+		server.start();
+		try {
+			final int port = server.getListeningPort();
+			final byte [] request = "GET /image.jpg HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+			try( Socket socket = new Socket("127.0.0.1", port) ) {
+				socket.setSoTimeout(2000);
+				OutputStream output = socket.getOutputStream();
+				InputStream input = socket.getInputStream();
+				output.write(request);
+				output.flush();
+				String head = readHttpResponse(input);
+				assertTrue(head.startsWith("HTTP/1.1 200"));
+				assertTrue(head.contains("Connection: keep-alive"));
+
+				// another connection waits for the only worker, held by the idle one
+				try( Socket waiting = new Socket("127.0.0.1", port) ) {
+					waiting.setSoTimeout(2000);
+					for(int i=0;i<100 && runner.getQueuedCount() < 1;i++) {
+						Thread.sleep(10);
+					}
+					assertEquals(1, runner.getQueuedCount());
+
+					// the next request is answered, saying the connection is closed, and it is
+					output.write(request);
+					output.flush();
+					head = readHttpResponse(input);
+					assertTrue(head.startsWith("HTTP/1.1 200"));
+					assertTrue(head.contains("Connection: close"));
+					assertEquals(-1, input.read());
+
+					// so the waiting connection is served
+					waiting.getOutputStream().write(request);
+					waiting.getOutputStream().flush();
+					assertTrue(readHttpResponse(waiting.getInputStream()).startsWith("HTTP/1.1 200"));
+				}
+			}
+		}
+		finally {
+			server.closeAllConnections();
+			server.stop();
+			runner.shutdown();
+			file.delete();
+			folder.delete();
+		}
+	}
+
+	/** Response of a GET request.
+	 */
+	private static class HttpGetResult {
+		int code;
+		String content_type;
+		String content_range;
+		String etag;
+		byte [] body;
+	}
+
+	private static HttpGetResult httpGet(URL url, String... headers) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+		for(int i=0;i+1<headers.length;i+=2) {
+			connection.setRequestProperty(headers[i], headers[i+1]);
+		}
+		HttpGetResult result = new HttpGetResult();
+		result.code = connection.getResponseCode();
+		result.content_type = connection.getHeaderField("Content-Type");
+		result.content_range = connection.getHeaderField("Content-Range");
+		result.etag = connection.getHeaderField("ETag");
+		InputStream input = result.code < 400 ? connection.getInputStream() : connection.getErrorStream();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		if( input != null ) {
+			byte [] buffer = new byte[65536];
+			int n;
+			while( (n = input.read(buffer)) != -1 ) {
+				body.write(buffer, 0, n);
+			}
+			input.close();
+		}
+		result.body = body.toByteArray();
+		return result;
+	}
+
+	/** Tests serving whole files, byte ranges and etags.
+	 */
+	@Test
+	public void testWebServerRanges() throws Exception {
+		Log.d(TAG, "testWebServerRanges");
+
+		File folder = Files.createTempDirectory("webserver").toFile();
+		File file = new File(folder, "image.jpg");
+		byte [] data = new byte[100000];
+		new Random(25).nextBytes(data);
+		Files.write(file.toPath(), data);
+		SimpleWebServer server = new SimpleWebServer("127.0.0.1", 0, folder, true);
+		server.start();
+		try {
+			URL url = new URL("http://127.0.0.1:" + server.getListeningPort() + "/image.jpg");
+
+			HttpGetResult result = httpGet(url);
+			assertEquals(200, result.code);
+			assertArrayEquals(data, result.body);
+			final String etag = result.etag;
+			final String mime = result.content_type;
+			// strong etag, quoted
+			assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+			assertEquals(etag, httpGet(url).etag);
+
+			assertEquals(304, httpGet(url, "If-None-Match", etag).code);
+			assertEquals(304, httpGet(url, "If-None-Match", "\"other\", W/" + etag).code);
+			assertEquals(200, httpGet(url, "If-None-Match", "\"other\"").code);
+
+			result = httpGet(url, "Range", "bytes=1000-1999");
+			assertEquals(206, result.code);
+			assertEquals("bytes 1000-1999/100000", result.content_range);
+			assertArrayEquals(Arrays.copyOfRange(data, 1000, 2000), result.body);
+
+			result = httpGet(url, "Range", "bytes=99000-");
+			assertEquals(206, result.code);
+			assertArrayEquals(Arrays.copyOfRange(data, 99000, 100000), result.body);
+
+			result = httpGet(url, "Range", "bytes=-500");
+			assertEquals(206, result.code);
+			assertEquals("bytes 99500-99999/100000", result.content_range);
+			assertArrayEquals(Arrays.copyOfRange(data, 99500, 100000), result.body);
+
+			// end past the file is cut
+			result = httpGet(url, "Range", "bytes=99990-200000");
+			assertEquals(206, result.code);
+			assertEquals("bytes 99990-99999/100000", result.content_range);
+
+			// several ranges, as a multipart body in order, with overlapping ones merged
+			result = httpGet(url, "Range", "bytes=50000-50099, 0-9,5-19");
+			assertEquals(206, result.code);
+			assertTrue(result.content_type.startsWith("multipart/byteranges; boundary="));
+			final String boundary = result.content_type.substring("multipart/byteranges; boundary=".length());
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			expected.write(("\r\n--" + boundary + "\r\nContent-Type: " + mime + "\r\nContent-Range: bytes 0-19/100000\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			expected.write(data, 0, 20);
+			expected.write(("\r\n--" + boundary + "\r\nContent-Type: " + mime + "\r\nContent-Range: bytes 50000-50099/100000\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			expected.write(data, 50000, 100);
+			expected.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+			assertArrayEquals(expected.toByteArray(), result.body);
+
+			result = httpGet(url, "Range", "bytes=100000-100100");
+			assertEquals(416, result.code);
+			assertEquals("bytes */100000", result.content_range);
+
+			// invalid ranges are ignored
+			assertEquals(200, httpGet(url, "Range", "bytes=20-10").code);
+			assertEquals(200, httpGet(url, "Range", "lines=1-2").code);
+
+			// ranges only of the same file
+			assertEquals(206, httpGet(url, "Range", "bytes=0-9", "If-Range", etag).code);
+			result = httpGet(url, "Range", "bytes=0-9", "If-Range", "\"other\"");
+			assertEquals(200, result.code);
+			assertArrayEquals(data, result.body);
+
+			// a rewritten file has another etag
+			assertTrue(file.setLastModified(file.lastModified() - 10000));
+			assertNotEquals(etag, httpGet(url).etag);
+			assertEquals(200, httpGet(url, "If-None-Match", etag).code);
+		}
+		finally {
+			server.closeAllConnections();
+			server.stop();
+			file.delete();
+			folder.delete();
+		}
+	}
+
+	/** Gets every file of the folder from n_clients threads at once, returning the bytes per
+	 *  second received.
+	 */
+	private static double runFileDownloads(int port, File [] files, int n_clients) throws Exception {
+		ExecutorService clients = Executors.newFixedThreadPool(n_clients);
+		List<Future<Long>> futures = new ArrayList<>();
+		final long start_ns = System.nanoTime();
+		for(int i=0;i<n_clients;i++) {
+			futures.add(clients.submit(() -> {
+				long n_bytes = 0;
+				for(File file : files) {
+					HttpGetResult result = httpGet(new URL("http://127.0.0.1:" + port + "/" + file.getName()));
+					assertEquals(200, result.code);
+					assertEquals(file.length(), result.body.length);
+					n_bytes += result.body.length;
+				}
+				return n_bytes;
+			}));
+		}
+		long n_bytes = 0;
+		for(Future<Long> future : futures) {
+			n_bytes += future.get();
+		}
+		final long elapsed_ns = System.nanoTime() - start_ns;
+		clients.shutdown();
+		return n_bytes * 1.0e9 / elapsed_ns;
+	}
+
+	/** Compares the throughput of serving large files over loopback copied through a buffer on
+	 *  the heap, as before, and with FileChannel.transferTo.
+	 */
+	@Test
+	public void testWebServerFileThroughput() throws Exception {
+		Log.d(TAG, "testWebServerFileThroughput");
+
+		final File folder = Files.createTempDirectory("webserver").toFile();
+		final int n_files = 6;
+		File [] files = new File[n_files];
+		Random random = new Random(26);
+		for(int i=0;i<n_files;i++) {
+			// sizes of full resolution JPEGs and DNGs
+			byte [] data = new byte[(i % 2 == 0 ? 6 : 24) * 1024 * 1024];
+			random.nextBytes(data);
+			files[i] = new File(folder, "IMG_" + i + (i % 2 == 0 ? ".jpg" : ".dng"));
+			Files.write(files[i].toPath(), data);
+		}
+		NanoHTTPD stream_server = new NanoHTTPD("127.0.0.1", 0) {
+			@Override
+			protected Response serve(IHTTPSession session) {
+				File file = new File(folder, session.getUri().substring(1));
+				try {
+					return Response.newFixedLengthResponse(Status.OK, "image/jpeg", new FileInputStream(file), file.length());
+				}
+				catch(IOException e) {
+					return Response.newFixedLengthResponse(Status.NOT_FOUND, NanoHTTPD.MIME_PLAINTEXT, "");
+				}
+			}
+		};
+		SimpleWebServer channel_server = new SimpleWebServer("127.0.0.1", 0, folder, true);
+		stream_server.start();
+		channel_server.start();
+		try {
+			final int n_clients = 2;
+			// warm up
+			runFileDownloads(stream_server.getListeningPort(), files, 1);
+			runFileDownloads(channel_server.getListeningPort(), files, 1);
+
+			final double stream_rate = runFileDownloads(stream_server.getListeningPort(), files, n_clients);
+			final double channel_rate = runFileDownloads(channel_server.getListeningPort(), files, n_clients);
+			Log.d(TAG, "stream: " + stream_rate / (1024 * 1024) + " MB/s, transferTo: " + channel_rate / (1024 * 1024) + " MB/s");
+
+			// a body of bytes around a region of the file
+			File file = files[0];
+			NanoHTTPD region_server = new NanoHTTPD("127.0.0.1", 0) {
+				@Override
+				protected Response serve(IHTTPSession session) {
+					try {
+						return Response.newFileResponse(Status.OK, "image/jpeg", new FileChannelBody(file).addRegion(new byte[]{ 1, 2 }, 10, 100).setSuffix(new byte[]{ 3 }));
+					}
+					catch(IOException e) {
+						return Response.newFixedLengthResponse(Status.NOT_FOUND, NanoHTTPD.MIME_PLAINTEXT, "");
+					}
+				}
+			};
+			region_server.start();
+			try {
+				HttpGetResult result = httpGet(new URL("http://127.0.0.1:" + region_server.getListeningPort() + "/"));
+				assertEquals(200, result.code);
+				byte [] expected = new byte[103];
+				expected[0] = 1;
+				expected[1] = 2;
+				System.arraycopy(Files.readAllBytes(file.toPath()), 10, expected, 2, 100);
+				expected[102] = 3;
+				assertArrayEquals(expected, result.body);
+			}
+			finally {
+				region_server.stop();
+			}
+		}
+		finally {
+			stream_server.stop();
+			channel_server.closeAllConnections();
+			channel_server.stop();
+			for(File file : files) {
+				file.delete();
+			}
+			folder.delete();
+		}
+	}
 }